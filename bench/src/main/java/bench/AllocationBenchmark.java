@@ -0,0 +1,86 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One request on a new connection, as a worker handles it: take an input buffer, read the request into it,
+ * parse it, answer it from the content cache and write header and body out through a header buffer.
+ * Buffers come either from BufferPool or from fresh allocations; in the second case the parser's scratch
+ * buffer is never given back either. Run with -prof gc and compare
+ * gc.alloc.rate.norm, the bytes allocated per request, between the two.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private Object generator;
+    private byte[] request;
+    private FileChannel sink;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Path root = ServerBridge.documentRoot(1024);
+        Object config = ServerBridge.config(root.toString(), "0");
+        generator = ServerBridge.NEW_GENERATOR.invoke(config);
+        request = "GET /size-1024.bin HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    @Benchmark
+    public void request() throws Throwable {
+        ByteBuffer in = pooled ? (ByteBuffer) ServerBridge.POOL_ACQUIRE.invoke(ServerBridge.HEAP_POOL, 8192)
+                : ByteBuffer.allocate(8192);
+        ByteBuffer header = pooled ? (ByteBuffer) ServerBridge.POOL_ACQUIRE.invoke(ServerBridge.DIRECT_POOL, 1024)
+                : ByteBuffer.allocateDirect(1024);
+        in.put(request).flip();
+        Object parser = ServerBridge.NEW_PARSER.invoke(8192, 16384);
+        Object parsed = ServerBridge.PARSE.invoke(parser, in);
+        Object response = ServerBridge.GENERATE.invoke(generator, parsed, true);
+        ByteBuffer block = (ByteBuffer) ServerBridge.ENCODE_HEADER.invoke(response, header);
+        ByteBuffer body = (ByteBuffer) ServerBridge.BODY.invoke(response);
+        ByteBuffer[] parts = {block, body};
+        while (block.hasRemaining() || body.hasRemaining()) {
+            sink.write(parts);
+        }
+        ServerBridge.CLOSE_BODY.invoke(response);
+        if (pooled) {
+            ServerBridge.PARSER_RELEASE.invoke(parser);
+            ServerBridge.POOL_RELEASE.invoke(ServerBridge.HEAP_POOL, in);
+            ServerBridge.POOL_RELEASE.invoke(ServerBridge.DIRECT_POOL, header);
+        }
+    }
+}
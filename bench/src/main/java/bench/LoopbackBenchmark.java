@@ -0,0 +1,157 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end request latency and throughput against a server running in the benchmark JVM,
+ * over loopback with one keep-alive connection per benchmark thread.
+ * Run with -t N to vary client concurrency; sample mode reports latency percentiles.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LoopbackBenchmark {
+
+    /**
+     * One server per trial.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"blocking", "nio"})
+        public String engine;
+
+        @Param({"1024", "65536"})
+        public int fileSize;
+
+        int port;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            Path root = ServerBridge.documentRoot(fileSize);
+            port = ServerBridge.freePort();
+            ServerBridge.startServer(root.toString(), String.valueOf(port), "--engine=" + engine,
+                    "--max-requests=1000000", "--keepalive-timeout=60000");
+        }
+    }
+
+    /**
+     * One keep-alive client connection per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        byte[] request;
+        byte[] buf = new byte[65536];
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+            request = ("GET /size-" + server.fileSize + ".bin HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * Sends one request and reads the whole response.
+         * @return bytes of body read.
+         * @throws IOException if the connection fails.
+         */
+        long roundTrip() throws IOException {
+            return roundTrip(in, out, request, buf);
+        }
+
+        /**
+         * Sends one request on a keep-alive connection and reads the whole response.
+         * @param in connection input.
+         * @param out connection output.
+         * @param request request bytes.
+         * @param buf scratch buffer, large enough for the response header.
+         * @return bytes of body read.
+         * @throws IOException if the connection fails.
+         */
+        static long roundTrip(InputStream in, OutputStream out, byte[] request, byte[] buf) throws IOException {
+            out.write(request);
+            out.flush();
+
+            //reads header up to the blank line, picking out Content-Length
+            int filled = 0;
+            int headerEnd = -1;
+            while (headerEnd < 0) {
+                int n = in.read(buf, filled, buf.length - filled);
+                if (n < 0) {
+                    throw new IOException("server closed connection");
+                }
+                filled += n;
+                headerEnd = indexOfBlankLine(buf, filled);
+            }
+            long length = contentLength(new String(buf, 0, headerEnd, StandardCharsets.ISO_8859_1));
+            long remaining = length - (filled - headerEnd);
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new IOException("server closed connection");
+                }
+                remaining -= n;
+            }
+            return length;
+        }
+
+        private static int indexOfBlankLine(byte[] b, int len) {
+            for (int i = 3; i < len; i++) {
+                if (b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static long contentLength(String header) {
+            for (String line : header.split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    return Long.parseLong(line.substring(15).trim());
+                }
+            }
+            return 0;
+        }
+    }
+
+    @Benchmark
+    public long getFile(Client client) throws IOException {
+        return client.roundTrip();
+    }
+}
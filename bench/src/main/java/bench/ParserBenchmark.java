@@ -0,0 +1,69 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Request parsing: the four RegexReader lookups the server used per request
+ * against one pass of HTTPRequestParser over the same request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    static final String REQUEST = "GET /jonl/index.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) Safari/605.1.15\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-gb,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip,deflate\r\n"
+            + "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7\r\n"
+            + "Keep-Alive: 300\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: max-age=0\r\n\r\n";
+
+    private Object regex;
+    private Object parser;
+    private String joined;
+    private ByteBuffer raw;
+
+    @Setup
+    public void setup() throws Throwable {
+        regex = ServerBridge.NEW_REGEX.invoke();
+        parser = ServerBridge.NEW_PARSER.invoke(8192, 16384);
+        //RegexReader worked on lines joined without separators
+        joined = REQUEST.replace("\r\n", "");
+        raw = ByteBuffer.wrap(REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Benchmark
+    public void regexReader(Blackhole bh) throws Throwable {
+        bh.consume(ServerBridge.REQUEST_TYPE.invoke(regex, joined));
+        bh.consume(ServerBridge.FILE_NAME.invoke(regex, joined));
+        bh.consume(ServerBridge.CONTENT_TYPE.invoke(regex, joined));
+        bh.consume(ServerBridge.PROTOCOL.invoke(regex, joined));
+    }
+
+    @Benchmark
+    public Object stateMachineParser() throws Throwable {
+        raw.rewind();
+        return ServerBridge.PARSE.invoke(parser, raw);
+    }
+}
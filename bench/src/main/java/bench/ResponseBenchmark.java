@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Response generation for files of different sizes, with and without the content cache:
+ * header generation alone, and header plus delivery of the whole body to a sink channel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"0", "67108864"})
+    public long cacheBytes;
+
+    private Object generator;
+    private Object parser;
+    private ByteBuffer get;
+    private ByteBuffer head;
+    private ByteBuffer header;
+    private FileChannel sink;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Path root = ServerBridge.documentRoot(fileSize);
+        Object config = ServerBridge.config(root.toString(), "0", "--cache-bytes=" + cacheBytes,
+                "--cache-max-file=" + (cacheBytes == 0 ? 0 : fileSize));
+        generator = ServerBridge.NEW_GENERATOR.invoke(config);
+        parser = ServerBridge.NEW_PARSER.invoke(8192, 16384);
+        get = request("GET", fileSize);
+        head = request("HEAD", fileSize);
+        header = (ByteBuffer) ServerBridge.ACQUIRE_HEADER.invoke();
+        sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    private static ByteBuffer request(String method, int size) {
+        String text = method + " /size-" + size + ".bin HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n";
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private Object respond(ByteBuffer request) throws Throwable {
+        request.rewind();
+        Object parsed = ServerBridge.PARSE.invoke(parser, request);
+        return ServerBridge.GENERATE.invoke(generator, parsed, true);
+    }
+
+    @Benchmark
+    public ByteBuffer generateResponseHeader() throws Throwable {
+        Object response = respond(head);
+        ByteBuffer block = (ByteBuffer) ServerBridge.ENCODE_HEADER.invoke(response, header);
+        ServerBridge.CLOSE_BODY.invoke(response);
+        return block;
+    }
+
+    @Benchmark
+    public void generateResponseBody() throws Throwable {
+        Object response = respond(get);
+        ByteBuffer block = (ByteBuffer) ServerBridge.ENCODE_HEADER.invoke(response, header);
+        ByteBuffer body = (ByteBuffer) ServerBridge.BODY.invoke(response);
+        ByteBuffer[] parts = {block, body};
+        while (block.hasRemaining() || body.hasRemaining()) {
+            sink.write(parts);
+        }
+        FileChannel file = (FileChannel) ServerBridge.BODY_FILE.invoke(response);
+        if (file != null) {
+            long length = (long) ServerBridge.BODY_LENGTH.invoke(response);
+            long pos = 0;
+            while (pos < length) {
+                pos += file.transferTo(pos, length - pos, sink);
+            }
+        }
+        ServerBridge.CLOSE_BODY.invoke(response);
+    }
+}
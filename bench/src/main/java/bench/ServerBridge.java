@@ -0,0 +1,173 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Handles onto the server classes, which live in the default package and so cannot be imported
+ * from a named package. JMH refuses benchmarks in the default package, so benchmarks reach the
+ * server through these static final method handles, which the JIT treats as constants.
+ */
+final class ServerBridge {
+
+    static final Class<?> CONFIG = load("ServerConfig");
+    static final Class<?> PARSER = load("HTTPRequestParser");
+    static final Class<?> REQUEST = load("HTTPRequest");
+    static final Class<?> RESPONSE = load("HTTPResponse");
+    static final Class<?> GENERATOR = load("ResponseGenerator");
+    static final Class<?> REGEX = load("RegexReader");
+    static final Class<?> WRITER = load("ResponseWriter");
+    static final Class<?> POOL = load("BufferPool");
+
+    static final MethodHandle CONFIG_FROM_ARGS = find(CONFIG, "fromArgs", CONFIG, String[].class);
+    static final MethodHandle NEW_PARSER = constructor(PARSER, int.class, int.class);
+    static final MethodHandle PARSE = virtual(PARSER, "parse", REQUEST, ByteBuffer.class);
+    static final MethodHandle PARSER_RELEASE = virtual(PARSER, "release", void.class);
+    static final MethodHandle NEW_GENERATOR = constructor(GENERATOR, CONFIG);
+    static final MethodHandle GENERATE = virtual(GENERATOR, "generateResponse", RESPONSE, REQUEST, boolean.class);
+    static final MethodHandle ENCODE_HEADER = find(WRITER, "encodeHeader", ByteBuffer.class, RESPONSE,
+            ByteBuffer.class);
+    static final MethodHandle ACQUIRE_HEADER = find(WRITER, "acquire", ByteBuffer.class);
+    static final MethodHandle POOL_ACQUIRE = virtual(POOL, "acquire", ByteBuffer.class, int.class);
+    static final MethodHandle POOL_RELEASE = virtual(POOL, "release", void.class, ByteBuffer.class);
+    static final Object HEAP_POOL = staticField(POOL, "HEAP");
+    static final Object DIRECT_POOL = staticField(POOL, "DIRECT");
+    static final MethodHandle BODY = virtual(RESPONSE, "getBody", ByteBuffer.class);
+    static final MethodHandle BODY_FILE = virtual(RESPONSE, "getBodyFile", java.nio.channels.FileChannel.class);
+    static final MethodHandle BODY_LENGTH = virtual(RESPONSE, "getBodyLength", long.class);
+    static final MethodHandle CLOSE_BODY = virtual(RESPONSE, "closeBody", void.class);
+    static final MethodHandle NEW_REGEX = constructor(REGEX);
+    static final MethodHandle REQUEST_TYPE = virtual(REGEX, "getRequestType", String.class, String.class);
+    static final MethodHandle FILE_NAME = virtual(REGEX, "getRequestedFileName", String.class, String.class);
+    static final MethodHandle CONTENT_TYPE = virtual(REGEX, "getRequestedContentType", String.class, String.class);
+    static final MethodHandle PROTOCOL = virtual(REGEX, "getRequestedHTTPProtocol", String.class, String.class);
+
+    private ServerBridge() {
+    }
+
+    /**
+     * Builds a ServerConfig from command line style arguments.
+     * @param args document root, port and options.
+     * @return ServerConfig instance.
+     */
+    static Object config(String... args) {
+        try {
+            return CONFIG_FROM_ARGS.invoke(args);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Starts a server on a daemon thread, as WebServerMain would, and waits until it accepts connections.
+     * @param args document root, port and options.
+     */
+    static void startServer(String... args) {
+        Object config = config(args);
+        Thread t = new Thread(() -> {
+            try {
+                load("WebServerMain").getConstructor(CONFIG).newInstance(config);
+            } catch (ReflectiveOperationException roe) {
+                roe.printStackTrace();
+            }
+        }, "bench-server");
+        t.setDaemon(true);
+        t.start();
+
+        int port = Integer.parseInt(args[1]);
+        for (int i = 0; i < 100; i++) {
+            try (java.net.Socket s = new java.net.Socket("localhost", port)) {
+                return;
+            } catch (IOException ioe) {
+                sleep(50);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+
+    /**
+     * Creates a temporary document root holding an index page and random files of the given sizes.
+     * Files are named size-N.bin.
+     * @param sizes file sizes in bytes.
+     * @return document root.
+     * @throws IOException if files cannot be written.
+     */
+    static Path documentRoot(int... sizes) throws IOException {
+        Path root = Files.createTempDirectory("bench-root");
+        Files.writeString(root.resolve("index.html"), "<html>\n<body>bench</body>\n</html>\n");
+        Random random = new Random(42);
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            Files.write(root.resolve("size-" + size + ".bin"), data);
+        }
+        root.toFile().deleteOnExit();
+        return root;
+    }
+
+    /**
+     * Finds a free local port.
+     * @return port number.
+     * @throws IOException if no port can be bound.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            return ss.getLocalPort();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException cnfe) {
+            throw new ExceptionInInitializerError(cnfe);
+        }
+    }
+
+    private static Object staticField(Class<?> owner, String name) {
+        try {
+            return MethodHandles.publicLookup().findStaticGetter(owner, name, owner).invoke();
+        } catch (Throwable t) {
+            throw new ExceptionInInitializerError(t);
+        }
+    }
+
+    private static MethodHandle find(Class<?> owner, String name, Class<?> ret, Class<?>... args) {
+        try {
+            return MethodHandles.publicLookup().findStatic(owner, name, MethodType.methodType(ret, args));
+        } catch (ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError(roe);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> owner, String name, Class<?> ret, Class<?>... args) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(owner, name, MethodType.methodType(ret, args));
+        } catch (ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError(roe);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... args) {
+        try {
+            return MethodHandles.publicLookup().findConstructor(owner, MethodType.methodType(void.class, args));
+        } catch (ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError(roe);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTTPS against a server running in the benchmark JVM with --tls=on and its generated certificate, over loopback.
+ * handshake opens a new connection per request, with a full handshake each time or resuming the session
+ * from the server's cache, so the two show what resumption saves. bulk downloads a 1MB file repeatedly over
+ * one keep-alive connection per benchmark thread, which is bound by encryption and the record path.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TlsBenchmark {
+
+    private static final int BULK_SIZE = 1024 * 1024;
+
+    /**
+     * One server per trial.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"blocking", "nio"})
+        public String engine;
+
+        int port;
+        SSLContext client;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException, GeneralSecurityException {
+            Path root = ServerBridge.documentRoot(BULK_SIZE);
+            port = ServerBridge.freePort();
+            ServerBridge.startServer(root.toString(), String.valueOf(port), "--engine=" + engine, "--tls=on",
+                    "--max-requests=1000000", "--keepalive-timeout=60000");
+            client = trustAll();
+        }
+    }
+
+    /**
+     * Whether each new connection resumes a session, per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Handshakes {
+
+        @Param({"full", "resumed"})
+        public String session;
+
+        byte[] request = "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] buf = new byte[4096];
+    }
+
+    /**
+     * One keep-alive HTTPS connection per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Bulk {
+
+        SSLSocket socket;
+        InputStream in;
+        OutputStream out;
+        byte[] request = ("GET /size-" + BULK_SIZE + ".bin HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] buf = new byte[65536];
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException {
+            socket = (SSLSocket) server.client.getSocketFactory().createSocket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int handshake(Server server, Handshakes handshakes) throws IOException {
+        try (SSLSocket socket = (SSLSocket) server.client.getSocketFactory().createSocket("localhost", server.port)) {
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(handshakes.request);
+            socket.getOutputStream().flush();
+            //read to the close, by which time the session ticket has arrived too
+            InputStream in = socket.getInputStream();
+            int total = 0;
+            for (int n; (n = in.read(handshakes.buf)) > 0; ) {
+                total += n;
+            }
+            if (handshakes.session.equals("full")) {
+                //drops it from the client's cache, so the next connection cannot offer it
+                socket.getSession().invalidate();
+            }
+            return total;
+        }
+    }
+
+    @Benchmark
+    public long bulk(Bulk bulk) throws IOException {
+        return LoopbackBenchmark.Client.roundTrip(bulk.in, bulk.out, bulk.request, bulk.buf);
+    }
+
+    /**
+     * Client context which accepts the server's self-signed certificate.
+     * @return context whose sessions are cached per host and port, so they can be resumed.
+     * @throws GeneralSecurityException if no TLS implementation is available.
+     */
+    private static SSLContext trustAll() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {trustAll}, null);
+        return context;
+    }
+}
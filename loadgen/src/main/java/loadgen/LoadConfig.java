@@ -0,0 +1,292 @@
+package loadgen;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Class which holds the options of a load run, parsed from --name=value arguments.
+ */
+final class LoadConfig {
+
+    private String mode = "closed";
+    private int concurrency = 16;
+    private int rate = 1000;
+    private boolean keepAlive = true;
+    private int duration = 10;
+    private int warmup = 3;
+    private Map<Long, Integer> fileMix = parseMix("1k:60,16k:25,256k:10,4m:5");
+    private int filesPerSize = 20;
+    private String target;
+    private String root;
+    private List<String> servers = new ArrayList<>();
+    private String serverJvm = "";
+    private long seed = 42;
+
+    /**
+     * Builds a config from command line arguments.
+     * @param args --name=value options.
+     * @return config holding parsed options.
+     * @throws IllegalArgumentException if an option is unknown or malformed.
+     */
+    static LoadConfig fromArgs(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Malformed option: " + arg);
+            }
+            config.setOption(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        if (config.servers.isEmpty()) {
+            config.servers.add("");
+        }
+        if (config.target != null && config.root == null) {
+            throw new IllegalArgumentException("--target needs --root, the document root the server is serving");
+        }
+        return config;
+    }
+
+    /**
+     * Sets a single named option.
+     * @param name option name without leading dashes.
+     * @param value option value as given on the command line.
+     * @throws IllegalArgumentException if option is unknown or value is invalid.
+     */
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "mode":
+                this.mode = oneOf(name, value, "closed", "open");
+                break;
+            case "concurrency":
+                this.concurrency = positiveInt(name, value);
+                break;
+            case "rate":
+                this.rate = positiveInt(name, value);
+                break;
+            case "connection":
+                this.keepAlive = oneOf(name, value, "keepalive", "close").equals("keepalive");
+                break;
+            case "duration":
+                this.duration = positiveInt(name, value);
+                break;
+            case "warmup":
+                this.warmup = Integer.parseInt(value);
+                break;
+            case "files":
+                this.fileMix = parseMix(value);
+                break;
+            case "files-per-size":
+                this.filesPerSize = positiveInt(name, value);
+                break;
+            case "target":
+                this.target = value;
+                break;
+            case "root":
+                this.root = value;
+                break;
+            case "server":
+                this.servers.add(value);
+                break;
+            case "server-jvm":
+                this.serverJvm = value;
+                break;
+            case "seed":
+                this.seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    /**
+     * Usage text for options accepted by fromArgs.
+     * @return multi-line usage String.
+     */
+    static String usage() {
+        return "Usage: java -jar loadgen.jar [options]\n"
+                + "  --mode=closed|open       fixed concurrency, or fixed request rate with latency measured from\n"
+                + "                           when each request was due, so server stalls are not hidden (closed)\n"
+                + "  --concurrency=N          connections, each with its own thread (16)\n"
+                + "  --rate=N                 requests per second across all connections, open mode (1000)\n"
+                + "  --connection=keepalive|close  reuse connections, or open one per request (keepalive)\n"
+                + "  --duration=S             measured seconds per server (10)\n"
+                + "  --warmup=S               seconds run before measuring (3)\n"
+                + "  --files=SIZE:W,...       file sizes and their share of requests (1k:60,16k:25,256k:10,4m:5)\n"
+                + "  --files-per-size=N       distinct files of each size (20)\n"
+                + "  --server=\"OPTS\"          WebServerMain options for a server to start, repeat to compare (none)\n"
+                + "  --server-jvm=\"OPTS\"      JVM options for started servers (none)\n"
+                + "  --target=HOST:PORT       load a running server instead of starting one\n"
+                + "  --root=DIR               write the files here rather than to a temporary directory\n"
+                + "  --seed=N                 random seed for file contents and request order (42)";
+    }
+
+    /**
+     * Getter method for load mode.
+     * @return "closed" or "open".
+     */
+    String getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Getter method for connection count.
+     * @return number of client connections and threads.
+     */
+    int getConcurrency() {
+        return this.concurrency;
+    }
+
+    /**
+     * Getter method for open loop request rate.
+     * @return requests per second across all connections.
+     */
+    int getRate() {
+        return this.rate;
+    }
+
+    /**
+     * Getter method for connection reuse.
+     * @return true to keep connections alive between requests.
+     */
+    boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * Getter method for measured duration.
+     * @return seconds measured per server.
+     */
+    int getDuration() {
+        return this.duration;
+    }
+
+    /**
+     * Getter method for warmup duration.
+     * @return seconds run before measuring.
+     */
+    int getWarmup() {
+        return this.warmup;
+    }
+
+    /**
+     * Getter method for the file size mix.
+     * @return share of requests by file size in bytes, in the order given.
+     */
+    Map<Long, Integer> getFileMix() {
+        return this.fileMix;
+    }
+
+    /**
+     * Getter method for distinct files per size.
+     * @return number of files generated of each size.
+     */
+    int getFilesPerSize() {
+        return this.filesPerSize;
+    }
+
+    /**
+     * Getter method for running server address.
+     * @return host:port, or null to start servers.
+     */
+    String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Getter method for document root.
+     * @return directory to write files to, or null for a temporary one.
+     */
+    String getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Getter method for server option sets.
+     * @return WebServerMain options of each server to start, one run each.
+     */
+    List<String> getServers() {
+        return this.servers;
+    }
+
+    /**
+     * Getter method for server JVM options.
+     * @return space separated JVM options.
+     */
+    String getServerJvm() {
+        return this.serverJvm;
+    }
+
+    /**
+     * Getter method for random seed.
+     * @return seed.
+     */
+    long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Parses a size with an optional k, m or g suffix.
+     * @param value size such as 16k.
+     * @return bytes.
+     */
+    static long parseSize(String value) {
+        String v = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        char last = v.charAt(v.length() - 1);
+        if (last == 'k' || last == 'm' || last == 'g') {
+            unit = last == 'k' ? 1024 : last == 'm' ? 1024 * 1024 : 1024L * 1024 * 1024;
+            v = v.substring(0, v.length() - 1);
+        }
+        return Long.parseLong(v) * unit;
+    }
+
+    /**
+     * Parses a file mix such as 1k:60,16k:40.
+     * @param value comma separated size:weight pairs.
+     * @return weight by size.
+     */
+    private static Map<Long, Integer> parseMix(String value) {
+        Map<Long, Integer> mix = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Malformed file mix entry: " + entry);
+            }
+            mix.put(parseSize(entry.substring(0, colon)), positiveInt("files", entry.substring(colon + 1)));
+        }
+        return mix;
+    }
+
+    /**
+     * Checks a value is one of the allowed choices.
+     * @param name option name, used in error message.
+     * @param value option value.
+     * @param allowed accepted values.
+     * @return value.
+     */
+    private static String oneOf(String name, String value, String... allowed) {
+        for (String a : allowed) {
+            if (a.equals(value)) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException(name + " must be one of " + String.join(", ", allowed));
+    }
+
+    /**
+     * Parses a strictly positive integer option.
+     * @param name option name, used in error message.
+     * @param value option value.
+     * @return parsed value.
+     */
+    private static int positiveInt(String name, String value) {
+        int parsed = Integer.parseInt(value);
+        if (parsed <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return parsed;
+    }
+}
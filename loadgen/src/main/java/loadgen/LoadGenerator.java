@@ -0,0 +1,199 @@
+package loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for a whole running server.
+ * Writes a mixed file size workload into a document root, then for each set of server options given
+ * starts WebServerMain in a child JVM on that root, loads it for the warmup and measured periods and
+ * stops it again, so engines and worker modes can be compared on the same machine with the same requests.
+ * With --target an already running server is loaded instead.
+ */
+public final class LoadGenerator {
+
+    private static final String STARTED = "listening on port";
+
+    private final LoadConfig config;
+    private final Workload workload;
+
+    /**
+     * Constructor for class. Prepares the workload.
+     * @param config parsed options.
+     * @throws IOException if the workload files cannot be written.
+     */
+    private LoadGenerator(LoadConfig config) throws IOException {
+        this.config = config;
+        Path root = config.getRoot() != null ? Files.createDirectories(Paths.get(config.getRoot()))
+                : Files.createTempDirectory("loadgen-root");
+        this.workload = new Workload(root, config.getFileMix(), config.getFilesPerSize(), config.isKeepAlive(),
+                config.getSeed());
+    }
+
+    /**
+     * Main method, takes --name=value options.
+     * @param args command line arguments.
+     * @throws Exception if the workload cannot be written or a server cannot be started.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadConfig config;
+        try {
+            config = LoadConfig.fromArgs(args);
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            System.err.println(LoadConfig.usage());
+            return;
+        }
+        new LoadGenerator(config).runAll();
+    }
+
+    /**
+     * Runs the load against each server in turn and prints the comparison.
+     * @throws Exception if a server cannot be started.
+     */
+    private void runAll() throws Exception {
+        boolean open = config.getMode().equals("open");
+        System.out.println("Mode: " + (open ? "open loop at " + config.getRate() + " req/s over " : "closed loop with ")
+                + config.getConcurrency() + " connections, " + (config.isKeepAlive() ? "keep-alive" : "one per request")
+                + ", " + config.getWarmup() + "s warmup + " + config.getDuration() + "s measured");
+        System.out.println("Files: " + workload.describe() + " in " + workload.getRoot());
+
+        List<Results> all = new ArrayList<>();
+        if (config.getTarget() != null) {
+            String target = config.getTarget();
+            int colon = target.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(target.substring(0, colon),
+                    Integer.parseInt(target.substring(colon + 1)));
+            all.add(this.load(target, address));
+        } else {
+            for (String options : config.getServers()) {
+                try {
+                    all.add(this.loadServer(options));
+                } catch (IOException ioe) {
+                    //one server failing to start should not lose the runs of the others
+                    System.err.println("Skipping " + options + ": " + ioe.getMessage());
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(Results.heading());
+        for (Results r : all) {
+            System.out.println(r.row());
+        }
+        if (open) {
+            System.out.println("Response time runs from when each request was due, "
+                    + "service time from when it was sent.");
+        }
+    }
+
+    /**
+     * Starts a server with the given options, loads it and stops it.
+     * @param options WebServerMain options separated by spaces.
+     * @return results of the run.
+     * @throws Exception if the server does not start.
+     */
+    private Results loadServer(String options) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Path log = Files.createTempFile("loadgen-server-" + port, ".log");
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(split(config.getServerJvm()));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "WebServerMain",
+                workload.getRoot().toString(), String.valueOf(port),
+                "--log-file=" + workload.getRoot().resolveSibling(workload.getRoot().getFileName() + "-access.log")));
+        command.addAll(split(options));
+        System.out.println("Starting server: " + String.join(" ", command.subList(command.indexOf("WebServerMain"),
+                command.size())));
+
+        Process server = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        try {
+            waitForStart(server, log.toFile());
+            return this.load(options, new InetSocketAddress("localhost", port));
+        } finally {
+            //SIGTERM, so the server drains and flushes its log as on a real shutdown
+            server.destroy();
+            if (!server.waitFor(30, TimeUnit.SECONDS)) {
+                server.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Runs warmup and measured periods against one server.
+     * @param name label of the run.
+     * @param address server address.
+     * @return results of the measured period.
+     * @throws InterruptedException if interrupted while waiting for the workers.
+     */
+    private Results load(String name, InetSocketAddress address) throws InterruptedException {
+        int n = config.getConcurrency();
+        boolean open = config.getMode().equals("open");
+        long perSecond = TimeUnit.SECONDS.toNanos(1);
+        //open mode spreads the rate across the connections, each offset so requests do not leave in bursts
+        long interval = open ? perSecond * n / config.getRate() : 0;
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + perSecond * config.getWarmup();
+        long end = measureFrom + perSecond * config.getDuration();
+
+        Results results = new Results(name);
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            long offset = open ? perSecond * i / config.getRate() : 0;
+            threads[i] = new Thread(new Worker(workload, address, config.isKeepAlive(), start + offset, measureFrom,
+                    end, interval, results, config.getSeed() + i), "loadgen-" + i);
+            threads[i].start();
+        }
+        System.out.println("Loading " + name + " ...");
+        for (Thread t : threads) {
+            t.join();
+        }
+        results.setElapsed(end - measureFrom);
+        return results;
+    }
+
+    /**
+     * Waits until the server reports it is listening. A connect alone is not enough, as the kernel accepts
+     * on a bound port before the server has finished starting and it may still fail.
+     * @param server server process.
+     * @param log file holding the server's output.
+     * @throws IOException if the server exits or does not start within 30 seconds.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void waitForStart(Process server, File log) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            if (!server.isAlive()) {
+                throw new IOException("server exited, see " + log);
+            }
+            if (new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8).contains(STARTED)) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IOException("server did not start within 30s, see " + log);
+    }
+
+    /**
+     * Splits options on whitespace.
+     * @param options option string, may be empty.
+     * @return options.
+     */
+    private static List<String> split(String options) {
+        String trimmed = options.trim();
+        return trimmed.isEmpty() ? new ArrayList<>() : Arrays.asList(trimmed.split("\\s+"));
+    }
+}
@@ -0,0 +1,186 @@
+package loadgen;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which collects the outcome of one measured run.
+ * Latencies go into the server's own LatencyHistogram, reached through method handles because it lives
+ * in the default package, so client and server percentiles are computed the same way.
+ * Two distributions are kept: response time, from when a request was due to be sent, and service time,
+ * from when it was actually sent. In closed mode they differ only by the time taken to connect.
+ */
+final class Results {
+
+    private static final Class<?> HISTOGRAM = load("LatencyHistogram");
+    private static final MethodHandle NEW_HISTOGRAM = handle(() -> MethodHandles.publicLookup()
+            .findConstructor(HISTOGRAM, MethodType.methodType(void.class)));
+    private static final MethodHandle RECORD = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(HISTOGRAM, "record", MethodType.methodType(void.class, long.class)));
+    private static final MethodHandle SNAPSHOT = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(HISTOGRAM, "snapshot", MethodType.methodType(long[].class)));
+    private static final MethodHandle VALUE_AT = handle(() -> MethodHandles.publicLookup()
+            .findStatic(HISTOGRAM, "valueAt", MethodType.methodType(long.class, long[].class, long.class,
+                    double.class)));
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String name;
+    private final Object response = newHistogram();
+    private final Object service = newHistogram();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private long elapsedNanos;
+
+    /**
+     * Constructor for class.
+     * @param name label of the run, usually the server options.
+     */
+    Results(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records one completed request.
+     * @param responseNanos time from when the request was due to when its response was read.
+     * @param serviceNanos time from when the request was sent to when its response was read.
+     * @param status status code.
+     * @param length header and body bytes read.
+     */
+    void record(long responseNanos, long serviceNanos, int status, long length) {
+        try {
+            RECORD.invoke(response, responseNanos);
+            RECORD.invoke(service, serviceNanos);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (status < 400) {
+            ok.increment();
+        } else {
+            failed.increment();
+        }
+        bytes.add(length);
+    }
+
+    /**
+     * Counts a request which got no response because the connection failed.
+     */
+    void recordError() {
+        errors.increment();
+    }
+
+    /**
+     * Counts a new connection.
+     */
+    void recordConnect() {
+        connects.increment();
+    }
+
+    /**
+     * Setter method for measured time.
+     * @param nanos length of the measured period.
+     */
+    void setElapsed(long nanos) {
+        this.elapsedNanos = nanos;
+    }
+
+    /**
+     * Column headings matching row.
+     * @return header line.
+     */
+    static String heading() {
+        return String.format(Locale.ROOT, "%-34s %10s %8s %8s %9s %9s %9s %9s %9s %9s",
+                "server", "req/s", "MB/s", "errors", "conns", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    }
+
+    /**
+     * One report line with throughput and response time percentiles, and a second with service time
+     * percentiles, which in open mode shows how much of the response time was spent waiting to be sent.
+     * @return formatted lines.
+     */
+    String row() {
+        double seconds = elapsedNanos / 1e9;
+        long done = ok.sum() + failed.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-34s %10.0f %8.1f %8d %9d", abbreviate(name), done / seconds,
+                bytes.sum() / seconds / (1024 * 1024), failed.sum() + errors.sum(), connects.sum()));
+        percentiles(sb, response);
+        sb.append('\n').append(String.format(Locale.ROOT, "%-34s %10s %8s %8s %9s", "  service time", "", "", "",
+                ""));
+        percentiles(sb, service);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the quantile columns of one histogram.
+     * @param sb output.
+     * @param histogram LatencyHistogram instance.
+     */
+    private static void percentiles(StringBuilder sb, Object histogram) {
+        try {
+            long[] counts = (long[]) SNAPSHOT.invoke(histogram);
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            for (double q : QUANTILES) {
+                sb.append(String.format(Locale.ROOT, " %9.3f", (long) VALUE_AT.invoke(counts, total, q) / 1e6));
+            }
+            sb.append(String.format(Locale.ROOT, " %9.3f", (long) VALUE_AT.invoke(counts, total, 1.0) / 1e6));
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Shortens a label to its column.
+     * @param s label.
+     * @return label of at most 34 characters.
+     */
+    private static String abbreviate(String s) {
+        String label = s.isEmpty() ? "(defaults)" : s;
+        return label.length() <= 34 ? label : label.substring(0, 31) + "...";
+    }
+
+    /**
+     * Creates a LatencyHistogram.
+     * @return new histogram.
+     */
+    private static Object newHistogram() {
+        try {
+            return NEW_HISTOGRAM.invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static Class<?> load(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException cnfe) {
+            throw new ExceptionInInitializerError(cnfe);
+        }
+    }
+
+    private static MethodHandle handle(Lookup lookup) {
+        try {
+            return lookup.find();
+        } catch (ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError(roe);
+        }
+    }
+
+    /**
+     * Interface for a method handle lookup which may fail.
+     */
+    private interface Lookup {
+
+        MethodHandle find() throws ReflectiveOperationException;
+    }
+}
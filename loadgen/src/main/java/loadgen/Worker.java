@@ -0,0 +1,224 @@
+package loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class which drives one client connection for the length of a run.
+ * In closed mode the next request is sent as soon as the last response has been read. In open mode
+ * requests are due at fixed intervals whatever the server does, and latency is measured from when each
+ * was due rather than when it could be sent, so a server stall counts against every request it delays
+ * instead of only the one in flight (coordinated omission).
+ */
+final class Worker implements Runnable {
+
+    private static final long ERROR_PAUSE = 10_000_000;
+
+    private final Workload workload;
+    private final InetSocketAddress address;
+    private final boolean keepAlive;
+    private final long start;
+    private final long measureFrom;
+    private final long end;
+    private final long interval;
+    private final Results results;
+    private final SplittableRandom random;
+    private final byte[] buf = new byte[65536];
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private int status;
+    private boolean serverCloses;
+
+    /**
+     * Constructor for class.
+     * @param workload requests to choose from.
+     * @param address server address.
+     * @param keepAlive whether to reuse the connection between requests.
+     * @param start System.nanoTime at which this worker's first request is due.
+     * @param measureFrom System.nanoTime from which requests are recorded, the end of warmup.
+     * @param end System.nanoTime after which no request is started.
+     * @param interval nanoseconds between requests in open mode, 0 in closed mode.
+     * @param results where measured requests are recorded.
+     * @param seed seed of this worker's request order.
+     */
+    Worker(Workload workload, InetSocketAddress address, boolean keepAlive, long start, long measureFrom, long end,
+           long interval, Results results, long seed) {
+        this.workload = workload;
+        this.address = address;
+        this.keepAlive = keepAlive;
+        this.start = start;
+        this.measureFrom = measureFrom;
+        this.end = end;
+        this.interval = interval;
+        this.results = results;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Sends requests until the end of the run.
+     */
+    @Override
+    public void run() {
+        long next = start;
+        waitUntil(start);
+        while (true) {
+            long due;
+            if (interval > 0) {
+                due = next;
+                next += interval;
+                if (due >= end) {
+                    break;
+                }
+                waitUntil(due);
+            } else {
+                due = System.nanoTime();
+                if (due >= end) {
+                    break;
+                }
+            }
+            byte[] request = workload.next(random);
+            boolean measured = due >= measureFrom;
+            try {
+                if (socket == null) {
+                    this.connect(measured);
+                }
+                long sent = System.nanoTime();
+                out.write(request);
+                out.flush();
+                long length = this.readResponse();
+                long done = System.nanoTime();
+                if (measured) {
+                    results.record(done - due, done - sent, status, length);
+                }
+                if (!keepAlive || serverCloses) {
+                    this.close();
+                }
+            } catch (IOException ioe) {
+                if (measured) {
+                    results.recordError();
+                }
+                this.close();
+                if (interval == 0) {
+                    //a closed loop would otherwise spin on a server which is refusing connections
+                    waitUntil(System.nanoTime() + ERROR_PAUSE);
+                }
+            }
+        }
+        this.close();
+    }
+
+    /**
+     * Opens a new connection.
+     * @param measured whether the connection counts towards the results.
+     * @throws IOException if the server cannot be reached.
+     */
+    private void connect(boolean measured) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address, 5000);
+        socket.setSoTimeout(30000);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        if (measured) {
+            results.recordConnect();
+        }
+    }
+
+    /**
+     * Reads one response, keeping its status and whether the server is closing the connection.
+     * @return header and body bytes read.
+     * @throws IOException if the connection fails or closes early.
+     */
+    private long readResponse() throws IOException {
+        int filled = 0;
+        int headerEnd = -1;
+        while (headerEnd < 0) {
+            if (filled == buf.length) {
+                throw new IOException("response header too large");
+            }
+            int n = in.read(buf, filled, buf.length - filled);
+            if (n < 0) {
+                throw new IOException("server closed connection");
+            }
+            filled += n;
+            headerEnd = indexOfBlankLine(buf, filled);
+        }
+        String header = new String(buf, 0, headerEnd, StandardCharsets.ISO_8859_1);
+        status = Integer.parseInt(header.substring(9, 12));
+        long length = -1;
+        serverCloses = false;
+        for (String line : header.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Long.parseLong(line.substring(15).trim());
+            } else if (line.regionMatches(true, 0, "Connection:", 0, 11)) {
+                serverCloses = line.substring(11).trim().equalsIgnoreCase("close");
+            }
+        }
+
+        long body = filled - headerEnd;
+        if (length < 0) {
+            //no length, the body runs until the server closes
+            serverCloses = true;
+            for (int n; (n = in.read(buf)) >= 0; ) {
+                body += n;
+            }
+            return headerEnd + body;
+        }
+        while (body < length) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, length - body));
+            if (n < 0) {
+                throw new IOException("server closed connection");
+            }
+            body += n;
+        }
+        return headerEnd + length;
+    }
+
+    /**
+     * Closes the connection, if open.
+     */
+    private void close() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            System.err.println("Worker close: " + ioe.getMessage());
+        }
+        socket = null;
+    }
+
+    /**
+     * Waits until a point in time.
+     * @param deadline System.nanoTime to wait for.
+     */
+    private static void waitUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * Finds the end of the response header.
+     * @param b bytes read.
+     * @param len number of bytes read.
+     * @return index just past the blank line, or -1 if not yet read.
+     */
+    private static int indexOfBlankLine(byte[] b, int len) {
+        for (int i = 3; i < len; i++) {
+            if (b[i] == '\n' && b[i - 1] == '\r' && b[i - 2] == '\n' && b[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+}
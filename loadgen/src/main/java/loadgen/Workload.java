@@ -0,0 +1,104 @@
+package loadgen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Class which writes a mixed file size workload into a document root and picks requests from it.
+ * Each size gets several distinct files, so caches see more than one hot entry per size, and requests
+ * pick a size by its weight and then one of its files uniformly.
+ */
+final class Workload {
+
+    private final Path root;
+    private final long[] sizes;
+    private final int[] cumulative;
+    private final int totalWeight;
+    private final byte[][][] requests;
+
+    /**
+     * Constructor for class. Writes any files not already present with the right size.
+     * @param root document root to write into.
+     * @param mix share of requests by file size.
+     * @param filesPerSize distinct files of each size.
+     * @param keepAlive whether requests ask to keep the connection open.
+     * @param seed random seed for file contents.
+     * @throws IOException if files cannot be written.
+     */
+    Workload(Path root, Map<Long, Integer> mix, int filesPerSize, boolean keepAlive, long seed) throws IOException {
+        this.root = root;
+        this.sizes = new long[mix.size()];
+        this.cumulative = new int[mix.size()];
+        this.requests = new byte[mix.size()][filesPerSize][];
+        Random random = new Random(seed);
+        byte[] chunk = new byte[65536];
+        int i = 0;
+        int sum = 0;
+        for (Map.Entry<Long, Integer> e : mix.entrySet()) {
+            sizes[i] = e.getKey();
+            sum += e.getValue();
+            cumulative[i] = sum;
+            for (int f = 0; f < filesPerSize; f++) {
+                String name = "load-" + sizes[i] + "-" + f + ".bin";
+                Path p = root.resolve(name);
+                if (!Files.exists(p) || Files.size(p) != sizes[i]) {
+                    try (OutputStream os = Files.newOutputStream(p)) {
+                        for (long left = sizes[i]; left > 0; left -= chunk.length) {
+                            random.nextBytes(chunk);
+                            os.write(chunk, 0, (int) Math.min(chunk.length, left));
+                        }
+                    }
+                }
+                requests[i][f] = ("GET /" + name + " HTTP/1.1\r\nHost: localhost\r\n"
+                        + (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            }
+            i++;
+        }
+        this.totalWeight = sum;
+    }
+
+    /**
+     * Picks the next request.
+     * @param random caller's own generator.
+     * @return request bytes, shared and not to be modified.
+     */
+    byte[] next(SplittableRandom random) {
+        int w = random.nextInt(totalWeight);
+        int s = 0;
+        while (cumulative[s] <= w) {
+            s++;
+        }
+        byte[][] files = requests[s];
+        return files[random.nextInt(files.length)];
+    }
+
+    /**
+     * Getter method for document root.
+     * @return directory holding the files.
+     */
+    Path getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Describes the mix for the report header.
+     * @return sizes with their weights.
+     */
+    String describe() {
+        List<String> parts = new ArrayList<>();
+        int previous = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            parts.add(sizes[i] + "B x" + (cumulative[i] - previous));
+            previous = cumulative[i];
+        }
+        return String.join(", ", parts) + " (weights of " + totalWeight + ")";
+    }
+}
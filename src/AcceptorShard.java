@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which accepts connections on one listener of the blocking engine and hands them to its own workers.
+ * With several shards each normally owns a socket bound with SO_REUSEPORT, so the kernel spreads new
+ * connections across the accept threads instead of queueing them all behind one accept call.
+ * The listener is non-blocking and waited on with a Selector, so the loop can be stopped without
+ * closing the listener, which may then be handed to a new server.
+ */
+public class AcceptorShard implements Runnable {
+
+    private static final int BACKLOG = 1024;
+
+    private int id;
+    private HTTPServerHub hub;
+    private ServerSocketChannel channel;
+    private ExecutorService workers;
+    private Metrics metrics;
+    private boolean announce;
+    private Selector selector;
+    private volatile boolean stopping;
+    private CountDownLatch stopped = new CountDownLatch(1);
+    private LongAdder accepted = new LongAdder();
+
+    /**
+     * Constructor for class.
+     * @param id shard number, used in thread names and metrics labels.
+     * @param hub server the shard belongs to.
+     * @param channel bound non-blocking listener, either this shard's own or one shared by all shards.
+     * @param workers executor running this shard's connections.
+     * @param announce whether to print a line for each new connection, as the single-listener server does.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public AcceptorShard(int id, HTTPServerHub hub, ServerSocketChannel channel, ExecutorService workers,
+                         boolean announce) throws IOException {
+        this.id = id;
+        this.hub = hub;
+        this.channel = channel;
+        this.workers = workers;
+        this.announce = announce;
+        this.metrics = hub.getGenerator().getMetrics();
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Opens a listening channel, sharing the port with the other shards' listeners where the platform allows.
+     * @param port port to listen on.
+     * @param reusePort whether to set SO_REUSEPORT before binding.
+     * @return bound channel.
+     * @throws IOException when the port cannot be bound.
+     */
+    public static ServerSocketChannel listen(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            ssc.bind(new InetSocketAddress(port), BACKLOG);
+            ssc.configureBlocking(false);
+            return ssc;
+        } catch (IOException ioe) {
+            ssc.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Whether listeners can be bound with SO_REUSEPORT on this platform.
+     * @return true if each shard may own its own listener.
+     */
+    public static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Accept loop. Runs until stopAccepting is called or the listener fails. Accepted sockets are blocking,
+     * whatever the mode of the listener.
+     */
+    @Override
+    public void run() {
+        try {
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+            while (!stopping) {
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketChannel sc;
+                //a shared listener wakes every shard, those which lose the race get null
+                while (!stopping && (sc = channel.accept()) != null) {
+                    Socket client = sc.socket();
+                    //header and body can go out as separate writes, Nagle would hold the second back
+                    client.setTcpNoDelay(true);
+                    if (announce) {
+                        System.out.println("New connection from " + client.getInetAddress());
+                    }
+                    accepted.increment();
+                    metrics.connectionOpened();
+                    workers.execute(new ServerHandler(client, hub));
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!stopping) {
+                System.err.println("Acceptor " + id + " error: " + e.getMessage());
+            }
+        } finally {
+            try {
+                //deregisters the listener, so another selector may take it over
+                selector.close();
+            } catch (IOException ioe) {
+                System.err.println("Acceptor " + id + " close: " + ioe.getMessage());
+            }
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Ends the accept loop and waits until it has let go of the listener, which stays open.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void stopAccepting() throws InterruptedException {
+        stopping = true;
+        selector.wakeup();
+        stopped.await();
+    }
+
+    /**
+     * Getter method for this shard's workers.
+     * @return executor running this shard's connections.
+     */
+    public ExecutorService getWorkers() {
+        return this.workers;
+    }
+
+    /**
+     * Getter method for listener.
+     * @return listener this shard accepts from.
+     */
+    public ServerSocketChannel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Getter method for shard number.
+     * @return shard number.
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * Getter method for accepted connection count.
+     * @return connections accepted by this shard.
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Getter method for busy workers.
+     * @return pool threads currently running a connection, 0 for virtual threads.
+     */
+    public int getBusyWorkers() {
+        return workers instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workers).getActiveCount() : 0;
+    }
+
+    /**
+     * Getter method for queued connections.
+     * @return connections waiting for a pool thread, 0 for virtual threads.
+     */
+    public int getQueued() {
+        return workers instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workers).getQueue().size() : 0;
+    }
+}
@@ -0,0 +1,260 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which decides whether a parsed request is served or turned away, so overload is met with quick
+ * refusals rather than every request slowing down together.
+ * Two checks run, each optional. A token bucket per client address refuses a client sending faster than
+ * its rate with 429, and an adaptive concurrency limit refuses any request beyond the number the server
+ * can have in flight without latency rising with 503. Both carry Retry-After.
+ * The limit follows the gradient of request latency: once per window the average latency of the window is
+ * compared with a long-term average which moves over some seconds. While they agree the limit grows by a
+ * fraction of its square root, and once latency rises past the tolerance it shrinks in proportion, by up
+ * to a tenth per window, so it increases additively and decreases multiplicatively. Requests only record
+ * into LongAdders and one AtomicInteger; the limit is recomputed by whichever request ends the window.
+ * Buckets are kept in stripes, each a small LRU map behind its own lock, so clients rarely share a lock
+ * and the number of buckets is bounded however many addresses are seen.
+ */
+public class AdmissionControl {
+
+    private static final int STRIPES = 64;
+    private static final int BUCKETS_PER_STRIPE = 1024;
+    private static final long WINDOW_NANOS = 100_000_000L;
+    //weight of each window in the long-term average, and of each new limit in the one applied
+    private static final double LONG_SMOOTHING = 0.01;
+    private static final double LIMIT_SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double rate;
+    private final double burst;
+    private final Stripe[] stripes;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    private final LongAdder sampleNanos = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final AtomicLong nextUpdate = new AtomicLong(System.nanoTime() + WINDOW_NANOS);
+    private double longLatency;
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * Constructor for class, taking its settings from the server options.
+     * @param config server options including the concurrency limit and per-client rate.
+     */
+    public AdmissionControl(ServerConfig config) {
+        this(config.isAdaptiveConcurrency(), config.getConcurrencyMin(), config.getConcurrencyMax(),
+                config.getLatencyTolerance(), config.getRateLimit(), config.getRateBurst());
+    }
+
+    /**
+     * Constructor for class.
+     * @param adaptive whether to limit concurrency, otherwise requests in flight are only counted.
+     * @param minLimit lowest the limit falls to, also where it starts.
+     * @param maxLimit highest the limit grows to.
+     * @param tolerance how many times the long-term latency a window may average before the limit shrinks.
+     * @param rate requests per second allowed to each client address, 0 for no rate limit.
+     * @param burst requests a client may send at once after being quiet, at least 1.
+     */
+    public AdmissionControl(boolean adaptive, int minLimit, int maxLimit, double tolerance, double rate,
+            double burst) {
+        this.adaptive = adaptive;
+        this.minLimit = minLimit;
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        this.tolerance = tolerance;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.limit = minLimit;
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Admits a request, or builds the refusal to send instead. An admitted request must be passed to
+     * release once its response has been written or abandoned.
+     * @param client client address.
+     * @param request parsed request.
+     * @param keepAlive whether the connection may stay open after a 429.
+     * @return null if the request is admitted, otherwise 429 or 503 with Retry-After.
+     */
+    public HTTPResponse admit(String client, HTTPRequest request, boolean keepAlive) {
+        if (rate > 0) {
+            long wait = this.take(client, System.nanoTime());
+            if (wait > 0) {
+                rateLimited.increment();
+                //an unread body would be taken for the next request
+                return refusal(429, "Too Many Requests", wait, keepAlive && !RequestBody.present(request));
+            }
+        }
+        int n = inFlight.incrementAndGet();
+        if (adaptive && n > (int) limit) {
+            inFlight.decrementAndGet();
+            shed.increment();
+            //closing frees the connection's thread or buffers for requests which are admitted
+            return refusal(503, "Service Unavailable", WINDOW_NANOS, false);
+        }
+        return null;
+    }
+
+    /**
+     * Ends an admitted request, feeding its latency to the limit.
+     * @param latencyNanos time from the first byte of the request to the last of the response, or -1 if
+     *     the response was not completed, which counts nothing towards the limit.
+     */
+    public void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        if (!adaptive || latencyNanos < 0) {
+            return;
+        }
+        sampleNanos.add(latencyNanos);
+        samples.increment();
+        long now = System.nanoTime();
+        long next = nextUpdate.get();
+        if (now - next >= 0 && nextUpdate.compareAndSet(next, now + WINDOW_NANOS)) {
+            this.update();
+        }
+    }
+
+    /**
+     * Getter method for concurrency limit.
+     * @return requests allowed in flight, or 0 if concurrency is not limited.
+     */
+    public int getLimit() {
+        return adaptive ? (int) this.limit : 0;
+    }
+
+    /**
+     * Getter method for requests in flight.
+     * @return admitted requests not yet released.
+     */
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * Getter method for requests refused by the rate limit.
+     * @return requests answered with 429.
+     */
+    public long getRateLimited() {
+        return this.rateLimited.sum();
+    }
+
+    /**
+     * Getter method for requests refused by the concurrency limit.
+     * @return requests answered with 503.
+     */
+    public long getShed() {
+        return this.shed.sum();
+    }
+
+    /**
+     * Takes a token from a client's bucket.
+     * @param client client address.
+     * @param now current time in nanoseconds.
+     * @return 0 if a token was taken, otherwise nanoseconds until the next one is due.
+     */
+    long take(String client, long now) {
+        return stripes[(client.hashCode() & 0x7fffffff) % STRIPES].take(client, now, rate, burst);
+    }
+
+    /**
+     * Recomputes the limit from the latencies of the window just ended. If too few requests were in flight
+     * to test the limit it is left alone, so an idle server does not grow a limit it has never reached.
+     */
+    synchronized void update() {
+        long count = samples.sumThenReset();
+        long sum = sampleNanos.sumThenReset();
+        if (count == 0) {
+            return;
+        }
+        double shortLatency = (double) sum / count;
+        if (longLatency == 0) {
+            longLatency = shortLatency;
+        } else {
+            longLatency += (shortLatency - longLatency) * LONG_SMOOTHING;
+            if (longLatency > shortLatency * 2) {
+                //load has dropped away, let the baseline follow quickly rather than over minutes
+                longLatency *= 0.9;
+            }
+        }
+        double current = limit;
+        if (inFlight.get() < current / 2) {
+            return;
+        }
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * longLatency / shortLatency));
+        double wanted = current * gradient + Math.sqrt(current);
+        double next = current * (1 - LIMIT_SMOOTHING) + wanted * LIMIT_SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    /**
+     * Builds a refusal which tells the client when to try again.
+     * @param code 429 or 503.
+     * @param reason reason phrase.
+     * @param waitNanos time until a retry could succeed, rounded up to whole seconds.
+     * @param keepAlive whether the connection stays open afterwards.
+     * @return bodiless response with Retry-After.
+     */
+    private static HTTPResponse refusal(int code, String reason, long waitNanos, boolean keepAlive) {
+        HTTPResponse response = ResponseGenerator.errorResponse(code, reason, keepAlive);
+        response.addHeader("Retry-After", String.valueOf(Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L)));
+        return response;
+    }
+
+    /**
+     * Class which holds the token buckets of the clients whose addresses hash to one stripe, least recently
+     * seen first so the oldest is dropped when the stripe is full. A dropped client starts again with a
+     * full bucket, as a new one would.
+     */
+    private static final class Stripe {
+
+        private final Map<String, Bucket> buckets = new LinkedHashMap<String, Bucket>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                return size() > BUCKETS_PER_STRIPE;
+            }
+        };
+
+        /**
+         * Refills a client's bucket for the time since it was last used and takes a token from it.
+         * @param client client address.
+         * @param now current time in nanoseconds.
+         * @param rate tokens added per second.
+         * @param burst bucket capacity.
+         * @return 0 if a token was taken, otherwise nanoseconds until the next one is due.
+         */
+        synchronized long take(String client, long now, double rate, double burst) {
+            Bucket bucket = buckets.get(client);
+            if (bucket == null) {
+                bucket = new Bucket();
+                bucket.tokens = burst;
+                bucket.updated = now;
+                buckets.put(client, bucket);
+            }
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * rate / 1e9);
+            bucket.updated = now;
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket.tokens) / rate * 1e9);
+        }
+    }
+
+    /**
+     * Class which holds one client's tokens and when they were last counted.
+     */
+    private static final class Bucket {
+
+        private double tokens;
+        private long updated;
+    }
+}
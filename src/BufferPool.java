@@ -0,0 +1,389 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which pools byte buffers in power of two size classes from 1KB to 64KB.
+ * Each platform thread keeps a few buffers of every class to itself, so a worker or event loop which
+ * releases a buffer and acquires another touches no shared state; surplus buffers go to a shared queue
+ * per class. Requests for more than the largest class are allocated and left to the garbage collector.
+ * With leak detection on, every buffer handed out is tracked and one which becomes unreachable
+ * without being released is reported together with where it was acquired.
+ */
+public final class BufferPool {
+
+    /** Pool of direct buffers, for buffers handed to channel writes. */
+    public static final BufferPool DIRECT = new BufferPool("direct", true);
+    /** Pool of heap buffers, for buffers read and written through arrays. */
+    public static final BufferPool HEAP = new BufferPool("heap", false);
+
+    private static final int MIN_SHIFT = 10;
+    static final int CLASSES = 7;
+    private static final int LOCAL_LIMIT = 16;
+    private static final int SHARED_LIMIT = 1024;
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private static volatile boolean leakDetection = Boolean.getBoolean("httpserver.leakDetection");
+
+    private final String name;
+    private final boolean direct;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> shared = new ArrayList<>(CLASSES);
+    private final AtomicInteger[] sharedCount = new AtomicInteger[CLASSES];
+    private final ThreadLocal<LocalCache> local = ThreadLocal.withInitial(LocalCache::new);
+
+    private final LongAdder[] acquired = new LongAdder[CLASSES];
+    private final LongAdder[] released = new LongAdder[CLASSES];
+    private final LongAdder[] localHits = new LongAdder[CLASSES];
+    private final LongAdder[] allocated = new LongAdder[CLASSES];
+    private final LongAdder[] idle = new LongAdder[CLASSES];
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final Map<Key, Tracker> outstanding = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for class.
+     * @param name pool name, used in metrics labels.
+     * @param direct whether the pool holds direct buffers.
+     */
+    private BufferPool(String name, boolean direct) {
+        this.name = name;
+        this.direct = direct;
+        for (int c = 0; c < CLASSES; c++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+            sharedCount[c] = new AtomicInteger();
+            acquired[c] = new LongAdder();
+            released[c] = new LongAdder();
+            localHits[c] = new LongAdder();
+            allocated[c] = new LongAdder();
+            idle[c] = new LongAdder();
+        }
+    }
+
+    /**
+     * Switches leak detection on or off. Meant to be set once at startup, before any buffer is acquired.
+     * @param on true to track every buffer handed out.
+     */
+    public static void setLeakDetection(boolean on) {
+        leakDetection = on;
+    }
+
+    /**
+     * Takes a cleared buffer of at least the given capacity, from this thread's cache, the shared queue
+     * or a new allocation in that order.
+     * @param size smallest capacity needed.
+     * @return buffer whose capacity is size rounded up to its size class, to be given back with release.
+     */
+    public ByteBuffer acquire(int size) {
+        int c = classOf(size);
+        if (c < 0) {
+            unpooled.increment();
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        acquired[c].increment();
+        LocalCache cache = this.localCache();
+        ByteBuffer buf = cache == null ? null : cache.classes.get(c).pollLast();
+        if (buf != null) {
+            localHits[c].increment();
+            idle[c].decrement();
+        } else {
+            buf = shared.get(c).poll();
+            if (buf != null) {
+                sharedCount[c].decrementAndGet();
+                idle[c].decrement();
+            } else {
+                allocated[c].increment();
+                int capacity = 1 << (MIN_SHIFT + c);
+                buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            }
+        }
+        if (leakDetection) {
+            this.track(buf);
+        }
+        return buf.clear();
+    }
+
+    /**
+     * Gives a buffer back. Buffers which did not come from this pool are left to the garbage collector.
+     * The caller must not touch the buffer afterwards.
+     * @param buf buffer obtained from acquire, may be null.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.isDirect() != direct) {
+            return;
+        }
+        int c = classOf(buf.capacity());
+        if (c < 0 || buf.capacity() != 1 << (MIN_SHIFT + c)) {
+            return;
+        }
+        if (leakDetection && !this.untrack(buf)) {
+            System.err.println("BufferPool: " + name + " buffer released twice or not acquired from the pool");
+            return;
+        }
+        released[c].increment();
+        idle[c].increment();
+        LocalCache cache = this.localCache();
+        if (cache != null && cache.classes.get(c).size() < LOCAL_LIMIT) {
+            cache.classes.get(c).addLast(buf);
+        } else if (sharedCount[c].incrementAndGet() <= SHARED_LIMIT) {
+            shared.get(c).offer(buf);
+        } else {
+            sharedCount[c].decrementAndGet();
+            idle[c].decrement();
+        }
+    }
+
+    /**
+     * Getter method for pool name.
+     * @return "direct" or "heap".
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Capacity of the buffers of a size class.
+     * @param c size class index.
+     * @return capacity in bytes.
+     */
+    public static int classSize(int c) {
+        return 1 << (MIN_SHIFT + c);
+    }
+
+    /**
+     * Getter method for acquire count of a size class.
+     * @param c size class index.
+     * @return buffers handed out.
+     */
+    public long getAcquired(int c) {
+        return acquired[c].sum();
+    }
+
+    /**
+     * Getter method for buffers of a size class taken from the acquiring thread's own cache.
+     * @param c size class index.
+     * @return acquires served without touching shared state.
+     */
+    public long getLocalHits(int c) {
+        return localHits[c].sum();
+    }
+
+    /**
+     * Getter method for allocation count of a size class.
+     * @param c size class index.
+     * @return acquires which found no pooled buffer and allocated one.
+     */
+    public long getAllocated(int c) {
+        return allocated[c].sum();
+    }
+
+    /**
+     * Getter method for buffers of a size class currently handed out.
+     * @param c size class index.
+     * @return buffers acquired and not yet released.
+     */
+    public long getOutstanding(int c) {
+        return acquired[c].sum() - released[c].sum();
+    }
+
+    /**
+     * Getter method for buffers of a size class waiting in the pool.
+     * @param c size class index.
+     * @return buffers held in thread caches and the shared queue, including caches of threads which have ended.
+     */
+    public long getIdle(int c) {
+        return idle[c].sum();
+    }
+
+    /**
+     * Getter method for unpooled allocation count.
+     * @return acquires larger than the largest size class.
+     */
+    public long getUnpooled() {
+        return unpooled.sum();
+    }
+
+    /**
+     * Getter method for leak count.
+     * @return buffers found unreachable without being released, counted only with leak detection on.
+     */
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * Size class holding a capacity.
+     * @param size capacity needed.
+     * @return class index, or -1 if larger than the largest class.
+     */
+    private static int classOf(int size) {
+        int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        int c = shift - MIN_SHIFT;
+        return c < CLASSES ? c : -1;
+    }
+
+    /**
+     * This thread's cache, or null on a virtual thread, whose cache would be lost when the thread ends.
+     * @return thread's cache of buffers.
+     */
+    private LocalCache localCache() {
+        if (IS_VIRTUAL != null) {
+            try {
+                if ((boolean) IS_VIRTUAL.invokeExact(Thread.currentThread())) {
+                    return null;
+                }
+            } catch (Throwable t) {
+                return null;
+            }
+        }
+        return local.get();
+    }
+
+    /**
+     * Starts tracking a buffer being handed out.
+     * @param buf buffer.
+     */
+    private void track(ByteBuffer buf) {
+        Key key = new Key(buf);
+        Tracker tracker = new Tracker(this, key, buf.capacity(), new Throwable("acquired here"));
+        outstanding.put(key, tracker);
+        tracker.cleanable = LeakCleaner.CLEANER.register(buf, tracker);
+    }
+
+    /**
+     * Stops tracking a buffer being released.
+     * @param buf buffer.
+     * @return false if the buffer was not being tracked.
+     */
+    private boolean untrack(ByteBuffer buf) {
+        Tracker tracker = outstanding.remove(new Key(buf));
+        if (tracker == null) {
+            return false;
+        }
+        tracker.released = true;
+        tracker.cleanable.clean();
+        return true;
+    }
+
+    /**
+     * Finds Thread.isVirtual, which only exists from Java 21.
+     * @return handle taking a Thread, or null on older runtimes.
+     */
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    /**
+     * Class which holds one thread's buffers, a stack per size class.
+     */
+    private static final class LocalCache {
+
+        private final List<ArrayDeque<ByteBuffer>> classes = new ArrayList<>(CLASSES);
+
+        /**
+         * Constructor for class.
+         */
+        LocalCache() {
+            for (int c = 0; c < CLASSES; c++) {
+                classes.add(new ArrayDeque<>(LOCAL_LIMIT));
+            }
+        }
+    }
+
+    /**
+     * Class which holds the cleaner thread, started only once leak detection tracks a buffer.
+     */
+    private static final class LeakCleaner {
+
+        private static final Cleaner CLEANER = Cleaner.create();
+    }
+
+    /**
+     * Class which identifies a tracked buffer by identity without keeping it reachable.
+     * ByteBuffer's own equals and hashCode depend on its contents, so cannot be used.
+     */
+    private static final class Key extends WeakReference<ByteBuffer> {
+
+        private final int hash;
+
+        /**
+         * Constructor for class.
+         * @param buf buffer to identify.
+         */
+        Key(ByteBuffer buf) {
+            super(buf);
+            this.hash = System.identityHashCode(buf);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            ByteBuffer buf = this.get();
+            return buf != null && buf == ((Key) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Class which reports a tracked buffer that became unreachable before it was released.
+     */
+    private static final class Tracker implements Runnable {
+
+        private final BufferPool pool;
+        private final Key key;
+        private final int capacity;
+        private final Throwable origin;
+        private volatile boolean released;
+        private Cleaner.Cleanable cleanable;
+
+        /**
+         * Constructor for class.
+         * @param pool pool the buffer came from.
+         * @param key identity of the buffer.
+         * @param capacity buffer capacity.
+         * @param origin stack trace of the acquire.
+         */
+        Tracker(BufferPool pool, Key key, int capacity, Throwable origin) {
+            this.pool = pool;
+            this.key = key;
+            this.capacity = capacity;
+            this.origin = origin;
+        }
+
+        @Override
+        public void run() {
+            if (released) {
+                return;
+            }
+            pool.outstanding.remove(key);
+            pool.leaks.increment();
+            System.err.println("BufferPool: " + pool.name + " buffer of " + capacity
+                    + " bytes was never released");
+            origin.printStackTrace();
+        }
+    }
+}
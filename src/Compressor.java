@@ -0,0 +1,564 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Class which negotiates and produces compressed representations of files.
+ * Compressed variants are kept in a bounded least recently used cache so each file version
+ * is compressed once, and are dropped once the source file's size or modification time changes.
+ * Files too large to hold compressed in memory are compressed as they are sent instead, through a
+ * channel which deflates the file a buffer at a time.
+ * Brotli has no implementation in the JDK, so gzip and deflate are the encodings offered.
+ */
+public class Compressor {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int GZIP_TRAILER = 8;
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int STREAM_INPUT = 16384;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private long minSize;
+    private long maxSource;
+    private long budget;
+    private int level;
+    private long revalidateMillis;
+    private long used;
+    private FileVersions versions;
+    private LinkedHashMap<Key, Variant> variants = new LinkedHashMap<>(64, 0.75f, true);
+
+    private LongAdder compressed = new LongAdder();
+    private LongAdder precompressed = new LongAdder();
+    private LongAdder variantHits = new LongAdder();
+    private LongAdder streamed = new LongAdder();
+
+    /**
+     * Constructor for class.
+     * @param config server options including compression threshold, level and variant cache budget.
+     * @param versions file metadata cache, used to find precompressed siblings without a stat per request.
+     */
+    public Compressor(ServerConfig config, FileVersions versions) {
+        this.versions = versions;
+        this.minSize = config.getCompressMin();
+        this.maxSource = Math.max(config.getCacheMaxFile(), config.getCompressMin());
+        this.budget = config.getCompressCache();
+        this.level = config.getCompressLevel();
+        this.revalidateMillis = config.getCacheRevalidate();
+    }
+
+    /**
+     * Picks the encoding to use from an Accept-Encoding header, preferring gzip.
+     * Codings listed with q=0 are refused; a wildcard accepts both.
+     * @param acceptEncoding header value, may be null.
+     * @return GZIP, DEFLATE or null if the body should be sent as it is.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        int gzip = -1;
+        int deflate = -1;
+        int any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            int semi = part.indexOf(';');
+            String coding = (semi < 0 ? part : part.substring(0, semi)).trim().toLowerCase();
+            int accepted = semi < 0 || !isZeroQuality(part.substring(semi + 1)) ? 1 : 0;
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = accepted;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = accepted;
+            } else if (coding.equals("*")) {
+                any = accepted;
+            }
+        }
+        if (gzip == 1 || (gzip < 0 && any == 1)) {
+            return GZIP;
+        }
+        if (deflate == 1 || (deflate < 0 && any == 1)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Path of the precompressed gzip sibling of a file.
+     * @param p resolved path of requested file.
+     * @return path of name.gz next to the file.
+     */
+    public static Path precompressedPath(Path p) {
+        return Paths.get(p + ".gz");
+    }
+
+    /**
+     * Looks up the precompressed gzip sibling (name.gz) of a file, which is used only if it is
+     * not older than the file itself.
+     * @param p resolved path of requested file.
+     * @param source current version of the file.
+     * @return version of the sibling, or null if there is no usable one.
+     */
+    public FileVersions.Version precompressed(Path p, FileVersions.Version source) {
+        FileVersions.Version gz = versions.lookup(precompressedPath(p));
+        if (gz == null || gz.getModified() < source.getModified()) {
+            return null;
+        }
+        precompressed.increment();
+        return gz;
+    }
+
+    /**
+     * Returns the compressed body of a file, compressing and caching it on a miss.
+     * The body is always made from the given version, whose validators the response carries, so a cached
+     * variant of another version is compressed afresh, and a file which no longer matches the version is not
+     * compressed at all.
+     * @param p resolved path of requested file.
+     * @param encoding GZIP or DEFLATE.
+     * @param version version of the file the response is labelled with.
+     * @param cache content cache to take the source body from, may be null.
+     * @return read-only compressed body, or null if the file is too small, too big, does not shrink or has
+     *     changed since the version was read.
+     */
+    public ByteBuffer compressed(Path p, String encoding, FileVersions.Version version, ContentCache cache) {
+        Key key = new Key(p, encoding);
+        Variant v;
+        synchronized (this) {
+            v = variants.get(key);
+        }
+        if (v != null && v.matches(version) && v.isFresh(System.currentTimeMillis(), revalidateMillis)) {
+            variantHits.increment();
+            return v.body == null ? null : v.body.duplicate();
+        }
+
+        v = this.load(p, encoding, version, cache);
+        if (v == null) {
+            return null;
+        }
+        if (budget > 0) {
+            this.put(key, v);
+        }
+        return v.body == null ? null : v.body.duplicate();
+    }
+
+    /**
+     * Whether a file is too large to be compressed into memory, so that it is compressed as it is sent.
+     * @param size file size.
+     * @return true if compressed responses for the file are streamed.
+     */
+    public boolean isStreamed(long size) {
+        return size > maxSource;
+    }
+
+    /**
+     * Opens a channel which reads a file and returns it compressed, for bodies sent as they are compressed.
+     * @param file open file, read from its current position; closed when the channel is.
+     * @param encoding GZIP or DEFLATE.
+     * @return channel of compressed bytes.
+     */
+    public ReadableByteChannel stream(FileChannel file, String encoding) {
+        streamed.increment();
+        return new DeflatingChannel(file, encoding.equals(GZIP), level);
+    }
+
+    /**
+     * Drops the cached variants of a file, eg. once it has been replaced by an upload, so the next request
+     * compresses the new version without waiting for revalidation.
+     * @param p resolved path of file.
+     */
+    public synchronized void invalidate(Path p) {
+        for (String encoding : new String[] {GZIP, DEFLATE}) {
+            Variant old = variants.remove(new Key(p, encoding));
+            if (old != null) {
+                used -= old.bytes();
+            }
+        }
+    }
+
+    /**
+     * Getter method for on-the-fly compression count.
+     * @return number of file versions compressed.
+     */
+    public long getCompressed() {
+        return compressed.sum();
+    }
+
+    /**
+     * Getter method for streamed compression count.
+     * @return number of responses compressed as they were sent.
+     */
+    public long getStreamed() {
+        return streamed.sum();
+    }
+
+    /**
+     * Getter method for precompressed file count.
+     * @return number of lookups which found a usable .gz sibling.
+     */
+    public long getPrecompressed() {
+        return precompressed.sum();
+    }
+
+    /**
+     * Getter method for variant cache hit count.
+     * @return number of lookups answered from the variant cache.
+     */
+    public long getVariantHits() {
+        return variantHits.sum();
+    }
+
+    /**
+     * Reads and compresses a file.
+     * @param p resolved path of file.
+     * @param encoding GZIP or DEFLATE.
+     * @param version version of the file the variant must be made from.
+     * @param cache content cache to take the source body from, may be null.
+     * @return new variant, with a null body if compression is not worthwhile, or null if the file cannot be read
+     *     or no longer matches the version.
+     */
+    private Variant load(Path p, String encoding, FileVersions.Version version, ContentCache cache) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            if (!attrs.isRegularFile() || size != version.getSize() || modified != version.getModified()) {
+                return null;
+            }
+            if (size < minSize || size > maxSource) {
+                return new Variant(null, size, modified, p);
+            }
+
+            ContentCache.CachedFile cf = cache == null || size > cache.getMaxEntry() ? null : cache.get(p);
+            ByteBuffer source;
+            if (cf != null && cf.getSize() == size && cf.getModified() == modified) {
+                source = cf.getBody();
+            } else {
+                source = ByteBuffer.allocate((int) size);
+                try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+                    while (source.hasRemaining() && fc.read(source) > 0) {
+                        continue;
+                    }
+                }
+                if (source.hasRemaining()) {
+                    //file changed while being read
+                    return null;
+                }
+                source.flip();
+            }
+
+            byte[] out = this.deflate(source, encoding);
+            compressed.increment();
+            if (out.length >= size) {
+                return new Variant(null, size, modified, p);
+            }
+            ByteBuffer body = ByteBuffer.allocateDirect(out.length);
+            body.put(out).flip();
+            return new Variant(body.asReadOnlyBuffer(), size, modified, p);
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Compresses a body in gzip or zlib format.
+     * @param source body to compress, its position is advanced to the limit.
+     * @param encoding GZIP or DEFLATE.
+     * @return compressed bytes.
+     */
+    private byte[] deflate(ByteBuffer source, String encoding) {
+        boolean gzip = encoding.equals(GZIP);
+        CRC32 crc = new CRC32();
+        if (gzip) {
+            crc.update(source.duplicate());
+        }
+        int length = source.remaining();
+
+        //gzip wraps raw deflate data in its own header and trailer, HTTP deflate means the zlib format
+        Deflater deflater = new Deflater(level, gzip);
+        try {
+            deflater.setInput(source);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, length / 2)];
+            int n = 0;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                n = GZIP_HEADER.length;
+            }
+            while (!deflater.finished()) {
+                if (n == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            if (gzip) {
+                if (out.length - n < GZIP_TRAILER) {
+                    out = Arrays.copyOf(out, n + GZIP_TRAILER);
+                }
+                n = putIntLE(out, n, (int) crc.getValue());
+                n = putIntLE(out, n, length);
+            }
+            return Arrays.copyOf(out, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes a little-endian int, as the gzip trailer requires.
+     * @param out array to write into.
+     * @param at index of first byte.
+     * @param value value to write.
+     * @return index after the written bytes.
+     */
+    private static int putIntLE(byte[] out, int at, int value) {
+        for (int i = 0; i < 4; i++) {
+            out[at + i] = (byte) (value >>> (8 * i));
+        }
+        return at + 4;
+    }
+
+    /**
+     * Whether a q parameter gives quality zero, meaning the coding is refused.
+     * @param params parameters after the coding name.
+     * @return true if q is 0.
+     */
+    private static boolean isZeroQuality(String params) {
+        String q = params.trim().toLowerCase();
+        if (!q.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(q.substring(2).trim()) <= 0;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds a variant and evicts least recently used variants until back within budget.
+     * @param key path and encoding.
+     * @param v compressed variant.
+     */
+    private synchronized void put(Key key, Variant v) {
+        Variant old = variants.put(key, v);
+        if (old != null) {
+            used -= old.bytes();
+        }
+        used += v.bytes();
+
+        Iterator<Variant> eldest = variants.values().iterator();
+        while (used > budget && eldest.hasNext()) {
+            used -= eldest.next().bytes();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Class which identifies a variant by file and encoding.
+     */
+    private static final class Key {
+
+        private final Path path;
+        private final String encoding;
+
+        /**
+         * Constructor for class.
+         * @param path resolved path of file.
+         * @param encoding GZIP or DEFLATE.
+         */
+        Key(Path path, String encoding) {
+            this.path = path;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return path.equals(k.path) && encoding.equals(k.encoding);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, encoding);
+        }
+    }
+
+    /**
+     * Class which reads a file and returns it deflated in gzip or zlib format, a buffer at a time, so a
+     * compressed body of any size is produced in bounded memory as the engine sends it.
+     */
+    private static final class DeflatingChannel implements ReadableByteChannel {
+
+        private final FileChannel file;
+        private final boolean gzip;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer input = BufferPool.HEAP.acquire(STREAM_INPUT);
+        private int headerWritten;
+        private int trailerWritten;
+        private long length;
+        private boolean inputDone;
+
+        /**
+         * Constructor for class.
+         * @param file file to compress.
+         * @param gzip true for gzip, false for the zlib format HTTP calls deflate.
+         * @param level deflate level.
+         */
+        DeflatingChannel(FileChannel file, boolean gzip, int level) {
+            this.file = file;
+            this.gzip = gzip;
+            this.deflater = new Deflater(level, gzip);
+            this.input.limit(0);
+            if (!gzip) {
+                headerWritten = GZIP_HEADER.length;
+                trailerWritten = GZIP_TRAILER;
+            }
+        }
+
+        /**
+         * Fills a buffer with compressed bytes, reading the file as the deflater needs more input.
+         * @param dst buffer to fill.
+         * @return bytes written to dst, or -1 once the compressed stream has ended.
+         * @throws IOException if the file cannot be read or the channel is closed.
+         */
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (input == null) {
+                throw new IOException("channel closed");
+            }
+            int start = dst.position();
+            while (headerWritten < GZIP_HEADER.length && dst.hasRemaining()) {
+                dst.put(GZIP_HEADER[headerWritten++]);
+            }
+            while (dst.hasRemaining() && !deflater.finished()) {
+                if (deflater.needsInput() && !inputDone) {
+                    input.clear();
+                    if (file.read(input) < 0) {
+                        deflater.finish();
+                        inputDone = true;
+                    }
+                    input.flip();
+                    crc.update(input.duplicate());
+                    length += input.remaining();
+                    deflater.setInput(input);
+                }
+                deflater.deflate(dst);
+            }
+            if (deflater.finished()) {
+                //gzip ends with the CRC and length of the uncompressed data, little-endian
+                while (trailerWritten < GZIP_TRAILER && dst.hasRemaining()) {
+                    long value = trailerWritten < 4 ? crc.getValue() : length;
+                    dst.put((byte) (value >>> (8 * (trailerWritten++ % 4))));
+                }
+            }
+            int n = dst.position() - start;
+            return n == 0 && deflater.finished() && trailerWritten == GZIP_TRAILER ? -1 : n;
+        }
+
+        /**
+         * Whether the channel is open.
+         * @return true until closed.
+         */
+        @Override
+        public boolean isOpen() {
+            return input != null;
+        }
+
+        /**
+         * Closes the file and releases the deflater and input buffer.
+         * @throws IOException if closing the file fails.
+         */
+        @Override
+        public void close() throws IOException {
+            if (input == null) {
+                return;
+            }
+            deflater.end();
+            BufferPool.HEAP.release(input);
+            input = null;
+            file.close();
+        }
+    }
+
+    /**
+     * Class which holds one compressed variant, or the decision not to compress a file version.
+     */
+    private static final class Variant {
+
+        private final ByteBuffer body;
+        private final long size;
+        private final long modified;
+        private final Path path;
+        private volatile long validatedAt;
+
+        /**
+         * Constructor for class.
+         * @param body read-only compressed body, or null if the file is sent uncompressed.
+         * @param size source file size.
+         * @param modified source modification time in milliseconds.
+         * @param path source path, used for revalidation.
+         */
+        Variant(ByteBuffer body, long size, long modified, Path path) {
+            this.body = body;
+            this.size = size;
+            this.modified = modified;
+            this.path = path;
+            this.validatedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Bytes this variant counts against the budget, so decisions not to compress are bounded too.
+         * @return compressed size plus a fixed per-entry overhead.
+         */
+        long bytes() {
+            return ENTRY_OVERHEAD + (body == null ? 0 : body.capacity());
+        }
+
+        /**
+         * Whether this variant was made from a given version of its file.
+         * @param version version a response is to be labelled with.
+         * @return true if the source size and modification time are those of the version.
+         */
+        boolean matches(FileVersions.Version version) {
+            return size == version.getSize() && modified == version.getModified();
+        }
+
+        /**
+         * Whether the source file is unchanged, re-reading its attributes once the variant is older than maxAge.
+         * @param now current time in milliseconds.
+         * @param maxAge milliseconds a variant is trusted without checking the file.
+         * @return true if the variant still matches the file.
+         */
+        boolean isFresh(long now, long maxAge) {
+            if (now - validatedAt < maxAge) {
+                return true;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.size() == size && attrs.lastModifiedTime().toMillis() == modified) {
+                    validatedAt = now;
+                    return true;
+                }
+            } catch (IOException ioe) {
+                //file gone, variant is stale
+            }
+            return false;
+        }
+    }
+}
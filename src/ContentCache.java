@@ -0,0 +1,406 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which keeps small, frequently requested files in memory.
+ * Entries hold the file body in a direct ByteBuffer together with pre-rendered header lines,
+ * are evicted least recently used first once the byte budget is exceeded, and are dropped
+ * when the file's size or modification time changes or a watch event reports the file changed.
+ */
+public class ContentCache {
+
+    private static final int SNIFF_BYTES = 512;
+
+    private long budget;
+    private long maxEntry;
+    private long revalidateMillis;
+    private long used;
+    private LinkedHashMap<Path, CachedFile> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+    private LongAdder invalidations = new LongAdder();
+
+    private WatchService watcher;
+    private Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    /**
+     * Constructor for class. Starts a file watch thread where the platform supports it.
+     * @param budget total body bytes the cache may hold.
+     * @param maxEntry largest file which will be cached, bigger files are always sent from disk.
+     * @param revalidateMillis how long an entry is trusted before its size and mtime are checked again.
+     */
+    public ContentCache(long budget, long maxEntry, long revalidateMillis) {
+        this.budget = budget;
+        this.maxEntry = Math.min(maxEntry, budget);
+        this.revalidateMillis = revalidateMillis;
+
+        try {
+            this.watcher = FileSystems.getDefault().newWatchService();
+            Thread t = new Thread(this::watchLoop, "content-cache-watch");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            //falls back to size and mtime revalidation only
+            System.err.println("ContentCache file watch unavailable: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns cached content for a file, loading it on a miss.
+     * @param p resolved path of requested file.
+     * @return cached entry, or null if the file is missing, not a regular file or too big to cache.
+     */
+    public CachedFile get(Path p) {
+        CachedFile cf;
+        synchronized (this) {
+            cf = entries.get(p);
+        }
+
+        if (cf != null) {
+            if (cf.isFresh(System.currentTimeMillis(), revalidateMillis)) {
+                hits.increment();
+                return cf;
+            }
+            this.invalidate(p);
+        }
+
+        misses.increment();
+        cf = this.load(p);
+        if (cf != null) {
+            this.put(p, cf);
+        }
+        return cf;
+    }
+
+    /**
+     * Drops the entry for a file, if present.
+     * @param p resolved path of file.
+     */
+    public synchronized void invalidate(Path p) {
+        CachedFile old = entries.remove(p);
+        if (old != null) {
+            used -= old.getSize();
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Stops the watch thread, closes the watch service and drops every entry. Files are still cached if
+     * asked for afterwards, but only revalidated by size and mtime.
+     */
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ioe) {
+                System.err.println("ContentCache close: " + ioe.getMessage());
+            }
+        }
+        this.clear();
+    }
+
+    /**
+     * Getter method for the largest cached file, so callers can skip the lookup for bigger ones.
+     * @return largest file size in bytes the cache will hold.
+     */
+    public long getMaxEntry() {
+        return maxEntry;
+    }
+
+    /**
+     * Getter method for hit count.
+     * @return number of requests answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Getter method for miss count.
+     * @return number of lookups which had to go to disk.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Getter method for eviction count.
+     * @return number of entries dropped to stay within budget.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Getter method for invalidation count.
+     * @return number of entries dropped because the file changed.
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Getter method for bytes held.
+     * @return total body bytes currently cached.
+     */
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    /**
+     * Adds an entry and evicts least recently used entries until back within budget.
+     * @param p resolved path of file.
+     * @param cf loaded entry.
+     */
+    private synchronized void put(Path p, CachedFile cf) {
+        CachedFile old = entries.put(p, cf);
+        if (old != null) {
+            used -= old.getSize();
+        }
+        used += cf.getSize();
+
+        Iterator<CachedFile> eldest = entries.values().iterator();
+        while (used > budget && eldest.hasNext()) {
+            CachedFile victim = eldest.next();
+            eldest.remove();
+            used -= victim.getSize();
+            evictions.increment();
+        }
+        this.watch(p.getParent());
+    }
+
+    /**
+     * Reads a file into a new entry.
+     * @param p resolved path of file.
+     * @return new entry, or null if the file cannot or should not be cached.
+     */
+    private CachedFile load(Path p) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || attrs.size() > maxEntry) {
+                return null;
+            }
+
+            ByteBuffer body = ByteBuffer.allocateDirect((int) attrs.size());
+            try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+                while (body.hasRemaining() && fc.read(body) > 0) {
+                    continue;
+                }
+                if (body.hasRemaining() || fc.size() != attrs.size()) {
+                    //file changed while being read, serve it from disk this time
+                    return null;
+                }
+            }
+            body.flip();
+
+            String contentType = MimeTypes.forFileName(p.toString());
+            if (contentType == null && looksLikeHtml(body)) {
+                contentType = "text/html";
+            }
+            return new CachedFile(body.asReadOnlyBuffer(), contentType,
+                    attrs.size(), attrs.lastModifiedTime().toMillis(), p);
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks the start of a body for an html tag.
+     * @param body file body, its position is not changed.
+     * @return true if an html tag appears within the first SNIFF_BYTES bytes.
+     */
+    static boolean looksLikeHtml(ByteBuffer body) {
+        byte[] head = new byte[Math.min(SNIFF_BYTES, body.remaining())];
+        body.duplicate().get(head);
+        return new String(head, StandardCharsets.ISO_8859_1).contains("<html>");
+    }
+
+    /**
+     * Registers a directory with the watch service, once.
+     * @param dir directory holding a cached file.
+     */
+    private void watch(Path dir) {
+        if (watcher == null || dir == null || watchedDirs.containsValue(dir)) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_CREATE);
+            watchedDirs.put(key, dir);
+        } catch (IOException ioe) {
+            System.err.println("ContentCache watch: " + ioe.getMessage());
+        } catch (ClosedWatchServiceException cwse) {
+            //closed with the server, entries fall back to size and mtime revalidation
+        }
+    }
+
+    /**
+     * Body of the watch thread. Drops entries as soon as their files are reported changed.
+     */
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir;
+                synchronized (this) {
+                    dir = watchedDirs.get(key);
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        this.clear();
+                    } else {
+                        this.invalidate(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    synchronized (this) {
+                        watchedDirs.remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drops every entry, used when watch events were lost.
+     */
+    private synchronized void clear() {
+        invalidations.add(entries.size());
+        entries.clear();
+        used = 0;
+    }
+
+    /**
+     * Class which holds one cached file.
+     */
+    public static final class CachedFile {
+
+        private ByteBuffer body;
+        private String contentType;
+        private byte[] headerFields;
+        private FileVersions.Version version;
+        private long size;
+        private long modified;
+        private Path path;
+        private volatile long validatedAt;
+
+        /**
+         * Constructor for class. Renders the header lines, including validators, which only depend on the file.
+         * @param body read-only file body.
+         * @param contentType MIME type, or null if it depends on the request.
+         * @param size file size in bytes.
+         * @param modified file modification time in milliseconds.
+         * @param path resolved path, used for revalidation.
+         */
+        CachedFile(ByteBuffer body, String contentType, long size, long modified, Path path) {
+            this.body = body;
+            this.contentType = contentType;
+            this.size = size;
+            this.modified = modified;
+            this.path = path;
+            this.validatedAt = System.currentTimeMillis();
+            this.version = new FileVersions.Version(size, modified);
+
+            String fields = "Content-Length: " + size + "\r\n";
+            if (contentType != null) {
+                fields = "Content-Type: " + contentType + "\r\n" + fields;
+            }
+            byte[] lines = fields.getBytes(StandardCharsets.US_ASCII);
+            byte[] validators = version.getHeaderFields();
+            this.headerFields = Arrays.copyOf(lines, lines.length + validators.length);
+            System.arraycopy(validators, 0, this.headerFields, lines.length, validators.length);
+        }
+
+        /**
+         * Whether the entry may still be served, re-reading file attributes once it is older than maxAge.
+         * @param now current time in milliseconds.
+         * @param maxAge milliseconds an entry is trusted without checking the file.
+         * @return true if the file is unchanged.
+         */
+        boolean isFresh(long now, long maxAge) {
+            if (now - validatedAt < maxAge) {
+                return true;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.size() == size && attrs.lastModifiedTime().toMillis() == modified) {
+                    validatedAt = now;
+                    return true;
+                }
+            } catch (IOException ioe) {
+                //file gone, entry is stale
+            }
+            return false;
+        }
+
+        /**
+         * Getter method for body. Each caller gets its own view so positions are independent.
+         * @return read-only view of the cached body.
+         */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+
+        /**
+         * Getter method for content type.
+         * @return MIME type, or null if it should come from the request.
+         */
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * Getter method for the version of the file held, with its validators.
+         * @return file version.
+         */
+        public FileVersions.Version getVersion() {
+            return this.version;
+        }
+
+        /**
+         * Getter method for the pre-rendered Content-Type, Content-Length, ETag and Last-Modified header lines.
+         * @return header lines as US-ASCII bytes, each ending in CRLF.
+         */
+        public byte[] getHeaderFields() {
+            return this.headerFields;
+        }
+
+        /**
+         * Getter method for size.
+         * @return body size in bytes.
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * Getter method for modification time.
+         * @return file modification time in milliseconds.
+         */
+        public long getModified() {
+            return this.modified;
+        }
+    }
+}
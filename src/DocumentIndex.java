@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which holds the version of every regular file under the document root in memory.
+ * The tree is walked once at startup, one fork-join task per directory, and kept current from
+ * watch events afterwards, so existence and metadata lookups for indexed directories never stat a file.
+ * Symbolic links to directories are not followed; files below them are looked up on disk as before.
+ */
+public class DocumentIndex {
+
+    private Path root;
+    private volatile Map<Path, FileVersions.Version> files = new ConcurrentHashMap<>();
+    private volatile Set<Path> dirs = ConcurrentHashMap.newKeySet();
+    private LongAdder updates = new LongAdder();
+
+    private WatchService watcher;
+    private Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    /**
+     * Constructor for class. Walks the document root and starts a file watch thread where the platform supports it.
+     * @param root absolute, normalised document root.
+     */
+    public DocumentIndex(Path root) {
+        this.root = root;
+        try {
+            this.watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            //without events the index would go stale, so it is not used at all
+            System.err.println("DocumentIndex file watch unavailable: " + e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        ForkJoinPool.commonPool().invoke(new Walk(root, this.files, this.dirs));
+        System.out.println("Indexed " + files.size() + " files in " + dirs.size() + " directories ("
+                + (System.nanoTime() - start) / 1000000 + " ms)");
+
+        Thread t = new Thread(this::watchLoop, "document-index-watch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Whether a path is answered by the index, that is its directory was walked and is being watched.
+     * @param p resolved path of file.
+     * @return true if get is authoritative for the path.
+     */
+    public boolean covers(Path p) {
+        Path dir = p.getParent();
+        return dir != null && dirs.contains(dir);
+    }
+
+    /**
+     * Returns the indexed version of a file.
+     * @param p resolved path of file.
+     * @return version, or null if no regular file of that name was indexed.
+     */
+    public FileVersions.Version get(Path p) {
+        return files.get(p);
+    }
+
+    /**
+     * Applies a change the server made itself, eg. a file put in place by an upload, without waiting for
+     * its watch event. A file in a directory not yet indexed is picked up by walking the highest new one.
+     * @param p resolved path of the changed file.
+     */
+    public void changed(Path p) {
+        Path top = p;
+        Path dir = p.getParent();
+        while (dir != null && dir.startsWith(root) && !dirs.contains(dir)) {
+            top = dir;
+            dir = dir.getParent();
+        }
+        if (dir != null && dirs.contains(dir)) {
+            this.refresh(top);
+        }
+    }
+
+    /**
+     * Stops the watch thread and closes the watch service. The index no longer covers any path afterwards,
+     * since nothing would keep it current, so lookups go to disk.
+     */
+    public void close() {
+        if (watcher == null) {
+            return;
+        }
+        dirs = ConcurrentHashMap.newKeySet();
+        try {
+            watcher.close();
+        } catch (IOException ioe) {
+            System.err.println("DocumentIndex close: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Getter method for indexed file count.
+     * @return number of regular files in the index.
+     */
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * Getter method for update count.
+     * @return number of watch events applied to the index.
+     */
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    /**
+     * Registers a directory with the watch service.
+     * @param dir directory being indexed.
+     */
+    private void watch(Path dir) {
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_CREATE);
+            synchronized (this) {
+                watchedDirs.put(key, dir);
+            }
+        } catch (IOException ioe) {
+            System.err.println("DocumentIndex watch: " + ioe.getMessage());
+        } catch (ClosedWatchServiceException cwse) {
+            //closed while a walk was running, the index is no longer used
+        }
+    }
+
+    /**
+     * Body of the watch thread. Applies each event to the index, walking new directories and
+     * re-walking the whole root if events were lost.
+     */
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir;
+                synchronized (this) {
+                    dir = watchedDirs.get(key);
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    updates.increment();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        this.rebuild();
+                    } else {
+                        this.refresh(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    synchronized (this) {
+                        watchedDirs.remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Brings the entry for one changed path up to date.
+     * @param p path named by a watch event.
+     */
+    private void refresh(Path p) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException ioe) {
+            attrs = null;
+        }
+        if (attrs != null && attrs.isDirectory()) {
+            if (!dirs.contains(p)) {
+                ForkJoinPool.commonPool().invoke(new Walk(p, files, dirs));
+            }
+            return;
+        }
+
+        if (dirs.remove(p)) {
+            //a deleted directory takes everything below it with it
+            files.keySet().removeIf(f -> f.startsWith(p));
+            dirs.removeIf(d -> d.startsWith(p));
+        }
+        //replaced in one step, so a changing file is never briefly missing
+        FileVersions.Version v = attrs == null ? null : versionOf(p, attrs);
+        if (v != null) {
+            files.put(p, v);
+        } else {
+            files.remove(p);
+        }
+    }
+
+    /**
+     * Re-walks the whole document root into a new index and swaps it in.
+     */
+    private void rebuild() {
+        Map<Path, FileVersions.Version> freshFiles = new ConcurrentHashMap<>();
+        Set<Path> freshDirs = ConcurrentHashMap.newKeySet();
+        ForkJoinPool.commonPool().invoke(new Walk(root, freshFiles, freshDirs));
+        this.files = freshFiles;
+        this.dirs = freshDirs;
+    }
+
+    /**
+     * Version of a directory entry, following a symbolic link to a file.
+     * @param p path of entry.
+     * @param attrs attributes of the entry itself.
+     * @return version, or null if the entry is not, or does not link to, a regular file.
+     */
+    private static FileVersions.Version versionOf(Path p, BasicFileAttributes attrs) {
+        try {
+            BasicFileAttributes target = attrs.isSymbolicLink()
+                    ? Files.readAttributes(p, BasicFileAttributes.class) : attrs;
+            return target.isRegularFile()
+                    ? new FileVersions.Version(target.size(), target.lastModifiedTime().toMillis()) : null;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Class which indexes one directory, forking a task for each subdirectory.
+     */
+    private final class Walk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Map<Path, FileVersions.Version> intoFiles;
+        private final Set<Path> intoDirs;
+
+        /**
+         * Constructor for class.
+         * @param dir directory to index.
+         * @param intoFiles map receiving file versions.
+         * @param intoDirs set receiving indexed directories.
+         */
+        Walk(Path dir, Map<Path, FileVersions.Version> intoFiles, Set<Path> intoDirs) {
+            this.dir = dir;
+            this.intoFiles = intoFiles;
+            this.intoDirs = intoDirs;
+        }
+
+        @Override
+        protected void compute() {
+            //watched before listing, so files created during the walk are reported rather than missed
+            watch(dir);
+            List<Walk> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path p : entries) {
+                    BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        subdirs.add(new Walk(p, intoFiles, intoDirs));
+                    } else {
+                        FileVersions.Version v = versionOf(p, attrs);
+                        if (v != null) {
+                            intoFiles.put(p, v);
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                //unreadable directory stays out of the index and is looked up on disk
+                System.err.println("DocumentIndex walk: " + ioe.getMessage());
+                return;
+            }
+            intoDirs.add(dir);
+            invokeAll(subdirs);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Class which caches file metadata together with the HTTP validators derived from it.
+ * A version is one (size, modification time) pair of a file; its strong ETag and Last-Modified
+ * date are rendered once when the version is first seen and reused until the file changes.
+ * Entries are trusted for the revalidation interval, so hot files are not stat'ed on every request.
+ */
+public class FileVersions {
+
+    private static final int MAX_ENTRIES = 16384;
+
+    /** HTTP-date, IMF-fixdate form, eg. Sun, 06 Nov 1994 08:49:37 GMT. */
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private long revalidateMillis;
+    private DocumentIndex index;
+    private Map<Path, Version> versions = new LinkedHashMap<Path, Version>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Version> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Constructor for class.
+     * @param revalidateMillis how long an entry is trusted before the file's attributes are read again.
+     */
+    public FileVersions(long revalidateMillis) {
+        this(revalidateMillis, null);
+    }
+
+    /**
+     * Constructor for class which answers from a document index wherever the index covers the path.
+     * @param revalidateMillis how long an entry is trusted before the file's attributes are read again.
+     * @param index in-memory index of the document root, may be null.
+     */
+    public FileVersions(long revalidateMillis, DocumentIndex index) {
+        this.revalidateMillis = revalidateMillis;
+        this.index = index;
+    }
+
+    /**
+     * Forgets the entry of a file, so the next lookup reads its attributes afresh.
+     * @param p resolved path of file.
+     */
+    public synchronized void invalidate(Path p) {
+        versions.remove(p);
+    }
+
+    /**
+     * Returns the current version of a regular file, reading its attributes only if the entry is stale.
+     * Missing files are remembered too, so repeated lookups of absent files (eg. .gz siblings) are cheap.
+     * Paths the document index covers are answered from the index without touching the disk.
+     * @param p resolved path of file.
+     * @return version, or null if the file does not exist or is not a regular file.
+     */
+    public Version lookup(Path p) {
+        if (index != null && index.covers(p)) {
+            return index.get(p);
+        }
+        long now = System.currentTimeMillis();
+        Version v;
+        synchronized (this) {
+            v = versions.get(p);
+        }
+        if (v != null && now - v.checkedAt < revalidateMillis) {
+            return v.size < 0 ? null : v;
+        }
+
+        Version current;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            current = attrs.isRegularFile() ? new Version(attrs.size(), attrs.lastModifiedTime().toMillis()) : null;
+        } catch (IOException ioe) {
+            current = null;
+        }
+
+        if (current == null) {
+            synchronized (this) {
+                versions.put(p, new Version());
+            }
+            return null;
+        }
+        if (v != null && v.size == current.size && v.modified == current.modified) {
+            //unchanged, keep the rendered validators
+            v.checkedAt = now;
+            return v;
+        }
+        synchronized (this) {
+            versions.put(p, current);
+        }
+        return current;
+    }
+
+    /**
+     * Parses an HTTP-date as sent in If-Modified-Since.
+     * @param date header value, may be null.
+     * @return seconds since the epoch, or -1 if absent or not a valid date.
+     */
+    public static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(date.trim(), HTTP_DATE).toEpochSecond();
+        } catch (DateTimeParseException dtpe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Class which holds one version of a file and its validators.
+     */
+    public static final class Version {
+
+        private final long size;
+        private final long modified;
+        private final String etag;
+        private final String gzipEtag;
+        private final String deflateEtag;
+        private final String lastModified;
+        private final byte[] headerFields;
+        private volatile long checkedAt = System.currentTimeMillis();
+
+        /**
+         * Constructor for the marker of a missing file, which has no validators.
+         */
+        private Version() {
+            this.size = -1;
+            this.modified = 0;
+            this.etag = null;
+            this.gzipEtag = null;
+            this.deflateEtag = null;
+            this.lastModified = null;
+            this.headerFields = null;
+        }
+
+        /**
+         * Constructor for class. Renders the validators of this version.
+         * @param size file size in bytes.
+         * @param modified file modification time in milliseconds.
+         */
+        public Version(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+            String tag = Long.toHexString(modified) + "-" + Long.toHexString(size);
+            this.etag = "\"" + tag + "\"";
+            this.gzipEtag = "\"" + tag + "-gzip\"";
+            this.deflateEtag = "\"" + tag + "-deflate\"";
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified));
+            this.headerFields = ("ETag: " + etag + "\r\nLast-Modified: " + lastModified + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Strong ETag of a representation of this version. Each content coding is a different
+         * byte sequence and so gets its own tag.
+         * @param encoding Compressor.GZIP, Compressor.DEFLATE or null for the file as it is.
+         * @return quoted entity tag.
+         */
+        public String getEtag(String encoding) {
+            if (encoding == null) {
+                return this.etag;
+            }
+            return encoding.equals(Compressor.GZIP) ? this.gzipEtag : this.deflateEtag;
+        }
+
+        /**
+         * Getter method for Last-Modified date.
+         * @return modification time as an HTTP-date.
+         */
+        public String getLastModified() {
+            return this.lastModified;
+        }
+
+        /**
+         * Getter method for modification time in whole seconds, the resolution of HTTP-dates.
+         * @return seconds since the epoch.
+         */
+        public long getModifiedSeconds() {
+            return Math.floorDiv(this.modified, 1000);
+        }
+
+        /**
+         * Getter method for the pre-rendered ETag and Last-Modified header lines of the unencoded file.
+         * @return header lines as US-ASCII bytes, each ending in CRLF.
+         */
+        public byte[] getHeaderFields() {
+            return this.headerFields;
+        }
+
+        /**
+         * Getter method for size.
+         * @return file size in bytes.
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * Getter method for modification time.
+         * @return file modification time in milliseconds.
+         */
+        public long getModified() {
+            return this.modified;
+        }
+    }
+}
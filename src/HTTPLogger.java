@@ -1,46 +1,297 @@
 import java.io.IOException;
-import java.util.logging.FileHandler;
-import java.util.logging.Level;
-import java.util.logging.LogManager;
-import java.util.logging.Logger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Class which creates a logger and stores requests in an XML format.
+ * Class which writes an access log line for each request without holding up the connection.
+ * Handlers drop an entry into a lock-free ring buffer and carry on; a background writer thread
+ * formats entries in Common or Combined Log Format and writes them to the log file in batches,
+ * rotating the file once it passes a size limit.
  */
 public class HTTPLogger {
 
-    private static Logger lgr = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final DateTimeFormatter CLF_TIME =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+
+    private MPSCRingBuffer<Entry> ring;
+    private Path logFile;
+    private boolean combined;
+    private boolean blockWhenFull;
+    private long flushNanos;
+    private long maxBytes;
+    private int keep;
+
+    private FileChannel out;
+    private long written;
+    private ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private StringBuilder line = new StringBuilder(256);
+    private long lastSecond = -1;
+    private String lastTime;
+
+    private Thread writer;
+    private volatile boolean running = true;
+    private LongAdder logged = new LongAdder();
+    private LongAdder dropped = new LongAdder();
 
     /**
-     * Constructor for class. Creates logger.
-     * Adds a filehandler which handles logging requests and stores log as an XML file.
-     * @throws IOException if there are issues creating and using filehandler.
+     * Constructor for class. Opens log file, starting it anew, and starts the writer thread.
+     * @param config server options including log file, format, buffer and rotation settings.
+     * @throws IOException if the log file cannot be opened.
      */
-    public HTTPLogger() throws IOException {
+    public HTTPLogger(ServerConfig config) throws IOException {
+        this.ring = new MPSCRingBuffer<>(config.getLogBuffer());
+        this.logFile = Paths.get(config.getLogFile());
+        this.combined = config.getLogFormat().equals("combined");
+        this.blockWhenFull = config.getLogWhenFull().equals("block");
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(config.getLogFlushMillis());
+        this.maxBytes = config.getLogMaxBytes();
+        this.keep = config.getLogKeep();
 
-        //gets rid of any existing handlers (default console handler)
-        LogManager.getLogManager().reset();
-        lgr.setLevel(Level.INFO);
+        //each time the server starts the log is overwritten
+        this.out = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        this.writer = new Thread(this::writeLoop, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
 
+    /**
+     * Method which allows handlers to log a request and its response.
+     * Never takes a lock: the entry is queued for the writer thread. When the queue is full the
+     * entry is dropped, or with the block policy the caller waits for the writer to make room.
+     * @param client address of the client.
+     * @param request parsed request.
+     * @param response response sent for the request.
+     */
+    public void logRequest(String client, HTTPRequest request, HTTPResponse response) {
+        Entry e = new Entry(client, System.currentTimeMillis(), request, response.getStatusCode(),
+                response.getBodySize());
+        while (!ring.offer(e)) {
+            if (!blockWhenFull || !running) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /**
+     * Writes out everything queued so far, closes the log file and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
         try {
-            //default output in XML format
-            FileHandler fh = new FileHandler("HTTPLog.log");
-            fh.setLevel(Level.INFO);
-            lgr.addHandler(fh);
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Getter method for number of entries written.
+     * @return entries written to the log file.
+     */
+    public long getLogged() {
+        return logged.sum();
+    }
+
+    /**
+     * Getter method for number of entries dropped because the queue was full.
+     * @return dropped entries.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Body of the writer thread. Drains the ring into the batch buffer, writing the batch when it
+     * fills or when the flush interval has passed, and sleeping for the flush interval when idle.
+     */
+    private void writeLoop() {
+        long lastWrite = System.nanoTime();
+        try {
+            while (true) {
+                boolean stopping = !running;
+                Entry e;
+                while ((e = ring.poll()) != null) {
+                    this.append(e);
+                }
+
+                long now = System.nanoTime();
+                if (stopping || now - lastWrite >= flushNanos) {
+                    this.writeBatch();
+                    lastWrite = now;
+                }
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(Math.max(1, flushNanos - (System.nanoTime() - lastWrite)));
+            }
         } catch (IOException ioe) {
-            lgr.log(Level.SEVERE, "Logging issue", ioe);
+            System.err.println("HTTPLogger writer: " + ioe.getMessage());
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                System.err.println("HTTPLogger close: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Formats one entry into the batch buffer, writing the batch first if the line would not fit.
+     * @param e entry to format.
+     * @throws IOException if writing the batch fails.
+     */
+    private void append(Entry e) throws IOException {
+        line.setLength(0);
+        line.append(e.client).append(" - - [").append(this.formatTime(e.time)).append("] \"")
+                .append(e.request.getMethod()).append(' ');
+        escape(line, e.request.getTarget());
+        line.append(' ').append(e.request.getVersion()).append("\" ").append(e.status).append(' ');
+        if (e.bytes > 0) {
+            line.append(e.bytes);
+        } else {
+            line.append('-');
+        }
+        if (combined) {
+            String referer = e.request.getHeader("referer");
+            String userAgent = e.request.getHeader("user-agent");
+            line.append(" \"");
+            escape(line, referer == null ? "-" : referer);
+            line.append("\" \"");
+            escape(line, userAgent == null ? "-" : userAgent);
+            line.append('"');
         }
+        line.append('\n');
 
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > batch.remaining()) {
+            this.writeBatch();
+        }
+        if (bytes.length > batch.remaining()) {
+            //single oversized line, written on its own
+            this.write(ByteBuffer.wrap(bytes));
+        } else {
+            batch.put(bytes);
+        }
+        logged.increment();
     }
 
     /**
-     * Method which allows server to log messages.
-     * Synchronised for thread safety in case of multiple threads trying to write to file at once.
-     * @param requestAndHead head of HTTP response to be added to log.
+     * Appends a client supplied value to a quoted log field, escaped as Apache does so the field cannot be
+     * split: quote and backslash are preceded by a backslash, and control and non-ASCII bytes become \xHH.
+     * @param into line being formatted.
+     * @param value value to append.
      */
-    public synchronized void logRequest(String requestAndHead) {
-        //head will contain all necessary request response information.
-        lgr.log(Level.INFO, requestAndHead);
+    static void escape(StringBuilder into, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                into.append('\\').append(c);
+            } else if (c < 0x20 || (c >= 0x7f && c <= 0xff)) {
+                into.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                into.append(c);
+            }
+        }
+    }
+
+    /**
+     * Writes the batch buffer to the log file and empties it.
+     * @throws IOException if writing fails.
+     */
+    private void writeBatch() throws IOException {
+        batch.flip();
+        if (batch.hasRemaining()) {
+            this.write(batch);
+        }
+        batch.clear();
     }
-}
 
+    /**
+     * Writes bytes to the log file, rotating it first if it has reached the size limit.
+     * @param bytes bytes to write, fully consumed.
+     * @throws IOException if writing or rotating fails.
+     */
+    private void write(ByteBuffer bytes) throws IOException {
+        if (maxBytes > 0 && written > 0 && written + bytes.remaining() > maxBytes) {
+            this.rotate();
+        }
+        while (bytes.hasRemaining()) {
+            written += out.write(bytes);
+        }
+    }
+
+    /**
+     * Moves log.N to log.N+1 for each kept file, the current log to log.1, and opens a fresh log.
+     * @throws IOException if files cannot be moved or opened.
+     */
+    private void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(Paths.get(logFile + "." + keep));
+        for (int i = keep - 1; i >= 1; i--) {
+            Path from = Paths.get(logFile + "." + i);
+            if (Files.exists(from)) {
+                Files.move(from, Paths.get(logFile + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (keep > 0) {
+            Files.move(logFile, Paths.get(logFile + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        out = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        written = 0;
+    }
+
+    /**
+     * Formats a timestamp for the log, reusing the previous result within the same second.
+     * @param millis time in milliseconds.
+     * @return time in Common Log Format.
+     */
+    private String formatTime(long millis) {
+        long second = millis / 1000;
+        if (second != lastSecond) {
+            lastSecond = second;
+            lastTime = CLF_TIME.format(Instant.ofEpochSecond(second));
+        }
+        return lastTime;
+    }
+
+    /**
+     * Class which holds the fields of one log line until the writer formats it.
+     */
+    private static final class Entry {
+
+        private final String client;
+        private final long time;
+        private final HTTPRequest request;
+        private final int status;
+        private final long bytes;
+
+        Entry(String client, long time, HTTPRequest request, int status, long bytes) {
+            this.client = client;
+            this.time = time;
+            this.request = request;
+            this.status = status;
+            this.bytes = bytes;
+        }
+    }
+}
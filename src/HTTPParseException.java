@@ -0,0 +1,38 @@
+/**
+ * Exception thrown when a request cannot be parsed.
+ * Carries the status code the server should answer with before closing the connection.
+ */
+public class HTTPParseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private int statusCode;
+    private String reason;
+
+    /**
+     * Constructor for class.
+     * @param statusCode status code to respond with eg. 400.
+     * @param reason reason phrase to respond with.
+     */
+    public HTTPParseException(int statusCode, String reason) {
+        super(statusCode + " " + reason);
+        this.statusCode = statusCode;
+        this.reason = reason;
+    }
+
+    /**
+     * Getter method for status code.
+     * @return status code to respond with.
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Getter method for reason phrase.
+     * @return reason phrase to respond with.
+     */
+    public String getReason() {
+        return this.reason;
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class which holds one parsed request: request line fields and headers.
+ * Header names are stored lower case; repeated headers are joined with a comma.
+ */
+public class HTTPRequest {
+
+    private String method;
+    private String target;
+    private String version;
+    private Map<String, String> headers = new LinkedHashMap<>();
+    private boolean secure;
+
+    /**
+     * Constructor for class.
+     * @param method request method eg. GET.
+     * @param target request target as sent, including any query string.
+     * @param version protocol version eg. HTTP/1.1.
+     */
+    public HTTPRequest(String method, String target, String version) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+    }
+
+    /**
+     * Adds a header, joining it onto an earlier header of the same name.
+     * @param name header name, lower case.
+     * @param value header value with surrounding whitespace removed.
+     */
+    public void addHeader(String name, String value) {
+        headers.merge(name, value, (a, b) -> a + ", " + b);
+    }
+
+    /**
+     * Looks up a header value.
+     * @param name header name, lower case.
+     * @return header value, or null if not sent.
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Getter method for all headers.
+     * @return headers in the order first seen, keyed by lower case name.
+     */
+    public Map<String, String> getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * Getter method for method.
+     * @return request method eg. GET.
+     */
+    public String getMethod() {
+        return this.method;
+    }
+
+    /**
+     * Getter method for target.
+     * @return request target as sent.
+     */
+    public String getTarget() {
+        return this.target;
+    }
+
+    /**
+     * Getter method for version.
+     * @return protocol version eg. HTTP/1.1.
+     */
+    public String getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Path part of the target with the query string removed and percent escapes decoded.
+     * @return decoded path.
+     */
+    public String getPath() {
+        int query = target.indexOf('?');
+        String raw = query < 0 ? target : target.substring(0, query);
+        if (raw.indexOf('%') < 0) {
+            return raw;
+        }
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '%' && i + 2 < raw.length()
+                    && Character.digit(raw.charAt(i + 1), 16) >= 0 && Character.digit(raw.charAt(i + 2), 16) >= 0) {
+                decoded.write(Character.digit(raw.charAt(i + 1), 16) * 16 + Character.digit(raw.charAt(i + 2), 16));
+                i += 2;
+            } else {
+                decoded.write(c);
+            }
+        }
+        return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * First media type listed in the Accept header, the form RegexReader.getRequestedContentType returned.
+     * @return media type eg. text/html, or empty String if no Accept header was sent.
+     */
+    public String getAcceptedType() {
+        String accept = headers.get("accept");
+        if (accept == null) {
+            return "";
+        }
+        int end = accept.length();
+        int comma = accept.indexOf(',');
+        int semi = accept.indexOf(';');
+        if (comma >= 0) {
+            end = comma;
+        }
+        if (semi >= 0 && semi < end) {
+            end = semi;
+        }
+        return accept.substring(0, end).trim();
+    }
+
+    /**
+     * Setter method for whether the request arrived over TLS.
+     * @param secure true if the connection it was read from is over TLS.
+     */
+    public void setSecure(boolean secure) {
+        this.secure = secure;
+    }
+
+    /**
+     * Getter method for whether the request arrived over TLS, eg. for X-Forwarded-Proto.
+     * @return true if the connection it was read from is over TLS.
+     */
+    public boolean isSecure() {
+        return this.secure;
+    }
+
+    /**
+     * Determines if client asked for the connection to stay open.
+     * HTTP/1.1 defaults to keep-alive, HTTP/1.0 must ask for it.
+     * @return true if connection should be kept open after the response.
+     */
+    public boolean wantsKeepAlive() {
+        String connection = headers.get("connection");
+        if (connection != null && hasToken(connection, "close")) {
+            return false;
+        }
+        return version.equals("HTTP/1.1") || (connection != null && hasToken(connection, "keep-alive"));
+    }
+
+    /**
+     * Checks a comma separated header value for a token, ignoring case.
+     * @param value header value.
+     * @param token token to look for.
+     * @return true if the token is one of the listed values.
+     */
+    public static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renders request line and headers, used for logging.
+     * @return request as text with one header per line.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(method).append(' ').append(target).append(' ').append(version).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,472 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class which parses HTTP/1.x request heads byte by byte.
+ * A state machine walks the input once, collecting each token into a reusable scratch buffer,
+ * so it can be fed bytes in whatever pieces the socket delivers them and keeps its place between calls.
+ * Request line and total header size are capped; one parser is used per connection.
+ */
+public class HTTPRequestParser {
+
+    private static final int METHOD = 0;
+    private static final int TARGET = 1;
+    private static final int VERSION = 2;
+    private static final int LINE_LF = 3;
+    private static final int HEADER_START = 4;
+    private static final int NAME = 5;
+    private static final int VALUE_LEAD = 6;
+    private static final int VALUE = 7;
+    private static final int HEADER_LF = 8;
+    private static final int END_LF = 9;
+
+    private static final int MAX_HEADERS = 100;
+
+    private static final String[] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE"};
+    private static final String[] KNOWN_HEADERS = {"host", "user-agent", "accept", "accept-language",
+        "accept-encoding", "accept-charset", "connection", "keep-alive", "cache-control", "content-length",
+        "content-type", "transfer-encoding", "expect", "range", "if-range", "if-none-match",
+        "if-modified-since", "upgrade", "http2-settings", "referer", "cookie", "origin"};
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+
+    //token characters allowed in methods and header names (RFC 7230 tchar)
+    private static final boolean[] TCHAR = new boolean[128];
+
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            TCHAR[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            TCHAR[c] = true;
+            TCHAR[Character.toUpperCase(c)] = true;
+        }
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+            TCHAR[c] = true;
+        }
+    }
+
+    private int maxRequestLine;
+    private int maxHeaderBytes;
+    private boolean http2;
+    private boolean secure;
+    private ByteBuffer scratchBuffer;
+    private byte[] scratch;
+    private int len;
+
+    private int state = METHOD;
+    private int lineBytes;
+    private int headerBytes;
+    private int headerCount;
+    private String method;
+    private String target;
+    private String name;
+    private HTTPRequest request;
+    private HTTPRequest completed;
+    private byte[] block;
+
+    /**
+     * Constructor for class.
+     * @param maxRequestLine longest request line accepted, longer lines are answered with 414.
+     * @param maxHeaderBytes most header bytes accepted after the request line, more is answered with 431.
+     */
+    public HTTPRequestParser(int maxRequestLine, int maxHeaderBytes) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.scratchBuffer = BufferPool.HEAP.acquire(Math.max(maxRequestLine, maxHeaderBytes));
+        this.scratch = scratchBuffer.array();
+    }
+
+    /**
+     * Setter method for whether the HTTP/2 connection preface, which starts like a request line
+     * "PRI * HTTP/2.0", is handed back as a request rather than answered with 505.
+     * @param http2 true if the server speaks HTTP/2.
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+
+    /**
+     * Setter method for whether the connection being parsed is over TLS, which every request is marked with.
+     * @param secure true if the connection is over TLS.
+     */
+    public void setSecure(boolean secure) {
+        this.secure = secure;
+    }
+
+    /**
+     * Returns the scratch buffer to the pool. The parser must not be used afterwards.
+     */
+    public void release() {
+        BufferPool.HEAP.release(scratchBuffer);
+        scratchBuffer = null;
+        scratch = null;
+    }
+
+    /**
+     * Consumes bytes until one request head is complete or the buffer runs out.
+     * On completion the buffer is left positioned at the first byte after the head,
+     * which is the start of a body or a pipelined request.
+     * Heap buffers are walked in place; direct buffers are copied through a small reusable block.
+     * @param buf buffer in read mode.
+     * @return complete request, or null if more bytes are needed.
+     * @throws HTTPParseException if the bytes are not a valid request or exceed a limit.
+     */
+    public HTTPRequest parse(ByteBuffer buf) throws HTTPParseException {
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset();
+            int stop = this.parseBytes(buf.array(), offset + buf.position(), offset + buf.limit());
+            buf.position(stop - offset);
+        } else {
+            if (block == null) {
+                block = new byte[1024];
+            }
+            while (buf.hasRemaining() && completed == null) {
+                int start = buf.position();
+                int n = Math.min(block.length, buf.remaining());
+                buf.get(block, 0, n);
+                buf.position(start + this.parseBytes(block, 0, n));
+            }
+        }
+
+        HTTPRequest done = completed;
+        completed = null;
+        return done;
+    }
+
+    /**
+     * Runs the state machine over a range of bytes, stopping early once a request head completes.
+     * Request targets, header names and header values, which make up most of a request, are scanned
+     * in tight loops and copied to the scratch buffer in one go; other states go byte by byte.
+     * @param a bytes to parse.
+     * @param i index of first byte.
+     * @param end index after last byte.
+     * @return index after the last byte consumed.
+     * @throws HTTPParseException if the bytes are not a valid request or exceed a limit.
+     */
+    private int parseBytes(byte[] a, int i, int end) throws HTTPParseException {
+        while (i < end) {
+            if (state == TARGET || state == VALUE) {
+                int j = i;
+                if (state == TARGET) {
+                    while (j < end && (a[j] & 0xff) > ' ' && a[j] != 127) {
+                        j++;
+                    }
+                } else {
+                    while (j < end && ((a[j] & 0xff) >= ' ' || a[j] == '\t') && a[j] != 127) {
+                        j++;
+                    }
+                }
+                this.count(j - i);
+                System.arraycopy(a, i, scratch, len, j - i);
+                len += j - i;
+                i = j;
+                if (i == end) {
+                    break;
+                }
+            } else if (state == NAME) {
+                int j = i;
+                while (j < end && a[j] >= 0 && TCHAR[a[j]]) {
+                    j++;
+                }
+                this.count(j - i);
+                for (; i < j; i++) {
+                    scratch[len++] = (byte) lower(a[i]);
+                }
+                if (i == end) {
+                    break;
+                }
+            }
+
+            int b = a[i++] & 0xff;
+            if (state != VALUE_LEAD || b == ' ' || b == '\t') {
+                this.count(1);
+            }
+
+            switch (state) {
+                case METHOD:
+                    if (b == ' ' && len > 0) {
+                        method = this.methodToken();
+                        state = TARGET;
+                    } else if ((b == '\r' || b == '\n') && len == 0) {
+                        //blank lines before a request are ignored, eg. left between pipelined requests
+                        lineBytes = 0;
+                    } else if (b < 128 && TCHAR[b]) {
+                        scratch[len++] = (byte) b;
+                    } else {
+                        throw badRequest();
+                    }
+                    break;
+                case TARGET:
+                    if (b == ' ' && len > 0) {
+                        target = this.takeString();
+                        state = VERSION;
+                    } else {
+                        throw badRequest();
+                    }
+                    break;
+                case VERSION:
+                    if (b == '\r') {
+                        state = LINE_LF;
+                    } else if (b == '\n') {
+                        this.endRequestLine();
+                    } else if (b > ' ' && b < 127) {
+                        scratch[len++] = (byte) b;
+                    } else {
+                        throw badRequest();
+                    }
+                    break;
+                case LINE_LF:
+                    if (b != '\n') {
+                        throw badRequest();
+                    }
+                    this.endRequestLine();
+                    break;
+                case HEADER_START:
+                    if (b == '\r') {
+                        state = END_LF;
+                    } else if (b == '\n') {
+                        return this.finish(i);
+                    } else if (b < 128 && TCHAR[b]) {
+                        scratch[len++] = (byte) lower(b);
+                        state = NAME;
+                    } else {
+                        //includes obsolete line folding, which RFC 7230 lets servers reject
+                        throw badRequest();
+                    }
+                    break;
+                case NAME:
+                    if (b == ':') {
+                        name = this.headerName();
+                        state = VALUE_LEAD;
+                    } else if (b < 128 && TCHAR[b]) {
+                        scratch[len++] = (byte) lower(b);
+                    } else {
+                        throw badRequest();
+                    }
+                    break;
+                case VALUE_LEAD:
+                    if (b != ' ' && b != '\t') {
+                        //first value byte, left for the value scan to pick up
+                        i--;
+                        state = VALUE;
+                    }
+                    break;
+                case VALUE:
+                    if (b == '\r') {
+                        state = HEADER_LF;
+                    } else if (b == '\n') {
+                        this.endHeader();
+                    } else {
+                        throw badRequest();
+                    }
+                    break;
+                case HEADER_LF:
+                    if (b != '\n') {
+                        throw badRequest();
+                    }
+                    this.endHeader();
+                    break;
+                case END_LF:
+                    if (b != '\n') {
+                        throw badRequest();
+                    }
+                    return this.finish(i);
+                default:
+                    throw new IllegalStateException("parser state " + state);
+            }
+        }
+
+        return i;
+    }
+
+    /**
+     * Adds consumed bytes to the request line or header total, enforcing the limits.
+     * @param n number of bytes consumed.
+     * @throws HTTPParseException if a limit is exceeded.
+     */
+    private void count(int n) throws HTTPParseException {
+        if (state <= LINE_LF) {
+            lineBytes += n;
+            if (lineBytes > maxRequestLine) {
+                throw new HTTPParseException(414, "URI Too Long");
+            }
+        } else {
+            headerBytes += n;
+            if (headerBytes > maxHeaderBytes) {
+                throw new HTTPParseException(431, "Request Header Fields Too Large");
+            }
+        }
+    }
+
+    /**
+     * Whether the parser is part way through a request, used to tell a clean close from a truncated request.
+     * @return true if any bytes of the current request have been consumed.
+     */
+    public boolean inProgress() {
+        return state != METHOD || len > 0;
+    }
+
+    /**
+     * Resets all state so the next byte starts a new request.
+     */
+    public void reset() {
+        state = METHOD;
+        len = 0;
+        lineBytes = 0;
+        headerBytes = 0;
+        headerCount = 0;
+        method = null;
+        target = null;
+        name = null;
+        request = null;
+    }
+
+    /**
+     * Finishes the request line, validating the protocol version.
+     * @throws HTTPParseException if the version is malformed or not HTTP/1.x, or HTTP/2.0 for the preface.
+     */
+    private void endRequestLine() throws HTTPParseException {
+        String version;
+        if (this.scratchEquals("HTTP/1.1")) {
+            version = "HTTP/1.1";
+        } else if (this.scratchEquals("HTTP/1.0")) {
+            version = "HTTP/1.0";
+        } else if (http2 && this.scratchEquals("HTTP/2.0") && method.equals("PRI") && target.equals("*")) {
+            version = "HTTP/2.0";
+        } else if (len == 8 && this.scratchStartsWith("HTTP/") && scratch[6] == '.') {
+            throw new HTTPParseException(505, "HTTP Version Not Supported");
+        } else {
+            throw badRequest();
+        }
+        len = 0;
+        request = new HTTPRequest(method, target, version);
+        request.setSecure(secure);
+        state = HEADER_START;
+    }
+
+    /**
+     * Finishes one header line, trimming trailing whitespace from the value.
+     * @throws HTTPParseException if too many headers have been sent.
+     */
+    private void endHeader() throws HTTPParseException {
+        if (++headerCount > MAX_HEADERS) {
+            throw new HTTPParseException(431, "Request Header Fields Too Large");
+        }
+        while (len > 0 && (scratch[len - 1] == ' ' || scratch[len - 1] == '\t')) {
+            len--;
+        }
+        request.addHeader(name, this.takeString());
+        state = HEADER_START;
+    }
+
+    /**
+     * Stores the finished request for parse to hand back and resets for the next one.
+     * @param i index after the last byte of the request head.
+     * @return i, so callers can return it directly.
+     */
+    private int finish(int i) {
+        HTTPRequest done = request;
+        this.reset();
+        completed = done;
+        return i;
+    }
+
+    /**
+     * Turns the scratch bytes into a method name, reusing constants for standard methods.
+     * @return method name.
+     */
+    private String methodToken() {
+        for (String known : KNOWN_METHODS) {
+            if (this.scratchEquals(known)) {
+                len = 0;
+                return known;
+            }
+        }
+        return this.takeString();
+    }
+
+    /**
+     * Turns the scratch bytes into a header name, reusing constants for common headers.
+     * @return lower case header name.
+     */
+    private String headerName() {
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            byte[] known = KNOWN_HEADER_BYTES[i];
+            if (known.length == len && this.scratchMatches(known)) {
+                len = 0;
+                return KNOWN_HEADERS[i];
+            }
+        }
+        return this.takeString();
+    }
+
+    /**
+     * Copies the scratch bytes out as a String and empties the scratch buffer.
+     * @return scratch contents decoded as ISO-8859-1.
+     */
+    private String takeString() {
+        String s = new String(scratch, 0, len, StandardCharsets.ISO_8859_1);
+        len = 0;
+        return s;
+    }
+
+    /**
+     * Compares the scratch bytes with an ASCII constant.
+     * @param s constant to compare with.
+     * @return true if equal.
+     */
+    private boolean scratchEquals(String s) {
+        return s.length() == len && this.scratchStartsWith(s);
+    }
+
+    /**
+     * Checks whether the scratch bytes start with an ASCII constant.
+     * @param s constant to compare with.
+     * @return true if the scratch bytes start with s.
+     */
+    private boolean scratchStartsWith(String s) {
+        if (s.length() > len) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (scratch[i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the start of the scratch bytes with a byte constant.
+     * @param known bytes to compare with, no longer than the scratch contents.
+     * @return true if equal.
+     */
+    private boolean scratchMatches(byte[] known) {
+        for (int i = 0; i < known.length; i++) {
+            if (scratch[i] != known[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lower cases an ASCII letter.
+     * @param b byte value.
+     * @return lower case byte value.
+     */
+    private static int lower(int b) {
+        return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+    }
+
+    /**
+     * Creates the exception for malformed requests.
+     * @return 400 exception.
+     */
+    private static HTTPParseException badRequest() {
+        return new HTTPParseException(400, "Bad Request");
+    }
+}
@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class which holds a response ready to be written to a client.
+ * Status line and headers are kept separately from the body so either engine can write them as bytes.
+ * The Server, Content-Length, Transfer-Encoding and Connection headers are not stored as text;
+ * ResponseWriter renders them from pre-encoded bytes and the fields here.
+ */
+public class HTTPResponse {
+
+    private String protocol;
+    private int statusCode;
+    private String reason;
+    private List<String> headerNames = new ArrayList<>(4);
+    private List<String> headerValues = new ArrayList<>(4);
+    private long contentLength = -1;
+    private byte[] cachedFields = ResponseWriter.NO_BYTES;
+    private ByteBuffer body = ByteBuffer.allocate(0);
+    private FileChannel bodyFile;
+    private long bodyPosition;
+    private long bodyLength;
+    private List<Part> parts = Collections.emptyList();
+    private ReadableByteChannel bodyStream;
+    private Runnable onClose;
+    private boolean keepAlive;
+
+    /**
+     * Constructor for class. Sets status line, headers and body are added afterwards.
+     * @param protocol HTTP protocol of the response eg. HTTP/1.1.
+     * @param statusCode numeric status code.
+     * @param reason reason phrase to follow status code.
+     */
+    public HTTPResponse(String protocol, int statusCode, String reason) {
+        this.protocol = protocol;
+        this.statusCode = statusCode;
+        this.reason = reason;
+    }
+
+    /**
+     * Adds a header line to the response.
+     * @param name header name.
+     * @param value header value.
+     */
+    public void addHeader(String name, String value) {
+        headerNames.add(name);
+        headerValues.add(value);
+    }
+
+    /**
+     * Sets the Content-Length to send. Not needed when cached header fields already carry it.
+     * @param contentLength length of the full body in bytes.
+     */
+    public void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Adds header lines which were rendered ahead of time, eg. by the content cache.
+     * @param fields header lines as US-ASCII bytes, each ending in CRLF.
+     */
+    public void setCachedFields(byte[] fields) {
+        this.cachedFields = fields;
+    }
+
+    /**
+     * Renders status line and headers including the terminating blank line into a new array.
+     * The engines write headers through ResponseWriter directly; this is for callers wanting a copy.
+     * @return header block as US-ASCII bytes.
+     */
+    public byte[] headerBytes() {
+        ByteBuffer buf = ResponseWriter.encodeHeader(this, ByteBuffer.allocate(ResponseWriter.HEADER_BUFFER));
+        byte[] block = new byte[buf.remaining()];
+        buf.get(block);
+        return block;
+    }
+
+    /**
+     * Getter method for protocol.
+     * @return protocol of the status line.
+     */
+    public String getProtocol() {
+        return this.protocol;
+    }
+
+    /**
+     * Getter method for reason phrase.
+     * @return reason phrase of the status line.
+     */
+    public String getReason() {
+        return this.reason;
+    }
+
+    /**
+     * Getter method for header names, parallel to getHeaderValues.
+     * @return names of headers added with addHeader.
+     */
+    public List<String> getHeaderNames() {
+        return this.headerNames;
+    }
+
+    /**
+     * Getter method for header values, parallel to getHeaderNames.
+     * @return values of headers added with addHeader.
+     */
+    public List<String> getHeaderValues() {
+        return this.headerValues;
+    }
+
+    /**
+     * Getter method for pre-rendered header lines.
+     * @return header lines as US-ASCII bytes, empty if none.
+     */
+    public byte[] getCachedFields() {
+        return this.cachedFields;
+    }
+
+    /**
+     * Getter method for Content-Length.
+     * @return body length to announce, or -1 if not to be written.
+     */
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    /**
+     * Getter method for status code.
+     * @return numeric status code.
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Getter method for in-memory body.
+     * @return body buffer, empty for HEAD requests, errors and file bodies.
+     */
+    public ByteBuffer getBody() {
+        return this.body;
+    }
+
+    /**
+     * Setter method for in-memory body.
+     * @param body buffer holding the bytes to send after the header, may be direct.
+     */
+    public void setBody(ByteBuffer body) {
+        this.body = body;
+    }
+
+    /**
+     * Sets a region of an open file as the body, to be sent straight from the file to the socket.
+     * The response takes ownership of the channel; writers must call closeBody once done.
+     * @param file open channel of file to send.
+     * @param position offset of first byte to send.
+     * @param length number of bytes to send.
+     */
+    public void setFileBody(FileChannel file, long position, long length) {
+        this.bodyFile = file;
+        this.bodyPosition = position;
+        this.bodyLength = length;
+    }
+
+    /**
+     * Getter method for file body.
+     * @return open file channel holding the body, or null if the body is held in memory.
+     */
+    public FileChannel getBodyFile() {
+        return this.bodyFile;
+    }
+
+    /**
+     * Getter method for offset of the body within the body file.
+     * @return offset of first body byte.
+     */
+    public long getBodyPosition() {
+        return this.bodyPosition;
+    }
+
+    /**
+     * Getter method for the number of body bytes held in the body file.
+     * @return length of file body.
+     */
+    public long getBodyLength() {
+        return this.bodyLength;
+    }
+
+    /**
+     * Appends a part to be written after the body, used for multipart/byteranges.
+     * Each part is its buffer followed by a region of the body file, if there is one.
+     * @param data bytes written first, eg. a part's boundary and headers.
+     * @param position offset of the part's region within the body file.
+     * @param length length of the region, 0 if the part is only its buffer.
+     */
+    public void addPart(ByteBuffer data, long position, long length) {
+        if (parts.isEmpty()) {
+            parts = new ArrayList<>();
+        }
+        parts.add(new Part(data, position, length));
+    }
+
+    /**
+     * Getter method for parts written after the body.
+     * @return parts in order, empty for single part responses.
+     */
+    public List<Part> getParts() {
+        return this.parts;
+    }
+
+    /**
+     * Sets a body of unknown length, read from a channel until it ends and sent after any other body.
+     * HTTP/1.1 sends it with chunked transfer coding and HTTP/1.0 by closing the connection after it, so
+     * responses to HTTP/1.0 requests with a streamed body must not be kept alive.
+     * The response takes ownership of the channel; writers must call closeBody once done.
+     * @param stream open channel in blocking mode.
+     */
+    public void setStreamBody(ReadableByteChannel stream) {
+        this.bodyStream = stream;
+    }
+
+    /**
+     * Getter method for streamed body.
+     * @return channel the rest of the body is read from, or null if the body's length is known.
+     */
+    public ReadableByteChannel getStreamBody() {
+        return this.bodyStream;
+    }
+
+    /**
+     * Whether the body goes out with chunked transfer coding, which is for streamed bodies of unknown length
+     * sent over HTTP/1.1. A streamed body whose length is set, eg. one relayed from a backend, goes out as is.
+     * @return true if the body is streamed without a length and the protocol is not HTTP/1.0.
+     */
+    public boolean isChunked() {
+        return bodyStream != null && contentLength < 0 && !protocol.equals("HTTP/1.0");
+    }
+
+    /**
+     * Number of body bytes still to be sent, whether held in memory or in a file. A streamed body is not
+     * counted, since its length is not known until it has been read.
+     * @return body size in bytes.
+     */
+    public long getBodySize() {
+        long size = body.remaining() + (bodyFile != null ? bodyLength : 0);
+        for (Part part : parts) {
+            size += part.getData().remaining() + (bodyFile != null ? part.getLength() : 0);
+        }
+        return size;
+    }
+
+    /**
+     * Sets an action to run once the body has been written, eg. releasing a shared mapping the body views.
+     * @param onClose action run by closeBody, may be null.
+     */
+    public void setOnClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Getter method for the close action, so a response built from this one can take it over.
+     * @return action run by closeBody, or null if none.
+     */
+    public Runnable getOnClose() {
+        return this.onClose;
+    }
+
+    /**
+     * Releases the body file and streamed body, if any, and runs the close action. Safe to call more than once.
+     */
+    public void closeBody() {
+        if (onClose != null) {
+            Runnable action = onClose;
+            onClose = null;
+            action.run();
+        }
+        if (bodyStream != null) {
+            try {
+                bodyStream.close();
+            } catch (IOException ioe) {
+                System.err.println("closeBody: " + ioe.getMessage());
+            }
+            bodyStream = null;
+        }
+        if (bodyFile == null) {
+            return;
+        }
+        try {
+            bodyFile.close();
+        } catch (IOException ioe) {
+            System.err.println("closeBody: " + ioe.getMessage());
+        }
+        bodyFile = null;
+    }
+
+    /**
+     * Whether the connection may stay open once this response has been written.
+     * @return true if connection should be kept alive.
+     */
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * Setter method for keep-alive, which decides the Connection header written.
+     * @param keepAlive true if connection should be kept open.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Class which holds one part of a multipart body: a buffer, then a region of the body file.
+     */
+    public static final class Part {
+
+        private final ByteBuffer data;
+        private final long position;
+        private final long length;
+
+        /**
+         * Constructor for class.
+         * @param data bytes written first.
+         * @param position offset of the region within the body file.
+         * @param length length of the region.
+         */
+        Part(ByteBuffer data, long position, long length) {
+            this.data = data;
+            this.position = position;
+            this.length = length;
+        }
+
+        /**
+         * Getter method for data.
+         * @return bytes written before the file region.
+         */
+        public ByteBuffer getData() {
+            return this.data;
+        }
+
+        /**
+         * Getter method for position.
+         * @return offset of the region within the body file.
+         */
+        public long getPosition() {
+            return this.position;
+        }
+
+        /**
+         * Getter method for length.
+         * @return length of the file region, 0 if none.
+         */
+        public long getLength() {
+            return this.length;
+        }
+    }
+}
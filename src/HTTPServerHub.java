@@ -1,45 +1,150 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class which creates server socket and starts listening.
- * Creates a new ServerHandler thread for each connection.
+ * Hands a new ServerHandler to the worker executor for each connection.
+ * With several acceptor shards each has its own accept thread and its own share of the workers.
  */
-public class HTTPServerHub {
+public class HTTPServerHub implements ServerEngine {
 
-    private ServerSocket ss;
     private int port;
     private String directoryPath;
+    private ServerConfig config;
     private HTTPLogger lgr;
+    private ResponseGenerator generator;
+    private HashedWheelTimer timer;
+    private TlsContext tls;
+    private List<ServerSocketChannel> listeners;
+    private AcceptorShard[] shards;
+    private Set<ServerHandler> handlers = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining;
+    private boolean stopped;
+    private CountDownLatch terminated = new CountDownLatch(1);
 
     /**
-     * Constructor for the class. Creates ServerSocket on provided port.
-     * Creates ServerHandler for each client and adds this to a thread.
-     * @param directoryPath path of directory which contains files that can be shared.
-     * @param port port for ServerSocket to listen and be accessed on.
+     * Constructor for the class. Prepares the response generator; nothing is bound until start.
+     * @param config server options including directory path, port and worker mode.
      */
-    public HTTPServerHub(String directoryPath, int port) {
-        this.directoryPath = directoryPath;
-        this.port = port;
+    public HTTPServerHub(ServerConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * Constructor for a server which takes over the listeners of one being restarted.
+     * @param config server options including directory path, port and worker mode.
+     * @param inherited open listeners from handOff of the previous server, or null to bind new ones.
+     */
+    public HTTPServerHub(ServerConfig config, List<ServerSocketChannel> inherited) {
+        this.config = config;
+        this.directoryPath = config.getDirectoryPath();
+        this.port = config.getPort();
+        this.generator = new ResponseGenerator(config);
+        this.listeners = inherited;
+    }
 
+    /**
+     * Binds the configured port, or adopts the inherited listeners, and starts one accept thread per shard.
+     * Where SO_REUSEPORT is unavailable the shards accept from one shared listener instead.
+     * @throws IOException if the port cannot be bound or the access log cannot be opened.
+     * @throws UnsupportedOperationException if virtual thread workers are configured but unavailable.
+     */
+    @Override
+    public synchronized void start() throws IOException {
+        int count = config.getAcceptors();
+        boolean reusePort = count > 1 && AcceptorShard.supportsReusePort();
+        boolean inherited = listeners != null;
         try {
-            ss = new ServerSocket(port);
-            this.lgr = new HTTPLogger();
-            System.out.println("HTTP server started and listening on port: " + this.port);
-            while (true) {
-                Socket client = ss.accept();
-                System.out.println("New connection from " + client.getInetAddress());
-                ServerHandler sh = new ServerHandler(client, this);
-                Thread t = new Thread(sh);
-                t.start();
+            if (!inherited) {
+                listeners = new ArrayList<>();
+                //opened through a channel so accepted sockets expose a SocketChannel for zero-copy writes
+                for (int i = 0; i < (reusePort ? count : 1); i++) {
+                    listeners.add(AcceptorShard.listen(port, reusePort));
+                }
+            }
+            this.lgr = new HTTPLogger(config);
+            //one timer thread serves the header, idle and write timeouts of every connection
+            this.timer = new HashedWheelTimer("connection-timeouts", 100, 512);
+            generator.getMetrics().setTimer(timer);
+            if (config.isTls()) {
+                this.tls = new TlsContext(config);
+                generator.getMetrics().setTls(tls);
+            }
+            this.shards = new AcceptorShard[count];
+            for (int i = 0; i < count; i++) {
+                ExecutorService workers = count == 1 ? WorkerPool.create(config) : WorkerPool.create(config, count);
+                shards[i] = new AcceptorShard(i, this, listeners.get(i % listeners.size()), workers, count == 1);
             }
+        } catch (IOException | RuntimeException e) {
+            //the access log writer thread would otherwise keep the JVM alive with the port still bound
+            if (lgr != null) {
+                lgr.close();
+            }
+            if (timer != null) {
+                timer.stop();
+            }
+            generator.close();
+            this.closeListeners();
+            throw e;
+        }
+        if (count > 1) {
+            generator.getMetrics().setShards(shards);
+        }
+
+        System.out.println("HTTP server started and listening on port: " + this.getLocalPort() + " ("
+                + config.getWorkerMode() + " workers"
+                + (count > 1 ? ", " + count + " acceptors" + (listeners.size() > 1 ? " with SO_REUSEPORT"
+                : " on one listener") : "")
+                + (inherited ? ", inherited listener" : "") + (tls != null ? ", TLS" : "") + ")");
+        for (AcceptorShard shard : shards) {
+            Thread t = new Thread(shard, "acceptor-" + shard.getId());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @Override
+    public void stop(long drainMillis) {
+        this.shutdown(drainMillis, false);
+    }
+
+    @Override
+    public List<ServerSocketChannel> handOff(long drainMillis) {
+        return this.shutdown(drainMillis, true);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public int getLocalPort() {
+        try {
+            return listeners == null || listeners.isEmpty() ? -1
+                    : ((InetSocketAddress) listeners.get(0).getLocalAddress()).getPort();
         } catch (IOException ioe) {
-            System.err.println("Server error: " + ioe.getMessage());
-            cleanup();
+            return -1;
         }
     }
 
+    /**
+     * Getter method for server options.
+     * @return config the server was started with.
+     */
+    public ServerConfig getConfig() {
+        return this.config;
+    }
+
     /**
      * Getter method for directory path.
      * @return directory path as a String.
@@ -48,6 +153,30 @@ public class HTTPServerHub {
         return this.directoryPath;
     }
 
+    /**
+     * Getter method for the response generator shared by all handlers.
+     * @return associated ResponseGenerator.
+     */
+    public ResponseGenerator getGenerator() {
+        return this.generator;
+    }
+
+    /**
+     * Getter method for the timer running connection timeouts.
+     * @return timer shared by all connections.
+     */
+    public HashedWheelTimer getTimer() {
+        return this.timer;
+    }
+
+    /**
+     * Getter method for TLS settings.
+     * @return context which creates each connection's engine, or null if TLS is off.
+     */
+    public TlsContext getTls() {
+        return this.tls;
+    }
+
     /**
      * Getter method for associated log.
      * @return associated HTTPLogger class.
@@ -57,14 +186,98 @@ public class HTTPServerHub {
     }
 
     /**
-     * Closes ServerSocket in the case of an IOException in the constructor.
+     * Getter method for drain state. Handlers stop keeping connections alive once it is set.
+     * @return true once the server has begun stopping.
+     */
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    /**
+     * Records a handler which has started running, so it can be drained.
+     * @param handler handler now serving a connection.
+     */
+    public void handlerStarted(ServerHandler handler) {
+        handlers.add(handler);
+        if (draining) {
+            //raced with shutdown, which may already have walked the set
+            handler.closeIfIdle();
+        }
+    }
+
+    /**
+     * Records a handler whose connection has closed.
+     * @param handler handler which has finished.
+     */
+    public void handlerFinished(ServerHandler handler) {
+        handlers.remove(handler);
+    }
+
+    /**
+     * Stops accepting, closes idle connections and waits up to the deadline for the rest to finish their
+     * current request, then closes whatever is left and flushes the access log.
+     * @param drainMillis longest time to wait for requests in flight.
+     * @param keepListeners true to leave the listeners open for a new server.
+     * @return listeners if kept, otherwise an empty list.
      */
-    private void cleanup() {
+    private synchronized List<ServerSocketChannel> shutdown(long drainMillis, boolean keepListeners) {
+        if (stopped || shards == null) {
+            return Collections.emptyList();
+        }
+        stopped = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        draining = true;
         try {
-            ss.close();
-        } catch (IOException ioe) {
-            System.err.println("clean up method: " + ioe.getMessage());
+            for (AcceptorShard shard : shards) {
+                shard.stopAccepting();
+            }
+            if (!keepListeners) {
+                this.closeListeners();
+            }
+            for (ServerHandler handler : handlers) {
+                handler.closeIfIdle();
+            }
+            for (AcceptorShard shard : shards) {
+                shard.getWorkers().shutdown();
+            }
+            boolean drained = true;
+            for (AcceptorShard shard : shards) {
+                long left = Math.max(0, deadline - System.nanoTime());
+                drained &= shard.getWorkers().awaitTermination(left, TimeUnit.NANOSECONDS);
+            }
+            if (!drained) {
+                System.err.println("Drain deadline passed, closing " + handlers.size() + " connections");
+                for (ServerHandler handler : handlers) {
+                    handler.forceClose();
+                }
+                for (AcceptorShard shard : shards) {
+                    shard.getWorkers().shutdownNow();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.stop();
+            lgr.close();
+            generator.close();
+            terminated.countDown();
         }
+        return keepListeners ? listeners : Collections.emptyList();
     }
-}
 
+    /**
+     * Closes every listener.
+     */
+    private void closeListeners() {
+        if (listeners == null) {
+            return;
+        }
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ioe) {
+                System.err.println("clean up method: " + ioe.getMessage());
+            }
+        }
+    }
+}
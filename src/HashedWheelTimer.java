@@ -0,0 +1,269 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class which runs many coarse timeouts on one thread.
+ * Timeouts hang in a ring of buckets, one per tick; a timeout further away than one turn of the
+ * wheel waits out the extra turns in its bucket. Scheduling and cancelling only add to a queue, and
+ * the timer thread files or unlinks them at the next tick, so neither takes a lock nor wakes the thread.
+ * Timeouts fire up to one tick late. Tasks run on the timer thread and must not block.
+ */
+public final class HashedWheelTimer {
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder expired = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * Constructor for class. Starts the timer thread.
+     * @param name name of the timer thread.
+     * @param tickMillis length of one tick, the precision of the timer.
+     * @param wheelSize number of buckets, rounded up to a power of two.
+     */
+    public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run once after a delay. Safe to call from any thread.
+     * @param task task to run on the timer thread.
+     * @param delayMillis delay in milliseconds.
+     * @return handle which can cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Timeouts not yet expired never run.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * Getter method for scheduled timeouts.
+     * @return timeouts neither expired nor cancelled.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Getter method for expired timeouts.
+     * @return timeouts whose task has run.
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * Body of the timer thread. Waits for each tick, then files new timeouts, unlinks cancelled ones
+     * and expires the due timeouts of the current bucket.
+     */
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+                continue;
+            }
+            this.transferAdded();
+            this.removeCancelled();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Files timeouts scheduled since the last tick into their buckets.
+     */
+    private void transferAdded() {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            if (t.state.get() != INIT) {
+                continue;
+            }
+            long due = t.deadline / tickNanos;
+            t.remainingRounds = (due - tick) / wheel.length;
+            //one already overdue goes in the current bucket, which is expired straight after
+            wheel[(int) (Math.max(due, tick) & mask)].add(t);
+        }
+    }
+
+    /**
+     * Unlinks timeouts cancelled since the last tick.
+     */
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    /**
+     * Class which is a handle to one scheduled task.
+     */
+    public static final class Timeout {
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        /**
+         * Constructor for class.
+         * @param timer timer the task is scheduled on.
+         * @param task task to run.
+         * @param deadline due time in nanoseconds since the timer started.
+         */
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task unless it has already run. Safe to call from any thread, any number of times.
+         * @return true if this call cancelled the task.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            timer.pending.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Whether the task has run or is running.
+         * @return true once expired.
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        /**
+         * Runs the task if it has not been cancelled.
+         */
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            timer.pending.decrementAndGet();
+            timer.expired.increment();
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                System.err.println("HashedWheelTimer task error: " + re.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Class which holds the timeouts of one slot of the wheel as a doubly linked list.
+     * Only touched by the timer thread.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        /**
+         * Appends a timeout.
+         * @param t timeout to add.
+         */
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = t;
+                tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        /**
+         * Expires every timeout in the bucket which is due by the given time, and counts down the others.
+         * @param deadline end of the current tick in nanoseconds since the timer started.
+         */
+        void expire(long deadline) {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0 && t.deadline <= deadline) {
+                    this.remove(t);
+                    t.expire();
+                } else if (t.state.get() == CANCELLED) {
+                    this.remove(t);
+                } else {
+                    t.remainingRounds--;
+                }
+                t = next;
+            }
+        }
+
+        /**
+         * Unlinks a timeout.
+         * @param t timeout in this bucket.
+         */
+        void remove(Timeout t) {
+            if (t.bucket != this) {
+                return;
+            }
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+    }
+}
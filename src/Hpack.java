@@ -0,0 +1,554 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class which holds HPACK (RFC 7541), the header compression of HTTP/2: the static table, the dynamic
+ * table and the integer and string representations. Each connection has a Decoder for the header blocks
+ * it receives and an Encoder for those it sends, each with a dynamic table of its own.
+ * Header names and values are kept as Strings of single byte characters, as HTTPRequest holds them.
+ */
+public final class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+        {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+        {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+        {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+        {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+        {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+        {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+        {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+        {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+        {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+        {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+        {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            //filled backwards, so names map to their first entry
+            STATIC_FIELDS.put(key(STATIC_TABLE[i][0], STATIC_TABLE[i][1]), i + 1);
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Reads an integer with an N bit prefix (RFC 7541 5.1).
+     * @param in buffer positioned after the first byte.
+     * @param first first byte, holding the prefix.
+     * @param prefixBits number of low bits of the first byte which belong to the integer.
+     * @return decoded value.
+     * @throws Http2Exception if the value does not fit in an int.
+     */
+    static int readInt(ByteBuffer in, int first, int prefixBits) throws Http2Exception {
+        int max = (1 << prefixBits) - 1;
+        int value = first & max;
+        if (value < max) {
+            return value;
+        }
+        long sum = value;
+        int shift = 0;
+        int b;
+        do {
+            b = in.get() & 0xff;
+            sum += (long) (b & 0x7f) << shift;
+            shift += 7;
+            if (sum > Integer.MAX_VALUE || shift > 35) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "HPACK integer overflow");
+            }
+        } while ((b & 0x80) != 0);
+        return (int) sum;
+    }
+
+    /**
+     * Writes an integer with an N bit prefix (RFC 7541 5.1).
+     * @param out buffer to write into.
+     * @param flags bits above the prefix in the first byte.
+     * @param prefixBits number of low bits of the first byte which belong to the integer.
+     * @param value non-negative value.
+     */
+    static void writeInt(ByteBuffer out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.put((byte) (flags | value));
+            return;
+        }
+        out.put((byte) (flags | max));
+        value -= max;
+        while (value >= 0x80) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a string literal, Huffman coded or not (RFC 7541 5.2).
+     * @param in heap buffer positioned at the literal.
+     * @return decoded string.
+     * @throws Http2Exception if the literal runs past the block or its Huffman coding is invalid.
+     */
+    static String readString(ByteBuffer in) throws Http2Exception {
+        int first = in.get() & 0xff;
+        int length = readInt(in, first, 7);
+        if (length > in.remaining()) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "HPACK string longer than header block");
+        }
+        if ((first & 0x80) != 0) {
+            StringBuilder sb = new StringBuilder(length + length / 2);
+            Huffman.decode(in, length, sb);
+            return sb.toString();
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.ISO_8859_1);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /**
+     * Writes a string literal, Huffman coded when that is shorter.
+     * @param out buffer to write into.
+     * @param s string of single byte characters.
+     */
+    static void writeString(ByteBuffer out, String s) {
+        int coded = Huffman.encodedLength(s);
+        if (coded < s.length()) {
+            writeInt(out, 0x80, 7, coded);
+            Huffman.encode(s, out);
+            return;
+        }
+        writeInt(out, 0, 7, s.length());
+        for (int i = 0; i < s.length(); i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Most bytes a header field can take once encoded, for sizing the buffer a header block goes into.
+     * @param name header name.
+     * @param value header value.
+     * @return upper bound of the encoded length.
+     */
+    static int maxEncodedLength(String name, String value) {
+        //one representation byte and up to five integer continuation bytes per length, and Huffman coding
+        //is only used when shorter
+        return name.length() + value.length() + 16;
+    }
+
+    /**
+     * Key of a field in the lookup maps.
+     * @param name header name.
+     * @param value header value.
+     * @return name and value joined with a character neither may contain.
+     */
+    private static String key(String name, String value) {
+        return name + '\n' + value;
+    }
+
+    /**
+     * Class which holds a dynamic table (RFC 7541 2.3.2): a FIFO of fields whose sizes add up to no more
+     * than the table's maximum, newest first. Entries live in a ring indexed by insertion count.
+     */
+    static final class Table {
+
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private long inserted;
+        private int count;
+        private int size;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+        private Map<String, Long> fields;
+        private Map<String, Long> fieldNames;
+
+        /**
+         * Constructor for class.
+         * @param lookups whether to keep maps for finding entries by field and name, which only encoders need.
+         */
+        Table(boolean lookups) {
+            if (lookups) {
+                fields = new HashMap<>();
+                fieldNames = new HashMap<>();
+            }
+        }
+
+        /**
+         * Adds a field as the newest entry, evicting the oldest entries to make room.
+         * A field larger than the whole table empties it and is not added.
+         * @param name header name.
+         * @param value header value.
+         */
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + 32;
+            while (count > 0 && size + entrySize > maxSize) {
+                this.evict();
+            }
+            if (entrySize > maxSize) {
+                return;
+            }
+            if (count == names.length) {
+                this.grow();
+            }
+            int slot = (int) (inserted & (names.length - 1));
+            names[slot] = name;
+            values[slot] = value;
+            if (fields != null) {
+                fields.put(key(name, value), inserted);
+                fieldNames.put(name, inserted);
+            }
+            inserted++;
+            count++;
+            size += entrySize;
+        }
+
+        /**
+         * Changes the maximum size, evicting entries which no longer fit.
+         * @param maxSize new maximum in octets.
+         */
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            while (count > 0 && size > maxSize) {
+                this.evict();
+            }
+        }
+
+        /**
+         * Getter method for maximum size.
+         * @return maximum size in octets.
+         */
+        int getMaxSize() {
+            return this.maxSize;
+        }
+
+        /**
+         * Getter method for size.
+         * @return octets taken by the entries, counting 32 per entry as RFC 7541 does.
+         */
+        int getSize() {
+            return this.size;
+        }
+
+        /**
+         * Getter method for entry count.
+         * @return number of entries.
+         */
+        int getCount() {
+            return this.count;
+        }
+
+        /**
+         * Name of an entry.
+         * @param index dynamic index, 1 for the newest.
+         * @return header name.
+         */
+        String name(int index) {
+            return names[(int) ((inserted - index) & (names.length - 1))];
+        }
+
+        /**
+         * Value of an entry.
+         * @param index dynamic index, 1 for the newest.
+         * @return header value.
+         */
+        String value(int index) {
+            return values[(int) ((inserted - index) & (values.length - 1))];
+        }
+
+        /**
+         * Finds an entry holding a field.
+         * @param name header name.
+         * @param value header value.
+         * @return dynamic index of the newest such entry, or 0 if there is none.
+         */
+        int indexOf(String name, String value) {
+            return this.index(fields.get(key(name, value)));
+        }
+
+        /**
+         * Finds an entry with a name.
+         * @param name header name.
+         * @return dynamic index of the newest such entry, or 0 if there is none.
+         */
+        int indexOfName(String name) {
+            return this.index(fieldNames.get(name));
+        }
+
+        /**
+         * Turns an insertion number into a dynamic index.
+         * @param n insertion number from a lookup map, may be null.
+         * @return dynamic index, or 0 if the entry has been evicted.
+         */
+        private int index(Long n) {
+            return n == null || n < inserted - count ? 0 : (int) (inserted - n);
+        }
+
+        /**
+         * Removes the oldest entry.
+         */
+        private void evict() {
+            long n = inserted - count;
+            int slot = (int) (n & (names.length - 1));
+            String name = names[slot];
+            String value = values[slot];
+            if (fields != null) {
+                fields.remove(key(name, value), n);
+                fieldNames.remove(name, n);
+            }
+            names[slot] = null;
+            values[slot] = null;
+            size -= name.length() + value.length() + 32;
+            count--;
+        }
+
+        /**
+         * Doubles the ring, keeping each entry at its insertion number.
+         */
+        private void grow() {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[values.length * 2];
+            for (long n = inserted - count; n < inserted; n++) {
+                newNames[(int) (n & (newNames.length - 1))] = names[(int) (n & (names.length - 1))];
+                newValues[(int) (n & (newValues.length - 1))] = values[(int) (n & (values.length - 1))];
+            }
+            names = newNames;
+            values = newValues;
+        }
+    }
+
+    /**
+     * Class which decodes the header blocks a peer sends. Blocks must be decoded in the order received,
+     * since each may change the dynamic table the next refers to.
+     */
+    public static final class Decoder {
+
+        private Table table = new Table(false);
+        private int maxTableSize;
+
+        /**
+         * Constructor for class.
+         * @param maxTableSize largest dynamic table the peer may ask for, the SETTINGS_HEADER_TABLE_SIZE sent.
+         */
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table.setMaxSize(maxTableSize);
+        }
+
+        /**
+         * Decodes a complete header block into parallel name and value lists.
+         * The whole block is always decoded, so the dynamic table stays in step with the peer's, but fields
+         * past the size limit are not kept: a few bytes referring to large table entries over and over
+         * cannot make the server hold more than the limit.
+         * @param block header block, from HEADERS and any CONTINUATION frames joined.
+         * @param names list to add header names to.
+         * @param values list to add header values to.
+         * @param maxListSize header list size (RFC 7541 4.1) beyond which fields are dropped.
+         * @return header list size of the whole block, which the caller compares with the limit.
+         * @throws Http2Exception a connection COMPRESSION_ERROR if the block cannot be decoded.
+         */
+        public long decode(ByteBuffer block, List<String> names, List<String> values, long maxListSize)
+                throws Http2Exception {
+            long listSize = 0;
+            boolean fieldSeen = false;
+            try {
+                while (block.hasRemaining()) {
+                    int b = block.get() & 0xff;
+                    String name;
+                    String value;
+                    if ((b & 0x80) != 0) {
+                        //indexed field
+                        int index = readInt(block, b, 7);
+                        name = this.name(index);
+                        value = this.value(index);
+                    } else if ((b & 0x40) != 0) {
+                        //literal with incremental indexing
+                        int index = readInt(block, b, 6);
+                        name = index == 0 ? readString(block) : this.name(index);
+                        value = readString(block);
+                        table.add(name, value);
+                    } else if ((b & 0x20) != 0) {
+                        //dynamic table size update, only allowed before the first field
+                        int size = readInt(block, b, 5);
+                        if (fieldSeen || size > maxTableSize) {
+                            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid table size update");
+                        }
+                        table.setMaxSize(size);
+                        continue;
+                    } else {
+                        //literal without indexing or never indexed
+                        int index = readInt(block, b, 4);
+                        name = index == 0 ? readString(block) : this.name(index);
+                        value = readString(block);
+                    }
+                    fieldSeen = true;
+                    listSize += name.length() + value.length() + 32;
+                    if (listSize <= maxListSize) {
+                        names.add(name);
+                        values.add(value);
+                    }
+                }
+            } catch (BufferUnderflowException bue) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "truncated header block");
+            }
+            return listSize;
+        }
+
+        /**
+         * Name of a static or dynamic table entry.
+         * @param index index across both tables, from 1.
+         * @return header name.
+         * @throws Http2Exception if there is no such entry.
+         */
+        private String name(int index) throws Http2Exception {
+            return index <= STATIC_TABLE.length ? this.checkStatic(index)[0]
+                    : table.name(this.checkDynamic(index));
+        }
+
+        /**
+         * Value of a static or dynamic table entry.
+         * @param index index across both tables, from 1.
+         * @return header value.
+         * @throws Http2Exception if there is no such entry.
+         */
+        private String value(int index) throws Http2Exception {
+            return index <= STATIC_TABLE.length ? this.checkStatic(index)[1]
+                    : table.value(this.checkDynamic(index));
+        }
+
+        /**
+         * Checks a static table index.
+         * @param index index from 1.
+         * @return static table entry.
+         * @throws Http2Exception if the index is 0.
+         */
+        private String[] checkStatic(int index) throws Http2Exception {
+            if (index == 0) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "HPACK index 0");
+            }
+            return STATIC_TABLE[index - 1];
+        }
+
+        /**
+         * Checks a dynamic table index.
+         * @param index index across both tables.
+         * @return dynamic index.
+         * @throws Http2Exception if the dynamic table has no such entry.
+         */
+        private int checkDynamic(int index) throws Http2Exception {
+            int dynamic = index - STATIC_TABLE.length;
+            if (dynamic > table.getCount()) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "HPACK index " + index + " not in table");
+            }
+            return dynamic;
+        }
+
+        /**
+         * Getter method for the dynamic table.
+         * @return dynamic table.
+         */
+        Table getTable() {
+            return this.table;
+        }
+    }
+
+    /**
+     * Class which encodes the header blocks sent to a peer. Fields are sent as table indexes where the
+     * static or dynamic table already holds them, and otherwise as literals, added to the dynamic table
+     * unless the caller expects the value to differ from one response to the next.
+     */
+    public static final class Encoder {
+
+        private Table table = new Table(true);
+        private int pendingSize = -1;
+        private int smallestSize = -1;
+
+        /**
+         * Applies the peer's SETTINGS_HEADER_TABLE_SIZE. The table never grows past the default, which keeps
+         * the memory a connection holds bounded whatever the peer allows; the change is signalled at the
+         * start of the next header block.
+         * @param peerSize largest table the peer's decoder accepts.
+         */
+        public void setMaxTableSize(int peerSize) {
+            int size = Math.min(peerSize, DEFAULT_TABLE_SIZE);
+            if (size == table.getMaxSize() && pendingSize < 0) {
+                return;
+            }
+            //a decrease followed by an increase must signal both, so the peer evicts what we evicted
+            smallestSize = smallestSize < 0 ? size : Math.min(smallestSize, size);
+            pendingSize = size;
+            table.setMaxSize(size);
+        }
+
+        /**
+         * Starts a header block, writing any dynamic table size update owed to the peer.
+         * @param out buffer to write into.
+         */
+        public void beginBlock(ByteBuffer out) {
+            if (pendingSize < 0) {
+                return;
+            }
+            if (smallestSize < pendingSize) {
+                writeInt(out, 0x20, 5, smallestSize);
+            }
+            writeInt(out, 0x20, 5, pendingSize);
+            pendingSize = -1;
+            smallestSize = -1;
+        }
+
+        /**
+         * Encodes one header field.
+         * @param name lower case header name.
+         * @param value header value.
+         * @param indexing whether to add the field to the dynamic table if it is not there already.
+         * @param out buffer with at least maxEncodedLength bytes remaining.
+         */
+        public void encode(String name, String value, boolean indexing, ByteBuffer out) {
+            Integer full = STATIC_FIELDS.get(key(name, value));
+            int index = full != null ? full : this.dynamicIndex(table.indexOf(name, value));
+            if (index > 0) {
+                writeInt(out, 0x80, 7, index);
+                return;
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            int nameIndex = staticName != null ? staticName : this.dynamicIndex(table.indexOfName(name));
+            if (indexing) {
+                writeInt(out, 0x40, 6, nameIndex);
+            } else {
+                writeInt(out, 0, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+            if (indexing) {
+                table.add(name, value);
+            }
+        }
+
+        /**
+         * Turns a dynamic index into an index across both tables.
+         * @param dynamic dynamic index, 0 if not found.
+         * @return index across both tables, or 0.
+         */
+        private int dynamicIndex(int dynamic) {
+            return dynamic == 0 ? 0 : STATIC_TABLE.length + dynamic;
+        }
+
+        /**
+         * Getter method for the dynamic table.
+         * @return dynamic table.
+         */
+        Table getTable() {
+            return this.table;
+        }
+    }
+}
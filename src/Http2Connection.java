@@ -0,0 +1,1335 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class which speaks HTTP/2 (RFC 7540) over cleartext on one connection, for either engine.
+ * The engine hands over a connection whose first request was the "PRI * HTTP/2.0" preface or an HTTP/1.1
+ * request with "Upgrade: h2c", then feeds it input with onInput and lets it write with flush.
+ * Frames are parsed straight out of the engine's input buffer; each request is answered by the shared
+ * ResponseGenerator as soon as its header block is complete, and the responses of all open streams are
+ * interleaved as DATA frames within the peer's flow control windows.
+ * Streams take turns by weighted round robin: each has a pass which advances by bytes sent divided by its
+ * weight, and of the streams with no sendable ancestor in the priority tree the one with the lowest pass
+ * goes next, so siblings share the connection in proportion to their weights and parents go first.
+ */
+public class Http2Connection {
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final int FRAME_HEADER = 9;
+    static final int MAX_FRAME = 16384;
+    static final int INPUT_BUFFER = 32768;
+    static final long WRITE_BUDGET = 256 * 1024;
+
+    private static final byte[] SWITCHING = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    //bytes of the preface the parser consumed as the "PRI * HTTP/2.0" request head
+    private static final int PREFACE_HEAD = 18;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    //DATA frames are built in pooled direct buffers of this size class, frame header included
+    private static final int DATA_BUFFER = 16384;
+    //output queued ahead of the socket before more DATA frames are built
+    private static final int OUTPUT_TARGET = 65536;
+    //control frames a peer may have us owe it, eg. PING and SETTINGS acks, before it is cut off
+    private static final int MAX_CONTROL = 1024;
+    //header fields whose values change between responses, kept out of the dynamic table
+    private static final String[] VOLATILE = {"content-length", "content-range", "etag", "last-modified", "date",
+        "age", "expires", "set-cookie"};
+    private static final String[] CONNECTION_HEADERS = {"connection", "keep-alive", "proxy-connection",
+        "transfer-encoding", "upgrade"};
+
+    private ResponseGenerator generator;
+    private HTTPLogger lgr;
+    private Metrics metrics;
+    private String client;
+    private boolean secure;
+    private int maxStreams;
+    private int maxHeaderList;
+    private int maxRequests;
+    private Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private Hpack.Encoder encoder = new Hpack.Encoder();
+    private Map<Integer, Http2Stream> streams = new HashMap<>();
+    private int prefaceIndex;
+    private boolean settingsReceived;
+    private int lastStreamId;
+    private int served;
+    private long virtualTime;
+    private int sendWindow = DEFAULT_WINDOW;
+    private int receiveWindow = DEFAULT_WINDOW;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrame = MAX_FRAME;
+    private int continuationStream;
+    private ByteBuffer headerBlock;
+    private int blockFlags;
+    private int blockDependency;
+    private boolean blockExclusive;
+    private int blockWeight;
+    private ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+    private ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private ByteBuffer[] gather = new ByteBuffer[8];
+    private ArrayDeque<ByteBuffer> pooled = new ArrayDeque<>();
+    private boolean goAwaySent;
+    private int goAwayLastId;
+    private boolean peerGoAway;
+    private boolean closing;
+
+    /**
+     * Constructor for class.
+     * @param generator response generator shared by the hub's connections.
+     * @param lgr access log.
+     * @param config server options, for the stream, header and request limits.
+     * @param client client address, for the access log.
+     */
+    public Http2Connection(ResponseGenerator generator, HTTPLogger lgr, ServerConfig config, String client) {
+        this.generator = generator;
+        this.lgr = lgr;
+        this.metrics = generator.getMetrics();
+        this.client = client;
+        this.maxStreams = config.getH2MaxStreams();
+        this.maxHeaderList = config.getMaxHeaderBytes();
+        this.maxRequests = config.getMaxRequests();
+    }
+
+    /**
+     * Whether a request starts HTTP/2 on a connection which may be over TLS. There only the preface counts, as
+     * the client picks h2 by ALPN and h2c upgrades are for cleartext (RFC 7540 3.3).
+     * @param request first request read on a connection, or one read between responses.
+     * @param secure true if the connection is over TLS.
+     * @return true if the connection should switch to HTTP/2.
+     */
+    public static boolean accepts(HTTPRequest request, boolean secure) {
+        return secure ? request.getVersion().equals("HTTP/2.0") : accepts(request);
+    }
+
+    /**
+     * Whether a request starts HTTP/2: the connection preface, or an HTTP/1.1 request without a body asking
+     * to upgrade to h2c with well-formed HTTP2-Settings (RFC 7540 3.2).
+     * @param request first request read on a connection, or one read between responses.
+     * @return true if the connection should switch to HTTP/2.
+     */
+    public static boolean accepts(HTTPRequest request) {
+        if (request.getVersion().equals("HTTP/2.0")) {
+            return true;
+        }
+        String upgrade = request.getHeader("upgrade");
+        String connection = request.getHeader("connection");
+        String settings = request.getHeader("http2-settings");
+        String length = request.getHeader("content-length");
+        if (!request.getVersion().equals("HTTP/1.1") || upgrade == null || connection == null || settings == null
+                || !HTTPRequest.hasToken(upgrade, "h2c") || !HTTPRequest.hasToken(connection, "upgrade")
+                || !HTTPRequest.hasToken(connection, "http2-settings")
+                || request.getHeader("transfer-encoding") != null || (length != null && !length.equals("0"))) {
+            return false;
+        }
+        return decodeSettings(settings) != null;
+    }
+
+    /**
+     * Starts the connection. After the preface request the rest of the preface is expected; after an
+     * upgrade request 101 is queued, the client's HTTP2-Settings applied, and the request answered on
+     * stream 1. Either way the server's SETTINGS frame is queued.
+     * @param request request accepted by accepts.
+     */
+    public void start(HTTPRequest request) {
+        metrics.http2Opened();
+        //streams are marked like the request which started the connection, over TLS or not
+        secure = request.isSecure();
+        boolean upgrade = !request.getVersion().equals("HTTP/2.0");
+        if (upgrade) {
+            control.add(ByteBuffer.wrap(SWITCHING));
+            metrics.recordResponse(101, SWITCHING.length);
+        } else {
+            prefaceIndex = PREFACE_HEAD;
+        }
+        ByteBuffer settings = frame(12, SETTINGS, 0, 0);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(maxStreams);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(maxHeaderList);
+        control.add(settings.flip());
+        if (upgrade) {
+            try {
+                this.applySettings(ByteBuffer.wrap(decodeSettings(request.getHeader("http2-settings"))));
+            } catch (Http2Exception e) {
+                this.connectionError(e);
+                return;
+            }
+            //the 101 acknowledges them, and the client sends the preface next
+            Http2Stream stream = this.openStream(1, true);
+            lastStreamId = 1;
+            this.respond(stream, request, false);
+        }
+    }
+
+    /**
+     * Consumes every complete frame in the input buffer, answering requests as their headers complete.
+     * Protocol errors are answered here, with RST_STREAM or GOAWAY; once a connection error has been sent no
+     * more input is read and isDone turns true when the GOAWAY has been written.
+     * @param in buffer in read mode, advanced past what was consumed; whole frames must fit in INPUT_BUFFER.
+     */
+    public void onInput(ByteBuffer in) {
+        try {
+            while (!closing) {
+                if (prefaceIndex < PREFACE.length) {
+                    while (prefaceIndex < PREFACE.length && in.hasRemaining()) {
+                        if (in.get() != PREFACE[prefaceIndex++]) {
+                            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "bad connection preface");
+                        }
+                    }
+                    if (prefaceIndex < PREFACE.length) {
+                        return;
+                    }
+                }
+                if (in.remaining() < FRAME_HEADER) {
+                    return;
+                }
+                int pos = in.position();
+                int length = ((in.get(pos) & 0xff) << 16) | ((in.get(pos + 1) & 0xff) << 8) | (in.get(pos + 2) & 0xff);
+                if (length > MAX_FRAME) {
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+                }
+                if (in.remaining() < FRAME_HEADER + length) {
+                    return;
+                }
+                int type = in.get(pos + 3) & 0xff;
+                int flags = in.get(pos + 4) & 0xff;
+                int streamId = in.getInt(pos + 5) & 0x7fffffff;
+                in.position(pos + FRAME_HEADER);
+                ByteBuffer payload = in.slice();
+                payload.limit(length);
+                in.position(pos + FRAME_HEADER + length);
+                try {
+                    this.onFrame(type, flags, streamId, payload);
+                } catch (Http2Exception e) {
+                    if (e.getStreamId() == 0) {
+                        throw e;
+                    }
+                    this.resetStream(e.getStreamId(), e.getErrorCode());
+                }
+            }
+        } catch (Http2Exception e) {
+            this.connectionError(e);
+        }
+    }
+
+    /**
+     * Writes pending frames to the channel, building DATA frames as the output drains.
+     * @param channel channel to write to, blocking or not.
+     * @param budget bytes after which to stop even if the channel takes more, so one fast reader on an
+     *     event loop does not starve the others.
+     * @return true if everything which can be sent now has been written, false if output remains for
+     *     when the channel can take more.
+     * @throws IOException if writing fails.
+     */
+    public boolean flush(WritableByteChannel channel, long budget) throws IOException {
+        long written = 0;
+        while (true) {
+            this.produce();
+            if (out.isEmpty()) {
+                return true;
+            }
+            if (channel instanceof GatheringByteChannel) {
+                //copied into an array kept for the connection, which grows only if more buffers are queued
+                int n = out.size();
+                gather = out.toArray(gather);
+                written += ((GatheringByteChannel) channel).write(gather, 0, n);
+                Arrays.fill(gather, 0, n, null);
+            } else {
+                for (ByteBuffer buf : out) {
+                    while (buf.hasRemaining()) {
+                        written += channel.write(buf);
+                    }
+                }
+            }
+            while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                ByteBuffer done = out.poll();
+                if (done == pooled.peek()) {
+                    BufferPool.DIRECT.release(pooled.poll());
+                }
+            }
+            if (!out.isEmpty()) {
+                return false;
+            }
+            if (written >= budget) {
+                this.produce();
+                return out.isEmpty();
+            }
+        }
+    }
+
+    /**
+     * Sends GOAWAY, so the client opens no more streams; those already open are answered and the connection
+     * is done once they have been. Called when the hub is draining. Safe to call more than once.
+     */
+    public void goAway() {
+        this.sendGoAway(Http2Exception.NO_ERROR);
+    }
+
+    /**
+     * Whether the connection should now be closed: after a connection error, or after GOAWAY once every
+     * stream has been answered, and with nothing left to write.
+     * @return true if the engine should close the connection.
+     */
+    public boolean isDone() {
+        return (closing || ((goAwaySent || peerGoAway) && streams.isEmpty())) && out.isEmpty() && control.isEmpty();
+    }
+
+    /**
+     * Whether the connection has no streams open, no header block half received and nothing to write,
+     * so it is waiting for the client as an HTTP/1.1 connection between requests would be.
+     * @return true if idle.
+     */
+    public boolean isIdle() {
+        return streams.isEmpty() && continuationStream == 0 && out.isEmpty() && control.isEmpty();
+    }
+
+    /**
+     * Releases every stream's body and the pooled buffers of unsent DATA frames. Called once the engine
+     * has closed the connection; safe to call more than once.
+     */
+    public void release() {
+        for (Http2Stream s : streams.values()) {
+            s.closeBody();
+        }
+        streams.clear();
+        for (ByteBuffer buf : pooled) {
+            BufferPool.DIRECT.release(buf);
+        }
+        pooled.clear();
+        out.clear();
+        control.clear();
+    }
+
+    /**
+     * Dispatches one frame.
+     * @param type frame type.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     * @param payload frame payload, valid until onInput returns.
+     * @throws Http2Exception for a stream or connection error.
+     */
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (!settingsReceived && type != SETTINGS) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "preface not followed by SETTINGS");
+        }
+        if (continuationStream != 0 && type != CONTINUATION) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "header block interrupted");
+        }
+        switch (type) {
+            case DATA:
+                this.onData(flags, streamId, payload);
+                break;
+            case HEADERS:
+                this.onHeaders(flags, streamId, payload);
+                break;
+            case PRIORITY:
+                this.onPriority(streamId, payload);
+                break;
+            case RST_STREAM:
+                this.onReset(streamId, payload);
+                break;
+            case SETTINGS:
+                this.onSettings(flags, streamId, payload);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING:
+                this.onPing(flags, streamId, payload);
+                break;
+            case GOAWAY:
+                if (streamId != 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                peerGoAway = true;
+                break;
+            case WINDOW_UPDATE:
+                this.onWindowUpdate(streamId, payload);
+                break;
+            case CONTINUATION:
+                this.onContinuation(flags, streamId, payload);
+                break;
+            default:
+                //unknown frame types are ignored (RFC 7540 4.1)
+                break;
+        }
+    }
+
+    /**
+     * Handles DATA. Bytes are counted against the connection window and given back with WINDOW_UPDATE.
+     * The body of an upload is written to its file and the stream window given back as it is; other request
+     * bodies are not used by the server and are discarded.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     * @param payload frame payload.
+     * @throws Http2Exception for a stream or connection error.
+     */
+    private void onData(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int length = payload.remaining();
+        if (length > receiveWindow) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "DATA beyond connection window");
+        }
+        receiveWindow -= length;
+        if (receiveWindow <= DEFAULT_WINDOW / 2) {
+            this.queueControl(windowUpdate(0, DEFAULT_WINDOW - receiveWindow));
+            receiveWindow = DEFAULT_WINDOW;
+        }
+        unpad(flags, payload);
+        Http2Stream stream = this.existingStream(streamId);
+        if (stream == null) {
+            return;
+        }
+        if (stream.isRemoteClosed()) {
+            throw new Http2Exception(streamId, Http2Exception.STREAM_CLOSED, "DATA after END_STREAM");
+        }
+        boolean end = (flags & END_STREAM) != 0;
+        if (end) {
+            stream.setRemoteClosed(true);
+        }
+        if (stream.getUpload() != null) {
+            this.receiveUpload(stream, payload, length, end);
+        } else if (end) {
+            this.closeIfDone(stream);
+        }
+    }
+
+    /**
+     * Writes a DATA payload to a stream's upload, answering the request once the body ends or is refused.
+     * @param stream stream with an upload.
+     * @param payload DATA payload, padding removed.
+     * @param length DATA payload length with padding, which counts against the stream window.
+     * @param end whether the frame ended the stream.
+     */
+    private void receiveUpload(Http2Stream stream, ByteBuffer payload, int length, boolean end) {
+        Upload upload = stream.getUpload();
+        HTTPResponse response = null;
+        try {
+            upload.receive(payload);
+            if (end) {
+                response = endUpload(upload);
+            }
+        } catch (HTTPParseException hpe) {
+            upload.abort();
+            response = ResponseGenerator.errorResponse(hpe.getStatusCode(), hpe.getReason(), true);
+        }
+        if (response == null) {
+            int increment = stream.consumed(length, DEFAULT_WINDOW / 2);
+            if (increment > 0) {
+                this.queueControl(windowUpdate(stream.getId(), increment));
+            }
+            return;
+        }
+        stream.setUpload(null);
+        this.send(stream, upload.getRequest(), response);
+    }
+
+    /**
+     * Completes an upload whose stream has ended, moving its file into place.
+     * @param upload upload whose whole body has been received.
+     * @return response to the upload.
+     */
+    private static HTTPResponse endUpload(Upload upload) {
+        try {
+            upload.endOfStream();
+            return upload.finish();
+        } catch (HTTPParseException hpe) {
+            upload.abort();
+            return ResponseGenerator.errorResponse(hpe.getStatusCode(), hpe.getReason(), true);
+        }
+    }
+
+    /**
+     * Handles HEADERS, starting a header block which CONTINUATION frames may carry on.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     * @param payload frame payload.
+     * @throws Http2Exception for a stream or connection error.
+     */
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        unpad(flags, payload);
+        int dependency = 0;
+        boolean exclusive = false;
+        int weight = 15;
+        if ((flags & PRIORITY_FLAG) != 0) {
+            if (payload.remaining() < 5) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "HEADERS too short for priority");
+            }
+            int word = payload.getInt();
+            exclusive = word < 0;
+            dependency = word & 0x7fffffff;
+            weight = payload.get() & 0xff;
+            if (dependency == streamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "stream depends on itself");
+            }
+        }
+        boolean trailers = streams.containsKey(streamId);
+        if (!trailers && streamId <= lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on closed stream " + streamId);
+        }
+        if (!trailers) {
+            lastStreamId = streamId;
+        }
+        if ((flags & END_HEADERS) != 0) {
+            this.onHeaderBlock(streamId, flags, payload, (flags & PRIORITY_FLAG) != 0, dependency, exclusive, weight);
+            return;
+        }
+        //the rest of the block follows in CONTINUATION frames, the stream is opened once it is complete
+        continuationStream = streamId;
+        blockFlags = flags;
+        blockDependency = dependency;
+        blockExclusive = exclusive;
+        blockWeight = weight;
+        headerBlock = ByteBuffer.allocate(Math.max(payload.remaining() * 2, 1024));
+        headerBlock.put(payload);
+    }
+
+    /**
+     * Handles CONTINUATION, adding to the header block and decoding it once complete.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     * @param payload frame payload.
+     * @throws Http2Exception for a stream or connection error.
+     */
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (continuationStream == 0 || streamId != continuationStream) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "unexpected CONTINUATION");
+        }
+        if (headerBlock.position() + payload.remaining() > maxHeaderList + MAX_FRAME) {
+            //compressed fields are no larger than the list they decode to, so this block is far over the limit
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "header block too large");
+        }
+        if (headerBlock.remaining() < payload.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate((headerBlock.position() + payload.remaining()) * 2);
+            headerBlock.flip();
+            headerBlock = larger.put(headerBlock);
+        }
+        headerBlock.put(payload);
+        if ((flags & END_HEADERS) == 0) {
+            return;
+        }
+        ByteBuffer block = headerBlock.flip();
+        int id = continuationStream;
+        continuationStream = 0;
+        headerBlock = null;
+        this.onHeaderBlock(id, blockFlags, block, (blockFlags & PRIORITY_FLAG) != 0, blockDependency, blockExclusive,
+                blockWeight);
+    }
+
+    /**
+     * Decodes a complete header block and opens its stream, or takes it as trailers of an open one.
+     * @param streamId stream identifier.
+     * @param flags flags of the HEADERS frame.
+     * @param block header block.
+     * @param hasPriority whether HEADERS carried priority.
+     * @param dependency stream depended on.
+     * @param exclusive whether the dependency is exclusive.
+     * @param weight weight as sent, 0 to 255.
+     * @throws Http2Exception for a stream or connection error.
+     */
+    private void onHeaderBlock(int streamId, int flags, ByteBuffer block, boolean hasPriority, int dependency,
+            boolean exclusive, int weight) throws Http2Exception {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        //decoded even if the stream is refused, so the dynamic table stays in step with the client's
+        long listSize = decoder.decode(block, names, values, maxHeaderList);
+        boolean endStream = (flags & END_STREAM) != 0;
+
+        Http2Stream existing = streams.get(streamId);
+        if (existing != null) {
+            if (existing.isRemoteClosed()) {
+                throw new Http2Exception(streamId, Http2Exception.STREAM_CLOSED, "HEADERS after END_STREAM");
+            }
+            if (!endStream) {
+                throw new Http2Exception(streamId, Http2Exception.PROTOCOL_ERROR, "trailers without END_STREAM");
+            }
+            existing.setRemoteClosed(true);
+            Upload upload = existing.getUpload();
+            if (upload != null) {
+                existing.setUpload(null);
+                this.send(existing, upload.getRequest(), endUpload(upload));
+            } else {
+                this.closeIfDone(existing);
+            }
+            return;
+        }
+        if (goAwaySent && streamId > goAwayLastId) {
+            return;
+        }
+        if (streams.size() >= maxStreams) {
+            throw new Http2Exception(streamId, Http2Exception.REFUSED_STREAM, "too many streams");
+        }
+        HTTPRequest request = toRequest(streamId, names, values);
+        request.setSecure(secure);
+        Http2Stream stream = this.openStream(streamId, endStream);
+        if (hasPriority) {
+            this.prioritize(stream, dependency, exclusive, weight);
+        }
+        this.respond(stream, request, listSize > maxHeaderList);
+    }
+
+    /**
+     * Handles PRIORITY. Priorities of streams not open, idle or already closed, are not kept.
+     * @param streamId stream identifier.
+     * @param payload frame payload.
+     * @throws Http2Exception for a stream or connection error.
+     */
+    private void onPriority(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+        }
+        if (payload.remaining() != 5) {
+            throw new Http2Exception(streamId, Http2Exception.FRAME_SIZE_ERROR, "PRIORITY of wrong length");
+        }
+        int word = payload.getInt();
+        int dependency = word & 0x7fffffff;
+        if (dependency == streamId) {
+            throw new Http2Exception(streamId, Http2Exception.PROTOCOL_ERROR, "stream depends on itself");
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            this.prioritize(stream, dependency, word < 0, payload.get() & 0xff);
+        }
+    }
+
+    /**
+     * Handles RST_STREAM, dropping the stream and whatever of its response was not yet queued.
+     * @param streamId stream identifier.
+     * @param payload frame payload.
+     * @throws Http2Exception for a connection error.
+     */
+    private void onReset(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of wrong length");
+        }
+        Http2Stream stream = this.existingStream(streamId);
+        if (stream != null) {
+            this.closeStream(stream);
+        }
+    }
+
+    /**
+     * Handles SETTINGS, applying the client's values and acknowledging them.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     * @param payload frame payload.
+     * @throws Http2Exception for a connection error.
+     */
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of wrong length");
+        }
+        settingsReceived = true;
+        this.applySettings(payload);
+        this.queueControl(frame(0, SETTINGS, ACK, 0).flip());
+    }
+
+    /**
+     * Applies SETTINGS parameters, from a frame or from HTTP2-Settings.
+     * @param payload six byte parameters.
+     * @throws Http2Exception for an invalid value.
+     */
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        while (payload.remaining() >= 6) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "initial window too large");
+                    }
+                    //applies to open streams too, as a delta which may take their windows below zero
+                    long delta = (long) value - peerInitialWindow;
+                    for (Http2Stream s : streams.values()) {
+                        long window = s.getWindow() + delta;
+                        if (window > Integer.MAX_VALUE) {
+                            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "stream window overflow");
+                        }
+                        s.setWindow((int) window);
+                    }
+                    peerInitialWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME || value > 0xffffff) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrame = value;
+                    break;
+                default:
+                    //MAX_CONCURRENT_STREAMS limits pushes, which are never sent; unknown ids are ignored
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Handles PING, answering with an acknowledgement carrying the same data.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     * @param payload frame payload.
+     * @throws Http2Exception for a connection error.
+     */
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PING of wrong length");
+        }
+        if ((flags & ACK) == 0) {
+            this.queueControl(frame(8, PING, ACK, 0).put(payload).flip());
+        }
+    }
+
+    /**
+     * Handles WINDOW_UPDATE for the connection or a stream.
+     * @param streamId stream identifier, 0 for the connection.
+     * @param payload frame payload.
+     * @throws Http2Exception for a stream or connection error.
+     */
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of wrong length");
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0 || (long) sendWindow + increment > Integer.MAX_VALUE) {
+                throw new Http2Exception(increment == 0 ? Http2Exception.PROTOCOL_ERROR
+                        : Http2Exception.FLOW_CONTROL_ERROR, "bad connection WINDOW_UPDATE");
+            }
+            sendWindow += increment;
+            return;
+        }
+        Http2Stream stream = this.existingStream(streamId);
+        if (stream == null) {
+            return;
+        }
+        if (increment == 0 || (long) stream.getWindow() + increment > Integer.MAX_VALUE) {
+            throw new Http2Exception(streamId, increment == 0 ? Http2Exception.PROTOCOL_ERROR
+                    : Http2Exception.FLOW_CONTROL_ERROR, "bad stream WINDOW_UPDATE");
+        }
+        stream.setWindow(stream.getWindow() + increment);
+    }
+
+    /**
+     * Looks up a stream a frame refers to. Frames for streams which were closed are ignored, as they may
+     * have been sent before the client saw the close, but the client cannot refer to one it never opened.
+     * @param streamId stream identifier.
+     * @return open stream, or null if it was closed.
+     * @throws Http2Exception a connection PROTOCOL_ERROR for an idle stream.
+     */
+    private Http2Stream existingStream(int streamId) throws Http2Exception {
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null && streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "frame on idle stream " + streamId);
+        }
+        return stream;
+    }
+
+    /**
+     * Opens a stream with default priority.
+     * @param streamId stream identifier.
+     * @param remoteClosed whether the client's side is already closed.
+     * @return new stream.
+     */
+    private Http2Stream openStream(int streamId, boolean remoteClosed) {
+        Http2Stream stream = new Http2Stream(streamId, peerInitialWindow);
+        stream.setRemoteClosed(remoteClosed);
+        stream.setPass(virtualTime);
+        streams.put(streamId, stream);
+        metrics.http2Stream();
+        return stream;
+    }
+
+    /**
+     * Moves a stream in the priority tree (RFC 7540 5.3.3). A dependency on a stream not in the tree falls
+     * back to the default priority; making a stream depend on one of its own descendants first moves that
+     * descendant up to the stream's old parent.
+     * @param stream stream to move.
+     * @param dependency stream to depend on, 0 for the root.
+     * @param exclusive whether to become the only child, taking over the parent's other children.
+     * @param weight weight as sent, 0 to 255.
+     */
+    private void prioritize(Http2Stream stream, int dependency, boolean exclusive, int weight) {
+        Http2Stream parent = streams.get(dependency);
+        if (dependency != 0 && parent == null) {
+            dependency = 0;
+            exclusive = false;
+            weight = 15;
+        }
+        stream.setWeight(weight + 1);
+        for (Http2Stream p = parent; p != null; p = streams.get(p.getParent())) {
+            if (p.getParent() == stream.getId()) {
+                p.setParent(stream.getParent());
+                break;
+            }
+        }
+        if (exclusive) {
+            for (Http2Stream s : streams.values()) {
+                if (s.getParent() == dependency && s != stream) {
+                    s.setParent(stream.getId());
+                }
+            }
+        }
+        stream.setParent(dependency);
+    }
+
+    /**
+     * Answers a request on its stream, queuing HEADERS; the body follows as DATA frames when flushed.
+     * An upload whose body is still to come is answered once its stream ends. A request refused by admission
+     * control is answered with 429 or 503 on its stream, leaving the connection open.
+     * @param stream stream of the request.
+     * @param request parsed request.
+     * @param tooLarge whether the header list was over the limit, answered with 431.
+     */
+    private void respond(Http2Stream stream, HTTPRequest request, boolean tooLarge) {
+        long parsed = System.nanoTime();
+        AdmissionControl admission = generator.getAdmission();
+        HTTPResponse response = null;
+        if (tooLarge) {
+            response = ResponseGenerator.errorResponse(431, "Request Header Fields Too Large", true);
+        } else if (admission != null) {
+            response = admission.admit(client, request, true);
+            if (response == null) {
+                stream.setAdmission(admission, parsed);
+            }
+        }
+        if (response == null && generator.isUpload(request)) {
+            Upload upload = generator.startUpload(request, true);
+            response = upload.getRejection();
+            if (response == null && !stream.isRemoteClosed()) {
+                stream.setUpload(upload);
+                return;
+            }
+            if (response == null) {
+                response = endUpload(upload);
+            }
+        } else if (response == null) {
+            response = generator.generateResponse(request, true);
+        }
+        metrics.recordPhase(Metrics.LOOKUP, System.nanoTime() - parsed);
+        this.send(stream, request, response);
+    }
+
+    /**
+     * Logs a response and queues its HEADERS, ending the stream at once if there is no body.
+     * @param stream stream of the request.
+     * @param request request being answered.
+     * @param response response to send.
+     */
+    private void send(Http2Stream stream, HTTPRequest request, HTTPResponse response) {
+        served++;
+        lgr.logRequest(client, request, response);
+        stream.setResponse(response);
+        this.queueHeaders(stream, response);
+        if (served >= maxRequests) {
+            this.sendGoAway(Http2Exception.NO_ERROR);
+        }
+        if (stream.getRemaining() == 0) {
+            this.finish(stream);
+        }
+    }
+
+    /**
+     * Encodes a response's header fields and queues them as HEADERS and, if the block does not fit in one
+     * frame, CONTINUATION frames. Headers which only mean something to HTTP/1.1 are left out.
+     * @param stream stream of the response.
+     * @param response response.
+     */
+    private void queueHeaders(Http2Stream stream, HTTPResponse response) {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        names.add(":status");
+        values.add(String.valueOf(response.getStatusCode()));
+        names.add("server");
+        values.add("HTTPServer");
+        for (int i = 0; i < response.getHeaderNames().size(); i++) {
+            names.add(response.getHeaderNames().get(i).toLowerCase());
+            values.add(response.getHeaderValues().get(i));
+        }
+        byte[] cached = response.getCachedFields();
+        if (cached != null) {
+            String fields = new String(cached, StandardCharsets.ISO_8859_1);
+            for (String line : fields.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    names.add(line.substring(0, colon).toLowerCase());
+                    values.add(line.substring(colon + 1).trim());
+                }
+            }
+        }
+        if (response.getContentLength() >= 0) {
+            names.add("content-length");
+            values.add(String.valueOf(response.getContentLength()));
+        }
+
+        int bound = 16;
+        for (int i = 0; i < names.size(); i++) {
+            bound += Hpack.maxEncodedLength(names.get(i), values.get(i));
+        }
+        ByteBuffer block = ByteBuffer.allocate(bound);
+        encoder.beginBlock(block);
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (!contains(CONNECTION_HEADERS, name)) {
+                encoder.encode(name, values.get(i), !contains(VOLATILE, name), block);
+            }
+        }
+        block.flip();
+
+        int frames = Math.max(1, (block.remaining() + peerMaxFrame - 1) / peerMaxFrame);
+        ByteBuffer buf = ByteBuffer.allocate(block.remaining() + frames * FRAME_HEADER);
+        int type = HEADERS;
+        int flags = stream.getRemaining() == 0 ? END_STREAM : 0;
+        do {
+            int n = Math.min(block.remaining(), peerMaxFrame);
+            boolean last = n == block.remaining();
+            putFrameHeader(buf, n, type, flags | (last ? END_HEADERS : 0), stream.getId());
+            ByteBuffer piece = block.duplicate();
+            piece.limit(piece.position() + n);
+            buf.put(piece);
+            block.position(block.position() + n);
+            type = CONTINUATION;
+            flags = 0;
+        } while (block.hasRemaining());
+        buf.flip();
+        stream.addSent(buf.remaining());
+        //not counted against the control frame limit, which is for frames the client makes us owe it
+        control.add(buf);
+    }
+
+    /**
+     * Builds DATA frames while the output is short, choosing streams by weighted round robin.
+     * Control frames go first.
+     */
+    private void produce() {
+        long queued = 0;
+        for (ByteBuffer buf : out) {
+            queued += buf.remaining();
+        }
+        while (queued < OUTPUT_TARGET) {
+            if (!control.isEmpty()) {
+                ByteBuffer buf = control.poll();
+                queued += buf.remaining();
+                out.add(buf);
+                continue;
+            }
+            Http2Stream stream = this.nextStream();
+            if (stream == null) {
+                return;
+            }
+            queued += this.queueData(stream);
+        }
+    }
+
+    /**
+     * Picks the stream to send DATA on next: of the streams which can send and have no ancestor which can,
+     * the one with the lowest pass. Nothing is sent before the client's SETTINGS, whose window and frame
+     * sizes apply to it; after an upgrade this also keeps the 101 from arriving with a burst of DATA, which
+     * some clients do not hand on to their HTTP/2 layer intact.
+     * @return stream, or null if none can send.
+     */
+    private Http2Stream nextStream() {
+        if (sendWindow <= 0 || closing || !settingsReceived) {
+            return null;
+        }
+        Http2Stream best = null;
+        for (Http2Stream s : streams.values()) {
+            if (s.isSendable() && (best == null || s.getPass() < best.getPass()) && !this.ancestorSendable(s)) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Whether any ancestor of a stream can send, in which case it goes first.
+     * @param stream stream to check.
+     * @return true if an ancestor is sendable.
+     */
+    private boolean ancestorSendable(Http2Stream stream) {
+        Http2Stream p = streams.get(stream.getParent());
+        for (int depth = 0; p != null && depth < streams.size(); depth++) {
+            if (p.isSendable()) {
+                return true;
+            }
+            p = streams.get(p.getParent());
+        }
+        return false;
+    }
+
+    /**
+     * Queues one DATA frame of a stream's body, read into a pooled direct buffer, and advances the stream's
+     * pass. Ends the stream with the last frame, which for a streamed body is the one its end is found in.
+     * @param stream sendable stream.
+     * @return bytes queued.
+     */
+    private int queueData(Http2Stream stream) {
+        int max = (int) Math.min(Math.min(stream.getRemaining(), DATA_BUFFER - FRAME_HEADER),
+                Math.min(Math.min(stream.getWindow(), sendWindow), peerMaxFrame));
+        ByteBuffer frame = BufferPool.DIRECT.acquire(DATA_BUFFER);
+        int n;
+        boolean last;
+        try {
+            frame.position(FRAME_HEADER);
+            n = stream.readBody(frame, max);
+            last = stream.getRemaining() == 0;
+            int end = frame.position();
+            frame.position(0);
+            putFrameHeader(frame, n, DATA, last ? END_STREAM : 0, stream.getId());
+            frame.position(end);
+        } catch (IOException ioe) {
+            BufferPool.DIRECT.release(frame);
+            System.err.println("HTTP/2 stream " + stream.getId() + ": " + ioe.getMessage());
+            this.resetStream(stream.getId(), Http2Exception.INTERNAL_ERROR);
+            return 0;
+        }
+        frame.flip();
+        out.add(frame);
+        pooled.add(frame);
+        stream.setWindow(stream.getWindow() - n);
+        sendWindow -= n;
+        stream.addSent(frame.remaining());
+        virtualTime = stream.getPass();
+        stream.setPass(stream.getPass() + (long) n * 256 / stream.getWeight());
+        if (last) {
+            this.finish(stream);
+        }
+        return frame.remaining();
+    }
+
+    /**
+     * Ends a stream whose response has been queued in full. If the client has not ended its side, it is
+     * told with RST_STREAM(NO_ERROR) that the rest of its request is not wanted (RFC 7540 8.1).
+     * @param stream stream whose END_STREAM has been queued.
+     */
+    private void finish(Http2Stream stream) {
+        if (!stream.isRemoteClosed()) {
+            control.add(rstStream(stream.getId(), Http2Exception.NO_ERROR));
+        }
+        this.closeStream(stream);
+    }
+
+    /**
+     * Closes a stream once both sides have ended it.
+     * @param stream stream whose side from the client has just ended.
+     */
+    private void closeIfDone(Http2Stream stream) {
+        if (stream.getResponse() != null && stream.getRemaining() == 0) {
+            this.closeStream(stream);
+        }
+    }
+
+    /**
+     * Removes a stream, releasing its body and handing its children to its parent.
+     * @param stream stream to remove.
+     */
+    private void closeStream(Http2Stream stream) {
+        if (streams.remove(stream.getId()) == null) {
+            return;
+        }
+        stream.closeBody();
+        if (stream.getResponse() != null) {
+            metrics.recordResponse(stream.getResponse().getStatusCode(), stream.getSent());
+        }
+        for (Http2Stream s : streams.values()) {
+            if (s.getParent() == stream.getId()) {
+                s.setParent(stream.getParent());
+            }
+        }
+    }
+
+    /**
+     * Resets a stream after a stream error or a failure sending its response.
+     * @param streamId stream identifier.
+     * @param errorCode error code.
+     */
+    private void resetStream(int streamId, int errorCode) {
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            this.closeStream(stream);
+        }
+        this.queueControl(rstStream(streamId, errorCode));
+    }
+
+    /**
+     * Answers a connection error with GOAWAY and stops reading.
+     * @param e error.
+     */
+    private void connectionError(Http2Exception e) {
+        System.err.println("HTTP/2 connection error from " + client + ": " + e.getMessage());
+        this.sendGoAway(e.getErrorCode());
+        closing = true;
+        for (Http2Stream s : streams.values()) {
+            s.closeBody();
+        }
+        streams.clear();
+    }
+
+    /**
+     * Queues GOAWAY naming the last stream which will be answered, unless one has been sent already.
+     * @param errorCode error code.
+     */
+    private void sendGoAway(int errorCode) {
+        if (goAwaySent) {
+            return;
+        }
+        goAwaySent = true;
+        goAwayLastId = lastStreamId;
+        control.add(frame(8, GOAWAY, 0, 0).putInt(lastStreamId).putInt(errorCode).flip());
+    }
+
+    /**
+     * Queues a control frame the client's frames made us owe it, cutting the client off if it has made
+     * us owe too many without reading them.
+     * @param buf frame in read mode.
+     */
+    private void queueControl(ByteBuffer buf) {
+        if (control.size() >= MAX_CONTROL) {
+            if (!closing) {
+                this.connectionError(new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "control frame flood"));
+            }
+            return;
+        }
+        control.add(buf);
+    }
+
+    /**
+     * Allocates a control frame with its header written.
+     * @param length payload length.
+     * @param type frame type.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     * @return buffer positioned after the header, to be filled and flipped.
+     */
+    private static ByteBuffer frame(int length, int type, int flags, int streamId) {
+        ByteBuffer buf = ByteBuffer.allocate(FRAME_HEADER + length);
+        putFrameHeader(buf, length, type, flags, streamId);
+        return buf;
+    }
+
+    /**
+     * Builds a WINDOW_UPDATE frame.
+     * @param streamId stream identifier, 0 for the connection.
+     * @param increment window increment.
+     * @return frame in read mode.
+     */
+    private static ByteBuffer windowUpdate(int streamId, int increment) {
+        return frame(4, WINDOW_UPDATE, 0, streamId).putInt(increment).flip();
+    }
+
+    /**
+     * Builds a RST_STREAM frame.
+     * @param streamId stream identifier.
+     * @param errorCode error code.
+     * @return frame in read mode.
+     */
+    private static ByteBuffer rstStream(int streamId, int errorCode) {
+        return frame(4, RST_STREAM, 0, streamId).putInt(errorCode).flip();
+    }
+
+    /**
+     * Writes a frame header.
+     * @param buf buffer to write into.
+     * @param length payload length.
+     * @param type frame type.
+     * @param flags frame flags.
+     * @param streamId stream identifier.
+     */
+    private static void putFrameHeader(ByteBuffer buf, int length, int type, int flags, int streamId) {
+        buf.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        buf.put((byte) type).put((byte) flags).putInt(streamId);
+    }
+
+    /**
+     * Strips the padding of a DATA or HEADERS frame whose PADDED flag is set.
+     * @param flags frame flags.
+     * @param payload frame payload, narrowed to the content.
+     * @throws Http2Exception a connection PROTOCOL_ERROR if the padding is longer than the frame.
+     */
+    private static void unpad(int flags, ByteBuffer payload) throws Http2Exception {
+        if ((flags & PADDED) == 0) {
+            return;
+        }
+        if (!payload.hasRemaining()) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "padded frame without pad length");
+        }
+        int padding = payload.get() & 0xff;
+        if (padding > payload.remaining()) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "padding longer than frame");
+        }
+        payload.limit(payload.limit() - padding);
+    }
+
+    /**
+     * Builds an HTTPRequest from a decoded header block (RFC 7540 8.1.2). Pseudo-header fields must come
+     * first, once each; :authority becomes Host and cookie fields are joined as HTTP/1.1 would send them.
+     * @param streamId stream identifier, for errors.
+     * @param names decoded header names.
+     * @param values decoded header values.
+     * @return request with version HTTP/2.0.
+     * @throws Http2Exception a stream PROTOCOL_ERROR if the request is malformed.
+     */
+    private static HTTPRequest toRequest(int streamId, List<String> names, List<String> values)
+            throws Http2Exception {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        int i = 0;
+        for (; i < names.size() && names.get(i).startsWith(":"); i++) {
+            String name = names.get(i);
+            String value = values.get(i);
+            boolean repeated;
+            switch (name) {
+                case ":method":
+                    repeated = method != null;
+                    method = value;
+                    break;
+                case ":scheme":
+                    repeated = scheme != null;
+                    scheme = value;
+                    break;
+                case ":path":
+                    repeated = path != null;
+                    path = value;
+                    break;
+                case ":authority":
+                    repeated = authority != null;
+                    authority = value;
+                    break;
+                default:
+                    throw malformed(streamId, "pseudo-header " + name);
+            }
+            if (repeated) {
+                throw malformed(streamId, "repeated " + name);
+            }
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty()) {
+            throw malformed(streamId, "missing pseudo-header");
+        }
+        HTTPRequest request = new HTTPRequest(method, path, "HTTP/2.0");
+        StringBuilder cookies = null;
+        for (; i < names.size(); i++) {
+            String name = names.get(i);
+            String value = values.get(i);
+            if (name.isEmpty() || name.startsWith(":") || !name.equals(name.toLowerCase())) {
+                throw malformed(streamId, "header name " + name);
+            }
+            if (contains(CONNECTION_HEADERS, name) || (name.equals("te") && !value.equals("trailers"))) {
+                throw malformed(streamId, "connection-specific header " + name);
+            }
+            if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\0') >= 0) {
+                throw malformed(streamId, "header value of " + name);
+            }
+            if (name.equals("cookie")) {
+                cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+            } else {
+                request.addHeader(name, value);
+            }
+        }
+        if (cookies != null) {
+            request.addHeader("cookie", cookies.toString());
+        }
+        if (authority != null && request.getHeader("host") == null) {
+            request.addHeader("host", authority);
+        }
+        return request;
+    }
+
+    /**
+     * Builds the stream error for a malformed request.
+     * @param streamId stream identifier.
+     * @param what what was wrong.
+     * @return stream PROTOCOL_ERROR.
+     */
+    private static Http2Exception malformed(int streamId, String what) {
+        return new Http2Exception(streamId, Http2Exception.PROTOCOL_ERROR, "malformed request: " + what);
+    }
+
+    /**
+     * Decodes the HTTP2-Settings header of an upgrade request, base64url without padding.
+     * @param value header value.
+     * @return SETTINGS payload, or null if not valid.
+     */
+    private static byte[] decodeSettings(String value) {
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(value.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether an array holds a String.
+     * @param array strings.
+     * @param s string to look for.
+     * @return true if found.
+     */
+    private static boolean contains(String[] array, String s) {
+        for (String a : array) {
+            if (a.equals(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Exception thrown when an HTTP/2 peer breaks the protocol.
+ * Carries the RFC 7540 error code to send, and the stream it concerns: a stream error is answered with
+ * RST_STREAM on that stream only, a connection error, stream 0, with GOAWAY and closing the connection.
+ */
+public class Http2Exception extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+    public static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private int errorCode;
+    private int streamId;
+
+    /**
+     * Constructor for a connection error.
+     * @param errorCode error code to send in GOAWAY.
+     * @param message description, for the server's own output.
+     */
+    public Http2Exception(int errorCode, String message) {
+        this(0, errorCode, message);
+    }
+
+    /**
+     * Constructor for a stream error.
+     * @param streamId stream to reset, 0 for a connection error.
+     * @param errorCode error code to send in RST_STREAM.
+     * @param message description, for the server's own output.
+     */
+    public Http2Exception(int streamId, int errorCode, String message) {
+        super(message);
+        this.streamId = streamId;
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * Getter method for error code.
+     * @return RFC 7540 error code.
+     */
+    public int getErrorCode() {
+        return this.errorCode;
+    }
+
+    /**
+     * Getter method for stream.
+     * @return stream the error concerns, 0 if the whole connection must close.
+     */
+    public int getStreamId() {
+        return this.streamId;
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which holds the state of one HTTP/2 stream: the response being sent on it, how far its body has
+ * got, its send window and its place in the priority tree.
+ * The body is a list of segments taken from the HTTPResponse, in-memory buffers and file regions in the
+ * order HTTP/1.1 would write them, so ranges and multipart bodies are sent the same way. A streamed body of
+ * unknown length follows the segments and counts as remaining until it ends.
+ * A stream whose request is an upload holds the Upload its DATA frames are written to until END_STREAM.
+ */
+public class Http2Stream {
+
+    private final int id;
+    private int parent;
+    private int weight = 16;
+    private long pass;
+    private int window;
+    private boolean remoteClosed;
+    private HTTPResponse response;
+    private List<Segment> segments = new ArrayList<>(2);
+    private int segment;
+    private long remaining;
+    private long sent;
+    private ReadableByteChannel stream;
+    private Upload upload;
+    private int unacknowledged;
+    private AdmissionControl admission;
+    private long admittedAt;
+
+    /**
+     * Constructor for class.
+     * @param id stream identifier.
+     * @param window initial send window, the peer's SETTINGS_INITIAL_WINDOW_SIZE.
+     */
+    public Http2Stream(int id, int window) {
+        this.id = id;
+        this.window = window;
+    }
+
+    /**
+     * Takes over a response to send. Its body file, if any, is closed by closeBody.
+     * @param response response generated for the stream's request.
+     */
+    public void setResponse(HTTPResponse response) {
+        this.response = response;
+        FileChannel file = response.getBodyFile();
+        this.addSegment(response.getBody(), file, response.getBodyPosition(), response.getBodyLength());
+        for (HTTPResponse.Part part : response.getParts()) {
+            this.addSegment(part.getData(), file, part.getPosition(), part.getLength());
+        }
+        this.stream = response.getStreamBody();
+        this.remaining = stream != null ? Long.MAX_VALUE : response.getBodySize();
+    }
+
+    /**
+     * Copies the next body bytes into a buffer, reading file regions with positional reads. Fewer than max
+     * bytes are copied only when a streamed body ends, after which nothing remains.
+     * @param dst buffer to copy into.
+     * @param max most bytes to copy, no more than remain in the body or fit in dst.
+     * @return number of bytes copied.
+     * @throws IOException if a file cannot be read or has shrunk, or a streamed body cannot be read.
+     */
+    public int readBody(ByteBuffer dst, int max) throws IOException {
+        int copied = 0;
+        while (copied < max) {
+            if (segment == segments.size()) {
+                //only a streamed body has bytes beyond the segments
+                int limit = dst.limit();
+                dst.limit(dst.position() + max - copied);
+                int n = stream.read(dst);
+                dst.limit(limit);
+                if (n < 0) {
+                    remaining = 0;
+                    return copied;
+                }
+                copied += n;
+                continue;
+            }
+            Segment s = segments.get(segment);
+            if (s.data != null) {
+                int n = Math.min(max - copied, s.data.remaining());
+                ByteBuffer slice = s.data.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                s.data.position(s.data.position() + n);
+                copied += n;
+                if (!s.data.hasRemaining()) {
+                    segment++;
+                }
+            } else {
+                int limit = dst.limit();
+                dst.limit(dst.position() + (int) Math.min(max - copied, s.end - s.position));
+                int n = s.file.read(dst, s.position);
+                dst.limit(limit);
+                if (n <= 0) {
+                    throw new IOException("file shrank while being sent");
+                }
+                s.position += n;
+                copied += n;
+                if (s.position == s.end) {
+                    segment++;
+                }
+            }
+        }
+        remaining -= copied;
+        return copied;
+    }
+
+    /**
+     * Releases the response body, closing its file and running its close action, abandons an upload
+     * still in progress and releases the request from admission control. Safe to call more than once.
+     */
+    public void closeBody() {
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        if (admission != null) {
+            //a stream reset before its body was all queued gives no latency sample
+            admission.release(response != null && remaining == 0 ? System.nanoTime() - admittedAt : -1);
+            admission = null;
+        }
+        if (response != null) {
+            response.closeBody();
+        }
+    }
+
+    /**
+     * Whether the stream has body bytes to send and window to send them in.
+     * @return true if a DATA frame can be sent on the stream now, connection window permitting.
+     */
+    public boolean isSendable() {
+        return remaining > 0 && window > 0;
+    }
+
+    /**
+     * Getter method for upload.
+     * @return upload receiving the request body, or null if the body is not wanted or has been received.
+     */
+    public Upload getUpload() {
+        return this.upload;
+    }
+
+    /**
+     * Setter method for upload.
+     * @param upload upload to write DATA to, null once it is done with.
+     */
+    public void setUpload(Upload upload) {
+        this.upload = upload;
+    }
+
+    /**
+     * Records that the stream's request was admitted, so it is released when the stream closes.
+     * @param admission admission control which admitted it.
+     * @param admittedAt when it was admitted, in nanoseconds.
+     */
+    public void setAdmission(AdmissionControl admission, long admittedAt) {
+        this.admission = admission;
+        this.admittedAt = admittedAt;
+    }
+
+    /**
+     * Counts request body bytes consumed, returning them to the client in batches.
+     * @param bytes DATA payload length, padding included.
+     * @param batch count at which the window should be updated.
+     * @return increment to send in a stream WINDOW_UPDATE, or 0 to wait for more.
+     */
+    public int consumed(int bytes, int batch) {
+        unacknowledged += bytes;
+        if (unacknowledged < batch) {
+            return 0;
+        }
+        int increment = unacknowledged;
+        unacknowledged = 0;
+        return increment;
+    }
+
+    /**
+     * Getter method for stream identifier.
+     * @return stream identifier.
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * Getter method for response.
+     * @return response being sent, or null before one has been generated.
+     */
+    public HTTPResponse getResponse() {
+        return this.response;
+    }
+
+    /**
+     * Getter method for the stream this one depends on.
+     * @return parent stream identifier, 0 for the root.
+     */
+    public int getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Setter method for the stream this one depends on.
+     * @param parent parent stream identifier, 0 for the root.
+     */
+    public void setParent(int parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Getter method for weight.
+     * @return weight from 1 to 256.
+     */
+    public int getWeight() {
+        return this.weight;
+    }
+
+    /**
+     * Setter method for weight.
+     * @param weight weight from 1 to 256.
+     */
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Getter method for scheduling pass, the stream's position in weighted round robin.
+     * @return virtual time at which the stream is next due.
+     */
+    public long getPass() {
+        return this.pass;
+    }
+
+    /**
+     * Setter method for scheduling pass.
+     * @param pass virtual time at which the stream is next due.
+     */
+    public void setPass(long pass) {
+        this.pass = pass;
+    }
+
+    /**
+     * Getter method for send window.
+     * @return bytes which may be sent before the peer sends WINDOW_UPDATE, may be negative.
+     */
+    public int getWindow() {
+        return this.window;
+    }
+
+    /**
+     * Setter method for send window.
+     * @param window bytes which may be sent.
+     */
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    /**
+     * Getter method for body bytes still to send.
+     * @return bytes remaining, Long.MAX_VALUE while a streamed body has not ended.
+     */
+    public long getRemaining() {
+        return this.remaining;
+    }
+
+    /**
+     * Whether the peer has ended its side of the stream.
+     * @return true once END_STREAM has been received.
+     */
+    public boolean isRemoteClosed() {
+        return this.remoteClosed;
+    }
+
+    /**
+     * Setter method for the peer's side of the stream.
+     * @param remoteClosed true once END_STREAM has been received.
+     */
+    public void setRemoteClosed(boolean remoteClosed) {
+        this.remoteClosed = remoteClosed;
+    }
+
+    /**
+     * Counts bytes put on the wire for the stream, frame headers included.
+     * @param bytes bytes queued.
+     */
+    public void addSent(long bytes) {
+        this.sent += bytes;
+    }
+
+    /**
+     * Getter method for bytes sent.
+     * @return header and body bytes queued for the stream.
+     */
+    public long getSent() {
+        return this.sent;
+    }
+
+    /**
+     * Adds a buffer and a file region to the body, skipping either if empty.
+     * @param data in-memory bytes.
+     * @param file body file, may be null.
+     * @param position offset of the region.
+     * @param length length of the region.
+     */
+    private void addSegment(ByteBuffer data, FileChannel file, long position, long length) {
+        if (data.hasRemaining()) {
+            segments.add(new Segment(data, null, 0, 0));
+        }
+        if (file != null && length > 0) {
+            segments.add(new Segment(null, file, position, position + length));
+        }
+    }
+
+    /**
+     * Class which holds one piece of a body: an in-memory buffer or a region of a file.
+     */
+    private static final class Segment {
+
+        private final ByteBuffer data;
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        /**
+         * Constructor for class.
+         * @param data in-memory bytes, or null for a file region.
+         * @param file file of the region, or null for in-memory bytes.
+         * @param position offset of the region's first byte.
+         * @param end offset after the region's last byte.
+         */
+        Segment(ByteBuffer data, FileChannel file, long position, long end) {
+            this.data = data;
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Class which holds the static Huffman code of HPACK (RFC 7541 Appendix B).
+ * The code is canonical, codes of one length being consecutive in symbol order, so only the code length
+ * of each symbol is listed and the codes themselves are worked out at class load.
+ * Decoding looks up codes of up to 8 bits, which covers the common characters of header fields, in a
+ * 256 entry table and walks the canonical ranges bit by bit only for longer ones.
+ */
+public final class Huffman {
+
+    static final int EOS = 256;
+
+    private static final int MAX_LENGTH = 30;
+
+    static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+    static final int[] CODES = new int[LENGTHS.length];
+
+    //canonical decoding tables: first code, symbol count and offset into SYMBOLS for each code length
+    private static final int[] FIRST = new int[MAX_LENGTH + 1];
+    private static final int[] COUNT = new int[MAX_LENGTH + 1];
+    private static final int[] OFFSET = new int[MAX_LENGTH + 1];
+    private static final int[] SYMBOLS = new int[LENGTHS.length];
+    //for each 8 bit prefix, (length << 16) | symbol of the code it starts with, or 0 if that code is longer
+    private static final int[] SHORT = new int[256];
+
+    static {
+        for (byte length : LENGTHS) {
+            COUNT[length]++;
+        }
+        int code = 0;
+        int offset = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            code <<= 1;
+            FIRST[length] = code;
+            OFFSET[length] = offset;
+            code += COUNT[length];
+            offset += COUNT[length];
+        }
+        int[] next = FIRST.clone();
+        int[] slot = OFFSET.clone();
+        for (int sym = 0; sym < LENGTHS.length; sym++) {
+            int length = LENGTHS[sym];
+            CODES[sym] = next[length]++;
+            SYMBOLS[slot[length]++] = sym;
+            if (length <= 8) {
+                int first = CODES[sym] << (8 - length);
+                for (int i = 0; i < 1 << (8 - length); i++) {
+                    SHORT[first + i] = (length << 16) | sym;
+                }
+            }
+        }
+    }
+
+    private Huffman() {
+    }
+
+    /**
+     * Number of bytes a String takes once Huffman coded.
+     * @param s text of single byte characters.
+     * @return encoded length in bytes, including padding.
+     */
+    public static int encodedLength(String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += LENGTHS[s.charAt(i) & 0xff];
+        }
+        return (int) ((bits + 7) >> 3);
+    }
+
+    /**
+     * Huffman codes a String, padding the last byte with the most significant bits of EOS.
+     * @param s text of single byte characters.
+     * @param out buffer to write into, with at least encodedLength bytes remaining.
+     */
+    public static void encode(String s, ByteBuffer out) {
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int sym = s.charAt(i) & 0xff;
+            acc = (acc << LENGTHS[sym]) | CODES[sym];
+            bits += LENGTHS[sym];
+            while (bits >= 8) {
+                bits -= 8;
+                out.put((byte) (acc >>> bits));
+            }
+        }
+        if (bits > 0) {
+            out.put((byte) ((acc << (8 - bits)) | (0xff >>> bits)));
+        }
+    }
+
+    /**
+     * Decodes a Huffman coded string.
+     * @param in buffer positioned at the coded bytes, advanced past them.
+     * @param length number of coded bytes.
+     * @param sb builder to append decoded characters to.
+     * @throws Http2Exception if the bytes contain EOS, a code which is not complete, or padding which is
+     *     longer than 7 bits or not all ones, all of which RFC 7541 makes a decoding error.
+     */
+    public static void decode(ByteBuffer in, int length, StringBuilder sb) throws Http2Exception {
+        int end = in.position() + length;
+        long acc = 0;
+        int bits = 0;
+        while (true) {
+            while (bits <= 56 && in.position() < end) {
+                acc = (acc << 8) | (in.get() & 0xff);
+                bits += 8;
+            }
+            if (bits == 0) {
+                return;
+            }
+            if (bits >= 8) {
+                int entry = SHORT[(int) (acc >>> (bits - 8)) & 0xff];
+                if (entry != 0) {
+                    sb.append((char) (entry & 0xffff));
+                    bits -= entry >>> 16;
+                    continue;
+                }
+            }
+            int sym = -1;
+            int len = 1;
+            for (; len <= Math.min(MAX_LENGTH, bits); len++) {
+                int code = (int) (acc >>> (bits - len)) & ((1 << len) - 1);
+                if (code >= FIRST[len] && code - FIRST[len] < COUNT[len]) {
+                    sym = SYMBOLS[OFFSET[len] + code - FIRST[len]];
+                    break;
+                }
+            }
+            if (sym < 0) {
+                //what is left must be padding: fewer than 8 bits, all ones
+                long mask = (1L << bits) - 1;
+                if (in.position() < end || bits > 7 || (acc & mask) != mask) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "invalid Huffman padding");
+                }
+                return;
+            }
+            if (sym == EOS) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in Huffman string");
+            }
+            sb.append((char) sym);
+            bits -= len;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which records a distribution of durations in nanoseconds, in the manner of an HDR histogram.
+ * Buckets are log-linear: every power of two range is split into SUB_BUCKETS / 2 equal buckets,
+ * so any recorded value is known to within 1/64 (about 1.6%) whatever its magnitude.
+ * Counts are striped across several arrays by thread, so concurrent recorders rarely share a cache line.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 2) * HALF;
+
+    private AtomicLongArray[] stripes;
+    private int stripeMask;
+    private LongAdder sum = new LongAdder();
+
+    /**
+     * Constructor for class. Uses one stripe per processor, rounded up to a power of two, at most 8.
+     */
+    public LatencyHistogram() {
+        int n = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.stripeMask = n - 1;
+    }
+
+    /**
+     * Records one duration. Values above about 18 minutes are counted in the last bucket.
+     * @param nanos duration in nanoseconds, negative values count as zero.
+     */
+    public void record(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+        stripes[(int) Thread.currentThread().getId() & stripeMask].incrementAndGet(bucketOf(v));
+        sum.add(v);
+    }
+
+    /**
+     * Merges the stripes into one array of bucket counts.
+     * @return count per bucket.
+     */
+    public long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Getter method for the sum of recorded values.
+     * @return total of all recorded durations in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Index of the bucket holding a value.
+     * @param v non-negative value no greater than MAX_VALUE.
+     * @return bucket index.
+     */
+    static int bucketOf(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+        return shift * HALF + (int) (v >>> shift);
+    }
+
+    /**
+     * Largest value which falls in a bucket.
+     * @param index bucket index.
+     * @return inclusive upper bound of the bucket.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long mantissa = index - (long) shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Value below which a fraction of recorded values fall, from a snapshot.
+     * @param counts bucket counts from snapshot.
+     * @param total sum of counts.
+     * @param quantile fraction between 0 and 1.
+     * @return upper bound of the bucket holding the quantile, 0 if nothing was recorded.
+     */
+    public static long valueAt(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+}
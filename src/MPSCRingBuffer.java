@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class which is a bounded, lock-free queue for many producer threads and a single consumer thread.
+ * Each slot carries a sequence number: producers claim a slot by moving the shared tail on with a
+ * compare-and-set and publish it by bumping the slot's sequence, so producers never take a lock
+ * and the consumer never touches the tail.
+ * @param <E> type of element held.
+ */
+public class MPSCRingBuffer<E> {
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    /**
+     * Constructor for class.
+     * @param capacity number of slots, rounded up to a power of two.
+     */
+    public MPSCRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element if there is room. Safe to call from any number of threads.
+     * @param e element to add.
+     * @return false if the buffer is full.
+     */
+    public boolean offer(E e) {
+        long t;
+        int index;
+        while (true) {
+            t = tail.get();
+            index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+        slots[index] = e;
+        sequences.lazySet(index, t + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element. Must only be called from the single consumer thread.
+     * @return oldest element, or null if empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        E e = (E) slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
+        return e;
+    }
+
+    /**
+     * Getter method for capacity.
+     * @return number of slots.
+     */
+    public int capacity() {
+        return slots.length;
+    }
+}
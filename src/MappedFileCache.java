@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which keeps large files memory-mapped so every connection sends them from the same page cache pages.
+ * Mappings are reference counted: the cache holds one reference and each response being written holds another.
+ * A mapping dropped from the cache, because the mapped-bytes budget was exceeded or the file changed,
+ * is unmapped as soon as the last response using it has been written.
+ */
+public class MappedFileCache {
+
+    private static final MethodHandle INVOKE_CLEANER = cleaner();
+
+    private long budget;
+    private long minSize;
+    private long used;
+    private FileVersions versions;
+    private LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder mapped = new LongAdder();
+    private LongAdder unmapped = new LongAdder();
+
+    /**
+     * Constructor for class.
+     * @param budget total bytes which may be mapped at once.
+     * @param minSize smallest file worth mapping, smaller ones are better served from the content cache or disk.
+     * @param versions file metadata cache, told when a file is found to differ from the version asked for.
+     */
+    public MappedFileCache(long budget, long minSize, FileVersions versions) {
+        this.budget = budget;
+        this.minSize = minSize;
+        this.versions = versions;
+    }
+
+    /**
+     * Returns the mapping of a file, mapping it on a miss. The caller owns one reference and must release it.
+     * @param p resolved path of file.
+     * @param version current version of the file, a mapping of any other version is dropped.
+     * @return retained mapping, or null if the file is outside the mappable size range, cannot be mapped or
+     *     no longer matches the version, in which case the version is read afresh for the next request.
+     */
+    public Mapping acquire(Path p, FileVersions.Version version) {
+        synchronized (this) {
+            Mapping m = mappings.get(p);
+            if (m != null && m.size == version.getSize() && m.modified == version.getModified()) {
+                hits.increment();
+                m.refs.incrementAndGet();
+                return m;
+            }
+            if (m != null) {
+                //file changed, readers still writing the old contents keep it mapped until they finish
+                this.drop(p, m);
+            }
+        }
+
+        long size = version.getSize();
+        if (size < minSize || size > budget || size > Integer.MAX_VALUE || size == 0) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+            //the mapping is labelled with the version's validators, so a file rewritten since, even at the
+            //same size, is not mapped
+            if (fc.size() != size || Files.getLastModifiedTime(p).toMillis() != version.getModified()) {
+                versions.invalidate(p);
+                return null;
+            }
+            //the mapping stays valid after the channel is closed
+            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException ioe) {
+            System.err.println("MappedFileCache: " + ioe.getMessage());
+            return null;
+        }
+        mapped.increment();
+        Mapping fresh = new Mapping(buffer, size, version.getModified());
+
+        synchronized (this) {
+            Mapping raced = mappings.get(p);
+            if (raced != null && raced.size == fresh.size && raced.modified == fresh.modified) {
+                //another thread mapped the same version first, use theirs
+                fresh.release();
+                raced.refs.incrementAndGet();
+                return raced;
+            }
+            if (raced != null) {
+                this.drop(p, raced);
+            }
+            mappings.put(p, fresh);
+            used += size;
+            Iterator<Mapping> eldest = mappings.values().iterator();
+            while (used > budget && eldest.hasNext()) {
+                Mapping victim = eldest.next();
+                if (victim == fresh) {
+                    continue;
+                }
+                eldest.remove();
+                used -= victim.size;
+                victim.release();
+            }
+            fresh.refs.incrementAndGet();
+            return fresh;
+        }
+    }
+
+    /**
+     * Getter method for hit count.
+     * @return number of requests served from an existing mapping.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Getter method for map count.
+     * @return number of files mapped.
+     */
+    public long getMapped() {
+        return mapped.sum();
+    }
+
+    /**
+     * Getter method for unmap count.
+     * @return number of mappings released.
+     */
+    public long getUnmapped() {
+        return unmapped.sum();
+    }
+
+    /**
+     * Getter method for bytes mapped.
+     * @return total size of mappings held by the cache.
+     */
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    /**
+     * Removes a mapping from the cache and drops the cache's reference to it.
+     * @param p path the mapping is held under.
+     * @param m mapping to drop.
+     */
+    private void drop(Path p, Mapping m) {
+        mappings.remove(p);
+        used -= m.size;
+        m.release();
+    }
+
+    /**
+     * Finds Unsafe.invokeCleaner, which unmaps a buffer immediately instead of when it is garbage collected.
+     * @return handle taking a ByteBuffer, or null if the JDK does not allow it.
+     */
+    private static MethodHandle cleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("MappedFileCache: mappings will be released by the garbage collector");
+            return null;
+        }
+    }
+
+    /**
+     * Class which holds one mapped file.
+     */
+    public final class Mapping {
+
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final long modified;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        /**
+         * Constructor for class. The cache holds the first reference.
+         * @param buffer mapped file contents.
+         * @param size file size in bytes.
+         * @param modified file modification time in milliseconds.
+         */
+        Mapping(MappedByteBuffer buffer, long size, long modified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * View of the mapped contents with its own position, for one response.
+         * @return read-only view of the whole file.
+         */
+        public ByteBuffer getBody() {
+            return buffer.duplicate();
+        }
+
+        /**
+         * Drops one reference, unmapping the file once no cache entry or response holds it.
+         */
+        public void release() {
+            if (refs.decrementAndGet() != 0) {
+                return;
+            }
+            unmapped.increment();
+            if (INVOKE_CLEANER != null) {
+                try {
+                    INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+                } catch (Throwable t) {
+                    System.err.println("MappedFileCache unmap: " + t.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,495 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Class which collects server metrics and renders them in the Prometheus text exposition format.
+ * Counters are LongAdders, which stripe updates across cells, and latencies go into a
+ * LatencyHistogram per request phase, so recording costs a few uncontended increments.
+ */
+public class Metrics {
+
+    public static final int ACCEPT = 0;
+    public static final int PARSE = 1;
+    public static final int LOOKUP = 2;
+    public static final int WRITE = 3;
+    public static final int TOTAL = 4;
+
+    public static final int HEADER_TIMEOUT = 0;
+    public static final int IDLE_TIMEOUT = 1;
+    public static final int WRITE_TIMEOUT = 2;
+    public static final int BODY_TIMEOUT = 3;
+
+    private static final String[] PHASES = {"accept", "parse", "lookup", "write", "total"};
+    private static final String[] TIMEOUTS = {"header", "idle", "write", "body"};
+    private static final double[] LE_SECONDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+        0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+    private LongAdder connections = new LongAdder();
+    private LongAdder active = new LongAdder();
+    private LongAdder rejected = new LongAdder();
+    private LongAdder bytesSent = new LongAdder();
+    private LongAdder[] statuses = new LongAdder[600];
+    private LongAdder[] timeouts = new LongAdder[TIMEOUTS.length];
+    private LongAdder http2Connections = new LongAdder();
+    private LongAdder http2Streams = new LongAdder();
+    private LongAdder uploads = new LongAdder();
+    private LongAdder uploadBytes = new LongAdder();
+    private volatile AcceptorShard[] shards;
+    private volatile HashedWheelTimer timer;
+    private volatile AdmissionControl admission;
+    private volatile ReverseProxy proxy;
+    private volatile TlsContext tls;
+
+    /**
+     * Constructor for class.
+     */
+    public Metrics() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+        for (int i = 100; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a newly accepted connection.
+     */
+    public void connectionOpened() {
+        connections.increment();
+        active.increment();
+    }
+
+    /**
+     * Counts a connection closing, however it ended.
+     */
+    public void connectionClosed() {
+        active.decrement();
+    }
+
+    /**
+     * Counts a connection turned away because the server was busy.
+     */
+    public void connectionRejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Counts a connection closed because a timeout expired.
+     * @param kind HEADER_TIMEOUT, IDLE_TIMEOUT, WRITE_TIMEOUT or BODY_TIMEOUT.
+     */
+    public void connectionTimedOut(int kind) {
+        timeouts[kind].increment();
+    }
+
+    /**
+     * Counts a connection switched to HTTP/2.
+     */
+    public void http2Opened() {
+        http2Connections.increment();
+    }
+
+    /**
+     * Counts a stream opened by an HTTP/2 client.
+     */
+    public void http2Stream() {
+        http2Streams.increment();
+    }
+
+    /**
+     * Counts a completed upload.
+     * @param bytes body bytes written to the file.
+     */
+    public void uploaded(long bytes) {
+        uploads.increment();
+        uploadBytes.add(bytes);
+    }
+
+    /**
+     * Records how long a request spent in one phase.
+     * @param phase ACCEPT, PARSE, LOOKUP, WRITE or TOTAL.
+     * @param nanos duration in nanoseconds.
+     */
+    public void recordPhase(int phase, long nanos) {
+        phases[phase].record(nanos);
+    }
+
+    /**
+     * Counts a response by status code, and the bytes it put on the wire.
+     * @param status status code.
+     * @param bytes header and body bytes.
+     */
+    public void recordResponse(int status, long bytes) {
+        if (status >= 100 && status < statuses.length) {
+            statuses[status].increment();
+        }
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Setter method for acceptor shards, whose per-shard counts are rendered with the other metrics.
+     * @param shards acceptor shards of the blocking engine.
+     */
+    public void setShards(AcceptorShard[] shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Setter method for the connection timeout timer, whose pending count is rendered with the other metrics.
+     * @param timer timer of the running engine.
+     */
+    public void setTimer(HashedWheelTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Setter method for admission control, whose limit and refusals are rendered with the other metrics.
+     * @param admission admission control of the server.
+     */
+    public void setAdmission(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Setter method for the reverse proxy, whose backend and cache counts are rendered with the other metrics.
+     * @param proxy reverse proxy of the server.
+     */
+    public void setProxy(ReverseProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    /**
+     * Setter method for TLS, whose handshake counts are rendered with the other metrics.
+     * @param tls TLS settings of the server.
+     */
+    public void setTls(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Getter method for timed out connections.
+     * @param kind HEADER_TIMEOUT, IDLE_TIMEOUT, WRITE_TIMEOUT or BODY_TIMEOUT.
+     * @return connections closed by that timeout.
+     */
+    public long getTimedOut(int kind) {
+        return timeouts[kind].sum();
+    }
+
+    /**
+     * Getter method for active connections.
+     * @return connections currently open.
+     */
+    public long getActive() {
+        return active.sum();
+    }
+
+    /**
+     * Renders all metrics, including those of the caches, as Prometheus text.
+     * @param index document index, may be null.
+     * @param cache content cache, may be null.
+     * @param mappedFiles mapped file cache, may be null.
+     * @param compressor compressor, may be null.
+     * @return exposition text.
+     */
+    public String render(DocumentIndex index, ContentCache cache, MappedFileCache mappedFiles, Compressor compressor) {
+        StringBuilder sb = new StringBuilder(8192);
+        counter(sb, "httpserver_connections_total", "Connections accepted.", connections.sum());
+        gauge(sb, "httpserver_connections_active", "Connections currently open.", active.sum());
+        counter(sb, "httpserver_connections_rejected_total",
+                "Connections refused with 503 because the server was busy.", rejected.sum());
+        counter(sb, "httpserver_sent_bytes_total", "Response header and body bytes sent.", bytesSent.sum());
+        counter(sb, "httpserver_http2_connections_total", "Connections which switched to HTTP/2.",
+                http2Connections.sum());
+        counter(sb, "httpserver_http2_streams_total", "Streams opened on HTTP/2 connections.", http2Streams.sum());
+        counter(sb, "httpserver_uploads_total", "Uploads received and moved into place.", uploads.sum());
+        counter(sb, "httpserver_upload_bytes_total", "Body bytes of completed uploads.", uploadBytes.sum());
+
+        header(sb, "httpserver_responses_total", "Responses sent by status code.", "counter");
+        for (int i = 100; i < statuses.length; i++) {
+            long n = statuses[i].sum();
+            if (n > 0) {
+                sb.append("httpserver_responses_total{code=\"").append(i).append("\"} ").append(n).append('\n');
+            }
+        }
+
+        header(sb, "httpserver_timeouts_total",
+                "Connections closed because a header, idle, write or body timeout expired.", "counter");
+        for (int i = 0; i < timeouts.length; i++) {
+            sb.append("httpserver_timeouts_total{kind=\"").append(TIMEOUTS[i]).append("\"} ")
+                    .append(timeouts[i].sum()).append('\n');
+        }
+        HashedWheelTimer wheel = this.timer;
+        if (wheel != null) {
+            gauge(sb, "httpserver_timer_pending", "Connection timeouts scheduled on the timer wheel.",
+                    wheel.getPending());
+        }
+
+        AdmissionControl control = this.admission;
+        if (control != null) {
+            gauge(sb, "httpserver_requests_in_flight", "Admitted requests whose response is not yet written.",
+                    control.getInFlight());
+            gauge(sb, "httpserver_concurrency_limit", "Adaptive limit on requests in flight, 0 if off.",
+                    control.getLimit());
+            header(sb, "httpserver_requests_refused_total",
+                    "Requests refused by admission control: 429 over the client's rate, 503 over the limit.",
+                    "counter");
+            sb.append("httpserver_requests_refused_total{reason=\"rate\"} ").append(control.getRateLimited())
+                    .append('\n');
+            sb.append("httpserver_requests_refused_total{reason=\"concurrency\"} ").append(control.getShed())
+                    .append('\n');
+        }
+
+        ReverseProxy upstream = this.proxy;
+        if (upstream != null) {
+            counter(sb, "httpserver_proxy_requests_total", "Requests forwarded to a backend.",
+                    upstream.getForwarded());
+            counter(sb, "httpserver_proxy_connections_opened_total", "Backend connections opened.",
+                    upstream.getOpened());
+            counter(sb, "httpserver_proxy_connections_reused_total", "Requests sent on a pooled backend connection.",
+                    upstream.getReused());
+            counter(sb, "httpserver_proxy_errors_total", "Requests answered with 502 or 504.", upstream.getFailures());
+            ProxyCache responses = upstream.getCache();
+            if (responses != null) {
+                counter(sb, "httpserver_proxy_cache_hits_total", "Proxied requests answered from the cache.",
+                        responses.getHits());
+                counter(sb, "httpserver_proxy_cache_misses_total", "Cache lookups finding no fresh response.",
+                        responses.getMisses());
+                counter(sb, "httpserver_proxy_cache_coalesced_total",
+                        "Misses which waited for another request's backend call.", responses.getCoalesced());
+                counter(sb, "httpserver_proxy_cache_evictions_total", "Responses evicted for space.",
+                        responses.getEvictions());
+                gauge(sb, "httpserver_proxy_cache_bytes", "Body bytes held by the proxy cache.",
+                        responses.getUsedBytes());
+            }
+        }
+
+        TlsContext secure = this.tls;
+        if (secure != null) {
+            counter(sb, "httpserver_tls_handshakes_total", "TLS handshakes completed, full and resumed.",
+                    secure.getHandshakes());
+            counter(sb, "httpserver_tls_resumed_handshakes_total", "TLS handshakes which resumed a cached session.",
+                    secure.getResumed());
+            counter(sb, "httpserver_tls_handshake_failures_total", "TLS handshakes rejected by the engine.",
+                    secure.getFailures());
+            header(sb, "httpserver_tls_handshake_seconds_total", "Time spent in completed TLS handshakes.", "counter");
+            sb.append("httpserver_tls_handshake_seconds_total ").append(seconds(secure.getHandshakeNanos()))
+                    .append('\n');
+        }
+
+        AcceptorShard[] acceptors = this.shards;
+        if (acceptors != null) {
+            header(sb, "httpserver_shard_accepted_total", "Connections accepted per acceptor shard.", "counter");
+            for (AcceptorShard shard : acceptors) {
+                sb.append("httpserver_shard_accepted_total{shard=\"").append(shard.getId()).append("\"} ")
+                        .append(shard.getAccepted()).append('\n');
+            }
+            header(sb, "httpserver_shard_busy_workers", "Pool threads running a connection per shard.", "gauge");
+            for (AcceptorShard shard : acceptors) {
+                sb.append("httpserver_shard_busy_workers{shard=\"").append(shard.getId()).append("\"} ")
+                        .append(shard.getBusyWorkers()).append('\n');
+            }
+            header(sb, "httpserver_shard_queued", "Connections waiting for a pool thread per shard.", "gauge");
+            for (AcceptorShard shard : acceptors) {
+                sb.append("httpserver_shard_queued{shard=\"").append(shard.getId()).append("\"} ")
+                        .append(shard.getQueued()).append('\n');
+            }
+        }
+
+        long[][] snapshots = new long[phases.length][];
+        long[] totals = new long[phases.length];
+        for (int p = 0; p < phases.length; p++) {
+            snapshots[p] = phases[p].snapshot();
+            for (long c : snapshots[p]) {
+                totals[p] += c;
+            }
+        }
+
+        header(sb, "httpserver_phase_duration_seconds",
+                "Time spent per request phase: accept (queued before a worker), parse, lookup, write, total.",
+                "histogram");
+        for (int p = 0; p < phases.length; p++) {
+            String label = "phase=\"" + PHASES[p] + "\"";
+            long cumulative = 0;
+            int bucket = 0;
+            for (double le : LE_SECONDS) {
+                long limit = (long) (le * 1e9);
+                while (bucket < LatencyHistogram.BUCKETS && LatencyHistogram.upperBound(bucket) <= limit) {
+                    cumulative += snapshots[p][bucket++];
+                }
+                sb.append("httpserver_phase_duration_seconds_bucket{").append(label).append(",le=\"")
+                        .append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append("httpserver_phase_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                    .append(totals[p]).append('\n');
+            sb.append("httpserver_phase_duration_seconds_sum{").append(label).append("} ")
+                    .append(seconds(phases[p].getSum())).append('\n');
+            sb.append("httpserver_phase_duration_seconds_count{").append(label).append("} ")
+                    .append(totals[p]).append('\n');
+        }
+
+        header(sb, "httpserver_phase_duration_quantile_seconds",
+                "Latency quantiles per phase since start, to within 1.6%.", "gauge");
+        for (int p = 0; p < phases.length; p++) {
+            for (double q : QUANTILES) {
+                sb.append("httpserver_phase_duration_quantile_seconds{phase=\"").append(PHASES[p])
+                        .append("\",quantile=\"").append(q).append("\"} ")
+                        .append(seconds(LatencyHistogram.valueAt(snapshots[p], totals[p], q))).append('\n');
+            }
+        }
+
+        if (index != null) {
+            gauge(sb, "httpserver_index_files", "Regular files in the document index.", index.getFileCount());
+            counter(sb, "httpserver_index_updates_total", "File watch events applied to the document index.",
+                    index.getUpdates());
+        }
+        if (cache != null) {
+            long hits = cache.getHits();
+            long misses = cache.getMisses();
+            counter(sb, "httpserver_content_cache_hits_total", "Requests answered from the content cache.", hits);
+            counter(sb, "httpserver_content_cache_misses_total", "Content cache lookups which went to disk.", misses);
+            counter(sb, "httpserver_content_cache_evictions_total", "Content cache entries evicted for space.",
+                    cache.getEvictions());
+            counter(sb, "httpserver_content_cache_invalidations_total", "Content cache entries dropped as stale.",
+                    cache.getInvalidations());
+            gauge(sb, "httpserver_content_cache_bytes", "Body bytes held by the content cache.", cache.getUsedBytes());
+            gaugeValue(sb, "httpserver_content_cache_hit_ratio", "Content cache hits over lookups since start.",
+                    hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        }
+        if (mappedFiles != null) {
+            counter(sb, "httpserver_mapped_hits_total", "Requests served from an existing file mapping.",
+                    mappedFiles.getHits());
+            counter(sb, "httpserver_mapped_files_total", "Files memory-mapped.", mappedFiles.getMapped());
+            counter(sb, "httpserver_unmapped_files_total", "File mappings released.", mappedFiles.getUnmapped());
+            gauge(sb, "httpserver_mapped_bytes", "Bytes of files held mapped by the cache.",
+                    mappedFiles.getUsedBytes());
+        }
+        renderPools(sb, BufferPool.DIRECT, BufferPool.HEAP);
+        if (compressor != null) {
+            counter(sb, "httpserver_compressed_total", "File versions compressed on the fly.",
+                    compressor.getCompressed());
+            counter(sb, "httpserver_compressed_streamed_total", "Responses compressed as they were sent.",
+                    compressor.getStreamed());
+            counter(sb, "httpserver_compressed_variant_hits_total", "Compressed variants served from memory.",
+                    compressor.getVariantHits());
+            counter(sb, "httpserver_precompressed_total", "Lookups which found a usable .gz sibling.",
+                    compressor.getPrecompressed());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends buffer pool counts per pool and size class, for size classes which have been used.
+     * @param sb output.
+     * @param pools buffer pools.
+     */
+    private static void renderPools(StringBuilder sb, BufferPool... pools) {
+        poolFamily(sb, "httpserver_buffer_pool_acquired_total", "Pooled buffers handed out.", "counter", pools,
+                BufferPool::getAcquired);
+        poolFamily(sb, "httpserver_buffer_pool_local_hits_total", "Buffers taken from the acquiring thread's cache.",
+                "counter", pools, BufferPool::getLocalHits);
+        poolFamily(sb, "httpserver_buffer_pool_allocated_total", "Buffers allocated because the pool was empty.",
+                "counter", pools, BufferPool::getAllocated);
+        poolFamily(sb, "httpserver_buffer_pool_outstanding", "Buffers handed out and not yet released.", "gauge",
+                pools, BufferPool::getOutstanding);
+        poolFamily(sb, "httpserver_buffer_pool_idle", "Buffers waiting in the pool.", "gauge", pools,
+                BufferPool::getIdle);
+
+        header(sb, "httpserver_buffer_pool_unpooled_total", "Buffers too large for any size class.", "counter");
+        for (BufferPool pool : pools) {
+            sb.append("httpserver_buffer_pool_unpooled_total{pool=\"").append(pool.getName()).append("\"} ")
+                    .append(pool.getUnpooled()).append('\n');
+        }
+        header(sb, "httpserver_buffer_pool_leaks_total", "Buffers never released, found by leak detection.",
+                "counter");
+        for (BufferPool pool : pools) {
+            sb.append("httpserver_buffer_pool_leaks_total{pool=\"").append(pool.getName()).append("\"} ")
+                    .append(pool.getLeaks()).append('\n');
+        }
+    }
+
+    /**
+     * Appends one buffer pool metric labelled by pool and size class.
+     * @param sb output.
+     * @param name metric name.
+     * @param help description.
+     * @param type Prometheus metric type.
+     * @param pools buffer pools.
+     * @param value reads the value for a pool and size class.
+     */
+    private static void poolFamily(StringBuilder sb, String name, String help, String type, BufferPool[] pools,
+                                   ToLongBiFunction<BufferPool, Integer> value) {
+        header(sb, name, help, type);
+        for (BufferPool pool : pools) {
+            for (int c = 0; c < BufferPool.CLASSES; c++) {
+                if (pool.getAcquired(c) > 0) {
+                    sb.append(name).append("{pool=\"").append(pool.getName()).append("\",size=\"")
+                            .append(BufferPool.classSize(c)).append("\"} ").append(value.applyAsLong(pool, c))
+                            .append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends HELP and TYPE lines.
+     * @param sb output.
+     * @param name metric name.
+     * @param help description.
+     * @param type Prometheus metric type.
+     */
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Appends an unlabelled counter.
+     * @param sb output.
+     * @param name metric name.
+     * @param help description.
+     * @param value current count.
+     */
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends an unlabelled integer gauge.
+     * @param sb output.
+     * @param name metric name.
+     * @param help description.
+     * @param value current value.
+     */
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends an unlabelled fractional gauge.
+     * @param sb output.
+     * @param name metric name.
+     * @param help description.
+     * @param value current value.
+     */
+    private static void gaugeValue(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+    }
+
+    /**
+     * Formats nanoseconds as seconds.
+     * @param nanos duration in nanoseconds.
+     * @return seconds with nanosecond precision.
+     */
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class which maps file name extensions to MIME types.
+ */
+public final class MimeTypes {
+
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("html", "text/html");
+        TYPES.put("htm", "text/html");
+        TYPES.put("css", "text/css");
+        TYPES.put("js", "application/javascript");
+        TYPES.put("json", "application/json");
+        TYPES.put("txt", "text/plain");
+        TYPES.put("xml", "application/xml");
+        TYPES.put("svg", "image/svg+xml");
+        TYPES.put("png", "image/png");
+        TYPES.put("jpg", "image/jpeg");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("gif", "image/gif");
+        TYPES.put("ico", "image/x-icon");
+        TYPES.put("webp", "image/webp");
+        TYPES.put("pdf", "application/pdf");
+        TYPES.put("zip", "application/zip");
+        TYPES.put("gz", "application/gzip");
+        TYPES.put("mp4", "video/mp4");
+        TYPES.put("webm", "video/webm");
+        TYPES.put("mp3", "audio/mpeg");
+        TYPES.put("woff", "font/woff");
+        TYPES.put("woff2", "font/woff2");
+    }
+
+    private MimeTypes() {
+    }
+
+    /**
+     * Looks up MIME type from the extension of a file name.
+     * @param fileName file name or path.
+     * @return MIME type, or null if the extension is not known.
+     */
+    public static String forFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot < fileName.lastIndexOf('/')) {
+            return null;
+        }
+        return TYPES.get(fileName.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Whether bodies of a MIME type shrink usefully when compressed.
+     * Images, media, fonts and archives are already compressed and are left alone.
+     * @param type MIME type, may be null.
+     * @return true for text and text-like types.
+     */
+    public static boolean isCompressible(String type) {
+        return type != null && (type.startsWith("text/") || type.equals("application/javascript")
+                || type.equals("application/json") || type.equals("application/xml")
+                || type.equals("image/svg+xml"));
+    }
+}
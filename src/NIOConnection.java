@@ -0,0 +1,647 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Class which holds the state of one non-blocking client connection.
+ * Requests are parsed incrementally as bytes arrive and answered in order.
+ * While a response is still waiting to be written no further input is read,
+ * so a slow reader cannot make the server buffer unbounded output.
+ * One timeout at a time runs on the hub's timer: header while a request is arriving, body while an
+ * upload's body is, idle between requests and write while output is pending.
+ * An upload's body is written to its file as it is read, and only then is the next request parsed.
+ * With admission control a request is admitted before its response is generated, and released once the
+ * response has been written or the connection closes.
+ * A connection which starts HTTP/2 hands its input and output over to an Http2Connection, reading
+ * whenever there is input so the client's frames are answered while responses are still going out.
+ * With TLS all input and output passes through a TlsChannel, which holds encrypted output until the socket
+ * takes it and may hold decrypted input the selector knows nothing about; such input is read on a task
+ * handed to the loop rather than waiting for the socket to become readable.
+ */
+public class NIOConnection {
+
+    private static final int INPUT_BUFFER = 4096;
+
+    private SocketChannel channel;
+    private TlsChannel tls;
+    private SelectionKey key;
+    private NIOServerHub hub;
+    private NIOEventLoop loop;
+    private ByteBuffer in = BufferPool.HEAP.acquire(INPUT_BUFFER);
+    private HTTPRequestParser parser;
+    private Http2Connection h2;
+    private String clientAddress;
+    private ByteBuffer header = ResponseWriter.acquire();
+    private ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private ByteBuffer[] gather = new ByteBuffer[4];
+    private HTTPResponse sending;
+    private Upload upload;
+    private long uploadParsed;
+    private ByteBuffer chunk;
+    private boolean streamEnded;
+    private int nextPart;
+    private long filePosition;
+    private long fileEnd;
+    private boolean closeAfterWrite;
+    private int served;
+    private long lastActive = System.currentTimeMillis();
+    private boolean closed;
+    private Metrics metrics;
+    private long requestStart;
+    private long writeStart;
+    private long writeRequestStart;
+    private int writeStatus;
+    private long writeBytes;
+    private boolean admitted;
+    private boolean writeAdmitted;
+    private HashedWheelTimer.Timeout timeout;
+    private int timeoutKind = -1;
+    private int armed;
+
+    /**
+     * Constructor for class.
+     * @param channel non-blocking client channel.
+     * @param key selection key of the channel in its event loop.
+     * @param hub associated NIOServerHub where connection originally made.
+     * @param loop event loop which owns the connection.
+     */
+    public NIOConnection(SocketChannel channel, SelectionKey key, NIOServerHub hub, NIOEventLoop loop) {
+        this.channel = channel;
+        this.key = key;
+        this.hub = hub;
+        this.loop = loop;
+        this.clientAddress = channel.socket().getInetAddress().getHostAddress();
+        this.parser = new HTTPRequestParser(hub.getConfig().getMaxRequestLine(),
+                hub.getConfig().getMaxHeaderBytes());
+        this.parser.setHttp2(hub.getConfig().isHttp2());
+        this.metrics = hub.getGenerator().getMetrics();
+        if (hub.getTls() != null) {
+            this.tls = new TlsChannel(channel, hub.getTls());
+            this.parser.setSecure(true);
+        }
+        this.updateTimeout();
+    }
+
+    /**
+     * Called by the event loop when the channel has bytes to read.
+     * @throws IOException if reading from the channel fails.
+     */
+    public void onReadable() throws IOException {
+        int n = tls != null ? tls.read(in) : channel.read(in);
+        if (n < 0) {
+            this.close();
+            return;
+        }
+        lastActive = System.currentTimeMillis();
+        if (h2 != null) {
+            this.processFrames();
+        } else if (upload != null) {
+            this.receiveBody();
+        } else {
+            this.processRequests();
+        }
+        if (tls != null && !closed) {
+            this.afterTls();
+        }
+        this.updateTimeout();
+    }
+
+    /**
+     * Keeps a TLS connection moving once a read has been handled. Handshake records which did not fit in the
+     * socket wait for OP_WRITE, and input already decrypted or received whole is read again on a loop task,
+     * as long as the connection still wants input and has room for it.
+     */
+    private void afterTls() {
+        int ops = key.interestOps();
+        if (tls.hasPendingOutput()) {
+            key.interestOps(ops | SelectionKey.OP_WRITE);
+        }
+        if ((ops & SelectionKey.OP_READ) != 0 && in.hasRemaining() && tls.hasBufferedInput()) {
+            this.execute(() -> {
+                if (closed || !key.isValid()) {
+                    return;
+                }
+                try {
+                    this.onReadable();
+                } catch (IOException ioe) {
+                    this.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a task for this connection on its event loop, closing the connection if the task throws, as the
+     * loop does for a selected key.
+     * @param task task which touches this connection.
+     */
+    private void execute(Runnable task) {
+        loop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                System.err.println("NIOConnection task error: " + re);
+                this.close();
+            }
+        });
+    }
+
+    /**
+     * Called by the event loop when the channel can accept more output.
+     * Once pending output is flushed, any requests already buffered are processed.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void onWritable() throws IOException {
+        lastActive = System.currentTimeMillis();
+        if (h2 != null) {
+            this.flushFrames();
+        } else if (this.flush()) {
+            if (upload != null) {
+                this.receiveBody();
+            } else {
+                this.processRequests();
+            }
+        }
+        if (tls != null && !closed) {
+            this.afterTls();
+        }
+        this.updateTimeout();
+    }
+
+    /**
+     * Called by the event loop while draining, for a connection which is not between requests.
+     * An HTTP/2 connection sends GOAWAY, so the client opens no more streams; an HTTP/1.1 one closes after
+     * its current response in any case.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void drain() throws IOException {
+        if (h2 != null && !closed) {
+            h2.goAway();
+            this.flushFrames();
+        }
+    }
+
+    /**
+     * Whether the connection is waiting for its next request, with nothing read or left to write.
+     * A connection which has not yet sent its first request does not count, so it is still answered once.
+     * @return true if the connection can be closed without cutting a request short.
+     */
+    public boolean isBetweenRequests() {
+        if (h2 != null) {
+            return !closed && h2.isIdle();
+        }
+        return served > 0 && !closed && out.isEmpty() && sending == null && upload == null && in.position() == 0
+                && !parser.inProgress();
+    }
+
+    /**
+     * Closes the client channel and cancels its key, returning the connection's buffers to the pool.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        this.disarm();
+        metrics.connectionClosed();
+        if (sending != null) {
+            sending.closeBody();
+            sending = null;
+        }
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        if (admitted || writeAdmitted) {
+            hub.getGenerator().getAdmission().release(-1);
+            admitted = false;
+            writeAdmitted = false;
+        }
+        if (chunk != null) {
+            BufferPool.DIRECT.release(chunk);
+            chunk = null;
+        }
+        if (h2 != null) {
+            h2.release();
+        }
+        if (header != null) {
+            ResponseWriter.release(header);
+            header = null;
+        }
+        BufferPool.HEAP.release(in);
+        in = null;
+        parser.release();
+        key.cancel();
+        try {
+            if (tls != null) {
+                tls.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Answers every complete request in the input buffer, stopping as soon as output backs up.
+     * The parser keeps its place between calls, so a request split across reads is picked up where it stopped.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void processRequests() throws IOException {
+        while (out.isEmpty() && sending == null && upload == null && !closeAfterWrite && key.isValid()) {
+            HTTPRequest request;
+            if (requestStart == 0 && in.position() > 0) {
+                //parse time runs from the first byte of the request, not from the idle wait before it
+                requestStart = System.nanoTime();
+            }
+            in.flip();
+            try {
+                request = parser.parse(in);
+            } catch (HTTPParseException hpe) {
+                in.clear();
+                this.queueError(hpe.getStatusCode(), hpe.getReason());
+                break;
+            }
+            in.compact();
+            if (request == null) {
+                break;
+            }
+            //the next idle or header timeout starts afresh once this request is answered
+            this.disarm();
+            if (hub.getConfig().isHttp2() && Http2Connection.accepts(request, tls != null)) {
+                this.startHttp2(request);
+                return;
+            }
+
+            served++;
+            long parsed = System.nanoTime();
+            boolean allowKeepAlive = served < hub.getConfig().getMaxRequests() && !hub.isDraining();
+            AdmissionControl admission = hub.getGenerator().getAdmission();
+            HTTPResponse refusal = admission == null ? null
+                    : admission.admit(clientAddress, request, allowKeepAlive);
+            if (refusal != null) {
+                this.queueResponse(request, refusal, parsed);
+                continue;
+            }
+            admitted = admission != null;
+            if (hub.getGenerator().isUpload(request)) {
+                this.startUpload(request, allowKeepAlive, parsed);
+                return;
+            }
+            HTTPResponse response = hub.getGenerator().generateResponse(request, allowKeepAlive);
+            this.queueResponse(request, response, parsed);
+        }
+    }
+
+    /**
+     * Starts receiving an upload's body, or answers the request if the upload is refused. The input buffer
+     * grows for the body, and 100 Continue is sent first if the client waits for it.
+     * @param request PUT or POST request.
+     * @param allowKeepAlive false if the connection closes after this request regardless.
+     * @param parsed when the request head was parsed, in nanoseconds.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void startUpload(HTTPRequest request, boolean allowKeepAlive, long parsed) throws IOException {
+        Upload started = hub.getGenerator().startUpload(request, allowKeepAlive);
+        if (started.getRejection() != null) {
+            this.queueResponse(request, started.getRejection(), parsed);
+            return;
+        }
+        upload = started;
+        uploadParsed = parsed;
+        if (in.capacity() < Upload.INPUT_BUFFER) {
+            ByteBuffer larger = BufferPool.HEAP.acquire(Upload.INPUT_BUFFER);
+            in.flip();
+            larger.put(in);
+            BufferPool.HEAP.release(in);
+            in = larger;
+        }
+        if (upload.expectsContinue() && in.position() == 0) {
+            out.add(ByteBuffer.wrap(ResponseWriter.CONTINUE));
+            if (!this.flush()) {
+                return;
+            }
+        }
+        this.receiveBody();
+    }
+
+    /**
+     * Writes the buffered part of an upload's body to its file. Once the body is complete, or turns out to
+     * be malformed or too large, the response is queued and any pipelined requests after it are processed.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void receiveBody() throws IOException {
+        HTTPResponse response;
+        in.flip();
+        try {
+            boolean done = upload.receive(in);
+            in.compact();
+            if (!done) {
+                return;
+            }
+            response = upload.finish();
+        } catch (HTTPParseException hpe) {
+            in.clear();
+            upload.abort();
+            response = ResponseGenerator.errorResponse(hpe.getStatusCode(), hpe.getReason(), false);
+        }
+        HTTPRequest request = upload.getRequest();
+        upload = null;
+        this.queueResponse(request, response, uploadParsed);
+        this.processRequests();
+    }
+
+    /**
+     * Logs a response and queues its header and body, then writes as much as the socket will take.
+     * @param request request being answered.
+     * @param response response to send, its body is released once written.
+     * @param parsed when the request head was parsed, in nanoseconds.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void queueResponse(HTTPRequest request, HTTPResponse response, long parsed) throws IOException {
+        long generated = System.nanoTime();
+        hub.getLgr().logRequest(clientAddress, request, response);
+        metrics.recordPhase(Metrics.PARSE, parsed - requestStart);
+        metrics.recordPhase(Metrics.LOOKUP, generated - parsed);
+
+        //the header buffer is reused only once out has drained, which is when the next request is taken
+        ByteBuffer block = ResponseWriter.encodeHeader(response, header);
+        writeStart = generated;
+        writeRequestStart = requestStart;
+        writeStatus = response.getStatusCode();
+        writeBytes = block.remaining() + response.getBodySize();
+        writeAdmitted = admitted;
+        admitted = false;
+        requestStart = 0;
+        out.add(block);
+        if (response.getBody().hasRemaining()) {
+            out.add(response.getBody());
+        }
+        //every response is tracked until written, so its body is released only once fully sent
+        sending = response;
+        nextPart = 0;
+        filePosition = response.getBodyPosition();
+        fileEnd = response.getBodyFile() != null ? filePosition + response.getBodyLength() : filePosition;
+        streamEnded = response.getStreamBody() == null;
+        closeAfterWrite = !response.isKeepAlive();
+        this.flush();
+    }
+
+    /**
+     * Switches the connection to HTTP/2, moving any input already read into a buffer which holds a whole frame.
+     * @param request preface or upgrade request.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void startHttp2(HTTPRequest request) throws IOException {
+        ByteBuffer larger = BufferPool.HEAP.acquire(Http2Connection.INPUT_BUFFER);
+        in.flip();
+        larger.put(in);
+        BufferPool.HEAP.release(in);
+        in = larger;
+        h2 = new Http2Connection(hub.getGenerator(), hub.getLgr(), hub.getConfig(), clientAddress);
+        h2.start(request);
+        this.processFrames();
+    }
+
+    /**
+     * Hands buffered input to the HTTP/2 connection and writes what it has to send.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void processFrames() throws IOException {
+        in.flip();
+        h2.onInput(in);
+        in.compact();
+        if (hub.isDraining()) {
+            h2.goAway();
+        }
+        this.flushFrames();
+    }
+
+    /**
+     * Writes HTTP/2 output, closing the connection once it is done. Input is always of interest, so window
+     * updates and new streams arrive while output is pending.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void flushFrames() throws IOException {
+        boolean flushed = h2.flush(tls != null ? tls : channel, Http2Connection.WRITE_BUDGET);
+        if (tls != null) {
+            flushed = tls.flushOutput() && flushed;
+        }
+        if (h2.isDone()) {
+            this.close();
+            return;
+        }
+        key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Runs the timeout which fits the connection's state, unless it is already running.
+     */
+    private void updateTimeout() {
+        if (closed) {
+            return;
+        }
+        ServerConfig config = hub.getConfig();
+        if (h2 != null) {
+            if (h2.isIdle()) {
+                this.arm(Metrics.IDLE_TIMEOUT, config.getKeepAliveTimeout());
+            } else {
+                //no progress on open streams, eg. waiting for WINDOW_UPDATE, is treated as a stalled write
+                this.arm(Metrics.WRITE_TIMEOUT, config.getWriteTimeout());
+            }
+        } else if (upload != null && out.isEmpty()) {
+            this.arm(Metrics.BODY_TIMEOUT, config.getBodyTimeout());
+        } else if (!out.isEmpty() || sending != null) {
+            this.arm(Metrics.WRITE_TIMEOUT, config.getWriteTimeout());
+        } else if (served == 0 || in.position() > 0 || parser.inProgress()) {
+            this.arm(Metrics.HEADER_TIMEOUT, config.getHeaderTimeout());
+        } else {
+            this.arm(Metrics.IDLE_TIMEOUT, config.getKeepAliveTimeout());
+        }
+    }
+
+    /**
+     * Schedules a timeout of the given kind, replacing any other. One of the same kind already running is kept.
+     * On expiry the event loop runs onTimeout.
+     * @param kind Metrics.HEADER_TIMEOUT, IDLE_TIMEOUT, WRITE_TIMEOUT or BODY_TIMEOUT.
+     * @param millis delay before it expires.
+     */
+    private void arm(int kind, long millis) {
+        if (timeoutKind == kind) {
+            return;
+        }
+        this.disarm();
+        timeoutKind = kind;
+        int generation = ++armed;
+        timeout = hub.getTimer().schedule(() -> this.execute(() -> this.onTimeout(kind, generation)), millis);
+    }
+
+    /**
+     * Cancels the running timeout, if any.
+     */
+    private void disarm() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        timeoutKind = -1;
+    }
+
+    /**
+     * Acts on an expired timeout, on the event loop thread. A header or body timeout is answered with 408,
+     * an idle one closes the connection, and a write timeout closes it. Write and body timeouts are pushed
+     * back instead if output went out or input came in since they were armed.
+     * @param kind kind of timeout.
+     * @param generation arm count when scheduled, so a timeout which lost a race with disarm does nothing.
+     */
+    private void onTimeout(int kind, int generation) {
+        if (closed || generation != armed || timeoutKind != kind) {
+            return;
+        }
+        timeout = null;
+        timeoutKind = -1;
+        if (kind == Metrics.WRITE_TIMEOUT || kind == Metrics.BODY_TIMEOUT) {
+            long quiet = System.currentTimeMillis() - lastActive;
+            long limit = kind == Metrics.WRITE_TIMEOUT ? hub.getConfig().getWriteTimeout()
+                    : hub.getConfig().getBodyTimeout();
+            if (quiet < limit) {
+                this.arm(kind, limit - quiet);
+                return;
+            }
+        }
+        metrics.connectionTimedOut(kind);
+        if (kind != Metrics.HEADER_TIMEOUT && kind != Metrics.BODY_TIMEOUT) {
+            this.close();
+            return;
+        }
+        try {
+            in.clear();
+            if (upload != null) {
+                //the request head was read, so the 408 is logged against it as the blocking engine does
+                HTTPRequest request = upload.getRequest();
+                upload.abort();
+                upload = null;
+                this.queueResponse(request, ResponseGenerator.errorResponse(408, "Request Timeout", false),
+                        uploadParsed);
+            } else {
+                this.queueError(408, "Request Timeout");
+            }
+            this.updateTimeout();
+        } catch (IOException ioe) {
+            this.close();
+        }
+    }
+
+    /**
+     * Queues a bodiless error response and marks the connection to close after it.
+     * @param code status code.
+     * @param reason reason phrase.
+     * @throws IOException if writing to the channel fails.
+     */
+    private void queueError(int code, String reason) throws IOException {
+        HTTPResponse response = ResponseGenerator.errorResponse(code, reason, false);
+        ByteBuffer block = ResponseWriter.encodeHeader(response, header);
+        metrics.recordResponse(code, block.remaining());
+        out.add(block);
+        closeAfterWrite = true;
+        this.flush();
+    }
+
+    /**
+     * Writes as much pending output as the socket will take.
+     * Buffers go out with a single gathering write, then any file region is sent with
+     * FileChannel.transferTo so the kernel copies it without it passing through the heap.
+     * Multipart bodies repeat this for each part in turn, and a streamed body is read a chunk at a time
+     * into a pooled buffer as the previous chunk drains.
+     * Over TLS the file region is read into the engine rather than sent by the kernel, and records are
+     * encrypted into the TlsChannel's buffer until it fills, then sent several at a time.
+     * Switches interest to OP_WRITE while output remains, and back to OP_READ once drained.
+     * @return true if all pending output has been written and the connection is still open.
+     * @throws IOException if writing to the channel fails.
+     */
+    private boolean flush() throws IOException {
+        while (true) {
+            if (!out.isEmpty()) {
+                //copied into an array kept for the connection, which grows only if more buffers are queued
+                int n = out.size();
+                gather = out.toArray(gather);
+                if (tls != null) {
+                    tls.write(gather, 0, n);
+                } else {
+                    channel.write(gather, 0, n);
+                }
+                Arrays.fill(gather, 0, n, null);
+                while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                if (!out.isEmpty()) {
+                    break;
+                }
+            }
+            if (sending == null) {
+                break;
+            }
+
+            if (filePosition < fileEnd) {
+                long sent = sending.getBodyFile().transferTo(filePosition, fileEnd - filePosition,
+                        tls != null ? tls : channel);
+                filePosition += sent;
+                if (filePosition < fileEnd) {
+                    if (sent == 0 && sending.getBodyFile().size() < fileEnd) {
+                        throw new IOException("file shrank while being sent");
+                    }
+                    break;
+                }
+            }
+            if (nextPart < sending.getParts().size()) {
+                HTTPResponse.Part part = sending.getParts().get(nextPart++);
+                out.add(part.getData());
+                filePosition = part.getPosition();
+                fileEnd = filePosition + part.getLength();
+                continue;
+            }
+            if (!streamEnded) {
+                //the chunk buffer is refilled only once out has drained, which is when the last chunk has gone
+                if (chunk == null) {
+                    chunk = BufferPool.DIRECT.acquire(ResponseWriter.CHUNK_BUFFER);
+                }
+                streamEnded = !ResponseWriter.readChunk(sending.getStreamBody(), sending.isChunked(), chunk);
+                writeBytes += chunk.remaining();
+                out.add(chunk);
+                continue;
+            }
+            sending.closeBody();
+            sending = null;
+            if (chunk != null) {
+                BufferPool.DIRECT.release(chunk);
+                chunk = null;
+            }
+        }
+
+        if (!out.isEmpty() || sending != null || (tls != null && !tls.flushOutput())) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+        if (writeStart != 0) {
+            long written = System.nanoTime();
+            metrics.recordPhase(Metrics.WRITE, written - writeStart);
+            metrics.recordPhase(Metrics.TOTAL, written - writeRequestStart);
+            metrics.recordResponse(writeStatus, writeBytes);
+            writeStart = 0;
+            if (writeAdmitted) {
+                writeAdmitted = false;
+                hub.getGenerator().getAdmission().release(written - writeRequestStart);
+            }
+        }
+        if (closeAfterWrite) {
+            this.close();
+            return false;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+}
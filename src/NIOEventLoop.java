@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class which runs one Selector and drives every connection registered with it.
+ * Each event loop owns its connections, so connection state is only touched by one thread.
+ * Draining and forced closes are requested from other threads and carried out by the loop itself.
+ * An unexpected exception while handling one connection closes only that connection, and the loop goes on
+ * serving the others.
+ */
+public class NIOEventLoop implements Runnable {
+
+    private static final long DRAIN_INTERVAL = 50;
+
+    private Selector selector;
+    private NIOServerHub hub;
+    private Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean draining;
+    private volatile boolean forced;
+    private CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Constructor for class. Opens the Selector this loop will wait on.
+     * @param hub associated NIOServerHub where connections are accepted.
+     * @throws IOException if selector cannot be opened.
+     */
+    public NIOEventLoop(NIOServerHub hub) throws IOException {
+        this.hub = hub;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop. Safe to call from any thread.
+     * @param client accepted client channel.
+     */
+    public void register(SocketChannel client) {
+        pending.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on this loop's thread, such as an expired connection timeout. Safe to call from any thread.
+     * @param task task which touches connections of this loop.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to close connections as they fall idle between requests and to end once none are left.
+     * Safe to call from any thread.
+     */
+    public void drain() {
+        draining = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to close every connection, finished or not, and end. Safe to call from any thread.
+     */
+    public void forceClose() {
+        forced = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for the loop to end.
+     * @param timeout longest time to wait.
+     * @param unit unit of timeout.
+     * @return true if the loop has ended.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * Closes the Selector, which ends the loop.
+     * @throws IOException if selector cannot be closed.
+     */
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    /**
+     * Method which overrides run in Runnable interface.
+     * Waits for readiness events and dispatches them to the owning NIOConnection.
+     * Connection timeouts expire on the hub's timer and are run here through execute.
+     */
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                //while draining the loop looks often, so it ends soon after its last connection closes
+                selector.select(draining ? DRAIN_INTERVAL : 0);
+                this.registerPending();
+                this.runTasks();
+                if (forced) {
+                    this.closeAll();
+                    break;
+                }
+                if (draining && this.drainIdle()) {
+                    break;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    this.dispatch(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("NIOEventLoop run method error: " + e.getMessage());
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Closes connections which are waiting for their next request, and tells busy HTTP/2 ones to finish.
+     * @return true once the loop has no connections left.
+     */
+    private boolean drainIdle() {
+        boolean empty = true;
+        for (SelectionKey key : selector.keys()) {
+            NIOConnection conn = (NIOConnection) key.attachment();
+            if (conn != null && key.isValid() && conn.isBetweenRequests()) {
+                conn.close();
+            } else if (key.isValid()) {
+                empty = false;
+                if (conn != null) {
+                    try {
+                        conn.drain();
+                    } catch (IOException ioe) {
+                        conn.close();
+                    }
+                }
+            }
+        }
+        return empty && pending.isEmpty();
+    }
+
+    /**
+     * Closes every connection of this loop.
+     */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            NIOConnection conn = (NIOConnection) key.attachment();
+            if (conn != null) {
+                conn.close();
+            }
+        }
+        SocketChannel client;
+        while ((client = pending.poll()) != null) {
+            closeQuietly(client);
+            hub.getGenerator().getMetrics().connectionClosed();
+        }
+    }
+
+    /**
+     * Registers connections accepted since the last select with this loop's Selector.
+     */
+    private void registerPending() {
+        SocketChannel client;
+        while ((client = pending.poll()) != null) {
+            try {
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                key.attach(new NIOConnection(client, key, hub, this));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("registerPending: " + e);
+                closeQuietly(client);
+                hub.getGenerator().getMetrics().connectionClosed();
+            }
+        }
+    }
+
+    /**
+     * Runs tasks handed to the loop since the last select. A task which throws is logged and the rest still run.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                System.err.println("NIOEventLoop task error: " + re);
+            }
+        }
+    }
+
+    /**
+     * Passes a ready key to its connection, closing the connection on error. A bug which throws while
+     * parsing, generating or flushing one connection's response is logged and closes just that connection.
+     * @param key selected key with connection attached.
+     */
+    private void dispatch(SelectionKey key) {
+        NIOConnection conn = (NIOConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                conn.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                conn.onWritable();
+            }
+        } catch (IOException ioe) {
+            conn.close();
+        } catch (RuntimeException re) {
+            System.err.println("NIOEventLoop dispatch error: " + re);
+            conn.close();
+        }
+    }
+
+    /**
+     * Closes a channel which never made it into the Selector.
+     * @param client channel to close.
+     */
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class which creates a non-blocking server channel and starts listening.
+ * Accepted connections are spread round robin across a fixed set of Selector event loops,
+ * so idle keep-alive connections cost a buffer rather than a thread.
+ */
+public class NIOServerHub implements ServerEngine {
+
+    private ServerSocketChannel ssc;
+    private int port;
+    private String directoryPath;
+    private ServerConfig config;
+    private HTTPLogger lgr;
+    private ResponseGenerator generator;
+    private HashedWheelTimer timer;
+    private TlsContext tls;
+    private NIOEventLoop[] loops;
+    private Selector acceptSelector;
+    private Thread acceptor;
+    private volatile boolean draining;
+    private boolean stopped;
+    private CountDownLatch terminated = new CountDownLatch(1);
+
+    /**
+     * Constructor for the class. Prepares the response generator; nothing is bound until start.
+     * @param config server options including directory path, port and number of event loops.
+     */
+    public NIOServerHub(ServerConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * Constructor for a server which takes over the listener of one being restarted.
+     * @param config server options including directory path, port and number of event loops.
+     * @param inherited open listeners from handOff of the previous server, or null to bind a new one.
+     */
+    public NIOServerHub(ServerConfig config, List<ServerSocketChannel> inherited) {
+        this.config = config;
+        this.directoryPath = config.getDirectoryPath();
+        this.port = config.getPort();
+        this.generator = new ResponseGenerator(config);
+        if (inherited != null && !inherited.isEmpty()) {
+            this.ssc = inherited.get(0);
+            //a sharded blocking server may hand over several listeners, only one is needed here
+            for (int i = 1; i < inherited.size(); i++) {
+                try {
+                    inherited.get(i).close();
+                } catch (IOException ioe) {
+                    System.err.println("clean up method: " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds the server channel, or adopts the inherited one, starts the event loops and an accept thread
+     * which hands each connection to the next loop.
+     * @throws IOException if the port cannot be bound or the access log cannot be opened.
+     */
+    @Override
+    public synchronized void start() throws IOException {
+        boolean inherited = ssc != null;
+        try {
+            this.lgr = new HTTPLogger(config);
+            //one timer thread serves the header, idle and write timeouts of every connection
+            this.timer = new HashedWheelTimer("connection-timeouts", 100, 512);
+            generator.getMetrics().setTimer(timer);
+            if (config.isTls()) {
+                this.tls = new TlsContext(config);
+                generator.getMetrics().setTls(tls);
+            }
+            this.loops = new NIOEventLoop[config.getEventLoops()];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NIOEventLoop(this);
+                Thread t = new Thread(loops[i], "nio-loop-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+
+            if (!inherited) {
+                ssc = AcceptorShard.listen(port, false);
+            }
+            ssc.configureBlocking(false);
+            acceptSelector = Selector.open();
+        } catch (IOException | RuntimeException e) {
+            cleanup();
+            throw e;
+        }
+        System.out.println("HTTP server started and listening on port: " + this.getLocalPort()
+                + " (nio, " + loops.length + " event loops" + (inherited ? ", inherited listener" : "")
+                + (tls != null ? ", TLS" : "") + ")");
+
+        acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void stop(long drainMillis) {
+        this.shutdown(drainMillis, false);
+    }
+
+    @Override
+    public List<ServerSocketChannel> handOff(long drainMillis) {
+        return this.shutdown(drainMillis, true);
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    @Override
+    public int getLocalPort() {
+        try {
+            return ssc == null ? -1 : ((InetSocketAddress) ssc.getLocalAddress()).getPort();
+        } catch (IOException ioe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Getter method for server options.
+     * @return config the server was started with.
+     */
+    public ServerConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * Getter method for directory path.
+     * @return directory path as a String.
+     */
+    public String getDirectoryPath() {
+        return this.directoryPath;
+    }
+
+    /**
+     * Getter method for the response generator shared by all connections.
+     * @return associated ResponseGenerator.
+     */
+    public ResponseGenerator getGenerator() {
+        return this.generator;
+    }
+
+    /**
+     * Getter method for the timer running connection timeouts.
+     * @return timer shared by all connections.
+     */
+    public HashedWheelTimer getTimer() {
+        return this.timer;
+    }
+
+    /**
+     * Getter method for TLS settings.
+     * @return context which creates each connection's engine, or null if TLS is off.
+     */
+    public TlsContext getTls() {
+        return this.tls;
+    }
+
+    /**
+     * Getter method for associated log.
+     * @return associated HTTPLogger class.
+     */
+    public HTTPLogger getLgr() {
+        return this.lgr;
+    }
+
+    /**
+     * Getter method for drain state. Connections stop being kept alive once it is set.
+     * @return true once the server has begun stopping.
+     */
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    /**
+     * Body of the accept thread. Accepts until stopping, handing each connection to the next event loop.
+     */
+    private void acceptLoop() {
+        int next = 0;
+        try {
+            ssc.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            while (!draining) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel client;
+                while (!draining && (client = ssc.accept()) != null) {
+                    generator.getMetrics().connectionOpened();
+                    loops[next].register(client);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!draining) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+        } finally {
+            try {
+                //deregisters the listener, so another selector may take it over
+                acceptSelector.close();
+            } catch (IOException ioe) {
+                System.err.println("clean up method: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting, lets the event loops close connections as they fall idle and waits up to the deadline
+     * for them to finish, then closes whatever is left and flushes the access log.
+     * @param drainMillis longest time to wait for requests in flight.
+     * @param keepListener true to leave the listener open for a new server.
+     * @return listener if kept, otherwise an empty list.
+     */
+    private synchronized List<ServerSocketChannel> shutdown(long drainMillis, boolean keepListener) {
+        if (stopped || acceptor == null) {
+            return Collections.emptyList();
+        }
+        stopped = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        draining = true;
+        try {
+            acceptSelector.wakeup();
+            acceptor.join();
+            if (!keepListener) {
+                ssc.close();
+            }
+            for (NIOEventLoop loop : loops) {
+                loop.drain();
+            }
+            boolean drained = true;
+            for (NIOEventLoop loop : loops) {
+                long left = Math.max(0, deadline - System.nanoTime());
+                drained &= loop.awaitFinished(left, TimeUnit.NANOSECONDS);
+            }
+            if (!drained) {
+                System.err.println("Drain deadline passed, closing remaining connections");
+                for (NIOEventLoop loop : loops) {
+                    loop.forceClose();
+                }
+                for (NIOEventLoop loop : loops) {
+                    loop.awaitFinished(1, TimeUnit.SECONDS);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ioe) {
+            System.err.println("clean up method: " + ioe.getMessage());
+        } finally {
+            timer.stop();
+            lgr.close();
+            generator.close();
+            terminated.countDown();
+        }
+        return keepListener ? Collections.singletonList(ssc) : Collections.emptyList();
+    }
+
+    /**
+     * Closes server channel, event loops, access log and the generator's watchers when start fails.
+     */
+    private void cleanup() {
+        if (lgr != null) {
+            lgr.close();
+        }
+        if (timer != null) {
+            timer.stop();
+        }
+        generator.close();
+        try {
+            if (loops != null) {
+                for (NIOEventLoop loop : loops) {
+                    if (loop != null) {
+                        loop.close();
+                    }
+                }
+            }
+            if (ssc != null) {
+                ssc.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println("clean up method: " + ioe.getMessage());
+        }
+    }
+}
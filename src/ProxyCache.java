@@ -0,0 +1,319 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which keeps backend responses that a shared cache may store (RFC 7234), so repeated requests for
+ * them are answered without going to the backend.
+ * Only responses with an explicit lifetime from s-maxage or max-age are stored, and never those marked
+ * no-store, no-cache or private, those which set cookies or vary by request header, or those to requests
+ * with credentials unless the response is public. Entries are served until their lifetime runs out,
+ * with an Age header, and evicted least recently used first once the byte budget is exceeded.
+ * Concurrent misses for one key are coalesced: the first becomes the leader and asks the backend, and
+ * the others wait for it and share what it stores.
+ */
+public class ProxyCache {
+
+    private long budget;
+    private long maxEntry;
+    private long used;
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private ConcurrentHashMap<String, CompletableFuture<Entry>> flights = new ConcurrentHashMap<>();
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder coalesced = new LongAdder();
+    private LongAdder stored = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor for class.
+     * @param budget total body bytes the cache may hold.
+     * @param maxEntry largest body which will be cached.
+     */
+    public ProxyCache(long budget, long maxEntry) {
+        this.budget = budget;
+        this.maxEntry = Math.min(maxEntry, budget);
+    }
+
+    /**
+     * Looks up a fresh response. A stale one is dropped.
+     * @param key backend and request target.
+     * @param now current time in milliseconds.
+     * @return entry which may be served, or null on a miss.
+     */
+    public synchronized Entry get(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && now >= entry.expires) {
+            entries.remove(key);
+            used -= entry.body.length;
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a response, evicting least recently used entries until it fits.
+     * @param key backend and request target.
+     * @param entry response to store, no larger than getMaxEntry.
+     */
+    public synchronized void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            used -= old.body.length;
+        }
+        used += entry.body.length;
+        stored.increment();
+        while (used > budget) {
+            Iterator<Entry> it = entries.values().iterator();
+            Entry eldest = it.next();
+            it.remove();
+            used -= eldest.body.length;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Joins the backend request in flight for a key, or becomes its leader if there is none.
+     * A leader must call land once it has stored the response or found it cannot be stored.
+     * @param key backend and request target.
+     * @return null if the caller is the leader, otherwise the leader's result to wait for.
+     */
+    public CompletableFuture<Entry> join(String key) {
+        CompletableFuture<Entry> flight = new CompletableFuture<>();
+        CompletableFuture<Entry> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.increment();
+        }
+        return leader;
+    }
+
+    /**
+     * Ends the leader's backend request for a key, handing waiting requests the stored response, or null
+     * if it was not stored so they go to the backend themselves.
+     * @param key backend and request target.
+     */
+    public void land(String key) {
+        CompletableFuture<Entry> flight = flights.remove(key);
+        if (flight != null) {
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+            }
+            flight.complete(entry);
+        }
+    }
+
+    /**
+     * Works out how long a shared cache may serve a response.
+     * @param status backend status code.
+     * @param names backend header names.
+     * @param values backend header values.
+     * @param authorized whether the request carried Authorization.
+     * @return lifetime in milliseconds from now, or -1 if the response must not be stored.
+     */
+    public static long lifetime(int status, List<String> names, List<String> values, boolean authorized) {
+        if (status != 200 && status != 203 && status != 301 && status != 404 && status != 410) {
+            return -1;
+        }
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        long age = 0;
+        boolean shared = false;
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i).toLowerCase();
+            String value = values.get(i);
+            if (name.equals("vary") || name.equals("set-cookie")) {
+                return -1;
+            } else if (name.equals("age")) {
+                age = seconds(value.trim());
+            } else if (name.equals("cache-control")) {
+                for (String directive : value.split(",")) {
+                    String d = directive.trim().toLowerCase();
+                    if (d.equals("no-store") || d.equals("no-cache") || d.equals("private")) {
+                        return -1;
+                    } else if (d.equals("public")) {
+                        shared = true;
+                    } else if (d.startsWith("s-maxage=")) {
+                        sharedMaxAge = seconds(d.substring(9));
+                        shared = true;
+                    } else if (d.startsWith("max-age=")) {
+                        maxAge = seconds(d.substring(8));
+                    }
+                }
+            }
+        }
+        long lifetime = sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+        if (lifetime - age <= 0 || (authorized && !shared)) {
+            return -1;
+        }
+        return (lifetime - age) * 1000;
+    }
+
+    /**
+     * Whether a request asks not to be answered from a cache.
+     * @param request client request.
+     * @return true if Cache-Control has no-cache, no-store or max-age=0, or Pragma has no-cache.
+     */
+    public static boolean bypass(HTTPRequest request) {
+        String cacheControl = request.getHeader("cache-control");
+        String pragma = request.getHeader("pragma");
+        return (cacheControl != null && (HTTPRequest.hasToken(cacheControl, "no-cache")
+                || HTTPRequest.hasToken(cacheControl, "no-store") || HTTPRequest.hasToken(cacheControl, "max-age=0")))
+                || (pragma != null && HTTPRequest.hasToken(pragma, "no-cache"));
+    }
+
+    /**
+     * Parses a delta-seconds value.
+     * @param value digits.
+     * @return seconds, or -1 if the value is not a number.
+     */
+    private static long seconds(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Getter method for the largest cached body.
+     * @return most body bytes an entry may have.
+     */
+    public long getMaxEntry() {
+        return this.maxEntry;
+    }
+
+    /**
+     * Getter method for cache hits.
+     * @return requests answered from the cache.
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Getter method for cache misses.
+     * @return lookups which found no fresh entry.
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * Getter method for coalesced misses.
+     * @return misses which waited for another request's backend call instead of making their own.
+     */
+    public long getCoalesced() {
+        return this.coalesced.sum();
+    }
+
+    /**
+     * Getter method for stored responses.
+     * @return responses stored since start.
+     */
+    public long getStored() {
+        return this.stored.sum();
+    }
+
+    /**
+     * Getter method for evictions.
+     * @return entries evicted for space.
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * Getter method for bytes held.
+     * @return body bytes of all entries.
+     */
+    public synchronized long getUsedBytes() {
+        return this.used;
+    }
+
+    /**
+     * Class which holds one stored response: status, end-to-end headers and the whole body.
+     */
+    public static final class Entry {
+
+        private final int status;
+        private final String reason;
+        private final List<String> names;
+        private final List<String> values;
+        private final byte[] body;
+        private final long stored;
+        private final long expires;
+
+        /**
+         * Constructor for class.
+         * An Age header from the backend is taken out and counted as time already spent stored.
+         * @param status status code.
+         * @param reason reason phrase.
+         * @param names header names, without hop-by-hop headers or Content-Length.
+         * @param values header values.
+         * @param body whole body.
+         * @param received time the response was received, in milliseconds.
+         * @param lifetime milliseconds from receipt it may be served for.
+         */
+        public Entry(int status, String reason, List<String> names, List<String> values, byte[] body, long received,
+                long lifetime) {
+            this.status = status;
+            this.reason = reason;
+            this.names = new ArrayList<>(names.size());
+            this.values = new ArrayList<>(values.size());
+            long age = 0;
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase("age")) {
+                    age = Math.max(0, seconds(values.get(i).trim()));
+                } else {
+                    this.names.add(names.get(i));
+                    this.values.add(values.get(i));
+                }
+            }
+            this.body = body;
+            this.stored = received - age * 1000;
+            this.expires = received + lifetime;
+        }
+
+        /**
+         * Builds a response from the entry, with an Age header for the time it has been stored and cached before.
+         * @param protocol request protocol.
+         * @param head true for HEAD, which gets the headers without the body.
+         * @param keepAlive whether the connection stays open.
+         * @param now current time in milliseconds.
+         * @return response with an in-memory body sharing the entry's bytes.
+         */
+        public HTTPResponse toResponse(String protocol, boolean head, boolean keepAlive, long now) {
+            HTTPResponse response = new HTTPResponse(protocol, status, reason);
+            for (int i = 0; i < names.size(); i++) {
+                response.addHeader(names.get(i), values.get(i));
+            }
+            response.addHeader("Age", String.valueOf(Math.max(0, now - stored) / 1000));
+            response.setContentLength(body.length);
+            if (!head) {
+                response.setBody(ByteBuffer.wrap(body).asReadOnlyBuffer());
+            }
+            response.setKeepAlive(keepAlive);
+            return response;
+        }
+
+        /**
+         * Getter method for status code.
+         * @return status code of the stored response.
+         */
+        public int getStatus() {
+            return this.status;
+        }
+    }
+}
@@ -4,9 +4,16 @@ import java.util.regex.Pattern;
 /**
  * Class which contains all the individual regex methods for the server.
  * Each method used to determine a certain aspect of a request.
+ * The server itself now uses HTTPRequestParser; these remain for callers working on request Strings.
  */
 public class RegexReader {
 
+    //compiled once, Pattern is immutable and safe to share between threads
+    private static final Pattern REQUEST_TYPE = Pattern.compile("^[A-Z]+");
+    private static final Pattern FILE_NAME = Pattern.compile("[/A-za-z\\.1-9]+ HTTP");
+    private static final Pattern CONTENT_TYPE = Pattern.compile("(Accept: )[a-zA-z*]+/[a-zA-z*]+");
+    private static final Pattern PROTOCOL = Pattern.compile("(HTTP)/[0-9]{1}[\\.]{1}[0-9]{1}");
+
     /**
      * Determines request type eg. GET or HEAD from start of request.
      * @param request from client.
@@ -16,8 +23,7 @@ public class RegexReader {
         String returnType = "";
 
         try {
-            Pattern p = Pattern.compile("^[A-Z]+");
-            Matcher m = p.matcher(request);
+            Matcher m = REQUEST_TYPE.matcher(request);
             m.lookingAt();
             returnType = m.group(0);
             return returnType;
@@ -37,8 +43,7 @@ public class RegexReader {
         String fileName = "";
 
         try {
-            Pattern p = Pattern.compile("[/A-za-z\\.1-9]+ HTTP");
-            Matcher m = p.matcher(request);
+            Matcher m = FILE_NAME.matcher(request);
             m.find();
             fileName = m.group(0);
             int endChar = fileName.indexOf(" HTTP");
@@ -61,8 +66,7 @@ public class RegexReader {
         String contentType = "";
 
         try {
-            Pattern p = Pattern.compile("(Accept: )[a-zA-z*]+/[a-zA-z*]+");
-            Matcher m = p.matcher(request);
+            Matcher m = CONTENT_TYPE.matcher(request);
             m.find();
             contentType = m.group(0);
             int spaceChar = contentType.indexOf(" ");
@@ -85,8 +89,7 @@ public class RegexReader {
         String protocol = "";
 
         try {
-            Pattern p = Pattern.compile("(HTTP)/[0-9]{1}[\\.]{1}[0-9]{1}");
-            Matcher m = p.matcher(request);
+            Matcher m = PROTOCOL.matcher(request);
             m.find();
             protocol = m.group(0);
             return protocol;
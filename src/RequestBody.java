@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Class which decodes a request body as it arrives and hands its content to a channel.
+ * HTTP/1.1 bodies are framed by Content-Length or by chunked transfer coding (RFC 7230 3.3.3 and 4.1);
+ * HTTP/2 bodies arrive unframed in DATA frames and end with the stream.
+ * Nothing is buffered beyond the bytes passed in, so a body of any size is decoded in bounded memory.
+ * Chunk extensions are skipped and trailer fields read and dropped, each within a fixed limit.
+ * The reverse proxy decodes backend response bodies with it too, which are framed the same way.
+ */
+public class RequestBody {
+
+    //longest chunk size line, extensions included, and most trailer bytes accepted
+    private static final int MAX_CHUNK_LINE = 4096;
+    private static final int MAX_TRAILERS = 8192;
+
+    private static final int SIZE = 0;
+    private static final int EXTENSION = 1;
+    private static final int SIZE_LF = 2;
+    private static final int DATA = 3;
+    private static final int DATA_CR = 4;
+    private static final int DATA_LF = 5;
+    private static final int TRAILER = 6;
+    private static final int TRAILER_LINE = 7;
+    private static final int TRAILER_LF = 8;
+    private static final int END_LF = 9;
+    private static final int DONE = 10;
+
+    private final long length;
+    private final boolean chunked;
+    private final long maxBody;
+    private long received;
+    private long chunkLeft;
+    private int digits;
+    private int state;
+    private int lineBytes;
+    private int trailerBytes;
+
+    /**
+     * Constructor for class.
+     * @param length declared length, or -1 if the body is chunked or ends with its stream.
+     * @param chunked whether the body uses chunked transfer coding.
+     * @param maxBody most content bytes accepted.
+     */
+    private RequestBody(long length, boolean chunked, long maxBody) {
+        this.length = length;
+        this.chunked = chunked;
+        this.maxBody = maxBody;
+        this.chunkLeft = chunked ? 0 : length;
+        this.state = chunked ? SIZE : length == 0 ? DONE : DATA;
+    }
+
+    /**
+     * Works out how the body of an HTTP/1.x request is framed. A request with both Transfer-Encoding and
+     * Content-Length, or with differing Content-Length values, is refused rather than guessed at, since
+     * a server and a proxy in front of it which guessed differently would disagree on where the next
+     * request starts.
+     * @param request parsed request head.
+     * @param maxBody most content bytes accepted.
+     * @return decoder for the body, or null if the request has none.
+     * @throws HTTPParseException 400 if the framing is malformed or ambiguous, 501 for any transfer coding
+     *     other than chunked, 413 if the declared length is over maxBody.
+     */
+    public static RequestBody of(HTTPRequest request, long maxBody) throws HTTPParseException {
+        String transferEncoding = request.getHeader("transfer-encoding");
+        String contentLength = request.getHeader("content-length");
+        if (transferEncoding != null) {
+            if (contentLength != null || request.getVersion().equals("HTTP/1.0")) {
+                throw new HTTPParseException(400, "Bad Request");
+            }
+            //chunked is the only coding understood, any other is not implemented (RFC 9112 6.1)
+            String[] codings = transferEncoding.split(",");
+            for (String coding : codings) {
+                String name = coding.trim();
+                if (name.isEmpty()) {
+                    throw new HTTPParseException(400, "Bad Request");
+                }
+                if (!name.equalsIgnoreCase("chunked")) {
+                    throw new HTTPParseException(501, "Not Implemented");
+                }
+            }
+            //chunked applied more than once leaves no way to tell where the body ends
+            if (codings.length > 1) {
+                throw new HTTPParseException(400, "Bad Request");
+            }
+            return new RequestBody(-1, true, maxBody);
+        }
+        if (contentLength == null) {
+            return null;
+        }
+        return new RequestBody(parseLength(contentLength, maxBody), false, maxBody);
+    }
+
+    /**
+     * Creates a decoder for an HTTP/2 request body, which is every DATA byte up to END_STREAM.
+     * A Content-Length, if sent, must match what arrives (RFC 7540 8.1.2.6).
+     * @param request parsed request head.
+     * @param maxBody most content bytes accepted.
+     * @return decoder for the body.
+     * @throws HTTPParseException 400 if Content-Length is malformed, 413 if it is over maxBody.
+     */
+    public static RequestBody ofStream(HTTPRequest request, long maxBody) throws HTTPParseException {
+        String contentLength = request.getHeader("content-length");
+        long declared = contentLength == null ? -1 : parseLength(contentLength, maxBody);
+        RequestBody body = new RequestBody(declared, false, maxBody);
+        body.state = DATA;
+        body.chunkLeft = Long.MAX_VALUE;
+        return body;
+    }
+
+    /**
+     * Creates a decoder for a response body from a backend. A body with neither length nor chunked coding
+     * runs until the backend closes the connection, which is marked with endOfStream.
+     * @param length Content-Length, or -1 if not sent.
+     * @param chunked whether the body uses chunked transfer coding, which takes precedence over length.
+     * @return decoder for the body.
+     */
+    static RequestBody ofResponse(long length, boolean chunked) {
+        RequestBody body = new RequestBody(chunked ? -1 : length, chunked, Long.MAX_VALUE);
+        if (!chunked && length < 0) {
+            body.state = DATA;
+            body.chunkLeft = Long.MAX_VALUE;
+        }
+        return body;
+    }
+
+    /**
+     * Whether a request head announces a body, without checking how well it is framed.
+     * @param request parsed request head.
+     * @return true if the request has Transfer-Encoding or a Content-Length other than 0.
+     */
+    public static boolean present(HTTPRequest request) {
+        String contentLength = request.getHeader("content-length");
+        return request.getHeader("transfer-encoding") != null
+                || (contentLength != null && !contentLength.trim().equals("0"));
+    }
+
+    /**
+     * Decodes body bytes from a buffer, writing the content to a channel. Stops at the end of the body,
+     * leaving any bytes after it, eg. a pipelined request, in the buffer.
+     * @param in buffer in read mode, advanced past what was consumed.
+     * @param sink channel the content is written to, in blocking mode.
+     * @return true once the whole body has been decoded.
+     * @throws IOException if writing to the sink fails.
+     * @throws HTTPParseException 400 if the chunked framing is malformed, 413 if the body grows over the limit.
+     */
+    public boolean decode(ByteBuffer in, WritableByteChannel sink) throws IOException, HTTPParseException {
+        while (state != DONE && in.hasRemaining()) {
+            if (state == DATA) {
+                int n = (int) Math.min(chunkLeft, in.remaining());
+                if (length < 0 && !chunked && received + n > maxBody) {
+                    throw new HTTPParseException(413, "Payload Too Large");
+                }
+                if (length >= 0 && !chunked && received + n > length) {
+                    throw new HTTPParseException(400, "Bad Request");
+                }
+                ByteBuffer content = in.duplicate();
+                content.limit(content.position() + n);
+                while (content.hasRemaining()) {
+                    sink.write(content);
+                }
+                in.position(in.position() + n);
+                received += n;
+                chunkLeft -= n;
+                if (chunkLeft == 0) {
+                    state = chunked ? DATA_CR : DONE;
+                }
+                continue;
+            }
+            this.step(in.get());
+        }
+        return state == DONE;
+    }
+
+    /**
+     * Marks the end of an HTTP/2 body, once END_STREAM has arrived.
+     * @throws HTTPParseException 400 if fewer bytes arrived than Content-Length announced.
+     */
+    public void endOfStream() throws HTTPParseException {
+        if (length >= 0 && received != length) {
+            throw new HTTPParseException(400, "Bad Request");
+        }
+        state = DONE;
+    }
+
+    /**
+     * Whether the whole body has been decoded.
+     * @return true once complete.
+     */
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    /**
+     * Getter method for content bytes received.
+     * @return bytes written to the sink so far.
+     */
+    public long getReceived() {
+        return this.received;
+    }
+
+    /**
+     * Getter method for declared length.
+     * @return Content-Length of the body, or -1 if it is chunked or ends with its stream.
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Getter method for chunked framing.
+     * @return true if the body uses chunked transfer coding.
+     */
+    public boolean isChunked() {
+        return this.chunked;
+    }
+
+    /**
+     * Advances the chunked framing by one byte outside chunk data.
+     * @param b next byte.
+     * @throws HTTPParseException 400 if the byte is not allowed here, 413 if a chunk takes the body over the limit.
+     */
+    private void step(byte b) throws HTTPParseException {
+        switch (state) {
+            case SIZE:
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (++digits > 15) {
+                        throw new HTTPParseException(413, "Payload Too Large");
+                    }
+                    chunkLeft = chunkLeft * 16 + digit;
+                } else if (digits > 0 && (b == ';' || b == ' ' || b == '\t')) {
+                    state = EXTENSION;
+                } else if (digits > 0 && b == '\r') {
+                    state = SIZE_LF;
+                } else {
+                    throw new HTTPParseException(400, "Bad Request");
+                }
+                this.countLine();
+                break;
+            case EXTENSION:
+                if (b == '\r') {
+                    state = SIZE_LF;
+                } else if (b == '\n') {
+                    throw new HTTPParseException(400, "Bad Request");
+                }
+                this.countLine();
+                break;
+            case SIZE_LF:
+                expect(b, '\n');
+                if (received + chunkLeft > maxBody) {
+                    throw new HTTPParseException(413, "Payload Too Large");
+                }
+                state = chunkLeft == 0 ? TRAILER : DATA;
+                digits = 0;
+                lineBytes = 0;
+                break;
+            case DATA_CR:
+                expect(b, '\r');
+                state = DATA_LF;
+                break;
+            case DATA_LF:
+                expect(b, '\n');
+                state = SIZE;
+                break;
+            case TRAILER:
+                state = b == '\r' ? END_LF : TRAILER_LINE;
+                this.countTrailer();
+                break;
+            case TRAILER_LINE:
+                if (b == '\r') {
+                    state = TRAILER_LF;
+                }
+                this.countTrailer();
+                break;
+            case TRAILER_LF:
+                expect(b, '\n');
+                state = TRAILER;
+                break;
+            case END_LF:
+                expect(b, '\n');
+                state = DONE;
+                break;
+            default:
+                throw new IllegalStateException("state " + state);
+        }
+    }
+
+    /**
+     * Counts a byte of a chunk size line against its limit.
+     * @throws HTTPParseException 400 if the line is too long.
+     */
+    private void countLine() throws HTTPParseException {
+        if (++lineBytes > MAX_CHUNK_LINE) {
+            throw new HTTPParseException(400, "Bad Request");
+        }
+    }
+
+    /**
+     * Counts a byte of the trailer section against its limit.
+     * @throws HTTPParseException 431 if the trailer section is too large.
+     */
+    private void countTrailer() throws HTTPParseException {
+        if (++trailerBytes > MAX_TRAILERS) {
+            throw new HTTPParseException(431, "Request Header Fields Too Large");
+        }
+    }
+
+    /**
+     * Checks a framing byte.
+     * @param b byte read.
+     * @param wanted byte the framing requires.
+     * @throws HTTPParseException 400 if they differ.
+     */
+    private static void expect(byte b, char wanted) throws HTTPParseException {
+        if (b != wanted) {
+            throw new HTTPParseException(400, "Bad Request");
+        }
+    }
+
+    /**
+     * Parses a Content-Length value. Repeated fields, which arrive joined by commas, must all agree.
+     * @param value header value.
+     * @param maxBody most content bytes accepted.
+     * @return declared length.
+     * @throws HTTPParseException 400 if the value is not a number or the values differ, 413 if over maxBody.
+     */
+    private static long parseLength(String value, long maxBody) throws HTTPParseException {
+        long parsed = -1;
+        for (String part : value.split(",", -1)) {
+            String digits = part.trim();
+            if (digits.isEmpty() || digits.length() > 18) {
+                throw new HTTPParseException(digits.isEmpty() ? 400 : 413,
+                        digits.isEmpty() ? "Bad Request" : "Payload Too Large");
+            }
+            long n = 0;
+            for (int i = 0; i < digits.length(); i++) {
+                char c = digits.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new HTTPParseException(400, "Bad Request");
+                }
+                n = n * 10 + (c - '0');
+            }
+            if (parsed >= 0 && n != parsed) {
+                throw new HTTPParseException(400, "Bad Request");
+            }
+            parsed = n;
+        }
+        if (parsed > maxBody) {
+            throw new HTTPParseException(413, "Payload Too Large");
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,852 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class which turns a client request into a response for files under the document root.
+ * Shared by the blocking and non-blocking engines so both answer requests identically.
+ * With uploads switched on, PUT and POST store their body at the request path through an Upload, which the
+ * engines feed as the body arrives.
+ * Paths routed to a backend are handed to the reverse proxy instead, bodies and all.
+ */
+public class ResponseGenerator {
+
+    private static final int SNIFF_BYTES = 512;
+    private static final int MAX_RANGES = 32;
+
+    private String directoryPath;
+    private Path root;
+    private DocumentIndex index;
+    private ContentCache cache;
+    private Compressor compressor;
+    private MappedFileCache mappedFiles;
+    private FileVersions versions;
+    private Map<String, String> cacheControl;
+    private Metrics metrics = new Metrics();
+    private AdmissionControl admission;
+    private ReverseProxy proxy;
+    private String metricsPath;
+    private boolean uploads;
+    private long maxBody;
+
+    /**
+     * Constructor for class. Indexes the document root unless the index is switched off, creates the
+     * content cache and mapped file cache unless their budgets are zero, the compressor unless
+     * compression is switched off, admission control if a concurrency or rate limit is set, and the reverse
+     * proxy if any routes are.
+     * @param config server options including directory path, cache limits and compression settings.
+     */
+    public ResponseGenerator(ServerConfig config) {
+        this.directoryPath = config.getDirectoryPath();
+        this.root = Paths.get(this.directoryPath).toAbsolutePath().normalize();
+        if (config.isIndex()) {
+            this.index = new DocumentIndex(this.root);
+        }
+        this.versions = new FileVersions(config.getCacheRevalidate(), this.index);
+        this.cacheControl = config.getCacheControl();
+        this.metricsPath = config.getMetricsPath();
+        this.uploads = config.isUploads();
+        this.maxBody = config.getMaxBody();
+        if (config.getCacheBytes() > 0) {
+            this.cache = new ContentCache(config.getCacheBytes(), config.getCacheMaxFile(),
+                    config.getCacheRevalidate());
+        }
+        if (config.getMmapBytes() > 0) {
+            this.mappedFiles = new MappedFileCache(config.getMmapBytes(), config.getMmapMinFile(),
+                    this.versions);
+        }
+        if (config.isCompress()) {
+            this.compressor = new Compressor(config, this.versions);
+        }
+        if (config.isAdaptiveConcurrency() || config.getRateLimit() > 0) {
+            this.admission = new AdmissionControl(config);
+            this.metrics.setAdmission(this.admission);
+        }
+        if (!config.getProxyRoutes().isEmpty()) {
+            this.proxy = new ReverseProxy(config);
+            this.metrics.setProxy(this.proxy);
+        }
+    }
+
+    /**
+     * Stops the background threads and closes the watch services of the document index and content cache,
+     * so a stopped or restarted server leaves neither behind.
+     */
+    public void close() {
+        if (index != null) {
+            index.close();
+        }
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * Getter method for content cache.
+     * @return content cache, or null if caching is disabled.
+     */
+    public ContentCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Getter method for metrics, shared by every connection of the server.
+     * @return metrics collector.
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Getter method for admission control, which the engines ask before generating each response.
+     * @return admission control, or null if every request is admitted.
+     */
+    public AdmissionControl getAdmission() {
+        return this.admission;
+    }
+
+    /**
+     * Getter method for reverse proxy.
+     * @return reverse proxy, or null if no paths are routed to backends.
+     */
+    public ReverseProxy getProxy() {
+        return this.proxy;
+    }
+
+    /**
+     * Getter method for document index.
+     * @return document index, or null if files are looked up on disk.
+     */
+    public DocumentIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Getter method for mapped file cache.
+     * @return mapped file cache, or null if files are not memory-mapped.
+     */
+    public MappedFileCache getMappedFiles() {
+        return this.mappedFiles;
+    }
+
+    /**
+     * Getter method for compressor.
+     * @return compressor, or null if compression is disabled.
+     */
+    public Compressor getCompressor() {
+        return this.compressor;
+    }
+
+    /**
+     * Given a parsed client request generates the full response.
+     * Every 200 response carries the strong ETag and Last-Modified date of what it sends, and
+     * requests whose If-None-Match or If-Modified-Since still match get a bodiless 304 instead.
+     * @param request parsed client request.
+     * @param allowKeepAlive false if caller will close the connection regardless of the request.
+     * @return response with header fields and body set, file bodies must be released with closeBody.
+     */
+    public HTTPResponse generateResponse(HTTPRequest request, boolean allowKeepAlive) {
+        String requestedFile = request.getPath();
+        String requestType = request.getMethod();
+        String requestProtocol = request.getVersion();
+        String requestedContent = request.getAcceptedType();
+        //a body which is not read cannot be told apart from the next request, so the connection is closed
+        boolean keepAlive = allowKeepAlive && request.wantsKeepAlive() && !RequestBody.present(request);
+        if (proxy != null && !requestedFile.equals(metricsPath) && proxy.routes(requestedFile)) {
+            return proxy.forward(request, keepAlive);
+        }
+
+        //checks and deals with unrecognised request types
+        if ((!requestType.equals("HEAD")) && (!requestType.equals("GET"))) {
+            return errorResponse(501, "Not Implemented", keepAlive);
+        }
+
+        if (!metricsPath.isEmpty() && requestedFile.equals(metricsPath)) {
+            return this.metricsResponse(requestProtocol, requestType, keepAlive);
+        }
+
+        Path p = this.getRequestedFilePath(requestedFile);
+        //metadata first, so requests for missing files are answered from the document index alone
+        FileVersions.Version version = p == null ? null : versions.lookup(p);
+        if (version == null) {
+            return errorResponse(404, "Not Found", keepAlive);
+        }
+        //files too big to cache skip the lookup, which would stat them and count a miss on every request
+        ContentCache.CachedFile cached = cache == null || version.getSize() > cache.getMaxEntry() ? null
+                : cache.get(p);
+        if (cached != null && (cached.getSize() != version.getSize()
+                || cached.getModified() != version.getModified())) {
+            //the cache has not caught up with a change yet, send the current file from disk
+            cached = null;
+        }
+
+        //only types known from the extension are compressed, so only those responses vary by encoding
+        String knownType = MimeTypes.forFileName(requestedFile);
+        boolean vary = compressor != null && MimeTypes.isCompressible(knownType);
+        String encoding = vary ? Compressor.negotiate(request.getHeader("accept-encoding")) : null;
+        String cacheControl = this.cacheControlFor(requestedFile);
+        if (encoding != null) {
+            HTTPResponse encoded = this.encodedResponse(request, p, version, encoding, knownType, cacheControl,
+                    keepAlive);
+            if (encoded != null) {
+                return encoded;
+            }
+        }
+
+        if (isNotModified(request, version.getEtag(null), version)) {
+            return notModified(requestProtocol, version.getEtag(null), version, vary, cacheControl, keepAlive);
+        }
+
+        if (cached != null) {
+            HTTPResponse response = this.cachedResponse(cached, requestProtocol, requestType,
+                    requestedContent, keepAlive);
+            addCacheHeaders(response, vary, cacheControl);
+            String type = cached.getContentType() != null ? cached.getContentType()
+                    : requestedContent.isEmpty() ? "application/octet-stream" : requestedContent;
+            return withRange(request, response, version.getEtag(null), version.getLastModified(), type,
+                    cached.getSize());
+        }
+
+        if (mappedFiles != null && requestType.equals("GET")) {
+            MappedFileCache.Mapping mapping = mappedFiles.acquire(p, version);
+            if (mapping != null) {
+                HTTPResponse response = mappedResponse(mapping, version, knownType, requestedContent,
+                        requestProtocol, keepAlive);
+                addCacheHeaders(response, vary, cacheControl);
+                return withRange(request, response, version.getEtag(null), version.getLastModified(),
+                        response.getHeaderValues().get(0), version.getSize());
+            }
+        }
+
+        FileChannel file = this.openFile(p);
+        if (file == null) {
+            return errorResponse(404, "Not Found", keepAlive);
+        }
+
+        long bodyLength;
+        long modified;
+        try {
+            bodyLength = file.size();
+            modified = Files.getLastModifiedTime(p).toMillis();
+
+            //content-type from file extension, falling back to html detection then the Accept header
+            if (knownType != null) {
+                requestedContent = knownType;
+            } else if (this.looksLikeHtml(file)) {
+                requestedContent = "text/html";
+            } else if (requestedContent.isEmpty()) {
+                requestedContent = "application/octet-stream";
+            }
+        } catch (IOException ioe) {
+            System.err.println("generateResponse: " + ioe.getMessage());
+            closeQuietly(file);
+            return errorResponse(500, "Internal Server Error", false);
+        }
+
+        HTTPResponse response = new HTTPResponse(requestProtocol, 200, "OK");
+        response.addHeader("Content-Type", requestedContent);
+        addCacheHeaders(response, vary, cacheControl);
+        //a file changed since its version was recorded, even rewritten at the same size, is sent without
+        //validators, and its version is read afresh for the next request
+        boolean validated = bodyLength == version.getSize() && modified == version.getModified();
+        if (validated) {
+            response.setCachedFields(version.getHeaderFields());
+        } else {
+            versions.invalidate(p);
+        }
+        response.setContentLength(bodyLength);
+        response.setKeepAlive(keepAlive);
+        if (requestType.equals("GET")) {
+            //body is left in the file and sent by the engine straight to the socket
+            response.setFileBody(file, 0, bodyLength);
+        } else {
+            closeQuietly(file);
+        }
+
+        return withRange(request, response, validated ? version.getEtag(null) : null,
+                validated ? version.getLastModified() : null, requestedContent, bodyLength);
+    }
+
+    /**
+     * Whether a request is an upload, to be started with startUpload rather than answered by generateResponse.
+     * @param request parsed client request.
+     * @return true if uploads are switched on and the method is PUT or POST, or if the path is proxied and
+     *     the method is other than GET and HEAD.
+     */
+    public boolean isUpload(HTTPRequest request) {
+        String method = request.getMethod();
+        if (proxy != null && proxy.routes(request.getPath())) {
+            return !method.equals("GET") && !method.equals("HEAD");
+        }
+        return uploads && (method.equals("PUT") || method.equals("POST"));
+    }
+
+    /**
+     * Checks an upload request and opens the temporary file its body is written to, or for a proxied path the
+     * backend connection it is streamed to.
+     * The target must lie under the document root and must not be a directory, the metrics path or the root
+     * itself; missing parent directories are created. A refused upload whose body has not been read closes
+     * the connection afterwards.
+     * @param request PUT or POST request.
+     * @param allowKeepAlive false if caller will close the connection regardless of the request.
+     * @return upload to feed the body to, or one holding the response to send instead.
+     */
+    public Upload startUpload(HTTPRequest request, boolean allowKeepAlive) {
+        boolean keepAlive = allowKeepAlive && request.wantsKeepAlive();
+        RequestBody body;
+        try {
+            body = request.getVersion().equals("HTTP/2.0") ? RequestBody.ofStream(request, maxBody)
+                    : RequestBody.of(request, maxBody);
+        } catch (HTTPParseException hpe) {
+            return new Upload(errorResponse(hpe.getStatusCode(), hpe.getReason(), false));
+        }
+        boolean unread = body != null && !body.isComplete();
+
+        String expect = request.getHeader("expect");
+        if (expect != null && !expect.equalsIgnoreCase("100-continue") && !request.getVersion().equals("HTTP/1.0")) {
+            return new Upload(errorResponse(417, "Expectation Failed", keepAlive && !unread));
+        }
+        if (proxy != null && proxy.routes(request.getPath())) {
+            return proxy.startExchange(request, body, keepAlive);
+        }
+        String path = request.getPath();
+        Path p = this.getRequestedFilePath(path);
+        if (p == null || p.equals(root) || path.endsWith("/") || (!metricsPath.isEmpty() && path.equals(metricsPath))) {
+            return new Upload(errorResponse(403, "Forbidden", keepAlive && !unread));
+        }
+        if (Files.isDirectory(p)) {
+            return new Upload(errorResponse(409, "Conflict", keepAlive && !unread));
+        }
+        try {
+            return new Upload(this, request, body, p, keepAlive);
+        } catch (FileAlreadyExistsException faee) {
+            //a parent of the target is a file
+            return new Upload(errorResponse(409, "Conflict", keepAlive && !unread));
+        } catch (IOException ioe) {
+            System.err.println("startUpload: " + ioe.getMessage());
+            return new Upload(errorResponse(500, "Internal Server Error", false));
+        }
+    }
+
+    /**
+     * Brings the document index and caches up to date with a file the server has just written, so the next
+     * request sees it without waiting for a watch event or revalidation.
+     * @param p resolved path of file.
+     */
+    void changed(Path p) {
+        if (index != null) {
+            index.changed(p);
+        }
+        versions.invalidate(p);
+        if (compressor != null) {
+            compressor.invalidate(p);
+        }
+    }
+
+    /**
+     * Builds a 200 response whose body is a view of a shared file mapping, released once written.
+     * @param mapping retained mapping of the file, owned by the response from here on.
+     * @param version version of the file which was mapped.
+     * @param knownType MIME type from the file extension, may be null.
+     * @param requestedContent content type from the Accept header, used if the type cannot be worked out.
+     * @param protocol request protocol.
+     * @param keepAlive whether the connection stays open.
+     * @return response with the Content-Type as its first header and the mapped body.
+     */
+    private static HTTPResponse mappedResponse(MappedFileCache.Mapping mapping, FileVersions.Version version,
+                                               String knownType, String requestedContent, String protocol,
+                                               boolean keepAlive) {
+        ByteBuffer body = mapping.getBody();
+        String type = knownType;
+        if (type == null) {
+            type = ContentCache.looksLikeHtml(body) ? "text/html"
+                    : requestedContent.isEmpty() ? "application/octet-stream" : requestedContent;
+        }
+        HTTPResponse response = new HTTPResponse(protocol, 200, "OK");
+        response.addHeader("Content-Type", type);
+        response.setCachedFields(version.getHeaderFields());
+        response.setContentLength(version.getSize());
+        response.setKeepAlive(keepAlive);
+        response.setBody(body);
+        response.setOnClose(mapping::release);
+        return response;
+    }
+
+    /**
+     * Builds a 200 response from a cache entry, reusing its pre-rendered header lines and body.
+     * @param cached cache entry for requested file.
+     * @param protocol request protocol.
+     * @param requestType GET or HEAD.
+     * @param requestedContent content type from the Accept header, used if the file's type is unknown.
+     * @param keepAlive whether the connection stays open.
+     * @return response with in-memory body.
+     */
+    private HTTPResponse cachedResponse(ContentCache.CachedFile cached, String protocol, String requestType,
+                                        String requestedContent, boolean keepAlive) {
+        HTTPResponse response = new HTTPResponse(protocol, 200, "OK");
+        if (cached.getContentType() == null) {
+            response.addHeader("Content-Type",
+                    requestedContent.isEmpty() ? "application/octet-stream" : requestedContent);
+        }
+        response.setCachedFields(cached.getHeaderFields());
+        response.setKeepAlive(keepAlive);
+        if (requestType.equals("GET")) {
+            response.setBody(cached.getBody());
+        }
+        return response;
+    }
+
+    /**
+     * Builds a 200 or 304 response for a compressed representation, preferring a precompressed .gz
+     * sibling for gzip and otherwise compressing the file on the fly through the compressor's variant cache.
+     * Files too large for the variant cache are compressed as they are sent, with a body of unknown length;
+     * a request for byte ranges of such a file is sent the file uncompressed instead.
+     * @param request parsed client request.
+     * @param p resolved path of requested file.
+     * @param version current version of the file.
+     * @param encoding negotiated content coding.
+     * @param contentType MIME type of the uncompressed file.
+     * @param cacheControl Cache-Control value for the path, may be null.
+     * @param keepAlive whether the connection stays open.
+     * @return compressed response, or null if the file should be sent uncompressed.
+     */
+    private HTTPResponse encodedResponse(HTTPRequest request, Path p, FileVersions.Version version, String encoding,
+                                         String contentType, String cacheControl, boolean keepAlive) {
+        FileVersions.Version gzVersion = encoding.equals(Compressor.GZIP) ? compressor.precompressed(p, version) : null;
+        FileChannel gz = gzVersion == null ? null : this.openFile(Compressor.precompressedPath(p));
+        FileVersions.Version sent = version;
+        String etag;
+        ByteBuffer body = null;
+        long bodyLength;
+        boolean streamed = false;
+        try {
+            if (gz != null) {
+                //the sibling is served byte for byte, so it is validated as a file of its own
+                sent = gzVersion;
+                etag = gzVersion.getEtag(null);
+                bodyLength = gz.size();
+            } else {
+                body = compressor.compressed(p, encoding, version, cache);
+                streamed = body == null && compressor.isStreamed(version.getSize())
+                        && request.getHeader("range") == null;
+                if (body == null && !streamed) {
+                    return null;
+                }
+                if (streamed && (Files.size(p) != version.getSize()
+                        || Files.getLastModifiedTime(p).toMillis() != version.getModified())) {
+                    //a streamed body is compressed from the file as it is then, which must be the labelled version
+                    return null;
+                }
+                etag = version.getEtag(encoding);
+                bodyLength = streamed ? -1 : body.remaining();
+            }
+        } catch (IOException ioe) {
+            closeQuietly(gz);
+            return null;
+        }
+
+        if (isNotModified(request, etag, sent)) {
+            closeQuietly(gz);
+            return notModified(request.getVersion(), etag, sent, true, cacheControl, keepAlive);
+        }
+
+        HTTPResponse response = new HTTPResponse(request.getVersion(), 200, "OK");
+        response.addHeader("Content-Type", contentType);
+        response.addHeader("Content-Encoding", encoding);
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", sent.getLastModified());
+        addCacheHeaders(response, true, cacheControl);
+        if (streamed) {
+            //the length is known only once the file has been compressed, HTTP/1.0 reads to the close
+            response.setKeepAlive(keepAlive && !request.getVersion().equals("HTTP/1.0"));
+            if (request.getMethod().equals("GET")) {
+                FileChannel file = this.openFile(p);
+                if (file == null) {
+                    return errorResponse(404, "Not Found", keepAlive);
+                }
+                response.setStreamBody(compressor.stream(file, encoding));
+            }
+            return response;
+        }
+        response.setContentLength(bodyLength);
+        response.setKeepAlive(keepAlive);
+        if (!request.getMethod().equals("GET")) {
+            closeQuietly(gz);
+        } else if (gz != null) {
+            response.setFileBody(gz, 0, bodyLength);
+        } else {
+            response.setBody(body);
+        }
+        return withRange(request, response, etag, sent.getLastModified(), contentType, bodyLength);
+    }
+
+    /**
+     * Turns a 200 response into a 206 or 416 when a GET asks for byte ranges, and advertises
+     * Accept-Ranges otherwise. Ranges are served from the full response's body as it is: file bodies
+     * are sent as regions of the open file, one part after another for multipart/byteranges, so
+     * nothing is loaded into memory; in-memory bodies are sliced.
+     * If-Range is honoured by exact match of the strong ETag or Last-Modified date.
+     * @param request parsed client request.
+     * @param full 200 response holding the whole representation, handed over to the result.
+     * @param etag strong ETag of the representation, or null if unknown.
+     * @param lastModified Last-Modified date of the representation, or null if unknown.
+     * @param contentType MIME type of the representation.
+     * @param total length of the whole representation.
+     * @return full, a 206 response or a 416 response.
+     */
+    private static HTTPResponse withRange(HTTPRequest request, HTTPResponse full, String etag, String lastModified,
+                                          String contentType, long total) {
+        full.addHeader("Accept-Ranges", "bytes");
+        String range = request.getHeader("range");
+        if (range == null || !request.getMethod().equals("GET")) {
+            return full;
+        }
+        String ifRange = request.getHeader("if-range");
+        if (ifRange != null && !ifRange.trim().equals(etag) && !ifRange.trim().equals(lastModified)) {
+            //client's copy is out of date, it needs the whole representation
+            return full;
+        }
+        long[] ranges = parseRanges(range, total);
+        if (ranges == null) {
+            return full;
+        }
+
+        HTTPResponse partial;
+        if (ranges.length == 0) {
+            full.closeBody();
+            partial = new HTTPResponse(full.getProtocol(), 416, "Range Not Satisfiable");
+            partial.addHeader("Content-Range", "bytes */" + total);
+            partial.setContentLength(0);
+            partial.setKeepAlive(full.isKeepAlive());
+            return partial;
+        }
+
+        partial = new HTTPResponse(full.getProtocol(), 206, "Partial Content");
+        partial.setOnClose(full.getOnClose());
+        full.setOnClose(null);
+        List<String> names = full.getHeaderNames();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (!name.equals("Content-Type") && !name.equals("ETag") && !name.equals("Last-Modified")) {
+                partial.addHeader(name, full.getHeaderValues().get(i));
+            }
+        }
+        if (etag != null) {
+            partial.addHeader("ETag", etag);
+            partial.addHeader("Last-Modified", lastModified);
+        }
+        partial.setKeepAlive(full.isKeepAlive());
+
+        FileChannel file = full.getBodyFile();
+        long base = full.getBodyPosition();
+        ByteBuffer body = full.getBody();
+        if (ranges.length == 2) {
+            long start = ranges[0];
+            long length = ranges[1] - start + 1;
+            partial.addHeader("Content-Type", contentType);
+            partial.addHeader("Content-Range", "bytes " + start + "-" + ranges[1] + "/" + total);
+            partial.setContentLength(length);
+            if (file != null) {
+                partial.setFileBody(file, base + start, length);
+            } else {
+                partial.setBody(slice(body, start, length));
+            }
+            return partial;
+        }
+
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        partial.addHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        if (file != null) {
+            partial.setFileBody(file, base, 0);
+        }
+        long length = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            long start = ranges[i];
+            long partLength = ranges[i + 1] - start + 1;
+            ByteBuffer head = ByteBuffer.wrap(("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                    + "\r\nContent-Range: bytes " + start + "-" + ranges[i + 1] + "/" + total + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            if (file != null) {
+                partial.addPart(head, base + start, partLength);
+            } else {
+                partial.addPart(head, 0, 0);
+                partial.addPart(slice(body, start, partLength), 0, 0);
+            }
+            length += head.remaining() + partLength;
+        }
+        ByteBuffer trailer = ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        partial.addPart(trailer, 0, 0);
+        partial.setContentLength(length + trailer.remaining());
+        return partial;
+    }
+
+    /**
+     * Parses a Range header against a representation length.
+     * Ranges beyond the end are dropped, overlapping ones are merged, and the rest are returned
+     * in ascending order.
+     * @param header Range header value.
+     * @param size length of the representation.
+     * @return inclusive start and end offsets as pairs, empty if no range is satisfiable,
+     *     or null if the header is malformed or asks for too many ranges and should be ignored.
+     */
+    static long[] parseRanges(String header, long size) {
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0 || ranges.size() >= MAX_RANGES) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    //suffix range, the last n bytes
+                    long n = Long.parseLong(spec.substring(1));
+                    first = Math.max(0, size - n);
+                    last = n == 0 ? -1 : size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = size - 1;
+                    if (dash < spec.length() - 1) {
+                        long requested = Long.parseLong(spec.substring(dash + 1));
+                        if (requested < first) {
+                            return null;
+                        }
+                        last = Math.min(last, requested);
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first <= last) {
+                ranges.add(new long[] {first, last});
+            }
+        }
+
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] merged = new long[ranges.size() * 2];
+        int n = 0;
+        for (long[] r : ranges) {
+            if (n > 0 && r[0] <= merged[n - 1] + 1) {
+                merged[n - 1] = Math.max(merged[n - 1], r[1]);
+            } else {
+                merged[n++] = r[0];
+                merged[n++] = r[1];
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * View of part of an in-memory body.
+     * @param body whole body.
+     * @param start offset from the body's position.
+     * @param length number of bytes.
+     * @return independent view of the range.
+     */
+    private static ByteBuffer slice(ByteBuffer body, long start, long length) {
+        ByteBuffer part = body.duplicate();
+        part.position(body.position() + (int) start).limit(body.position() + (int) (start + length));
+        return part;
+    }
+
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since when there is no If-None-Match, for a GET or HEAD.
+     * @param request parsed client request.
+     * @param etag strong ETag of the representation that would be sent.
+     * @param version file version the representation comes from.
+     * @return true if the client's copy is current and a 304 should be sent.
+     */
+    private static boolean isNotModified(HTTPRequest request, String etag, FileVersions.Version version) {
+        String ifNoneMatch = request.getHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                //If-None-Match uses weak comparison, so W/ prefixes are ignored
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = FileVersions.parseDate(request.getHeader("if-modified-since"));
+        return since >= 0 && version.getModifiedSeconds() <= since;
+    }
+
+    /**
+     * Builds a bodiless 304 response carrying the validators and caching headers a 200 would have had.
+     * @param protocol request protocol.
+     * @param etag ETag of the representation.
+     * @param version version the Last-Modified date comes from.
+     * @param vary whether the representation depends on Accept-Encoding.
+     * @param cacheControl Cache-Control value, may be null.
+     * @param keepAlive whether the connection stays open.
+     * @return 304 response.
+     */
+    private static HTTPResponse notModified(String protocol, String etag, FileVersions.Version version, boolean vary,
+                                            String cacheControl, boolean keepAlive) {
+        HTTPResponse response = new HTTPResponse(protocol, 304, "Not Modified");
+        response.addHeader("ETag", etag);
+        response.addHeader("Last-Modified", version.getLastModified());
+        addCacheHeaders(response, vary, cacheControl);
+        response.setKeepAlive(keepAlive);
+        return response;
+    }
+
+    /**
+     * Adds Vary and Cache-Control headers where they apply.
+     * @param response response to add to.
+     * @param vary whether the representation depends on Accept-Encoding.
+     * @param cacheControl Cache-Control value, may be null.
+     */
+    private static void addCacheHeaders(HTTPResponse response, boolean vary, String cacheControl) {
+        if (vary) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        if (cacheControl != null) {
+            response.addHeader("Cache-Control", cacheControl);
+        }
+    }
+
+    /**
+     * Finds the Cache-Control value of the most specific configured prefix of a path.
+     * @param path decoded request path.
+     * @return Cache-Control value, or null if no rule applies.
+     */
+    private String cacheControlFor(String path) {
+        for (Map.Entry<String, String> rule : cacheControl.entrySet()) {
+            if (path.startsWith(rule.getKey())) {
+                return rule.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the metrics response on the reserved metrics path.
+     * @param protocol request protocol.
+     * @param requestType GET or HEAD.
+     * @param keepAlive whether the connection stays open.
+     * @return 200 response with Prometheus text body.
+     */
+    private HTTPResponse metricsResponse(String protocol, String requestType, boolean keepAlive) {
+        byte[] text = metrics.render(index, cache, mappedFiles, compressor).getBytes(StandardCharsets.UTF_8);
+        HTTPResponse response = new HTTPResponse(protocol, 200, "OK");
+        response.addHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.addHeader("Cache-Control", "no-store");
+        response.setContentLength(text.length);
+        response.setKeepAlive(keepAlive);
+        if (requestType.equals("GET")) {
+            response.setBody(ByteBuffer.wrap(text));
+        }
+        return response;
+    }
+
+    /**
+     * Builds a bodiless response for errors and refusals.
+     * @param code status code.
+     * @param reason reason phrase.
+     * @param keepAlive whether the connection stays open afterwards.
+     * @return response with zero Content-Length.
+     */
+    public static HTTPResponse errorResponse(int code, String reason, boolean keepAlive) {
+        HTTPResponse response = new HTTPResponse("HTTP/1.1", code, reason);
+        response.setContentLength(0);
+        response.setKeepAlive(keepAlive);
+        return response;
+    }
+
+    /**
+     * Given requested file, resolves it against the document root. Paths which climb out of the root
+     * with .. segments are refused.
+     * @param fileName requested file.
+     * @return absolute, normalised file path, or null if it cannot be represented or lies outside the root.
+     */
+    Path getRequestedFilePath(String fileName) {
+        try {
+            int start = 0;
+            while (start < fileName.length() && fileName.charAt(start) == '/') {
+                start++;
+            }
+            Path p = this.root.resolve(fileName.substring(start)).normalize();
+            return p.startsWith(this.root) ? p : null;
+        } catch (InvalidPathException ipe) {
+            System.err.println(ipe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens requested file for reading.
+     * @param p path of requested file.
+     * @return open channel, or null if the file is missing or unreadable.
+     */
+    private FileChannel openFile(Path p) {
+        //the caller has already found a regular file through the version lookup
+        try {
+            return FileChannel.open(p, StandardOpenOption.READ);
+        } catch (IOException ioe) {
+            System.err.println("openFile: " + ioe.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks the start of a file for an html tag, without reading the whole file.
+     * @param file open file channel, its position is not changed.
+     * @return true if an html tag appears within the first SNIFF_BYTES bytes.
+     * @throws IOException if the file cannot be read.
+     */
+    private boolean looksLikeHtml(FileChannel file) throws IOException {
+        ByteBuffer head = BufferPool.HEAP.acquire(SNIFF_BYTES);
+        try {
+            head.limit(SNIFF_BYTES);
+            file.read(head, 0);
+            String start = new String(head.array(), 0, head.position(), StandardCharsets.ISO_8859_1);
+            return start.contains("<html>");
+        } finally {
+            BufferPool.HEAP.release(head);
+        }
+    }
+
+    /**
+     * Closes a file channel which will not be handed to a response.
+     * @param file channel to close, may be null.
+     */
+    private static void closeQuietly(FileChannel file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+}
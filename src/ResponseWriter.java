@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Class which renders response headers into byte buffers.
+ * Fixed parts such as status lines, Server and Connection headers are encoded once at class load
+ * and copied in as bytes; numbers are written as ASCII digits without going through a String.
+ * Header buffers come from the direct BufferPool so connections reuse them instead of allocating per response.
+ */
+public final class ResponseWriter {
+
+    static final byte[] NO_BYTES = new byte[0];
+    static final int HEADER_BUFFER = 1024;
+    static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+    //streamed bodies are copied through pooled direct buffers of this size class, chunk framing included
+    static final int CHUNK_BUFFER = 16384;
+
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] SERVER = ascii("Server: HTTPServer\r\n");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+    //room before a chunk's data for its size line, four hex digits and CRLF
+    private static final int CHUNK_HEAD = 6;
+    private static final byte[] COLON = ascii(": ");
+    private static final byte[][] STATUS_11 = new byte[600][];
+    private static final byte[][] STATUS_10 = new byte[600][];
+
+    static {
+        String[] known = {"100 Continue", "200 OK", "201 Created", "204 No Content", "206 Partial Content",
+            "301 Moved Permanently", "304 Not Modified", "400 Bad Request", "403 Forbidden", "404 Not Found",
+            "405 Method Not Allowed", "408 Request Timeout", "409 Conflict", "411 Length Required",
+            "413 Payload Too Large", "414 URI Too Long", "416 Range Not Satisfiable", "417 Expectation Failed",
+            "429 Too Many Requests", "431 Request Header Fields Too Large", "500 Internal Server Error",
+            "501 Not Implemented", "502 Bad Gateway", "503 Service Unavailable", "504 Gateway Timeout",
+            "505 HTTP Version Not Supported"};
+        for (String status : known) {
+            int code = Integer.parseInt(status.substring(0, 3));
+            STATUS_11[code] = ascii("HTTP/1.1 " + status + "\r\n");
+            STATUS_10[code] = ascii("HTTP/1.0 " + status + "\r\n");
+        }
+    }
+
+    private ResponseWriter() {
+    }
+
+    /**
+     * Takes a header buffer from the direct buffer pool.
+     * @return empty buffer of at least HEADER_BUFFER bytes.
+     */
+    public static ByteBuffer acquire() {
+        return BufferPool.DIRECT.acquire(HEADER_BUFFER);
+    }
+
+    /**
+     * Returns a header buffer to the pool.
+     * @param buf buffer obtained from acquire, may be null.
+     */
+    public static void release(ByteBuffer buf) {
+        BufferPool.DIRECT.release(buf);
+    }
+
+    /**
+     * Renders status line and headers, including the terminating blank line, into a buffer.
+     * @param response response whose header to render.
+     * @param buf buffer to render into, cleared first.
+     * @return buffer flipped ready for writing; a larger one-off buffer if the header did not fit in buf.
+     */
+    public static ByteBuffer encodeHeader(HTTPResponse response, ByteBuffer buf) {
+        int capacity = buf.capacity();
+        buf.clear();
+        while (true) {
+            try {
+                return put(response, buf).flip();
+            } catch (BufferOverflowException boe) {
+                capacity *= 4;
+                buf = ByteBuffer.allocate(capacity);
+            }
+        }
+    }
+
+    /**
+     * Writes buffers, eg. a rendered header and an in-memory body, to a channel with gathering
+     * writes so they go out in as few system calls as possible.
+     * @param channel channel to write to, in blocking mode.
+     * @param buffers buffers to write in order.
+     * @throws IOException if writing fails.
+     */
+    public static void writeFully(GatheringByteChannel channel, ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buf : buffers) {
+            remaining += buf.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Reads the next piece of a streamed body into a buffer, framed as a chunk if the body is sent chunked.
+     * Once the stream ends the last chunk follows the final data, so the buffer then holds the rest of the body.
+     * @param stream body of unknown length, in blocking mode.
+     * @param chunked whether to frame the data as chunks, otherwise it is copied as it is.
+     * @param buf buffer of at least CHUNK_BUFFER bytes and no more than 64KB, cleared first.
+     * @return true if the stream has more to read, false once it has ended.
+     * @throws IOException if reading the stream fails.
+     */
+    public static boolean readChunk(ReadableByteChannel stream, boolean chunked, ByteBuffer buf) throws IOException {
+        buf.clear();
+        int start = chunked ? CHUNK_HEAD : 0;
+        buf.position(start).limit(buf.capacity() - (chunked ? CRLF.length + LAST_CHUNK.length : 0));
+        boolean more = true;
+        while (buf.hasRemaining()) {
+            int n = stream.read(buf);
+            if (n < 0) {
+                more = false;
+                break;
+            }
+            if (n == 0) {
+                break;
+            }
+        }
+        int length = buf.position() - start;
+        buf.limit(buf.capacity());
+        if (!chunked) {
+            buf.flip();
+            return more;
+        }
+        if (length > 0) {
+            //the size line goes right before the data, so the chunk is one contiguous run of the buffer
+            start = CHUNK_HEAD - CRLF.length;
+            buf.put(start, (byte) '\r').put(start + 1, (byte) '\n');
+            for (int v = length; v > 0; v >>>= 4) {
+                buf.put(--start, (byte) Character.forDigit(v & 0xf, 16));
+            }
+            buf.put(CRLF);
+        } else {
+            start = CHUNK_HEAD;
+        }
+        if (!more) {
+            buf.put(LAST_CHUNK);
+        }
+        buf.limit(buf.position()).position(start);
+        return more;
+    }
+
+    /**
+     * Renders the header fields in order: status line, Server, other headers, cached fields,
+     * Content-Length or Transfer-Encoding, Connection, blank line.
+     * @param response response whose header to render.
+     * @param buf buffer to render into.
+     * @return buf, positioned after the header.
+     */
+    private static ByteBuffer put(HTTPResponse response, ByteBuffer buf) {
+        int code = response.getStatusCode();
+        byte[][] statusLines = response.getProtocol().equals("HTTP/1.0") ? STATUS_10 : STATUS_11;
+        byte[] status = code >= 0 && code < statusLines.length ? statusLines[code] : null;
+        if (status != null) {
+            buf.put(status);
+        } else {
+            putAscii(buf, response.getProtocol());
+            buf.put((byte) ' ');
+            putLong(buf, code);
+            buf.put((byte) ' ');
+            putAscii(buf, response.getReason());
+            buf.put(CRLF);
+        }
+        buf.put(SERVER);
+
+        List<String> names = response.getHeaderNames();
+        List<String> values = response.getHeaderValues();
+        for (int i = 0; i < names.size(); i++) {
+            putAscii(buf, names.get(i));
+            buf.put(COLON);
+            putAscii(buf, values.get(i));
+            buf.put(CRLF);
+        }
+
+        buf.put(response.getCachedFields());
+        if (response.getContentLength() >= 0) {
+            buf.put(CONTENT_LENGTH);
+            putLong(buf, response.getContentLength());
+            buf.put(CRLF);
+        } else if (response.isChunked()) {
+            buf.put(CHUNKED);
+        }
+        buf.put(response.isKeepAlive() ? KEEP_ALIVE : CLOSE);
+        buf.put(CRLF);
+        return buf;
+    }
+
+    /**
+     * Writes a String as single bytes, which is exact for the ASCII and Latin-1 text of header fields.
+     * @param buf buffer to write into.
+     * @param s text to write.
+     */
+    private static void putAscii(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buf.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a non-negative number as ASCII digits.
+     * @param buf buffer to write into.
+     * @param value number to write.
+     */
+    private static void putLong(ByteBuffer buf, long value) {
+        if (value == 0) {
+            buf.put((byte) '0');
+            return;
+        }
+        int start = buf.position();
+        while (value > 0) {
+            buf.put((byte) ('0' + (value % 10)));
+            value /= 10;
+        }
+        //digits were written least significant first, reverse them in place
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+            byte tmp = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, tmp);
+        }
+    }
+
+    /**
+     * Encodes a constant.
+     * @param s ASCII text.
+     * @return bytes of s.
+     */
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,871 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class which forwards requests under configured path prefixes to HTTP/1.1 backends, so the server can sit
+ * in front of application servers as well as serve files. Paths matching no route, or routed to "static",
+ * are served from the document root as before.
+ * Each backend keeps a pool of idle keep-alive connections, newest first, so a busy proxy opens a
+ * connection per concurrent request rather than per request. Connections idle longer than backends
+ * commonly keep them are dropped instead of reused, and a bodiless request which fails on a reused
+ * connection before any reply is retried once on a new one.
+ * Response bodies are relayed as they arrive through a small buffer, never held whole, except ones the
+ * cache stores. Request bodies are streamed to the backend as an Upload, so the engines feed them alike.
+ * Backend I/O is blocking with a timeout, so ServerConfig only accepts backend routes with the blocking engine.
+ */
+public class ReverseProxy {
+
+    //largest backend response head, and how long an idle connection is trusted, below the 5s many backends use
+    private static final int HEAD_BUFFER = 16384;
+    private static final long MAX_IDLE_NANOS = 4_000_000_000L;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList("connection", "keep-alive",
+            "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding",
+            "upgrade"));
+
+    private Map<String, Backend> routes = new LinkedHashMap<>();
+    private int poolSize;
+    private int timeout;
+    private ProxyCache cache;
+
+    private LongAdder forwarded = new LongAdder();
+    private LongAdder opened = new LongAdder();
+    private LongAdder reused = new LongAdder();
+    private LongAdder failures = new LongAdder();
+
+    /**
+     * Constructor for class. Routes to the same address share one backend and its pool, and the response
+     * cache is created unless its budget is zero.
+     * @param config server options including proxy routes, pool size, timeout and cache budget.
+     */
+    public ReverseProxy(ServerConfig config) {
+        this.poolSize = config.getProxyPool();
+        this.timeout = config.getProxyTimeout();
+        Map<String, Backend> backends = new HashMap<>();
+        for (Map.Entry<String, String> route : config.getProxyRoutes().entrySet()) {
+            String target = route.getValue();
+            Backend backend = null;
+            if (!target.equals("static")) {
+                backend = backends.computeIfAbsent(target, Backend::new);
+            }
+            this.routes.put(route.getKey(), backend);
+        }
+        if (config.getProxyCacheBytes() > 0) {
+            this.cache = new ProxyCache(config.getProxyCacheBytes(), config.getProxyCacheMaxFile());
+        }
+    }
+
+    /**
+     * Whether a path is forwarded to a backend.
+     * @param path decoded request path.
+     * @return true if the longest route prefix matching the path names a backend.
+     */
+    public boolean routes(String path) {
+        return this.backend(path) != null;
+    }
+
+    /**
+     * Forwards a request without a body, answering GET and HEAD from the cache when it holds a fresh copy.
+     * Concurrent cache misses for one target wait for the first to fetch it rather than all asking the backend.
+     * A GET with a Range header always goes to the backend, which answers the range itself, since the cache
+     * only holds whole bodies.
+     * @param request routed client request.
+     * @param keepAlive whether the client connection may stay open.
+     * @return backend's response, with its body streamed unless it came from the cache, or 502 or 504 if the
+     *     backend could not be reached or did not answer in time.
+     */
+    public HTTPResponse forward(HTTPRequest request, boolean keepAlive) {
+        Backend backend = this.backend(request.getPath());
+        boolean head = request.getMethod().equals("HEAD");
+        String cacheControl = request.getHeader("cache-control");
+        if (cache == null || (!head && !request.getMethod().equals("GET"))
+                || (cacheControl != null && HTTPRequest.hasToken(cacheControl, "no-store"))
+                || (!head && request.getHeader("range") != null)) {
+            return this.fetch(backend, request, keepAlive, null);
+        }
+        String key = backend.name + request.getTarget();
+        if (ProxyCache.bypass(request)) {
+            return this.fetch(backend, request, keepAlive, head ? null : key);
+        }
+        ProxyCache.Entry entry = cache.get(key, System.currentTimeMillis());
+        if (entry != null) {
+            return entry.toResponse(request.getVersion(), head, keepAlive, System.currentTimeMillis());
+        }
+        if (head) {
+            return this.fetch(backend, request, keepAlive, null);
+        }
+        CompletableFuture<ProxyCache.Entry> flight = cache.join(key);
+        if (flight == null) {
+            try {
+                return this.fetch(backend, request, keepAlive, key);
+            } finally {
+                cache.land(key);
+            }
+        }
+        try {
+            entry = flight.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            //the leader is slow or failed, ask the backend directly
+        }
+        if (entry != null) {
+            return entry.toResponse(request.getVersion(), false, keepAlive, System.currentTimeMillis());
+        }
+        return this.fetch(backend, request, keepAlive, null);
+    }
+
+    /**
+     * Opens the exchange for a request with a body, sending its head to the backend straight away so the body
+     * can follow as the engine receives it.
+     * @param request routed client request.
+     * @param body decoder of the request body, null if the request has none.
+     * @param keepAlive whether the client connection may stay open.
+     * @return upload feeding the body to the backend, or one holding 502 or 504 if it could not be reached.
+     */
+    public Upload startExchange(HTTPRequest request, RequestBody body, boolean keepAlive) {
+        Backend backend = this.backend(request.getPath());
+        forwarded.increment();
+        Connection conn = null;
+        try {
+            conn = backend.acquire();
+            long length = body == null ? -1 : body.getLength();
+            conn.writeHead(request, length, body != null && length < 0);
+            return new Exchange(backend, conn, request, body, keepAlive);
+        } catch (IOException ioe) {
+            if (conn != null) {
+                conn.close();
+            }
+            return new Upload(this.failure(backend, ioe, keepAlive && (body == null || body.isComplete())));
+        }
+    }
+
+    /**
+     * Getter method for the response cache.
+     * @return proxy response cache, or null if responses are not cached.
+     */
+    public ProxyCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Getter method for forwarded requests.
+     * @return requests sent to a backend, retries not counted again.
+     */
+    public long getForwarded() {
+        return this.forwarded.sum();
+    }
+
+    /**
+     * Getter method for opened connections.
+     * @return backend connections opened since start.
+     */
+    public long getOpened() {
+        return this.opened.sum();
+    }
+
+    /**
+     * Getter method for reused connections.
+     * @return requests sent on a pooled connection rather than a new one.
+     */
+    public long getReused() {
+        return this.reused.sum();
+    }
+
+    /**
+     * Getter method for backend failures.
+     * @return requests answered with 502 or 504.
+     */
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    /**
+     * Finds the backend of the longest route prefix matching a path.
+     * @param path decoded request path.
+     * @return backend, or null if the path is served from the document root.
+     */
+    private Backend backend(String path) {
+        for (Map.Entry<String, Backend> route : routes.entrySet()) {
+            if (path.startsWith(route.getKey())) {
+                return route.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a bodiless request to a backend and builds the response from its reply.
+     * @param backend backend the request is routed to.
+     * @param request client request.
+     * @param keepAlive whether the client connection may stay open.
+     * @param storeKey cache key to store a cacheable reply under, or null to never store it.
+     * @return backend's response, or 502 or 504.
+     */
+    private HTTPResponse fetch(Backend backend, HTTPRequest request, boolean keepAlive, String storeKey) {
+        forwarded.increment();
+        Connection conn = null;
+        try {
+            conn = backend.acquire();
+            Head head;
+            try {
+                head = conn.send(request);
+            } catch (IOException ioe) {
+                //the backend closed a pooled connection before it saw the request, so ask again on a new one
+                if (!conn.reused || conn.received || ioe instanceof SocketTimeoutException) {
+                    throw ioe;
+                }
+                conn.close();
+                conn = null;
+                conn = new Connection(backend);
+                head = conn.send(request);
+            }
+            return this.respond(conn, request, head, keepAlive, storeKey);
+        } catch (IOException ioe) {
+            if (conn != null) {
+                conn.close();
+            }
+            return this.failure(backend, ioe, keepAlive);
+        }
+    }
+
+    /**
+     * Builds the client's response from a backend response head, dropping hop-by-hop headers. A cacheable
+     * reply of known length within the cache's limit is read whole and stored; any other body is relayed
+     * as the client's response is written, and the connection goes back to the pool once it has been read.
+     * @param conn connection the head was read from.
+     * @param request client request.
+     * @param head backend response head.
+     * @param keepAlive whether the client connection may stay open.
+     * @param storeKey cache key to store a cacheable reply under, or null to never store it.
+     * @return response for the client.
+     * @throws IOException if a reply being stored cannot be read whole.
+     */
+    private HTTPResponse respond(Connection conn, HTTPRequest request, Head head, boolean keepAlive,
+            String storeKey) throws IOException {
+        List<String> names = new ArrayList<>(head.names.size());
+        List<String> values = new ArrayList<>(head.names.size());
+        String connection = head.get("connection");
+        for (int i = 0; i < head.names.size(); i++) {
+            String name = head.names.get(i).toLowerCase();
+            if (HOP_BY_HOP.contains(name) || name.equals("content-length") || name.equals("server")
+                    || (connection != null && HTTPRequest.hasToken(connection, name))) {
+                continue;
+            }
+            names.add(head.names.get(i));
+            values.add(head.values.get(i));
+        }
+        names.add("Via");
+        values.add(head.version.substring(5) + " HTTPServer");
+
+        boolean bodiless = request.getMethod().equals("HEAD") || head.status == 204 || head.status == 304;
+        long lifetime = storeKey == null || bodiless ? -1
+                : ProxyCache.lifetime(head.status, names, values, request.getHeader("authorization") != null);
+        if (lifetime > 0 && !head.chunked && head.length >= 0 && head.length <= cache.getMaxEntry()) {
+            ByteBuffer content = ByteBuffer.allocate((int) head.length);
+            UpstreamBody body = new UpstreamBody(conn, head);
+            while (content.hasRemaining()) {
+                if (body.read(content) < 0) {
+                    throw new IOException("backend body ended early");
+                }
+            }
+            long now = System.currentTimeMillis();
+            ProxyCache.Entry entry = new ProxyCache.Entry(head.status, head.reason, names, values,
+                    content.array(), now, lifetime);
+            cache.put(storeKey, entry);
+            return entry.toResponse(request.getVersion(), false, keepAlive, now);
+        }
+
+        HTTPResponse response = new HTTPResponse(request.getVersion(), head.status, head.reason);
+        for (int i = 0; i < names.size(); i++) {
+            response.addHeader(names.get(i), values.get(i));
+        }
+        if (head.length >= 0 && !head.chunked) {
+            response.setContentLength(head.length);
+        }
+        if (bodiless || (head.length == 0 && !head.chunked)) {
+            conn.backend.release(conn, head.keepAlive);
+        } else {
+            response.setStreamBody(new UpstreamBody(conn, head));
+        }
+        //without a length an HTTP/1.0 client only sees the end of the body when the connection closes
+        response.setKeepAlive(keepAlive && (response.getStreamBody() == null || response.getContentLength() >= 0
+                || !request.getVersion().equals("HTTP/1.0")));
+        return response;
+    }
+
+    /**
+     * Logs a backend failure and builds the response to send instead.
+     * @param backend backend which failed.
+     * @param ioe what went wrong.
+     * @param keepAlive whether the client connection may stay open.
+     * @return 504 if the backend timed out, otherwise 502.
+     */
+    private HTTPResponse failure(Backend backend, IOException ioe, boolean keepAlive) {
+        failures.increment();
+        System.err.println("Proxy to " + backend.name + ": " + ioe);
+        if (ioe instanceof SocketTimeoutException) {
+            return ResponseGenerator.errorResponse(504, "Gateway Timeout", keepAlive);
+        }
+        return ResponseGenerator.errorResponse(502, "Bad Gateway", keepAlive);
+    }
+
+    /**
+     * Class which holds one backend address and its pool of idle connections.
+     */
+    private final class Backend {
+
+        private final String name;
+        private final InetSocketAddress address;
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+
+        /**
+         * Constructor for class, resolving the address once.
+         * @param name backend as host:port.
+         */
+        Backend(String name) {
+            int colon = name.lastIndexOf(':');
+            this.name = name;
+            this.address = new InetSocketAddress(name.substring(0, colon), Integer.parseInt(name.substring(colon + 1)));
+        }
+
+        /**
+         * Takes the most recently used idle connection, dropping any idle too long to trust, or opens a new one.
+         * @return connection ready for a request.
+         * @throws IOException if a new connection cannot be opened in time.
+         */
+        Connection acquire() throws IOException {
+            long now = System.nanoTime();
+            Connection conn;
+            synchronized (idle) {
+                conn = idle.pollLast();
+                if (conn != null && now - conn.idleSince >= MAX_IDLE_NANOS) {
+                    //the rest are older still
+                    idle.addLast(conn);
+                    List<Connection> stale = new ArrayList<>(idle);
+                    idle.clear();
+                    conn = null;
+                    for (Connection c : stale) {
+                        c.close();
+                    }
+                }
+            }
+            if (conn == null) {
+                return new Connection(this);
+            }
+            reused.increment();
+            conn.reused = true;
+            conn.received = false;
+            return conn;
+        }
+
+        /**
+         * Returns a connection whose response has been read whole, keeping it if the pool has room.
+         * @param conn connection to return.
+         * @param reusable whether the backend allows another request on it.
+         */
+        void release(Connection conn, boolean reusable) {
+            if (reusable && !conn.buf.hasRemaining()) {
+                conn.idleSince = System.nanoTime();
+                synchronized (idle) {
+                    if (idle.size() < poolSize) {
+                        idle.addLast(conn);
+                        return;
+                    }
+                }
+            }
+            conn.close();
+        }
+    }
+
+    /**
+     * Class which holds one connection to a backend and the bytes read from it but not yet used.
+     */
+    private final class Connection {
+
+        private final Backend backend;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final ByteBuffer buf = ByteBuffer.allocate(HEAD_BUFFER);
+        private boolean reused;
+        private boolean received;
+        private long idleSince;
+
+        /**
+         * Constructor for class, connecting to the backend.
+         * @param backend backend to connect to.
+         * @throws IOException if the connection cannot be opened in time.
+         */
+        Connection(Backend backend) throws IOException {
+            this.backend = backend;
+            this.socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(backend.address, timeout);
+                socket.setSoTimeout(timeout);
+                this.in = socket.getInputStream();
+                this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            } catch (IOException ioe) {
+                socket.close();
+                throw ioe;
+            }
+            buf.flip();
+            opened.increment();
+        }
+
+        /**
+         * Sends a bodiless request and reads the head of the response.
+         * @param request client request.
+         * @return response head, interim responses skipped.
+         * @throws IOException if the backend fails, closes the connection or sends a malformed head.
+         */
+        Head send(HTTPRequest request) throws IOException {
+            this.writeHead(request, -1, false);
+            out.flush();
+            return this.readHead();
+        }
+
+        /**
+         * Writes a request head for the backend. Host names the backend, the client's Host goes in
+         * X-Forwarded-Host and the scheme it used in X-Forwarded-Proto, and hop-by-hop headers and those the
+         * client's Connection lists are left out.
+         * @param request client request.
+         * @param length Content-Length of the body to follow, or -1 if none is sent.
+         * @param chunked whether the body follows with chunked transfer coding.
+         * @throws IOException if writing fails.
+         */
+        void writeHead(HTTPRequest request, long length, boolean chunked) throws IOException {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append(request.getMethod()).append(' ').append(request.getTarget()).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(backend.name).append("\r\n");
+            String connection = request.getHeader("connection");
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                String name = header.getKey();
+                if (HOP_BY_HOP.contains(name) || name.equals("host") || name.equals("content-length")
+                        || name.equals("expect") || name.startsWith(":")
+                        || (connection != null && HTTPRequest.hasToken(connection, name))) {
+                    continue;
+                }
+                sb.append(name).append(": ").append(header.getValue()).append("\r\n");
+            }
+            String host = request.getHeader("host");
+            if (host != null) {
+                sb.append("X-Forwarded-Host: ").append(host).append("\r\n");
+            }
+            sb.append("X-Forwarded-Proto: ").append(request.isSecure() ? "https" : "http").append("\r\n");
+            sb.append("Via: ").append(request.getVersion().substring(5)).append(" HTTPServer\r\n");
+            if (chunked) {
+                sb.append("Transfer-Encoding: chunked\r\n");
+            } else if (length >= 0) {
+                sb.append("Content-Length: ").append(length).append("\r\n");
+            }
+            sb.append("\r\n");
+            out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * Reads a response head, skipping any 1xx interim responses before it. The bytes after it stay in
+         * the buffer for the body.
+         * @return response head.
+         * @throws IOException if the backend closes the connection first or the head is malformed or too large.
+         */
+        Head readHead() throws IOException {
+            while (true) {
+                int end;
+                while ((end = this.headEnd()) < 0) {
+                    if (!this.fill()) {
+                        throw new IOException("backend closed the connection before responding");
+                    }
+                }
+                String[] lines = new String(buf.array(), buf.position(), end - buf.position(),
+                        StandardCharsets.ISO_8859_1).split("\r\n");
+                buf.position(end);
+                Head head = new Head();
+                String status = lines[0];
+                if (!status.startsWith("HTTP/1.") || status.length() < 12 || status.charAt(8) != ' ') {
+                    throw new IOException("malformed status line: " + status);
+                }
+                head.version = status.substring(0, 8);
+                try {
+                    head.status = Integer.parseInt(status.substring(9, 12));
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("malformed status line: " + status);
+                }
+                head.reason = status.length() > 13 ? status.substring(13) : "";
+                if (head.status < 200) {
+                    continue;
+                }
+                for (int i = 1; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon <= 0) {
+                        throw new IOException("malformed header: " + lines[i]);
+                    }
+                    head.names.add(lines[i].substring(0, colon).trim());
+                    head.values.add(lines[i].substring(colon + 1).trim());
+                }
+                head.frame();
+                return head;
+            }
+        }
+
+        /**
+         * Finds the blank line ending a response head in the buffer.
+         * @return index just past the blank line, or -1 if it has not arrived yet.
+         */
+        private int headEnd() {
+            byte[] a = buf.array();
+            for (int i = buf.position(); i + 3 < buf.limit(); i++) {
+                if (a[i] == '\r' && a[i + 1] == '\n' && a[i + 2] == '\r' && a[i + 3] == '\n') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads more of the response into the buffer.
+         * @return false if the backend closed the connection.
+         * @throws IOException if reading fails or times out, or the buffer is full of an unfinished head.
+         */
+        boolean fill() throws IOException {
+            buf.compact();
+            if (!buf.hasRemaining()) {
+                buf.flip();
+                throw new IOException("backend response head over " + HEAD_BUFFER + " bytes");
+            }
+            int n = in.read(buf.array(), buf.position(), buf.remaining());
+            if (n > 0) {
+                buf.position(buf.position() + n);
+                received = true;
+            }
+            buf.flip();
+            return n > 0;
+        }
+
+        /**
+         * Closes the connection. Safe to call more than once.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                System.err.println("Proxy close: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Class which holds a parsed backend response head and how its body is framed.
+     */
+    private static final class Head {
+
+        private String version;
+        private int status;
+        private String reason;
+        private List<String> names = new ArrayList<>();
+        private List<String> values = new ArrayList<>();
+        private long length = -1;
+        private boolean chunked;
+        private boolean keepAlive;
+
+        /**
+         * Looks up a header, joining repeated ones.
+         * @param name header name, any case.
+         * @return value, or null if absent.
+         */
+        String get(String name) {
+            String value = null;
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    value = value == null ? values.get(i) : value + ", " + values.get(i);
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Works out the body framing and whether the connection can be reused (RFC 7230 3.3.3 and 6.3).
+         * A body with a transfer coding other than chunked runs to the end of the connection.
+         * @throws IOException if Content-Length is malformed or its values differ.
+         */
+        void frame() throws IOException {
+            String connection = get("connection");
+            keepAlive = connection == null ? version.equals("HTTP/1.1") : !HTTPRequest.hasToken(connection, "close")
+                    && (version.equals("HTTP/1.1") || HTTPRequest.hasToken(connection, "keep-alive"));
+            String transferEncoding = get("transfer-encoding");
+            if (transferEncoding != null) {
+                String[] codings = transferEncoding.split(",");
+                chunked = codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
+                keepAlive &= chunked;
+                return;
+            }
+            String contentLength = get("content-length");
+            if (contentLength == null) {
+                keepAlive = false;
+                return;
+            }
+            for (String value : contentLength.split(",")) {
+                long parsed;
+                try {
+                    parsed = Long.parseLong(value.trim());
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("malformed Content-Length: " + contentLength);
+                }
+                if (parsed < 0 || (length >= 0 && parsed != length)) {
+                    throw new IOException("malformed Content-Length: " + contentLength);
+                }
+                length = parsed;
+            }
+        }
+    }
+
+    /**
+     * Class which relays a backend response body to the response writer, decoding its framing as it goes
+     * and returning the connection to the pool once the whole body has been read.
+     */
+    private static final class UpstreamBody implements ReadableByteChannel, WritableByteChannel {
+
+        private Connection conn;
+        private final RequestBody body;
+        private final boolean reusable;
+        private ByteBuffer target;
+
+        /**
+         * Constructor for class.
+         * @param conn connection whose buffer holds the start of the body.
+         * @param head response head giving the framing.
+         */
+        UpstreamBody(Connection conn, Head head) {
+            this.conn = conn;
+            this.body = RequestBody.ofResponse(head.chunked ? -1 : head.length, head.chunked);
+            this.reusable = head.keepAlive;
+            if (body.isComplete()) {
+                conn.backend.release(conn, reusable);
+                this.conn = null;
+            }
+        }
+
+        /**
+         * Reads decoded body bytes, waiting for the backend until at least one is available.
+         * @param dst buffer to fill.
+         * @return bytes read, or -1 once the body has ended.
+         * @throws IOException if the backend fails or closes the connection before a framed body ends.
+         */
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            target = dst;
+            while (conn != null && dst.position() == start && dst.hasRemaining()) {
+                ByteBuffer buf = conn.buf;
+                boolean done;
+                try {
+                    if (!buf.hasRemaining() && !conn.fill()) {
+                        if (body.isChunked() || body.getLength() >= 0) {
+                            throw new IOException("backend closed the connection " + body.getReceived()
+                                    + " bytes into the body");
+                        }
+                        body.endOfStream();
+                    }
+                    //no more framing than the content it can carry, so the content always fits in dst
+                    ByteBuffer window = buf.duplicate();
+                    window.limit(window.position() + Math.min(window.remaining(), dst.remaining()));
+                    done = body.decode(window, this);
+                    buf.position(window.position());
+                } catch (HTTPParseException hpe) {
+                    throw new IOException("malformed chunked body from backend");
+                }
+                if (done) {
+                    conn.backend.release(conn, reusable && (body.isChunked() || body.getLength() >= 0));
+                    conn = null;
+                }
+            }
+            int n = dst.position() - start;
+            return n == 0 && conn == null ? -1 : n;
+        }
+
+        /**
+         * Takes decoded content into the buffer being read into.
+         * @param src decoded content.
+         * @return bytes taken.
+         */
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            target.put(src);
+            return n;
+        }
+
+        /**
+         * Whether the body is still being relayed.
+         * @return true until the body has ended or been closed.
+         */
+        @Override
+        public boolean isOpen() {
+            return conn != null;
+        }
+
+        /**
+         * Stops relaying, closing the connection if the body was not read to its end.
+         */
+        @Override
+        public void close() {
+            if (conn != null) {
+                conn.close();
+                conn = null;
+            }
+        }
+    }
+
+    /**
+     * Class which streams a request body to a backend as the engine receives it, then reads the response.
+     * Bodies of unknown length, eg. chunked or HTTP/2 ones, are sent to the backend chunked.
+     */
+    private final class Exchange extends Upload implements WritableByteChannel {
+
+        private final Backend backend;
+        private Connection conn;
+        private final RequestBody body;
+        private final boolean chunked;
+        private final boolean keepAlive;
+
+        /**
+         * Constructor for class, once the request head has been written.
+         * @param backend backend the request is routed to.
+         * @param conn connection the request head went out on.
+         * @param request client request.
+         * @param body decoder of the request body, null if the request has none.
+         * @param keepAlive whether the client connection may stay open.
+         */
+        Exchange(Backend backend, Connection conn, HTTPRequest request, RequestBody body, boolean keepAlive) {
+            super(request, body, keepAlive);
+            this.backend = backend;
+            this.conn = conn;
+            this.body = body;
+            this.chunked = body != null && body.getLength() < 0;
+            this.keepAlive = keepAlive;
+        }
+
+        /**
+         * Sends body bytes from a buffer to the backend.
+         * @param in buffer in read mode, advanced past the body bytes consumed.
+         * @return true once the whole body has been sent.
+         * @throws HTTPParseException if the body is malformed or too large, or 502 if the backend fails.
+         */
+        @Override
+        public boolean receive(ByteBuffer in) throws HTTPParseException {
+            if (body == null) {
+                return true;
+            }
+            try {
+                return body.decode(in, this);
+            } catch (IOException ioe) {
+                failures.increment();
+                System.err.println("Proxy to " + backend.name + ": " + ioe);
+                throw new HTTPParseException(502, "Bad Gateway");
+            }
+        }
+
+        /**
+         * Writes decoded content to the backend connection, as a chunk if the length is unknown.
+         * @param src decoded content.
+         * @return bytes written.
+         * @throws IOException if writing fails.
+         */
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            if (n == 0) {
+                return 0;
+            }
+            if (chunked) {
+                conn.out.write(Integer.toHexString(n).getBytes(StandardCharsets.US_ASCII));
+                conn.out.write(CRLF);
+            }
+            if (src.hasArray()) {
+                conn.out.write(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.limit());
+            } else {
+                byte[] copy = new byte[n];
+                src.get(copy);
+                conn.out.write(copy);
+            }
+            if (chunked) {
+                conn.out.write(CRLF);
+            }
+            return n;
+        }
+
+        /**
+         * Whether the backend connection is still open.
+         * @return true until the exchange finishes or is abandoned.
+         */
+        @Override
+        public boolean isOpen() {
+            return conn != null;
+        }
+
+        /**
+         * Ends the body and reads the backend's response, whose body is relayed like a bodiless request's.
+         * @return backend's response, or 502 or 504.
+         */
+        @Override
+        public HTTPResponse finish() {
+            try {
+                if (chunked) {
+                    conn.out.write(LAST_CHUNK);
+                }
+                conn.out.flush();
+                HTTPResponse response = respond(conn, this.getRequest(), conn.readHead(), keepAlive, null);
+                conn = null;
+                return response;
+            } catch (IOException ioe) {
+                this.abort();
+                return failure(backend, ioe, keepAlive);
+            }
+        }
+
+        /**
+         * Abandons the exchange, closing the backend connection. Safe to call more than once, and after finish.
+         */
+        @Override
+        public void abort() {
+            this.close();
+        }
+
+        /**
+         * Closes the backend connection unless it has been handed on.
+         */
+        @Override
+        public void close() {
+            if (conn != null) {
+                conn.close();
+                conn = null;
+            }
+        }
+    }
+}
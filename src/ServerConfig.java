@@ -0,0 +1,925 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class which holds the startup options for the server.
+ * The document root and port are required, all other options are given
+ * on the command line in the form --name=value and have sensible defaults.
+ */
+public class ServerConfig {
+
+    private String directoryPath;
+    private int port;
+    private String engine = "blocking";
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int acceptors = 1;
+    private String workerMode = "pool";
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 4;
+    private int workerQueue = 256;
+    private int keepAliveTimeout = 5000;
+    private long headerTimeout = 10000;
+    private long writeTimeout = 30000;
+    private long drainTimeout = 10000;
+    private int maxRequests = 100;
+    private int maxRequestLine = 8192;
+    private int maxHeaderBytes = 16384;
+    private boolean uploads;
+    private long maxBody = 100L * 1024 * 1024;
+    private long bodyTimeout = 30000;
+    private boolean adaptiveConcurrency;
+    private int concurrencyMin = 16;
+    private int concurrencyMax = 1000;
+    private double latencyTolerance = 2.0;
+    private double rateLimit;
+    private double rateBurst;
+    private boolean http2 = true;
+    private int h2MaxStreams = 100;
+    private String logFile = "HTTPLog.log";
+    private String logFormat = "combined";
+    private int logBuffer = 8192;
+    private long logFlushMillis = 1000;
+    private String logWhenFull = "drop";
+    private long logMaxBytes = 10L * 1024 * 1024;
+    private int logKeep = 5;
+    private long cacheBytes = 64L * 1024 * 1024;
+    private long cacheMaxFile = 1024 * 1024;
+    private long cacheRevalidate = 1000;
+    private boolean index = true;
+    private long mmapBytes;
+    private boolean leakDetection;
+    private long mmapMinFile = 1024 * 1024;
+    private boolean compress = true;
+    private long compressMin = 1024;
+    private long compressCache = 16L * 1024 * 1024;
+    private int compressLevel = 6;
+    private Map<String, String> cacheControl = new LinkedHashMap<>();
+    private String metricsPath = "/server-metrics";
+    private Map<String, String> proxyRoutes = new LinkedHashMap<>();
+    private int proxyPool = 8;
+    private int proxyTimeout = 30000;
+    private long proxyCacheBytes = 16L * 1024 * 1024;
+    private long proxyCacheMaxFile = 1024 * 1024;
+    private boolean tls;
+    private String tlsKeystore;
+    private String tlsPassword = "";
+    private int tlsSessionCache = 20480;
+    private int tlsSessionTtl = 86400;
+    private List<String> tlsProtocols = Arrays.asList("TLSv1.3", "TLSv1.2");
+
+    /**
+     * Constructor for class. Stores required options, all others take defaults.
+     * @param directoryPath path of directory which contains files that can be shared.
+     * @param port port for server to listen and be accessed on.
+     */
+    public ServerConfig(String directoryPath, int port) {
+        this.directoryPath = directoryPath;
+        this.port = port;
+    }
+
+    /**
+     * Builds a config from command line arguments.
+     * First two arguments are document root and port, any after that are --name=value options.
+     * @param args command line arguments.
+     * @return config holding parsed options.
+     * @throws IllegalArgumentException if an option is unknown or malformed, or options do not go together.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig(args[0], Integer.parseInt(args[1]));
+
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Malformed option: " + arg);
+            }
+            config.setOption(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        //backend I/O blocks, and on an event loop one slow backend would hold up every connection of the loop
+        if (config.engine.equals("nio") && !config.proxyRoutes.values().stream().allMatch("static"::equals)) {
+            throw new IllegalArgumentException("--proxy needs --engine=blocking");
+        }
+
+        return config;
+    }
+
+    /**
+     * Sets a single named option.
+     * @param name option name without leading dashes.
+     * @param value option value as given on the command line.
+     * @throws IllegalArgumentException if option is unknown or value is invalid.
+     */
+    public void setOption(String name, String value) {
+        switch (name) {
+            case "engine":
+                this.engine = oneOf(name, value, "blocking", "nio");
+                break;
+            case "loops":
+                this.eventLoops = positiveInt(name, value);
+                break;
+            case "acceptors":
+                this.acceptors = positiveInt(name, value);
+                break;
+            case "workers":
+                this.workerMode = oneOf(name, value, "pool", "virtual");
+                break;
+            case "threads":
+                this.workerThreads = positiveInt(name, value);
+                break;
+            case "queue":
+                this.workerQueue = positiveInt(name, value);
+                break;
+            case "keepalive-timeout":
+                this.keepAliveTimeout = positiveInt(name, value);
+                break;
+            case "header-timeout":
+                this.headerTimeout = positiveInt(name, value);
+                break;
+            case "write-timeout":
+                this.writeTimeout = positiveInt(name, value);
+                break;
+            case "drain-timeout":
+                this.drainTimeout = nonNegativeLong(name, value);
+                break;
+            case "max-requests":
+                this.maxRequests = positiveInt(name, value);
+                break;
+            case "max-request-line":
+                this.maxRequestLine = positiveInt(name, value);
+                break;
+            case "max-header-bytes":
+                this.maxHeaderBytes = positiveInt(name, value);
+                break;
+            case "uploads":
+                this.uploads = oneOf(name, value, "on", "off").equals("on");
+                break;
+            case "max-body":
+                this.maxBody = nonNegativeLong(name, value);
+                break;
+            case "body-timeout":
+                this.bodyTimeout = positiveInt(name, value);
+                break;
+            case "concurrency-limit":
+                this.adaptiveConcurrency = oneOf(name, value, "adaptive", "off").equals("adaptive");
+                break;
+            case "concurrency-min":
+                this.concurrencyMin = positiveInt(name, value);
+                break;
+            case "concurrency-max":
+                this.concurrencyMax = positiveInt(name, value);
+                break;
+            case "latency-tolerance":
+                this.latencyTolerance = Double.parseDouble(value);
+                if (!(this.latencyTolerance >= 1)) {
+                    throw new IllegalArgumentException(name + " must be at least 1");
+                }
+                break;
+            case "rate-limit":
+                this.rateLimit = nonNegativeLong(name, value);
+                break;
+            case "rate-burst":
+                this.rateBurst = nonNegativeLong(name, value);
+                break;
+            case "http2":
+                this.http2 = oneOf(name, value, "on", "off").equals("on");
+                break;
+            case "h2-max-streams":
+                this.h2MaxStreams = positiveInt(name, value);
+                break;
+            case "log-file":
+                this.logFile = value;
+                break;
+            case "log-format":
+                this.logFormat = oneOf(name, value, "common", "combined");
+                break;
+            case "log-buffer":
+                this.logBuffer = positiveInt(name, value);
+                break;
+            case "log-flush":
+                this.logFlushMillis = positiveInt(name, value);
+                break;
+            case "log-when-full":
+                this.logWhenFull = oneOf(name, value, "drop", "block");
+                break;
+            case "log-max-bytes":
+                this.logMaxBytes = nonNegativeLong(name, value);
+                break;
+            case "log-keep":
+                this.logKeep = positiveInt(name, value);
+                break;
+            case "cache-bytes":
+                this.cacheBytes = nonNegativeLong(name, value);
+                break;
+            case "cache-max-file":
+                this.cacheMaxFile = nonNegativeLong(name, value);
+                break;
+            case "cache-revalidate":
+                this.cacheRevalidate = nonNegativeLong(name, value);
+                break;
+            case "index":
+                this.index = oneOf(name, value, "on", "off").equals("on");
+                break;
+            case "leak-detection":
+                this.leakDetection = oneOf(name, value, "on", "off").equals("on");
+                break;
+            case "mmap-bytes":
+                this.mmapBytes = nonNegativeLong(name, value);
+                break;
+            case "mmap-min-file":
+                this.mmapMinFile = nonNegativeLong(name, value);
+                break;
+            case "compress":
+                this.compress = oneOf(name, value, "on", "off").equals("on");
+                break;
+            case "compress-min":
+                this.compressMin = nonNegativeLong(name, value);
+                break;
+            case "compress-cache":
+                this.compressCache = nonNegativeLong(name, value);
+                break;
+            case "compress-level":
+                this.compressLevel = positiveInt(name, value);
+                if (this.compressLevel > 9) {
+                    throw new IllegalArgumentException(name + " must be between 1 and 9");
+                }
+                break;
+            case "cache-control":
+                this.cacheControl = cacheControlRules(name, value);
+                break;
+            case "metrics-path":
+                if (!value.isEmpty() && !value.startsWith("/")) {
+                    throw new IllegalArgumentException(name + " must start with /");
+                }
+                this.metricsPath = value;
+                break;
+            case "proxy":
+                this.proxyRoutes = proxyRoutes(name, value);
+                break;
+            case "proxy-pool":
+                this.proxyPool = positiveInt(name, value);
+                break;
+            case "proxy-timeout":
+                this.proxyTimeout = positiveInt(name, value);
+                break;
+            case "proxy-cache-bytes":
+                this.proxyCacheBytes = nonNegativeLong(name, value);
+                break;
+            case "proxy-cache-max-file":
+                this.proxyCacheMaxFile = nonNegativeLong(name, value);
+                break;
+            case "tls":
+                this.tls = oneOf(name, value, "on", "off").equals("on");
+                break;
+            case "tls-keystore":
+                this.tlsKeystore = value.isEmpty() ? null : value;
+                break;
+            case "tls-password":
+                this.tlsPassword = value;
+                break;
+            case "tls-session-cache":
+                this.tlsSessionCache = (int) Math.min(Integer.MAX_VALUE, nonNegativeLong(name, value));
+                break;
+            case "tls-session-ttl":
+                this.tlsSessionTtl = (int) Math.min(Integer.MAX_VALUE, nonNegativeLong(name, value));
+                break;
+            case "tls-protocols":
+                List<String> protocols = new ArrayList<>();
+                for (String protocol : value.split(",")) {
+                    if (!protocol.trim().startsWith("TLSv")) {
+                        throw new IllegalArgumentException(name + " must list TLS versions, eg. TLSv1.3,TLSv1.2");
+                    }
+                    protocols.add(protocol.trim());
+                }
+                this.tlsProtocols = protocols;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    /**
+     * Checks an option value against the allowed choices.
+     * @param name option name, used in error message.
+     * @param value option value.
+     * @param choices allowed values.
+     * @return value, if allowed.
+     */
+    private static String oneOf(String name, String value, String... choices) {
+        for (String choice : choices) {
+            if (choice.equals(value)) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException(name + " must be one of " + String.join(", ", choices));
+    }
+
+    /**
+     * Parses a list of PREFIX=SECONDS rules into Cache-Control values, longest prefix first
+     * so the first matching rule is the most specific one.
+     * @param name option name, used in error message.
+     * @param value comma separated rules, eg. /static/=86400,/=0.
+     * @return map of path prefix to Cache-Control header value.
+     */
+    private static Map<String, String> cacheControlRules(String name, String value) {
+        List<String> rules = new ArrayList<>();
+        for (String rule : value.split(",")) {
+            if (!rule.isEmpty()) {
+                rules.add(rule);
+            }
+        }
+        rules.sort((a, b) -> b.lastIndexOf('=') - a.lastIndexOf('='));
+
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String rule : rules) {
+            int equals = rule.lastIndexOf('=');
+            if (equals <= 0 || !rule.startsWith("/")) {
+                throw new IllegalArgumentException(name + " rules must look like /prefix=seconds");
+            }
+            long maxAge = nonNegativeLong(name, rule.substring(equals + 1));
+            parsed.put(rule.substring(0, equals), "max-age=" + maxAge);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a list of PREFIX=HOST:PORT routes, or PREFIX=static for paths served from the document root,
+     * longest prefix first so the first matching route is the most specific one.
+     * @param name option name, used in error message.
+     * @param value comma separated routes, eg. /api/=127.0.0.1:8081,/api/docs/=static.
+     * @return map of path prefix to backend address or "static".
+     */
+    private static Map<String, String> proxyRoutes(String name, String value) {
+        List<String> routes = new ArrayList<>();
+        for (String route : value.split(",")) {
+            if (!route.isEmpty()) {
+                routes.add(route);
+            }
+        }
+        routes.sort((a, b) -> b.indexOf('=') - a.indexOf('='));
+
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String route : routes) {
+            int equals = route.indexOf('=');
+            String target = route.substring(equals + 1);
+            int colon = target.lastIndexOf(':');
+            if (equals <= 0 || !route.startsWith("/") || (!target.equals("static") && colon <= 0)) {
+                throw new IllegalArgumentException(name + " routes must look like /prefix=host:port or /prefix=static");
+            }
+            if (!target.equals("static")) {
+                positiveInt(name, target.substring(colon + 1));
+            }
+            parsed.put(route.substring(0, equals), target);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a strictly positive integer option.
+     * @param name option name, used in error message.
+     * @param value option value.
+     * @return parsed value.
+     */
+    private static int positiveInt(String name, String value) {
+        int parsed = Integer.parseInt(value);
+        if (parsed <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a zero or positive long option.
+     * @param name option name, used in error message.
+     * @param value option value.
+     * @return parsed value.
+     */
+    private static long nonNegativeLong(String name, String value) {
+        long parsed = Long.parseLong(value);
+        if (parsed < 0) {
+            throw new IllegalArgumentException(name + " must not be negative");
+        }
+        return parsed;
+    }
+
+    /**
+     * Usage text for options accepted by fromArgs.
+     * @return multi-line usage String.
+     */
+    public static String usage() {
+        return "Usage: java WebServerMain <document_root> <port> [options]\n"
+                + "  --engine=blocking|nio    thread per connection or Selector event loops (blocking)\n"
+                + "  --loops=N                nio event loop threads (one per core)\n"
+                + "  --acceptors=N            SO_REUSEPORT listeners, each with own workers, blocking engine (1)\n"
+                + "  --workers=pool|virtual   bounded thread pool or virtual thread per connection (pool)\n"
+                + "  --threads=N              pool worker threads (4 x cores)\n"
+                + "  --queue=N                pool queue length before answering 503 (256)\n"
+                + "  --keepalive-timeout=MS   close keep-alive connections idle this long (5000)\n"
+                + "  --header-timeout=MS      time allowed to send a complete request head before 408 (10000)\n"
+                + "  --write-timeout=MS       close a connection whose response makes no progress this long (30000)\n"
+                + "  --drain-timeout=MS       on shutdown, how long requests in flight may take to finish (10000)\n"
+                + "  --max-requests=N         requests served on one connection before closing (100)\n"
+                + "  --max-request-line=N     longest request line before answering 414 (8192)\n"
+                + "  --max-header-bytes=N     most header bytes before answering 431 (16384)\n"
+                + "  --uploads=on|off         accept PUT and POST bodies as files under the document root (off)\n"
+                + "  --max-body=N             largest request body before answering 413 (100MB)\n"
+                + "  --body-timeout=MS        answer 408 when a request body makes no progress this long (30000)\n"
+                + "  --concurrency-limit=adaptive|off  answer 503 past a latency-driven in-flight request limit (off)\n"
+                + "  --concurrency-min=N      lowest, and starting, concurrency limit (16)\n"
+                + "  --concurrency-max=N      highest concurrency limit (1000)\n"
+                + "  --latency-tolerance=X    latency rise over the long-term average before the limit shrinks (2.0)\n"
+                + "  --rate-limit=N           requests per second per client address before answering 429, 0 off (0)\n"
+                + "  --rate-burst=N           requests a client may send at once, 0 for twice the rate (0)\n"
+                + "  --proxy=PREFIX=HOST:PORT,...  send paths under PREFIX to an HTTP/1.1 backend, or =static,\n"
+                + "                           blocking engine only (none)\n"
+                + "  --proxy-pool=N           idle keep-alive connections kept per backend (8)\n"
+                + "  --proxy-timeout=MS       backend connect and read timeout before answering 504 (30000)\n"
+                + "  --proxy-cache-bytes=N    cache for backend responses which allow it, 0 disables (16MB)\n"
+                + "  --proxy-cache-max-file=N largest backend response cached (1MB)\n"
+                + "  --tls=on|off             serve HTTPS instead of plain HTTP on the port (off)\n"
+                + "  --tls-keystore=PATH      PKCS12 or .jks keystore holding the server key, else self-signed (none)\n"
+                + "  --tls-password=S         password of the keystore and its key (empty)\n"
+                + "  --tls-session-cache=N    TLS sessions kept for resumption, 0 for no limit (20480)\n"
+                + "  --tls-session-ttl=S      seconds a TLS session may be resumed for, 0 for no limit (86400)\n"
+                + "  --tls-protocols=V,...    TLS versions offered (TLSv1.3,TLSv1.2)\n"
+                + "  --http2=on|off           HTTP/2 by prior knowledge or Upgrade: h2c, or by ALPN with --tls (on)\n"
+                + "  --h2-max-streams=N       concurrent streams allowed on one HTTP/2 connection (100)\n"
+                + "  --log-file=PATH          access log file (HTTPLog.log)\n"
+                + "  --log-format=common|combined  access log line format (combined)\n"
+                + "  --log-buffer=N           access log entries queued for the writer thread (8192)\n"
+                + "  --log-flush=MS           longest time an entry waits before being written (1000)\n"
+                + "  --log-when-full=drop|block  what handlers do when the log queue is full (drop)\n"
+                + "  --log-max-bytes=N        rotate the log at this size, 0 never rotates (10MB)\n"
+                + "  --log-keep=N             rotated log files kept (5)\n"
+                + "  --cache-bytes=N          content cache budget in bytes, 0 disables (64MB)\n"
+                + "  --cache-max-file=N       largest file kept in the content cache (1MB)\n"
+                + "  --cache-revalidate=MS    how long a cached file is trusted before re-checking it (1000)\n"
+                + "  --index=on|off           keep document root metadata in memory, updated by file watch (on)\n"
+                + "  --mmap-bytes=N           memory-map large files up to this many bytes in total, 0 disables (0)\n"
+                + "  --mmap-min-file=N        smallest file which is memory-mapped (1MB)\n"
+                + "  --leak-detection=on|off  report pooled buffers never returned to the pool, slow (off)\n"
+                + "  --compress=on|off        gzip/deflate responses for clients which accept them (on)\n"
+                + "  --compress-min=N         smallest body compressed on the fly (1024)\n"
+                + "  --compress-cache=N       bytes of compressed variants kept in memory (16MB)\n"
+                + "  --compress-level=N       deflate level from 1 (fastest) to 9 (smallest) (6)\n"
+                + "  --cache-control=P=S,...  Cache-Control max-age of S seconds for paths under prefix P (none)\n"
+                + "  --metrics-path=PATH      path serving Prometheus metrics, empty disables (/server-metrics)";
+    }
+
+    /**
+     * Getter method for directory path.
+     * @return directory path as a String.
+     */
+    public String getDirectoryPath() {
+        return this.directoryPath;
+    }
+
+    /**
+     * Getter method for port.
+     * @return port to listen on.
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Getter method for engine.
+     * @return "blocking" or "nio".
+     */
+    public String getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * Getter method for number of nio event loop threads.
+     * @return number of event loops.
+     */
+    public int getEventLoops() {
+        return this.eventLoops;
+    }
+
+    /**
+     * Getter method for number of acceptor shards.
+     * @return number of listening sockets, each with its own accept thread and workers.
+     */
+    public int getAcceptors() {
+        return this.acceptors;
+    }
+
+    /**
+     * Getter method for worker mode.
+     * @return "pool" or "virtual".
+     */
+    public String getWorkerMode() {
+        return this.workerMode;
+    }
+
+    /**
+     * Getter method for number of pool worker threads.
+     * @return number of worker threads.
+     */
+    public int getWorkerThreads() {
+        return this.workerThreads;
+    }
+
+    /**
+     * Getter method for pool queue length.
+     * @return number of connections which may wait for a worker.
+     */
+    public int getWorkerQueue() {
+        return this.workerQueue;
+    }
+
+    /**
+     * Getter method for keep-alive idle timeout.
+     * @return milliseconds an idle connection is kept open.
+     */
+    public int getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+
+    /**
+     * Getter method for request head timeout.
+     * @return milliseconds allowed from the start of a request, or from connecting, to the end of its head.
+     */
+    public long getHeaderTimeout() {
+        return this.headerTimeout;
+    }
+
+    /**
+     * Getter method for response write timeout.
+     * @return milliseconds a response may go without any bytes being accepted by the client.
+     */
+    public long getWriteTimeout() {
+        return this.writeTimeout;
+    }
+
+    /**
+     * Getter method for shutdown drain deadline.
+     * @return milliseconds connections are given to finish before being closed on shutdown.
+     */
+    public long getDrainTimeout() {
+        return this.drainTimeout;
+    }
+
+    /**
+     * Getter method for request limit per connection.
+     * @return number of requests served before the connection is closed.
+     */
+    public int getMaxRequests() {
+        return this.maxRequests;
+    }
+
+    /**
+     * Getter method for request line limit.
+     * @return longest request line accepted in bytes.
+     */
+    public int getMaxRequestLine() {
+        return this.maxRequestLine;
+    }
+
+    /**
+     * Getter method for header size limit.
+     * @return most header bytes accepted after the request line.
+     */
+    public int getMaxHeaderBytes() {
+        return this.maxHeaderBytes;
+    }
+
+    /**
+     * Getter method for upload switch.
+     * @return true if PUT and POST requests store their bodies under the document root.
+     */
+    public boolean isUploads() {
+        return this.uploads;
+    }
+
+    /**
+     * Getter method for request body limit.
+     * @return most request body bytes accepted.
+     */
+    public long getMaxBody() {
+        return this.maxBody;
+    }
+
+    /**
+     * Getter method for body timeout.
+     * @return milliseconds a request body may go without progress before 408.
+     */
+    public long getBodyTimeout() {
+        return this.bodyTimeout;
+    }
+
+    /**
+     * Getter method for the adaptive concurrency limit switch.
+     * @return true if requests beyond the concurrency limit are answered with 503.
+     */
+    public boolean isAdaptiveConcurrency() {
+        return this.adaptiveConcurrency;
+    }
+
+    /**
+     * Getter method for the lowest concurrency limit.
+     * @return lowest number of requests allowed in flight, also the starting limit.
+     */
+    public int getConcurrencyMin() {
+        return this.concurrencyMin;
+    }
+
+    /**
+     * Getter method for the highest concurrency limit.
+     * @return highest number of requests allowed in flight.
+     */
+    public int getConcurrencyMax() {
+        return this.concurrencyMax;
+    }
+
+    /**
+     * Getter method for latency tolerance.
+     * @return multiple of the long-term average latency a window may reach before the limit shrinks.
+     */
+    public double getLatencyTolerance() {
+        return this.latencyTolerance;
+    }
+
+    /**
+     * Getter method for the per-client rate limit.
+     * @return requests per second allowed to each client address, 0 if unlimited.
+     */
+    public double getRateLimit() {
+        return this.rateLimit;
+    }
+
+    /**
+     * Getter method for the per-client burst.
+     * @return requests a client may send at once after being quiet.
+     */
+    public double getRateBurst() {
+        return this.rateBurst > 0 ? this.rateBurst : this.rateLimit * 2;
+    }
+
+    /**
+     * Getter method for proxy routes.
+     * @return map of path prefix to backend host:port or "static", longest prefix first, empty if not a proxy.
+     */
+    public Map<String, String> getProxyRoutes() {
+        return this.proxyRoutes;
+    }
+
+    /**
+     * Getter method for the upstream connection pool size.
+     * @return idle keep-alive connections kept per backend.
+     */
+    public int getProxyPool() {
+        return this.proxyPool;
+    }
+
+    /**
+     * Getter method for the upstream timeout.
+     * @return milliseconds allowed to connect to a backend, and for each read from it.
+     */
+    public int getProxyTimeout() {
+        return this.proxyTimeout;
+    }
+
+    /**
+     * Getter method for the proxy cache budget.
+     * @return body bytes the proxy response cache may hold, 0 if responses are not cached.
+     */
+    public long getProxyCacheBytes() {
+        return this.proxyCacheBytes;
+    }
+
+    /**
+     * Getter method for the largest cached proxy response.
+     * @return largest response body the proxy cache keeps.
+     */
+    public long getProxyCacheMaxFile() {
+        return this.proxyCacheMaxFile;
+    }
+
+    /**
+     * Getter method for TLS switch.
+     * @return true if connections are served over TLS.
+     */
+    public boolean isTls() {
+        return this.tls;
+    }
+
+    /**
+     * Getter method for TLS keystore.
+     * @return path of keystore holding the server key, or null to generate a self-signed one.
+     */
+    public String getTlsKeystore() {
+        return this.tlsKeystore;
+    }
+
+    /**
+     * Getter method for TLS keystore password.
+     * @return password of the keystore and its key.
+     */
+    public String getTlsPassword() {
+        return this.tlsPassword;
+    }
+
+    /**
+     * Getter method for TLS session cache size.
+     * @return sessions kept for resumption, 0 for no limit.
+     */
+    public int getTlsSessionCache() {
+        return this.tlsSessionCache;
+    }
+
+    /**
+     * Getter method for TLS session lifetime.
+     * @return seconds a session may be resumed for, 0 for no limit.
+     */
+    public int getTlsSessionTtl() {
+        return this.tlsSessionTtl;
+    }
+
+    /**
+     * Getter method for TLS protocol versions.
+     * @return versions offered, most preferred first.
+     */
+    public List<String> getTlsProtocols() {
+        return this.tlsProtocols;
+    }
+
+    /**
+     * Getter method for HTTP/2 switch.
+     * @return true if clients may speak HTTP/2.
+     */
+    public boolean isHttp2() {
+        return this.http2;
+    }
+
+    /**
+     * Getter method for HTTP/2 concurrent stream limit.
+     * @return streams a client may have open at once, advertised as SETTINGS_MAX_CONCURRENT_STREAMS.
+     */
+    public int getH2MaxStreams() {
+        return this.h2MaxStreams;
+    }
+
+    /**
+     * Getter method for access log file.
+     * @return path of access log.
+     */
+    public String getLogFile() {
+        return this.logFile;
+    }
+
+    /**
+     * Getter method for access log format.
+     * @return "common" or "combined".
+     */
+    public String getLogFormat() {
+        return this.logFormat;
+    }
+
+    /**
+     * Getter method for access log queue length.
+     * @return entries which may wait for the writer thread.
+     */
+    public int getLogBuffer() {
+        return this.logBuffer;
+    }
+
+    /**
+     * Getter method for access log flush interval.
+     * @return longest time in milliseconds an entry waits before being written.
+     */
+    public long getLogFlushMillis() {
+        return this.logFlushMillis;
+    }
+
+    /**
+     * Getter method for full log queue policy.
+     * @return "drop" or "block".
+     */
+    public String getLogWhenFull() {
+        return this.logWhenFull;
+    }
+
+    /**
+     * Getter method for access log rotation size.
+     * @return size in bytes at which the log is rotated, 0 if never.
+     */
+    public long getLogMaxBytes() {
+        return this.logMaxBytes;
+    }
+
+    /**
+     * Getter method for number of rotated logs kept.
+     * @return rotated log files kept.
+     */
+    public int getLogKeep() {
+        return this.logKeep;
+    }
+
+    /**
+     * Getter method for content cache budget.
+     * @return bytes the content cache may hold, 0 if disabled.
+     */
+    public long getCacheBytes() {
+        return this.cacheBytes;
+    }
+
+    /**
+     * Getter method for largest cacheable file.
+     * @return size in bytes above which files are always sent from disk.
+     */
+    public long getCacheMaxFile() {
+        return this.cacheMaxFile;
+    }
+
+    /**
+     * Getter method for cache revalidation interval.
+     * @return milliseconds a cached file is trusted without checking its size and mtime.
+     */
+    public long getCacheRevalidate() {
+        return this.cacheRevalidate;
+    }
+
+    /**
+     * Getter method for document index switch.
+     * @return true if the document root is indexed at startup.
+     */
+    public boolean isIndex() {
+        return this.index;
+    }
+
+    /**
+     * Getter method for mapped-bytes budget.
+     * @return total bytes of files kept memory-mapped, 0 if mapping is disabled.
+     */
+    public long getMmapBytes() {
+        return this.mmapBytes;
+    }
+
+    /**
+     * Getter method for smallest mapped file.
+     * @return size in bytes below which files are not memory-mapped.
+     */
+    public long getMmapMinFile() {
+        return this.mmapMinFile;
+    }
+
+    /**
+     * Getter method for buffer leak detection switch.
+     * @return true if pooled buffers are tracked to find ones never released.
+     */
+    public boolean isLeakDetection() {
+        return this.leakDetection;
+    }
+
+    /**
+     * Getter method for compression switch.
+     * @return true if responses may be compressed.
+     */
+    public boolean isCompress() {
+        return this.compress;
+    }
+
+    /**
+     * Getter method for compression threshold.
+     * @return smallest body size in bytes worth compressing on the fly.
+     */
+    public long getCompressMin() {
+        return this.compressMin;
+    }
+
+    /**
+     * Getter method for compressed variant cache budget.
+     * @return bytes of compressed variants kept in memory, 0 to compress every time.
+     */
+    public long getCompressCache() {
+        return this.compressCache;
+    }
+
+    /**
+     * Getter method for deflate level.
+     * @return compression level from 1 to 9.
+     */
+    public int getCompressLevel() {
+        return this.compressLevel;
+    }
+
+    /**
+     * Getter method for Cache-Control rules.
+     * @return map of path prefix to Cache-Control value, longest prefix first, empty if none.
+     */
+    public Map<String, String> getCacheControl() {
+        return this.cacheControl;
+    }
+
+    /**
+     * Getter method for metrics path.
+     * @return request path answered with metrics, empty if disabled.
+     */
+    public String getMetricsPath() {
+        return this.metricsPath;
+    }
+}
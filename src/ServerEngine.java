@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interface for the lifecycle shared by the blocking and non-blocking engines.
+ * Constructing an engine only prepares it; start binds (or adopts) the listeners and returns once
+ * connections are being accepted. Stopping first stops accepting, then lets requests in flight finish
+ * within a deadline while idle keep-alive connections are closed, and finally flushes the access log.
+ */
+public interface ServerEngine {
+
+    /**
+     * Starts accepting connections on background threads.
+     * @throws IOException if the port cannot be bound or the access log cannot be opened.
+     */
+    void start() throws IOException;
+
+    /**
+     * Stops accepting, drains connections and closes the listeners. Blocks until drained or the deadline passes,
+     * after which any connection still open is closed.
+     * @param drainMillis longest time to wait for requests in flight to finish.
+     */
+    void stop(long drainMillis);
+
+    /**
+     * Stops like stop, but leaves the listeners open and returns them so a new engine can keep accepting
+     * on them. Connections which arrive meanwhile wait in the listen backlog, so none are refused.
+     * @param drainMillis longest time to wait for requests in flight to finish.
+     * @return open listeners, to be passed to the constructor of the next engine.
+     */
+    List<ServerSocketChannel> handOff(long drainMillis);
+
+    /**
+     * Waits for the engine to finish stopping.
+     * @param timeout longest time to wait.
+     * @param unit unit of timeout.
+     * @return true if the engine has stopped, false if the timeout passed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Getter method for the port connections are accepted on, which differs from the configured one
+     * when port 0 asked for any free port.
+     * @return local port of the first listener, or -1 if not started.
+     */
+    int getLocalPort();
+}
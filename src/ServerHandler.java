@@ -1,38 +1,65 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.InvalidPathException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class which given a connection to the ServerSocket handles the connection and request.
  * Implements runnable so can be threaded.
+ * Reads and writes block, so the header, idle, write and body timeouts run on the hub's timer wheel and,
+ * when one expires, wake the blocked call by shutting down the socket's input or output.
  */
 public class ServerHandler implements Runnable {
 
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Server: HTTPServer\r\n"
+            + "Retry-After: 1\r\n"
+            + "Content-Length: 0\r\n"
+            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final int COPY_CHUNK = 65536;
+    private static final int INPUT_BUFFER = 8192;
+
     private Socket clientConn;
+    private TlsChannel tls;
     private HTTPServerHub hub;
-    private RegexReader rr;
+    private ResponseGenerator generator;
     private HTTPLogger lgr;
-    private InputStreamReader isr;
-    private BufferedReader br;
+    private InputStream is;
+    private ByteBuffer in;
+    private HTTPRequestParser parser;
+    private ByteBuffer header;
+    private Metrics metrics;
+    private long acceptedAt = System.nanoTime();
+    private long requestStart;
+    private int served;
+    private boolean idle;
+    private volatile boolean drained;
+    private HashedWheelTimer.Timeout timeout;
+    private int timeoutKind = -1;
+    private int armed;
+    private volatile int expiredKind = -1;
+    private volatile long lastProgress;
 
     /**
-     * Constructor for class. Links logger, regex class and HTTPServerHub class.
+     * Constructor for class. Links logger, response generator and HTTPServerHub class.
      * @param client client socket making a request.
      * @param hub associated HTTPServerHub class where connection originally made.
      */
     public ServerHandler(Socket client, HTTPServerHub hub) {
         this.clientConn = client;
         this.hub = hub;
-        this.rr = new RegexReader();
+        this.generator = hub.getGenerator();
         this.lgr = hub.getLgr();
+        this.metrics = hub.getGenerator().getMetrics();
     }
 
     /**
@@ -52,11 +79,11 @@ public class ServerHandler implements Runnable {
     }
 
     /**
-     * Getter method for RegexReader class.
-     * @return RegexReader class.
+     * Getter method for ResponseGenerator class.
+     * @return ResponseGenerator shared by all connections of the hub.
      */
-    public RegexReader getRr() {
-        return this.rr;
+    public ResponseGenerator getGenerator() {
+        return this.generator;
     }
 
     /**
@@ -69,203 +96,623 @@ public class ServerHandler implements Runnable {
 
     /**
      * Method which overrides run in Runnable interface.
-     * Reads request from client and responds with appropriate header and body.
-     * Consists of constituent methods from throughout class.
+     * Reads requests from client and responds to each with appropriate header and body,
+     * keeping the connection open between requests until the client closes it, goes idle,
+     * asks for close or reaches the per-connection request limit.
+     * Pipelined requests are answered in the order they arrive; each response goes to the socket
+     * channel as one gathering write, or through the output stream which is only flushed once no
+     * further request is already waiting in the input buffer.
+     * Once the hub is draining the current response is the last, and a connection waiting for its next
+     * request is closed. With admission control each request is admitted before its response is generated,
+     * or answered at once with 429 or 503, and released once written.
+     * With TLS the streams read and write through the connection's TlsChannel, and the handshake runs within
+     * the first read, under the header timeout.
      * Closes client connection in event of exception.
      */
     @Override
     public void run() {
         Socket conn = this.getClientConn();
+        ServerConfig config = this.hubGetter().getConfig();
 
-        try (PrintWriter pw = new PrintWriter(conn.getOutputStream())) {
-            String request = this.requestReader();
-            String header = this.generateResponseHeader(request);
-            RegexReader reader = this.getRr();
+        metrics.recordPhase(Metrics.ACCEPT, System.nanoTime() - acceptedAt);
+        hub.handlerStarted(this);
+        if (hub.getTls() != null) {
+            tls = new TlsChannel(conn.getChannel(), hub.getTls());
+        }
+        try (OutputStream os = new BufferedOutputStream(tls != null ? Channels.newOutputStream(tls)
+                : conn.getOutputStream())) {
             HTTPLogger lg = this.getLgr();
+            String client = conn.getInetAddress().getHostAddress();
+            boolean keepAlive = true;
+
+            while (keepAlive) {
+                HTTPRequest request;
+                try {
+                    request = this.requestReader();
+                } catch (HTTPParseException hpe) {
+                    HTTPResponse refusal = ResponseGenerator.errorResponse(hpe.getStatusCode(), hpe.getReason(),
+                            false);
+                    byte[] block = refusal.headerBytes();
+                    os.write(block);
+                    os.flush();
+                    metrics.recordResponse(refusal.getStatusCode(), block.length);
+                    break;
+                }
+                if (request == null) {
+                    break;
+                }
+                if (config.isHttp2() && Http2Connection.accepts(request, tls != null)) {
+                    this.serveHttp2(request, os, client);
+                    break;
+                }
 
-            String body = "";
-            if (reader.getRequestType(request).equals("GET")) {
-                body = this.generateResponseBody(request);
+                served++;
+                long parsed = System.nanoTime();
+                boolean allowKeepAlive = served < config.getMaxRequests() && !hub.isDraining();
+                AdmissionControl admission = generator.getAdmission();
+                HTTPResponse response = admission == null ? null : admission.admit(client, request, allowKeepAlive);
+                boolean admitted = admission != null && response == null;
+                long latency = -1;
+                try {
+                    if (response == null) {
+                        response = generator.isUpload(request)
+                                ? this.receiveUpload(request, os, allowKeepAlive)
+                                : this.getGenerator().generateResponse(request, allowKeepAlive);
+                    }
+                    keepAlive = response.isKeepAlive();
+                    long generated = System.nanoTime();
+
+                    lg.logRequest(client, request, response);
+
+                    long bytes = this.writeResponse(response, os);
+                    if (!keepAlive || in.position() == 0) {
+                        os.flush();
+                    }
+
+                    long written = System.nanoTime();
+                    metrics.recordPhase(Metrics.PARSE, parsed - requestStart);
+                    metrics.recordPhase(Metrics.LOOKUP, generated - parsed);
+                    metrics.recordPhase(Metrics.WRITE, written - generated);
+                    metrics.recordPhase(Metrics.TOTAL, written - requestStart);
+                    metrics.recordResponse(response.getStatusCode(), bytes);
+                    latency = written - requestStart;
+                    requestStart = 0;
+                } finally {
+                    if (admitted) {
+                        admission.release(latency);
+                    }
+                }
             }
 
-            String response = header + body;
-            lg.logRequest(request + header);
-
-            pw.print(response);
-            pw.flush();
-
         } catch (Exception e) {
-            System.err.println("ServerHandler run method error: " + e.getMessage());
+            if (!drained && expiredKind < 0) {
+                System.err.println("ServerHandler run method error: " + e.getMessage());
+            }
             this.cleaner();
+        } finally {
+            this.disarm();
+            hub.handlerFinished(this);
+            ResponseWriter.release(header);
+            header = null;
+            BufferPool.HEAP.release(in);
+            in = null;
+            if (parser != null) {
+                parser.release();
+                parser = null;
+            }
+            metrics.connectionClosed();
         }
     }
 
     /**
-     * Method which can be used to close client connection.
-     * Used to close connection in run method in the event of an exception.
+     * Receives the body of an upload into its file, reading it from the input buffer and the socket.
+     * 100 Continue is sent first if the client waits for it. The body timeout runs while the body arrives and
+     * is pushed back by every read, so a slow upload is fine but a stalled one is answered with 408.
+     * @param request PUT or POST request.
+     * @param os buffered socket output stream.
+     * @param allowKeepAlive false if the connection closes after this request regardless.
+     * @return response to send once the body has been stored, or refused.
+     * @throws IOException if reading from or writing to the client fails.
      */
-    private void cleaner() {
-        Socket clientConn = this.getClientConn();
+    private HTTPResponse receiveUpload(HTTPRequest request, OutputStream os, boolean allowKeepAlive)
+            throws IOException {
+        Upload upload = generator.startUpload(request, allowKeepAlive);
+        if (upload.getRejection() != null) {
+            return upload.getRejection();
+        }
+        if (in.capacity() < Upload.INPUT_BUFFER) {
+            ByteBuffer larger = BufferPool.HEAP.acquire(Upload.INPUT_BUFFER);
+            in.flip();
+            larger.put(in);
+            BufferPool.HEAP.release(in);
+            in = larger;
+        }
         try {
-            clientConn.close();
-            br.close();
-            isr.close();
-        } catch (IOException ioe) {
-            System.err.println(ioe.getMessage());
+            if (upload.expectsContinue() && in.position() == 0) {
+                os.write(ResponseWriter.CONTINUE);
+                os.flush();
+            }
+            while (true) {
+                in.flip();
+                boolean done = upload.receive(in);
+                in.compact();
+                if (done) {
+                    return upload.finish();
+                }
+                lastProgress = System.nanoTime();
+                this.arm(Metrics.BODY_TIMEOUT, this.hubGetter().getConfig().getBodyTimeout());
+                int n = is.read(in.array(), in.position(), in.remaining());
+                if (n < 0) {
+                    upload.abort();
+                    if (expiredKind == Metrics.BODY_TIMEOUT) {
+                        return ResponseGenerator.errorResponse(408, "Request Timeout", false);
+                    }
+                    throw new IOException("client closed the connection during an upload");
+                }
+                in.position(in.position() + n);
+            }
+        } catch (HTTPParseException hpe) {
+            upload.abort();
+            in.clear();
+            return ResponseGenerator.errorResponse(hpe.getStatusCode(), hpe.getReason(), false);
+        } finally {
+            this.disarm();
+            upload.abort();
         }
     }
 
     /**
-     * Method which reads HTTP request from client and returns it as a String.
-     * @return HTTP request as a String.
+     * Serves the rest of the connection as HTTP/2, after the preface or an h2c upgrade request.
+     * Input is read into a buffer large enough for a whole frame, and output goes out whenever the
+     * connection has some and no more input is already waiting, so responses of many streams share the
+     * socket. While streams are open the read waits up to the write timeout; once none are it waits up
+     * to the keep-alive timeout and the connection counts as idle for draining.
+     * @param request request which started HTTP/2.
+     * @param os buffered socket output stream, flushed before frames are written.
+     * @param client client address, for the access log.
+     * @throws IOException if reading or writing fails.
      */
-    private String requestReader() {
-        Socket client = this.getClientConn();
-
-        //uses StringBuilder so unnecessary objects not created in loop concatenation.
-        StringBuilder fullRequest = new StringBuilder();
-
+    private void serveHttp2(HTTPRequest request, OutputStream os, String client) throws IOException {
+        ServerConfig config = this.hubGetter().getConfig();
+        os.flush();
+        ByteBuffer larger = BufferPool.HEAP.acquire(Http2Connection.INPUT_BUFFER);
+        in.flip();
+        larger.put(in);
+        BufferPool.HEAP.release(in);
+        in = larger;
+        SocketChannel sc = this.getClientConn().getChannel();
+        WritableByteChannel channel = tls != null ? tls : sc != null ? sc : Channels.newChannel(os);
+
+        Http2Connection h2 = new Http2Connection(generator, lgr, config, client);
         try {
-            isr = new InputStreamReader(client.getInputStream());
-            br = new BufferedReader(isr);
-            String line = br.readLine();
+            h2.start(request);
+            while (true) {
+                in.flip();
+                h2.onInput(in);
+                in.compact();
+                if (hub.isDraining()) {
+                    h2.goAway();
+                }
+                boolean flushed;
+                this.armWrite();
+                try {
+                    flushed = h2.flush(channel, Http2Connection.WRITE_BUDGET);
+                    os.flush();
+                } finally {
+                    this.disarm();
+                }
+                if (h2.isDone()) {
+                    break;
+                }
+                if (!flushed && is.available() == 0) {
+                    continue;
+                }
 
-            while (!line.isEmpty()) {
-                fullRequest.append(line);
-                line = br.readLine();
+                boolean waiting = h2.isIdle();
+                synchronized (this) {
+                    if (waiting && hub.isDraining()) {
+                        break;
+                    }
+                    idle = waiting;
+                }
+                if (waiting) {
+                    this.arm(Metrics.IDLE_TIMEOUT, config.getKeepAliveTimeout());
+                } else {
+                    //streams blocked on flow control wait for WINDOW_UPDATE no longer than a write would
+                    this.arm(Metrics.IDLE_TIMEOUT, config.getWriteTimeout());
+                }
+                int n;
+                try {
+                    n = is.read(in.array(), in.position(), in.remaining());
+                } finally {
+                    synchronized (this) {
+                        idle = false;
+                    }
+                    this.disarm();
+                }
+                if (n < 0) {
+                    break;
+                }
+                in.position(in.position() + n);
             }
-        } catch (IOException ioe) {
-            System.err.println("Request reader error: " + ioe.getMessage());
-            this.cleaner();
+        } finally {
+            h2.release();
+        }
+    }
+
+    /**
+     * Writes header and body of a response.
+     * The header is rendered into a pooled buffer and goes out together with an in-memory body in one
+     * gathering write. File regions are then sent with FileChannel.transferTo so the kernel copies them
+     * straight to the socket, part by part for multipart bodies. A streamed body follows last, in chunks.
+     * If the socket has no channel, or the bytes must pass through TLS, everything is copied through the
+     * output stream.
+     * @param response response to write, its body file is closed afterwards.
+     * @param os buffered socket output stream.
+     * @return number of header and body bytes written.
+     * @throws IOException if writing to the client fails.
+     */
+    private long writeResponse(HTTPResponse response, OutputStream os) throws IOException {
+        SocketChannel sc = this.getClientConn().getChannel();
+        if (sc == null || tls != null) {
+            return this.streamResponse(response, os);
         }
 
-        return fullRequest.toString();
+        this.armWrite();
+        try {
+            if (header == null) {
+                header = ResponseWriter.acquire();
+            }
+            //anything still buffered in the stream must go out first
+            os.flush();
+            ByteBuffer block = ResponseWriter.encodeHeader(response, header);
+            long bytes = block.remaining() + response.getBodySize();
+            ResponseWriter.writeFully(sc, block, response.getBody());
+
+            FileChannel file = response.getBodyFile();
+            if (file != null) {
+                transferRegion(file, response.getBodyPosition(), response.getBodyLength(), sc);
+            }
+            for (HTTPResponse.Part part : response.getParts()) {
+                ResponseWriter.writeFully(sc, part.getData());
+                if (file != null) {
+                    transferRegion(file, part.getPosition(), part.getLength(), sc);
+                }
+            }
+            if (response.getStreamBody() != null) {
+                bytes += this.writeStream(response, sc);
+            }
+            return bytes;
+        } finally {
+            this.disarm();
+            response.closeBody();
+        }
     }
 
     /**
-     * Method which given a requested file name, checks its existence and returns an appropriate response code.
-     * @param fileName requested file to be checked if present.
-     * @return String containing appropriate response code
+     * Sends a region of a file to the socket with FileChannel.transferTo.
+     * @param file file to send from.
+     * @param pos offset of first byte.
+     * @param length number of bytes.
+     * @param sc socket channel.
+     * @throws IOException if the file shrank or writing fails.
      */
-    private String getResponseCode(String fileName) {
-        String filePath = this.getRequestedFilePath(fileName);
-        Path p = Paths.get(filePath);
+    private void transferRegion(FileChannel file, long pos, long length, SocketChannel sc) throws IOException {
+        long end = pos + length;
+        while (pos < end) {
+            long sent = file.transferTo(pos, end - pos, sc);
+            if (sent <= 0) {
+                throw new IOException("file shrank while being sent");
+            }
+            lastProgress = System.nanoTime();
+            pos += sent;
+        }
+    }
 
-        if (Files.exists(p)) {
-            return " 200 OK";
+    /**
+     * Writes a response through the output stream, for sockets without a channel and for TLS.
+     * Bodies are copied chunk by chunk through a pooled scratch buffer.
+     * @param response response to write, its body file is closed afterwards.
+     * @param os buffered socket output stream.
+     * @return number of header and body bytes written.
+     * @throws IOException if writing to the client fails.
+     */
+    private long streamResponse(HTTPResponse response, OutputStream os) throws IOException {
+        ByteBuffer scratch = BufferPool.HEAP.acquire(COPY_CHUNK);
+        this.armWrite();
+        try {
+            byte[] block = response.headerBytes();
+            long bytes = block.length + response.getBodySize();
+            os.write(block);
+            byte[] chunk = scratch.array();
+            copyBuffer(response.getBody(), os, chunk);
+
+            FileChannel file = response.getBodyFile();
+            if (file != null) {
+                copyRegion(file, response.getBodyPosition(), response.getBodyLength(), os, chunk);
+            }
+            for (HTTPResponse.Part part : response.getParts()) {
+                copyBuffer(part.getData(), os, chunk);
+                if (file != null) {
+                    copyRegion(file, part.getPosition(), part.getLength(), os, chunk);
+                }
+            }
+            if (response.getStreamBody() != null) {
+                bytes += this.writeStream(response, Channels.newChannel(os));
+            }
+            return bytes;
+        } finally {
+            this.disarm();
+            BufferPool.HEAP.release(scratch);
+            response.closeBody();
         }
+    }
 
-        return " 404 Not Found";
+    /**
+     * Sends a streamed body a chunk at a time through a pooled buffer, framed as chunks unless the
+     * response is to HTTP/1.0.
+     * @param response response with a streamed body.
+     * @param channel socket channel, or a channel over the output stream.
+     * @return number of body bytes written, chunk framing included.
+     * @throws IOException if reading the body or writing to the client fails.
+     */
+    private long writeStream(HTTPResponse response, WritableByteChannel channel) throws IOException {
+        ByteBuffer chunk = BufferPool.DIRECT.acquire(ResponseWriter.CHUNK_BUFFER);
+        long bytes = 0;
+        try {
+            boolean more;
+            do {
+                more = ResponseWriter.readChunk(response.getStreamBody(), response.isChunked(), chunk);
+                bytes += chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                lastProgress = System.nanoTime();
+            } while (more);
+            return bytes;
+        } finally {
+            BufferPool.DIRECT.release(chunk);
+        }
     }
 
     /**
-     * Given requested file, constructs full file path using directory path associated with server.
-     * @param fileName requested file.
-     * @return full file path as String.
+     * Copies a buffer to the output stream.
+     * @param buf buffer to copy, its position is advanced.
+     * @param os socket output stream.
+     * @param chunk scratch array.
+     * @throws IOException if writing fails.
      */
-    private String getRequestedFilePath(String fileName) {
-        HTTPServerHub linkedHub = this.hubGetter();
-        String dirPath = linkedHub.getDirectoryPath();
-        String filePath = dirPath + "/" + fileName;
+    private void copyBuffer(ByteBuffer buf, OutputStream os, byte[] chunk) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = Math.min(chunk.length, buf.remaining());
+            buf.get(chunk, 0, n);
+            os.write(chunk, 0, n);
+            lastProgress = System.nanoTime();
+        }
+    }
 
-        return filePath;
+    /**
+     * Copies a region of a file to the output stream with positional reads.
+     * @param file file to copy from.
+     * @param pos offset of first byte.
+     * @param length number of bytes.
+     * @param os socket output stream.
+     * @param chunk scratch array.
+     * @throws IOException if the file shrank or writing fails.
+     */
+    private void copyRegion(FileChannel file, long pos, long length, OutputStream os, byte[] chunk)
+            throws IOException {
+        long end = pos + length;
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        while (pos < end) {
+            buf.clear().limit((int) Math.min(chunk.length, end - pos));
+            int read = file.read(buf, pos);
+            if (read <= 0) {
+                throw new IOException("file shrank while being sent");
+            }
+            os.write(chunk, 0, read);
+            lastProgress = System.nanoTime();
+            pos += read;
+        }
     }
 
     /**
-     * Return size of requested file in bytes.
-     * @param fileName requested file.
-     * @return long which is the size of the requested file in bytes.
+     * Answers the connection with 503 and closes it without reading the request.
+     * Used when no worker is free to take the connection. Over TLS it is closed without an answer, as the
+     * handshake would hold up the acceptor.
      */
-    private long getFileSize(String fileName) {
-        String filePath = this.getRequestedFilePath(fileName);
-        long fileSize = 0;
+    public void rejectBusy() {
+        Socket conn = this.getClientConn();
+        if (hub.getTls() == null) {
+            try {
+                OutputStream os = conn.getOutputStream();
+                os.write(SERVICE_UNAVAILABLE);
+                os.flush();
+                metrics.recordResponse(503, SERVICE_UNAVAILABLE.length);
+            } catch (IOException ioe) {
+                System.err.println("rejectBusy: " + ioe.getMessage());
+            }
+        }
+        metrics.connectionRejected();
+        metrics.connectionClosed();
 
         try {
-            Path p = Paths.get(filePath);
-            fileSize = Files.size(p);
-            return fileSize;
-
-        } catch (IOException | InvalidPathException ioe) {
+            conn.close();
+        } catch (IOException ioe) {
             System.err.println(ioe.getMessage());
         }
-
-        return 0;
     }
 
     /**
-     * Given client HTTP request generates the response header as a String.
-     * Also adds carriage returns and line feeds.
-     * @param request client HTTP request as a String.
-     * @return HTTP appropriate header as a String.
+     * Closes the connection if it is waiting for its next request. Called while draining; a connection
+     * in the middle of a request is left to finish it and then closes by itself.
      */
-    private String generateResponseHeader(String request) {
-
-        //uses regex class and its methods to determine nature of request
-        RegexReader reader = this.getRr();
-        String requestedFile = reader.getRequestedFileName(request);
-        String requestType = reader.getRequestType(request);
-        String requestProtocol = reader.getRequestedHTTPProtocol(request);
-        String requestedContent = reader.getRequestedContentType(request);
-
-        //checks and deals with unrecognised request types
-        if ((!requestType.equals("HEAD")) && (!requestType.equals("GET"))) {
-            return "HTTP/1.1 501 Not Implemented\r\n\r\n";
+    public synchronized void closeIfIdle() {
+        if (idle) {
+            drained = true;
+            this.cleaner();
         }
+    }
 
-        //generates correct response code and content-length if file available
-        String responseCode = this.getResponseCode(requestedFile);
-        long bodyLength = this.getFileSize(requestedFile);
+    /**
+     * Closes the connection whatever it is doing. Called when the drain deadline has passed.
+     */
+    public void forceClose() {
+        drained = true;
+        this.cleaner();
+    }
 
-        //adjust content-type for requests that specify */* format
-        String body = generateResponseBody(request);
+    /**
+     * Starts the write timeout for a response.
+     */
+    private void armWrite() {
+        lastProgress = System.nanoTime();
+        this.arm(Metrics.WRITE_TIMEOUT, this.hubGetter().getConfig().getWriteTimeout());
+    }
 
-        if (body.contains("<html>")) {
-            requestedContent = "text/html";
+    /**
+     * Schedules a timeout of the given kind, replacing any other. One of the same kind already running is kept.
+     * @param kind Metrics.HEADER_TIMEOUT, IDLE_TIMEOUT, WRITE_TIMEOUT or BODY_TIMEOUT.
+     * @param millis delay before it expires.
+     */
+    private synchronized void arm(int kind, long millis) {
+        if (timeoutKind == kind) {
+            return;
         }
+        this.disarm();
+        timeoutKind = kind;
+        int generation = ++armed;
+        timeout = hub.getTimer().schedule(() -> this.expire(kind, generation), millis);
+    }
 
-        //full header constructed
-        String header = requestProtocol + responseCode + "\n";
-        header += "Server: HTTPServer" + "\n";
-        header += "Content-Type: " + requestedContent + "\n";
-        header += "Content-Length: " + bodyLength  + "\n";
-        header += "\r\n\r\n";
-
-        return header;
+    /**
+     * Cancels the running timeout, if any.
+     */
+    private synchronized void disarm() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+        timeoutKind = -1;
     }
 
     /**
-     * Given client HTTP request, creates appropriate response content.
-     * @param request client HTTP request as a String.
-     * @return requested content as a String.
+     * Acts on an expired timeout, on the timer thread. A header, idle or body timeout shuts down the input,
+     * so the blocked read sees end of stream and a header or body timeout is answered with 408. A write
+     * timeout shuts down the output, failing the blocked write. Write and body timeouts are pushed back
+     * instead if the response or request body made progress since they were armed.
+     * @param kind kind of timeout.
+     * @param generation arm count when scheduled, so a timeout which lost a race with disarm does nothing.
      */
-    private String generateResponseBody(String request) {
+    private synchronized void expire(int kind, int generation) {
+        if (generation != armed || timeoutKind != kind) {
+            return;
+        }
+        if (kind == Metrics.WRITE_TIMEOUT || kind == Metrics.BODY_TIMEOUT) {
+            ServerConfig config = this.hubGetter().getConfig();
+            long limit = TimeUnit.MILLISECONDS.toNanos(kind == Metrics.WRITE_TIMEOUT ? config.getWriteTimeout()
+                    : config.getBodyTimeout());
+            long quiet = System.nanoTime() - lastProgress;
+            if (quiet < limit) {
+                int next = ++armed;
+                timeout = hub.getTimer().schedule(() -> this.expire(kind, next),
+                        TimeUnit.NANOSECONDS.toMillis(limit - quiet) + 1);
+                return;
+            }
+        }
+        timeout = null;
+        timeoutKind = -1;
+        expiredKind = kind;
+        metrics.connectionTimedOut(kind);
+        try {
+            if (kind == Metrics.WRITE_TIMEOUT) {
+                //closing would not wake a transferTo already blocked in the kernel, shutting down output does
+                this.getClientConn().shutdownOutput();
+            } else {
+                this.getClientConn().shutdownInput();
+            }
+        } catch (IOException ioe) {
+            //already closed by the handler
+        }
+    }
 
-        //uses StringBuilder so unnecessary objects not created in loop concatenation.
-        StringBuilder body = new StringBuilder();
-        RegexReader reader = this.getRr();
+    /**
+     * Method which can be used to close client connection.
+     * Used to close connection in run method in the event of an exception.
+     */
+    private void cleaner() {
+        Socket clientConn = this.getClientConn();
+        try {
+            clientConn.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
 
-        String requestedFile = reader.getRequestedFileName(request);
-        String filePath = this.getRequestedFilePath(requestedFile);
+    /**
+     * Method which reads the next HTTP request from client and parses it.
+     * Input is read into one pooled buffer per connection, so bytes of pipelined requests are kept between calls.
+     * @return parsed request, or null if the client closed the connection or the hub began draining between requests.
+     * @throws HTTPParseException if the request is malformed, too large or not complete within the header timeout.
+     * @throws IOException if reading from the client fails.
+     */
+    private HTTPRequest requestReader() throws IOException, HTTPParseException {
+        ServerConfig config = this.hubGetter().getConfig();
+        if (is == null) {
+            is = tls != null ? Channels.newInputStream(tls) : this.getClientConn().getInputStream();
+            in = BufferPool.HEAP.acquire(INPUT_BUFFER);
+            parser = new HTTPRequestParser(config.getMaxRequestLine(), config.getMaxHeaderBytes());
+            parser.setHttp2(config.isHttp2());
+            parser.setSecure(tls != null);
+        }
 
-        File toBeRead = new File(filePath);
+        while (true) {
+            if (requestStart == 0 && in.position() > 0) {
+                //parse time runs from the first byte of the request, not from the idle wait before it
+                requestStart = System.nanoTime();
+            }
+            in.flip();
+            HTTPRequest request = parser.parse(in);
+            in.compact();
+            if (request != null) {
+                this.disarm();
+                return request;
+            }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(toBeRead));) {
-            String line = br.readLine();
-            body.append("<html>\n");
-            while ((line = br.readLine()) != null) {
-                body.append(line);
-                if (!line.equals("</html>")) {
-                    body.append("\n");
+            boolean between = served > 0 && in.position() == 0 && !parser.inProgress();
+            if (between) {
+                synchronized (this) {
+                    if (hub.isDraining()) {
+                        return null;
+                    }
+                    idle = true;
                 }
+                this.arm(Metrics.IDLE_TIMEOUT, config.getKeepAliveTimeout());
+            } else {
+                //runs from the first read of a request and is not restarted by later reads, so trickling
+                //bytes cannot hold the connection open
+                this.arm(Metrics.HEADER_TIMEOUT, config.getHeaderTimeout());
             }
-
-            return body.toString();
-
-        } catch (IOException ioe) {
-            System.err.println("generateBodyResponse: " + ioe.getMessage());
+            int n;
+            try {
+                n = is.read(in.array(), in.position(), in.remaining());
+            } finally {
+                if (between) {
+                    synchronized (this) {
+                        idle = false;
+                    }
+                }
+            }
+            if (n < 0) {
+                if (expiredKind == Metrics.HEADER_TIMEOUT) {
+                    throw new HTTPParseException(408, "Request Timeout");
+                }
+                if (parser.inProgress()) {
+                    throw new HTTPParseException(400, "Bad Request");
+                }
+                return null;
+            }
+            in.position(in.position() + n);
         }
-
-        return body.toString();
     }
 }
-
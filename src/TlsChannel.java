@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Class which runs TLS over a socket channel with an SSLEngine, so both the blocking handlers and the event
+ * loops can serve HTTPS: reads return decrypted bytes and writes take plaintext.
+ * The channel may be blocking or not. In non-blocking mode a read returns 0 when it needs bytes which have
+ * not arrived, and a write returns what it could encrypt; encrypted output is kept until flushOutput and the
+ * caller waits for OP_WRITE while hasPendingOutput. The handshake runs inside the first reads, and any
+ * records it has to send go out before the next wait for input.
+ * Network buffers come from the pools and go back as soon as they are empty, so an idle connection holds
+ * none. Output is encrypted into one 64KB buffer, so several records leave in one system call, and a read
+ * decrypts straight into the caller's buffer when it has room for a whole record.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int OUTPUT_BUFFER = 65536;
+    private static final int RECORD_HEADER = 5;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final TlsContext context;
+    private final boolean blocking;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private long handshakeStart;
+    private boolean handshaken;
+    private boolean inboundDone;
+    private boolean closed;
+
+    /**
+     * Constructor for class. Nothing is read or written until the first read.
+     * @param channel connected client channel, already in the blocking mode it keeps.
+     * @param context TLS settings, which create the engine and count handshakes.
+     */
+    public TlsChannel(SocketChannel channel, TlsContext context) {
+        this.channel = channel;
+        this.context = context;
+        this.engine = context.createEngine();
+        this.blocking = channel.isBlocking();
+    }
+
+    /**
+     * Reads decrypted bytes, running the handshake first if it has not finished.
+     * @param dst buffer to read into.
+     * @return bytes read, 0 if a non-blocking channel has nothing yet, or -1 once the client has closed.
+     * @throws IOException if reading or writing the socket fails, or the client's records are not valid TLS.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while (true) {
+            if (appIn != null && appIn.position() > 0) {
+                appIn.flip();
+                int n = Math.min(appIn.remaining(), dst.remaining());
+                ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + n);
+                dst.put(slice);
+                appIn.position(appIn.position() + n);
+                appIn.compact();
+                if (appIn.position() == 0) {
+                    BufferPool.HEAP.release(appIn);
+                    appIn = null;
+                }
+            }
+            if (dst.position() > start || !dst.hasRemaining()) {
+                return dst.position() - start;
+            }
+            if (inboundDone) {
+                return -1;
+            }
+            if (!this.handshakeStep()) {
+                return 0;
+            }
+            if (!this.unwrap(dst) && !inboundDone && this.fill() == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Encrypts bytes from a buffer.
+     * @param src bytes to send.
+     * @return bytes taken from src.
+     * @throws IOException if writing fails or the channel is closed.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) this.write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    /**
+     * Encrypts bytes from buffers.
+     * @param srcs bytes to send.
+     * @return bytes taken from srcs.
+     * @throws IOException if writing fails or the channel is closed.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return this.write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts bytes from buffers into records. A blocking channel sends everything before returning; a
+     * non-blocking one takes as much as fits in the output buffer once what the socket accepts has gone.
+     * @param srcs bytes to send.
+     * @param offset first buffer to use.
+     * @param length number of buffers to use.
+     * @return bytes taken from srcs.
+     * @throws IOException if writing fails or the channel is closed.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!handshaken) {
+            //eg. a 408 to a client which never finished its handshake, the engine would send it unprotected
+            throw new SSLException("cannot write before the TLS handshake has finished");
+        }
+        long consumed = 0;
+        while (remaining(srcs, offset, length) > 0) {
+            if (!this.handshakeStep()) {
+                break;
+            }
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                //a non-blocking channel cannot wait for the client's records while its caller waits to write
+                if (!blocking) {
+                    throw new SSLException("cannot write while the client renegotiates");
+                }
+                //the client renegotiates, its records are read and any data before them is kept
+                if (!this.unwrap(null) && this.fill() < 0) {
+                    throw new ClosedChannelException();
+                }
+                continue;
+            }
+            if (!this.outputRoom()) {
+                break;
+            }
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            consumed += result.bytesConsumed();
+            this.checkFinished(result);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+        }
+        if (blocking) {
+            this.flushOutput();
+        }
+        return consumed;
+    }
+
+    /**
+     * Sends encrypted output, in non-blocking mode as much as the socket takes.
+     * @return true if nothing remains to be sent.
+     * @throws IOException if writing to the socket fails.
+     */
+    public boolean flushOutput() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining() && (channel.write(netOut) > 0 || blocking)) {
+                //loops until the socket is full
+            }
+        } finally {
+            netOut.compact();
+        }
+        if (netOut.position() > 0) {
+            return false;
+        }
+        BufferPool.DIRECT.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * Whether encrypted output is waiting for the socket.
+     * @return true until flushOutput has sent everything.
+     */
+    public boolean hasPendingOutput() {
+        return this.netOut != null;
+    }
+
+    /**
+     * Whether a read would return data without the socket becoming readable, because decrypted bytes or a
+     * whole record are already held. A selector would not report such a channel as readable.
+     * @return true if decrypted bytes or a complete record are buffered.
+     */
+    public boolean hasBufferedInput() {
+        if (appIn != null && appIn.position() > 0) {
+            return true;
+        }
+        if (netIn == null || netIn.position() < RECORD_HEADER) {
+            return false;
+        }
+        int length = ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+        return netIn.position() >= RECORD_HEADER + length;
+    }
+
+    /**
+     * Getter method for the negotiated application protocol.
+     * @return protocol picked by ALPN, eg. "h2", or null if the handshake has not finished or ALPN was not used.
+     */
+    public String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify if the socket is still open, then closes it and returns the buffers to the pools.
+     * @throws IOException if closing the socket fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (handshaken && channel.isOpen()) {
+                engine.closeOutbound();
+                this.handshakeStep();
+                this.flushOutput();
+            }
+        } catch (IOException ioe) {
+            //the client may already have gone, close_notify is a courtesy
+        } finally {
+            this.release();
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the buffers to the pools.
+     */
+    private void release() {
+        if (netIn != null) {
+            BufferPool.DIRECT.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            BufferPool.DIRECT.release(netOut);
+            netOut = null;
+        }
+        if (appIn != null) {
+            BufferPool.HEAP.release(appIn);
+            appIn = null;
+        }
+    }
+
+    /**
+     * Runs delegated tasks and produces handshake records while the engine asks for them.
+     * @return false if a non-blocking socket has no room for the records, so the caller must wait for OP_WRITE.
+     * @throws IOException if writing fails or the engine rejects the handshake.
+     */
+    private boolean handshakeStep() throws IOException {
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                //certificate signing and key agreement, run inline as the worker or loop would wait for them anyway
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!this.outputRoom()) {
+                    return false;
+                }
+                SSLEngineResult result;
+                try {
+                    result = engine.wrap(EMPTY, netOut);
+                } catch (SSLException se) {
+                    this.failed();
+                    throw se;
+                }
+                this.checkFinished(result);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+                    return true;
+                }
+            } else {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Decrypts the next record held in the network buffer.
+     * @param dst buffer for the data, used directly if it has room for a whole record, or null to keep the
+     *     data for a later read.
+     * @return true if a record was taken, false if a whole one has not arrived or the client has closed.
+     * @throws IOException if the record is not valid TLS.
+     */
+    private boolean unwrap(ByteBuffer dst) throws IOException {
+        if (netIn == null || netIn.position() == 0) {
+            return false;
+        }
+        int appSize = engine.getSession().getApplicationBufferSize();
+        ByteBuffer target;
+        if (dst != null && appIn == null && dst.remaining() >= appSize) {
+            target = dst;
+        } else {
+            if (appIn == null) {
+                appIn = BufferPool.HEAP.acquire(appSize);
+            } else if (appIn.remaining() < appSize) {
+                appIn = this.grow(BufferPool.HEAP, appIn, appIn.position() + appSize);
+            }
+            target = appIn;
+        }
+        SSLEngineResult result;
+        netIn.flip();
+        try {
+            result = engine.unwrap(netIn, target);
+        } catch (SSLException se) {
+            this.failed();
+            throw se;
+        } finally {
+            netIn.compact();
+        }
+        if (netIn.position() == 0) {
+            BufferPool.DIRECT.release(netIn);
+            netIn = null;
+        }
+        if (appIn != null && appIn.position() == 0) {
+            BufferPool.HEAP.release(appIn);
+            appIn = null;
+        }
+        this.checkFinished(result);
+        switch (result.getStatus()) {
+            case OK:
+                return true;
+            case CLOSED:
+                inboundDone = true;
+                return false;
+            case BUFFER_OVERFLOW:
+                //the session's record size grew after the handshake, the next attempt allocates for it
+                appIn = appIn == null ? BufferPool.HEAP.acquire(appSize)
+                        : this.grow(BufferPool.HEAP, appIn, appIn.position() + appSize);
+                return true;
+            default:
+                int packetSize = engine.getSession().getPacketBufferSize();
+                if (netIn != null && netIn.capacity() < packetSize) {
+                    netIn = this.grow(BufferPool.DIRECT, netIn, packetSize);
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Reads encrypted bytes from the socket, first sending any handshake records the client waits for.
+     * @return bytes read, 0 if a non-blocking socket has none, or -1 at end of stream.
+     * @throws IOException if reading or writing the socket fails.
+     */
+    private int fill() throws IOException {
+        this.flushOutput();
+        if (netIn == null) {
+            netIn = BufferPool.DIRECT.acquire(engine.getSession().getPacketBufferSize());
+        } else if (!netIn.hasRemaining()) {
+            netIn = this.grow(BufferPool.DIRECT, netIn, netIn.capacity() * 2);
+        }
+        int n = channel.read(netIn);
+        if (n > 0 && !handshaken && handshakeStart == 0) {
+            handshakeStart = System.nanoTime();
+        }
+        if (netIn.position() == 0) {
+            BufferPool.DIRECT.release(netIn);
+            netIn = null;
+        }
+        if (n < 0) {
+            inboundDone = true;
+            try {
+                engine.closeInbound();
+            } catch (SSLException se) {
+                //closed without close_notify, which HTTP framing makes harmless
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Makes sure the output buffer has room for a whole record, sending what it holds if need be.
+     * @return false if a non-blocking socket could not take enough to make room.
+     * @throws IOException if writing to the socket fails.
+     */
+    private boolean outputRoom() throws IOException {
+        int packetSize = engine.getSession().getPacketBufferSize();
+        if (netOut == null) {
+            netOut = BufferPool.DIRECT.acquire(Math.max(OUTPUT_BUFFER, packetSize));
+            return true;
+        }
+        if (netOut.remaining() >= packetSize) {
+            return true;
+        }
+        this.flushOutput();
+        if (netOut == null) {
+            netOut = BufferPool.DIRECT.acquire(Math.max(OUTPUT_BUFFER, packetSize));
+        }
+        return netOut.remaining() >= packetSize;
+    }
+
+    /**
+     * Counts the handshake once the engine reports it finished.
+     * @param result result of the last wrap or unwrap.
+     */
+    private void checkFinished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !handshaken) {
+            handshaken = true;
+            context.handshakeDone(engine.getSession(), handshakeStart);
+        }
+    }
+
+    /**
+     * Counts a handshake which the engine rejected.
+     */
+    private void failed() {
+        if (!handshaken) {
+            context.handshakeFailed();
+        }
+    }
+
+    /**
+     * Moves a buffer's contents into a larger one from the same pool.
+     * @param pool pool the buffer came from.
+     * @param buf buffer in fill mode.
+     * @param size capacity needed.
+     * @return larger buffer in fill mode, the old one released.
+     */
+    private ByteBuffer grow(BufferPool pool, ByteBuffer buf, int size) {
+        ByteBuffer larger = pool.acquire(size);
+        buf.flip();
+        larger.put(buf);
+        pool.release(buf);
+        return larger;
+    }
+
+    /**
+     * Counts the bytes left in a range of buffers.
+     * @param srcs buffers.
+     * @param offset first buffer.
+     * @param length number of buffers.
+     * @return sum of their remaining bytes.
+     */
+    private static long remaining(ByteBuffer[] srcs, int offset, int length) {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+        return total;
+    }
+}
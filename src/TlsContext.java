@@ -0,0 +1,219 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Class which holds the server's TLS settings: the key and certificate, the protocol versions, ALPN and
+ * the session cache, and creates an SSLEngine for each accepted connection.
+ * The key comes from a PKCS12 or JKS keystore, or if none is configured a self-signed certificate for
+ * localhost is generated into a temporary keystore with keytool, which is only fit for testing.
+ * One SSLContext serves every connection of every worker or event loop, so its server session cache is
+ * shared: a client which comes back within the session lifetime resumes its session, by session id with
+ * TLS 1.2 or a pre-shared key from a session ticket with TLS 1.3, and skips the certificate exchange and
+ * key agreement of a full handshake.
+ * With HTTP/2 on, ALPN picks h2 ahead of http/1.1 when the client offers it, so the client sends the
+ * connection preface straight after the handshake.
+ */
+public class TlsContext {
+
+    private static final String SELF_SIGNED_PASSWORD = "changeit";
+
+    private final SSLContext context;
+    private final String[] protocols;
+    private final String[] applicationProtocols;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+
+    /**
+     * Constructor for class. Loads or generates the key and sets up the session cache.
+     * @param config server options including keystore, session cache size and lifetime and protocols.
+     * @throws IOException if the keystore cannot be read or generated, or holds no usable key.
+     */
+    public TlsContext(ServerConfig config) throws IOException {
+        try {
+            String path = config.getTlsKeystore();
+            char[] password = config.getTlsPassword().toCharArray();
+            KeyStore keys;
+            if (path == null) {
+                System.err.println("No --tls-keystore given, using a generated self-signed certificate for localhost");
+                keys = selfSigned();
+                password = SELF_SIGNED_PASSWORD.toCharArray();
+            } else {
+                keys = KeyStore.getInstance(path.endsWith(".jks") ? "JKS" : "PKCS12");
+                try (InputStream in = Files.newInputStream(Paths.get(path))) {
+                    keys.load(in, password);
+                }
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keys, password);
+            this.context = SSLContext.getInstance("TLS");
+            this.context.init(kmf.getKeyManagers(), null, null);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("cannot set up TLS: " + gse.getMessage(), gse);
+        }
+        SSLSessionContext sessions = this.context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCache());
+        sessions.setSessionTimeout(config.getTlsSessionTtl());
+
+        List<String> supported = Arrays.asList(this.context.getSupportedSSLParameters().getProtocols());
+        List<String> wanted = new ArrayList<>();
+        for (String protocol : config.getTlsProtocols()) {
+            if (supported.contains(protocol)) {
+                wanted.add(protocol);
+            }
+        }
+        if (wanted.isEmpty()) {
+            throw new IOException("none of the TLS protocols " + config.getTlsProtocols() + " is supported");
+        }
+        this.protocols = wanted.toArray(new String[0]);
+        this.applicationProtocols = config.isHttp2() ? new String[] {"h2", "http/1.1"} : new String[] {"http/1.1"};
+    }
+
+    /**
+     * Creates a server-side engine for a new connection.
+     * @return engine in server mode, with the configured protocols and ALPN.
+     */
+    public SSLEngine createEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters params = engine.getSSLParameters();
+        params.setProtocols(protocols);
+        //the server's cipher order, which puts forward secret AEAD suites first, wins over the client's
+        params.setUseCipherSuitesOrder(true);
+        engine.setSSLParameters(params);
+        engine.setHandshakeApplicationProtocolSelector((e, offered) -> {
+            for (String protocol : applicationProtocols) {
+                if (offered.contains(protocol)) {
+                    return protocol;
+                }
+            }
+            //eg. only http/1.0 offered: go on without ALPN rather than failing the handshake
+            return "";
+        });
+        return engine;
+    }
+
+    /**
+     * Records a completed handshake.
+     * @param session session the handshake established or resumed.
+     * @param startNanos when the first handshake record arrived.
+     */
+    void handshakeDone(SSLSession session, long startNanos) {
+        long took = System.nanoTime() - startNanos;
+        handshakes.increment();
+        handshakeNanos.add(took);
+        //a resumed session, or one from a ticket, was created by an earlier handshake
+        if (session.getCreationTime() < System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(took) - 1) {
+            resumed.increment();
+        }
+    }
+
+    /**
+     * Records a handshake which failed, eg. for want of a common protocol or cipher suite.
+     */
+    void handshakeFailed() {
+        failures.increment();
+    }
+
+    /**
+     * Getter method for the SSLContext.
+     * @return context shared by all connections.
+     */
+    public SSLContext getContext() {
+        return this.context;
+    }
+
+    /**
+     * Getter method for enabled protocol versions.
+     * @return protocols offered to clients, most preferred first.
+     */
+    public String[] getProtocols() {
+        return this.protocols.clone();
+    }
+
+    /**
+     * Getter method for completed handshakes.
+     * @return handshakes completed since start, full and resumed.
+     */
+    public long getHandshakes() {
+        return this.handshakes.sum();
+    }
+
+    /**
+     * Getter method for resumed handshakes.
+     * @return handshakes which resumed a cached session.
+     */
+    public long getResumed() {
+        return this.resumed.sum();
+    }
+
+    /**
+     * Getter method for failed handshakes.
+     * @return handshakes which ended in a TLS alert or a malformed record.
+     */
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    /**
+     * Getter method for time spent in handshakes.
+     * @return total nanoseconds from the first handshake record to the handshake completing.
+     */
+    public long getHandshakeNanos() {
+        return this.handshakeNanos.sum();
+    }
+
+    /**
+     * Generates a keystore holding a self-signed EC key and certificate for localhost, with the JDK's keytool.
+     * @return loaded PKCS12 keystore, its password SELF_SIGNED_PASSWORD.
+     * @throws IOException if keytool cannot be run or fails.
+     * @throws GeneralSecurityException if the generated keystore cannot be loaded.
+     */
+    private static KeyStore selfSigned() throws IOException, GeneralSecurityException {
+        Path dir = Files.createTempDirectory("httpserver-tls");
+        Path store = dir.resolve("self-signed.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-validity", "365", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12", "-keystore", store.toString(),
+                "-storepass", SELF_SIGNED_PASSWORD, "-keypass", SELF_SIGNED_PASSWORD)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            if (!process.waitFor(60, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                process.destroy();
+                throw new IOException("keytool could not generate a self-signed certificate");
+            }
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(store)) {
+                keys.load(in, SELF_SIGNED_PASSWORD.toCharArray());
+            }
+            return keys;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while generating a certificate", ie);
+        } finally {
+            Files.deleteIfExists(store);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
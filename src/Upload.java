@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Class which receives one uploaded file. The request body is decoded into a temporary file next to the
+ * target as it arrives, and once it is complete the temporary file is moved over the target in one step,
+ * so readers see the old file or the whole new one, never part of an upload. An upload which fails or is
+ * cut short leaves the target as it was, and its temporary file is deleted.
+ * An upload refused before its body is read holds only the response to send instead.
+ * The reverse proxy extends it to stream a body to a backend instead of a file, so the engines feed both alike.
+ */
+public class Upload {
+
+    //input buffer the engines read a body into, large enough that a fast upload is not one write per packet
+    static final int INPUT_BUFFER = 65536;
+
+    private ResponseGenerator generator;
+    private HTTPRequest request;
+    private RequestBody body;
+    private Path target;
+    private Path temp;
+    private FileChannel file;
+    private boolean keepAlive;
+    private HTTPResponse rejection;
+
+    /**
+     * Constructor for an upload refused before its body is read.
+     * @param rejection response to send instead.
+     */
+    Upload(HTTPResponse rejection) {
+        this.rejection = rejection;
+    }
+
+    /**
+     * Constructor for a subclass which sends the body somewhere other than a file.
+     * @param request request carrying the body.
+     * @param body decoder of the request body, null if the request has none.
+     * @param keepAlive whether the connection stays open after the response.
+     */
+    protected Upload(HTTPRequest request, RequestBody body, boolean keepAlive) {
+        this.request = request;
+        this.body = body;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Constructor for an accepted upload, creating its temporary file in the target's directory.
+     * @param generator response generator, told about the file once it is in place.
+     * @param request request carrying the body.
+     * @param body decoder of the request body, null if the request has none.
+     * @param target resolved path the body is stored at.
+     * @param keepAlive whether the connection stays open after the response.
+     * @throws IOException if the directory or temporary file cannot be created.
+     */
+    Upload(ResponseGenerator generator, HTTPRequest request, RequestBody body, Path target, boolean keepAlive)
+            throws IOException {
+        this.generator = generator;
+        this.request = request;
+        this.body = body;
+        this.target = target;
+        this.keepAlive = keepAlive;
+        Files.createDirectories(target.getParent());
+        try {
+            //temporary files are private by default, but the target is served like any other file
+            this.temp = Files.createTempFile(target.getParent(), ".upload-", ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));
+        } catch (UnsupportedOperationException uoe) {
+            this.temp = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+        }
+        try {
+            this.file = FileChannel.open(temp, StandardOpenOption.WRITE);
+        } catch (IOException ioe) {
+            Files.deleteIfExists(temp);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Getter method for the refusal.
+     * @return response to send instead of reading the body, or null if the upload was accepted.
+     */
+    public HTTPResponse getRejection() {
+        return this.rejection;
+    }
+
+    /**
+     * Getter method for request.
+     * @return request carrying the body.
+     */
+    public HTTPRequest getRequest() {
+        return this.request;
+    }
+
+    /**
+     * Whether the client waits for 100 Continue before sending the body (RFC 7231 5.1.1).
+     * @return true if the request is HTTP/1.1 with Expect: 100-continue and a body still to come.
+     */
+    public boolean expectsContinue() {
+        String expect = request.getHeader("expect");
+        return expect != null && request.getVersion().equals("HTTP/1.1") && body != null && !body.isComplete();
+    }
+
+    /**
+     * Writes body bytes from a buffer to the temporary file.
+     * @param in buffer in read mode, advanced past the body bytes consumed.
+     * @return true once the whole body has been received.
+     * @throws HTTPParseException if the body is malformed or too large, or 500 if the file cannot be written.
+     */
+    public boolean receive(ByteBuffer in) throws HTTPParseException {
+        if (body == null) {
+            return true;
+        }
+        try {
+            return body.decode(in, file);
+        } catch (IOException ioe) {
+            System.err.println("Upload to " + target + ": " + ioe.getMessage());
+            throw new HTTPParseException(500, "Internal Server Error");
+        }
+    }
+
+    /**
+     * Marks the end of an HTTP/2 body, once END_STREAM has arrived.
+     * @throws HTTPParseException 400 if fewer bytes arrived than Content-Length announced.
+     */
+    public void endOfStream() throws HTTPParseException {
+        if (body != null) {
+            body.endOfStream();
+        }
+    }
+
+    /**
+     * Moves the completed file into place, replacing any file there before.
+     * The data is forced to disk first, so a crash after the move cannot leave an empty or partial target.
+     * @return 201 Created for a new file, 204 No Content for a replaced one, or 500 if the move failed.
+     */
+    public HTTPResponse finish() {
+        long received = body == null ? 0 : body.getReceived();
+        boolean existed;
+        try {
+            file.force(false);
+            file.close();
+            existed = Files.exists(target);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            System.err.println("Upload to " + target + ": " + ioe.getMessage());
+            this.abort();
+            return ResponseGenerator.errorResponse(500, "Internal Server Error", false);
+        }
+        temp = null;
+        generator.changed(target);
+        generator.getMetrics().uploaded(received);
+
+        HTTPResponse response = existed ? new HTTPResponse(request.getVersion(), 204, "No Content")
+                : new HTTPResponse(request.getVersion(), 201, "Created");
+        if (!existed) {
+            String location = request.getTarget();
+            int query = location.indexOf('?');
+            response.addHeader("Location", query < 0 ? location : location.substring(0, query));
+            response.setContentLength(0);
+        }
+        response.setKeepAlive(keepAlive);
+        return response;
+    }
+
+    /**
+     * Abandons the upload, closing and deleting the temporary file. Safe to call more than once, and after finish.
+     */
+    public void abort() {
+        if (temp == null) {
+            return;
+        }
+        try {
+            file.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException ioe) {
+            System.err.println("Upload abort: " + ioe.getMessage());
+        }
+        temp = null;
+    }
+}
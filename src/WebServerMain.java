@@ -1,38 +1,69 @@
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class for the initialisation of web server and handling user inputs.
  */
 public class WebServerMain {
 
-    private HTTPServerHub serverHub;
+    private ServerEngine engine;
     private String directoryPath;
     private int port;
 
     /**
-     * Constructor for class, saves directory and port and passes these through to the server.
-     * @param directoryPath path of directory which contains files that can be shared.
-     * @param port port for ServerSocket to listen and be accessed on.
+     * Constructor for class, saves directory and port and starts the configured engine.
+     * A shutdown hook stops the engine gracefully, draining connections for up to the drain timeout.
+     * @param config parsed startup options.
      * @throws IOException when error occurs reading data.
      */
-    public WebServerMain(String directoryPath, int port) throws IOException {
-        this.directoryPath = directoryPath;
-        this.port = port;
-        this.serverHub = new HTTPServerHub(directoryPath, port);
+    public WebServerMain(ServerConfig config) throws IOException {
+        this.directoryPath = config.getDirectoryPath();
+        this.port = config.getPort();
+        if (config.isLeakDetection()) {
+            BufferPool.setLeakDetection(true);
+        }
+        if (config.getEngine().equals("nio")) {
+            this.engine = new NIOServerHub(config);
+        } else {
+            this.engine = new HTTPServerHub(config);
+        }
+        this.engine.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down, draining connections");
+            engine.stop(config.getDrainTimeout());
+        }, "shutdown"));
+    }
+
+    /**
+     * Getter method for the running engine.
+     * @return blocking or nio engine serving requests.
+     */
+    public ServerEngine getEngine() {
+        return this.engine;
     }
 
     /**
      * Main method for class, takes command line arguments and initialises Server.
-     * @param args command line arguments for directory and port.
+     * Returns once the server has stopped.
+     * @param args command line arguments for directory, port and options.
      */
     public static void main(String[] args) {
+        ServerConfig config;
         try {
-            int inputPort = Integer.parseInt(args[1]);
-            WebServerMain wsm = new WebServerMain(args[0], inputPort);
+            config = ServerConfig.fromArgs(args);
         } catch (Exception e) {
             //catches parsing errors and arg based errors.
-            System.err.println("Usage: java WebServerMain <document_root> <port>");
+            System.err.println(ServerConfig.usage());
+            return;
+        }
+
+        try {
+            WebServerMain wsm = new WebServerMain(config);
+            wsm.getEngine().awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Server could not start: " + e.getMessage());
         }
     }
 }
-
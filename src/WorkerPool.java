@@ -0,0 +1,101 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class which creates the executor that runs ServerHandler work.
+ * Either a bounded pool of platform threads with a fixed length queue,
+ * or one virtual thread per connection where the runtime supports it.
+ */
+public final class WorkerPool {
+
+    private WorkerPool() {
+    }
+
+    /**
+     * Creates executor matching the worker mode in the config.
+     * @param config server options.
+     * @return executor to submit ServerHandlers to.
+     * @throws UnsupportedOperationException if virtual threads are requested but unavailable.
+     */
+    public static ExecutorService create(ServerConfig config) {
+        return create(config, 1);
+    }
+
+    /**
+     * Creates executor matching the worker mode in the config, for one of several acceptor shards.
+     * The configured pool threads and queue are divided evenly between the shards.
+     * @param config server options.
+     * @param shards number of executors the workers are split across.
+     * @return executor to submit ServerHandlers to.
+     * @throws UnsupportedOperationException if virtual threads are requested but unavailable.
+     */
+    public static ExecutorService create(ServerConfig config, int shards) {
+        if (config.getWorkerMode().equals("virtual")) {
+            return virtualThreadExecutor();
+        }
+        return boundedPool(Math.max(1, config.getWorkerThreads() / shards),
+                Math.max(1, config.getWorkerQueue() / shards));
+    }
+
+    /**
+     * Creates a fixed size pool of platform threads.
+     * Once all threads are busy and queue is full, new connections are refused with a 503.
+     * @param threads number of worker threads.
+     * @param queue number of connections which may wait for a free worker.
+     * @return bounded executor.
+     */
+    public static ExecutorService boundedPool(int threads, int queue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), namedThreads("http-worker-"), new BusyRejection());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates an executor which starts a new virtual thread for each task.
+     * Looked up reflectively so the server still compiles and runs on runtimes without virtual threads.
+     * @return virtual thread per task executor.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            throw new UnsupportedOperationException("virtual threads need Java 21 or later, running "
+                    + System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * Thread factory giving worker threads recognisable names in thread dumps.
+     * @param prefix name prefix, a counter is appended.
+     * @return thread factory.
+     */
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Rejection policy which answers the refused connection with 503 instead of leaving it hanging.
+     */
+    private static final class BusyRejection implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (r instanceof ServerHandler) {
+                ((ServerHandler) r).rejectBusy();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTests {
+
+    private static HTTPRequest get() throws HTTPParseException {
+        return new HTTPRequestParser(8192, 16384).parse(ByteBuffer.wrap(
+                "GET / HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testTokenBucket() {
+        AdmissionControl control = new AdmissionControl(false, 1, 1, 2, 10, 2);
+        long now = 1_000_000_000L;
+        assertEquals(0, control.take("10.0.0.1", now));
+        assertEquals(0, control.take("10.0.0.1", now));
+        //empty: the next token is a tenth of a second away
+        assertEquals(100_000_000L, control.take("10.0.0.1", now));
+        assertEquals(0, control.take("10.0.0.2", now));
+        assertEquals(50_000_000L, control.take("10.0.0.1", now + 50_000_000L));
+        assertEquals(0, control.take("10.0.0.1", now + 100_000_000L));
+        //refills no further than the burst
+        assertEquals(0, control.take("10.0.0.1", now + 10_000_000_000L));
+        assertEquals(0, control.take("10.0.0.1", now + 10_000_000_000L));
+        assertTrue(control.take("10.0.0.1", now + 10_000_000_000L) > 0);
+    }
+
+    @Test
+    public void testRefusals() throws HTTPParseException {
+        AdmissionControl control = new AdmissionControl(false, 1, 1, 2, 0.5, 1);
+        assertNull(control.admit("10.0.0.1", get(), true));
+        HTTPResponse refused = control.admit("10.0.0.1", get(), true);
+        assertEquals(429, refused.getStatusCode());
+        assertTrue(refused.isKeepAlive());
+        assertEquals("2", refused.getHeaderValues().get(refused.getHeaderNames().indexOf("Retry-After")));
+        assertEquals(1, control.getRateLimited());
+        assertEquals(1, control.getInFlight());
+        control.release(1000);
+        assertEquals(0, control.getInFlight());
+
+        control = new AdmissionControl(true, 2, 10, 2, 0, 0);
+        assertNull(control.admit("10.0.0.1", get(), true));
+        assertNull(control.admit("10.0.0.2", get(), true));
+        refused = control.admit("10.0.0.3", get(), true);
+        assertEquals(503, refused.getStatusCode());
+        assertFalse(refused.isKeepAlive());
+        assertTrue(refused.getHeaderNames().contains("Retry-After"));
+        assertEquals(1, control.getShed());
+        assertEquals(2, control.getInFlight());
+    }
+
+    @Test
+    public void testLimitFollowsLatency() throws HTTPParseException {
+        AdmissionControl control = new AdmissionControl(true, 16, 1000, 2, 0, 0);
+        //steady latency with the limit in use: grows by a fifth of its square root each window
+        for (int window = 0; window < 50; window++) {
+            fill(control);
+            control.release(1_000_000);
+            control.update();
+        }
+        int grown = control.getLimit();
+        assertTrue("limit " + grown, grown > 60);
+
+        //latency ten times the baseline: shrinks by up to a tenth per window
+        for (int window = 0; window < 10; window++) {
+            fill(control);
+            control.release(10_000_000);
+            control.update();
+        }
+        assertTrue("limit " + control.getLimit(), control.getLimit() < grown / 2);
+
+        //an idle server's limit stays where it is
+        drain(control);
+        int idle = control.getLimit();
+        assertNull(control.admit("10.0.0.1", get(), true));
+        control.release(1_000_000);
+        control.update();
+        assertEquals(idle, control.getLimit());
+    }
+
+    private static void fill(AdmissionControl control) throws HTTPParseException {
+        drain(control);
+        int limit = control.getLimit();
+        for (int i = 0; i < limit; i++) {
+            assertNull(control.admit("10.0.0.1", get(), true));
+        }
+    }
+
+    private static void drain(AdmissionControl control) {
+        while (control.getInFlight() > 0) {
+            control.release(-1);
+        }
+    }
+}
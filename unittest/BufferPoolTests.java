@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTests {
+
+    @Test
+    public void testSizeClassesAndReuse() {
+        ByteBuffer small = BufferPool.HEAP.acquire(100);
+        assertEquals(1024, small.capacity());
+        assertFalse(small.isDirect());
+        ByteBuffer odd = BufferPool.DIRECT.acquire(5000);
+        assertEquals(8192, odd.capacity());
+        assertTrue(odd.isDirect());
+        assertEquals(100000, BufferPool.HEAP.acquire(100000).capacity());
+
+        small.put((byte) 1);
+        BufferPool.HEAP.release(small);
+        ByteBuffer again = BufferPool.HEAP.acquire(1024);
+        //same thread, so the buffer comes straight back from the thread's cache, cleared
+        assertSame(small, again);
+        assertEquals(0, again.position());
+        assertNotSame(again, BufferPool.HEAP.acquire(1024));
+        BufferPool.DIRECT.release(odd);
+    }
+
+    @Test
+    public void testDoubleReleaseIsRefused() {
+        BufferPool.setLeakDetection(true);
+        try {
+            ByteBuffer buf = BufferPool.HEAP.acquire(2048);
+            long outstanding = BufferPool.HEAP.getOutstanding(1);
+            BufferPool.HEAP.release(buf);
+            BufferPool.HEAP.release(buf);
+            assertEquals(outstanding - 1, BufferPool.HEAP.getOutstanding(1));
+            ByteBuffer first = BufferPool.HEAP.acquire(2048);
+            ByteBuffer second = BufferPool.HEAP.acquire(2048);
+            assertNotSame(first, second);
+            BufferPool.HEAP.release(first);
+            BufferPool.HEAP.release(second);
+        } finally {
+            BufferPool.setLeakDetection(false);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressorTests {
+
+    @Test
+    public void testNegotiate() {
+        assertEquals("gzip", Compressor.negotiate("gzip,deflate"));
+        assertEquals("gzip", Compressor.negotiate("deflate, gzip;q=0.5"));
+        assertEquals("deflate", Compressor.negotiate("gzip;q=0, deflate"));
+        assertEquals("gzip", Compressor.negotiate("*"));
+        assertEquals("deflate", Compressor.negotiate("gzip;q=0.0, *"));
+        assertNull(Compressor.negotiate("br, identity"));
+        assertNull(Compressor.negotiate("*;q=0"));
+        assertNull(Compressor.negotiate(null));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path root = Files.createTempDirectory("docroot");
+        Path page = root.resolve("page.txt");
+        try {
+            Compressor compressor = new Compressor(ServerConfig.fromArgs(new String[] {root.toString(), "0",
+                "--compress-min=1"}), new FileVersions(60000));
+            FileVersions.Version v = write(page, repeat("round trip ", 200), 784111777000L);
+            ByteBuffer gzip = compressor.compressed(page, Compressor.GZIP, v, null);
+            assertTrue(gzip.remaining() < v.getSize());
+            assertEquals(repeat("round trip ", 200), gunzip(gzip));
+            ByteBuffer deflate = compressor.compressed(page, Compressor.DEFLATE, v, null);
+            assertEquals(repeat("round trip ", 200), inflate(new InflaterInputStream(new ByteArrayInputStream(
+                    bytes(deflate)))));
+            //the second request for each encoding is answered from the variant cache
+            compressor.compressed(page, Compressor.GZIP, v, null);
+            assertEquals(2, compressor.getCompressed());
+            assertEquals(1, compressor.getVariantHits());
+        } finally {
+            Files.deleteIfExists(page);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testCutOffs() throws IOException {
+        Path root = Files.createTempDirectory("docroot");
+        Path small = root.resolve("small.txt");
+        Path noise = root.resolve("noise.txt");
+        try {
+            Compressor compressor = new Compressor(ServerConfig.fromArgs(new String[] {root.toString(), "0",
+                "--compress-min=1024"}), new FileVersions(60000));
+            FileVersions.Version smallVersion = write(small, repeat("a", 1000), 784111777000L);
+            assertNull(compressor.compressed(small, Compressor.GZIP, smallVersion, null));
+            assertEquals(0, compressor.getCompressed());
+
+            //random bytes do not shrink, so they are sent as they are, and that decision is cached too
+            byte[] random = new byte[4096];
+            new Random(1).nextBytes(random);
+            Files.write(noise, random);
+            Files.setLastModifiedTime(noise, FileTime.fromMillis(784111777000L));
+            FileVersions.Version noiseVersion = new FileVersions.Version(random.length, 784111777000L);
+            assertNull(compressor.compressed(noise, Compressor.GZIP, noiseVersion, null));
+            assertNull(compressor.compressed(noise, Compressor.GZIP, noiseVersion, null));
+            assertEquals(1, compressor.getCompressed());
+            assertEquals(1, compressor.getVariantHits());
+        } finally {
+            Files.deleteIfExists(small);
+            Files.deleteIfExists(noise);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testPrecompressedSibling() throws Exception {
+        Path root = Files.createTempDirectory("docroot");
+        Path page = root.resolve("page.txt");
+        Path gz = Compressor.precompressedPath(page);
+        try {
+            FileVersions.Version source = write(page, repeat("sibling ", 200), 784111777000L);
+            ByteArrayOutputStream packed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(packed)) {
+                out.write(Files.readAllBytes(page));
+            }
+            Files.write(gz, packed.toByteArray());
+            Files.setLastModifiedTime(gz, FileTime.fromMillis(784111888000L));
+            FileVersions.Version sibling = new FileVersions.Version(packed.size(), 784111888000L);
+
+            ResponseGenerator generator = new ResponseGenerator(ServerConfig.fromArgs(new String[] {root.toString(),
+                "0", "--index=off", "--cache-bytes=0", "--mmap-bytes=0", "--compress-min=1"}));
+            HTTPRequest request = new HTTPRequestParser(8192, 16384).parse(ByteBuffer.wrap(
+                    "GET /page.txt HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII)));
+            HTTPResponse response = generator.generateResponse(request, true);
+            //the sibling is sent byte for byte, validated as a file of its own
+            assertEquals("gzip", header(response, "Content-Encoding"));
+            assertEquals(sibling.getEtag(null), header(response, "ETag"));
+            assertNotEquals(source.getEtag(Compressor.GZIP), header(response, "ETag"));
+            assertEquals(sibling.getLastModified(), header(response, "Last-Modified"));
+            assertNotNull(response.getBodyFile());
+            assertEquals(packed.size(), response.getBodyLength());
+            assertEquals(0, generator.getCompressor().getCompressed());
+            assertEquals(1, generator.getCompressor().getPrecompressed());
+            response.closeBody();
+            generator.close();
+        } finally {
+            Files.deleteIfExists(gz);
+            Files.deleteIfExists(page);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testStreamed() throws IOException {
+        Path root = Files.createTempDirectory("docroot");
+        Path page = root.resolve("page.txt");
+        try {
+            Compressor compressor = new Compressor(ServerConfig.fromArgs(new String[] {root.toString(), "0",
+                "--compress-min=1", "--cache-max-file=1000"}), new FileVersions(60000));
+            String content = repeat("streamed through a small buffer ", 2000);
+            write(page, content, 784111777000L);
+            assertTrue(compressor.isStreamed(Files.size(page)));
+            assertEquals(content, gunzip(drain(compressor.stream(FileChannel.open(page, StandardOpenOption.READ),
+                    Compressor.GZIP))));
+            assertEquals(content, inflate(new InflaterInputStream(new ByteArrayInputStream(bytes(drain(
+                    compressor.stream(FileChannel.open(page, StandardOpenOption.READ), Compressor.DEFLATE)))))));
+            assertEquals(2, compressor.getStreamed());
+        } finally {
+            Files.deleteIfExists(page);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testChangedFileNotServedFromVariant() throws IOException {
+        Path root = Files.createTempDirectory("docroot");
+        Path page = root.resolve("page.txt");
+        try {
+            Compressor compressor = new Compressor(ServerConfig.fromArgs(new String[] {root.toString(), "0",
+                "--compress-min=1", "--cache-revalidate=60000"}), new FileVersions(60000));
+            FileVersions.Version first = write(page, repeat("first ", 100), 784111777000L);
+            assertEquals(repeat("first ", 100), gunzip(compressor.compressed(page, Compressor.GZIP, first, null)));
+
+            //rewritten within the revalidation interval: the new version is compressed afresh rather than
+            //sending the old body under its ETag, and the old version is no longer compressed at all
+            FileVersions.Version second = write(page, repeat("second ", 100), 784111999000L);
+            assertEquals(repeat("second ", 100), gunzip(compressor.compressed(page, Compressor.GZIP, second, null)));
+            assertNull(compressor.compressed(page, Compressor.GZIP, first, null));
+            assertEquals(2, compressor.getCompressed());
+        } finally {
+            Files.deleteIfExists(page);
+            Files.delete(root);
+        }
+    }
+
+    private static FileVersions.Version write(Path p, String content, long modified) throws IOException {
+        Files.write(p, content.getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(p, FileTime.fromMillis(modified));
+        return new FileVersions.Version(Files.size(p), modified);
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static String header(HTTPResponse response, String name) {
+        int i = response.getHeaderNames().indexOf(name);
+        return i < 0 ? null : response.getHeaderValues().get(i);
+    }
+
+    private static ByteBuffer drain(ReadableByteChannel stream) throws IOException {
+        //a few bytes at a time, so the gzip header and trailer are split across reads
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(7);
+        try (ReadableByteChannel in = stream) {
+            while (in.read(buf) >= 0) {
+                out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static byte[] bytes(ByteBuffer body) {
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return bytes;
+    }
+
+    private static String gunzip(ByteBuffer body) throws IOException {
+        return inflate(new GZIPInputStream(new ByteArrayInputStream(bytes(body))));
+    }
+
+    private static String inflate(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) > 0; ) {
+            out.write(buf, 0, n);
+        }
+        return out.toString("US-ASCII");
+    }
+}
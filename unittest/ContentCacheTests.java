@@ -0,0 +1,113 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCacheTests {
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        Path root = Files.createTempDirectory("docroot");
+        Path a = Files.write(root.resolve("a.txt"), "aaaa".getBytes(StandardCharsets.US_ASCII));
+        Path b = Files.write(root.resolve("b.txt"), "bbbb".getBytes(StandardCharsets.US_ASCII));
+        Path c = Files.write(root.resolve("c.txt"), "cccc".getBytes(StandardCharsets.US_ASCII));
+        ContentCache cache = new ContentCache(10, 10, 60000);
+        try {
+            ContentCache.CachedFile first = cache.get(a);
+            cache.get(b);
+            assertSame(first, cache.get(a));
+            //a third file is over the budget, b is the least recently used
+            cache.get(c);
+            assertEquals(8, cache.getUsedBytes());
+            assertEquals(1, cache.getEvictions());
+            assertSame(first, cache.get(a));
+            assertEquals(3, cache.getMisses());
+            assertEquals(2, cache.getHits());
+            cache.get(b);
+            assertEquals(4, cache.getMisses());
+            assertEquals(2, cache.getEvictions());
+            assertEquals("text/plain", first.getContentType());
+            assertEquals(4, first.getBody().remaining());
+        } finally {
+            cache.close();
+            Files.delete(a);
+            Files.delete(b);
+            Files.delete(c);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testChangedFileDropped() throws Exception {
+        Path root = Files.createTempDirectory("docroot");
+        Path a = Files.write(root.resolve("a.txt"), "aaaa".getBytes(StandardCharsets.US_ASCII));
+        Path big = Files.write(root.resolve("big.txt"), new byte[100]);
+        Files.setLastModifiedTime(a, FileTime.fromMillis(784111777000L));
+        //entries are checked against the file on every lookup
+        ContentCache cache = new ContentCache(1000, 50, 0);
+        try {
+            assertEquals(784111777000L, cache.get(a).getModified());
+            assertEquals(1, cache.getMisses());
+
+            Files.setLastModifiedTime(a, FileTime.fromMillis(784111999000L));
+            assertEquals(784111999000L, cache.get(a).getModified());
+            assertEquals(2, cache.getMisses());
+
+            Files.write(a, "aaaaaa".getBytes(StandardCharsets.US_ASCII));
+            assertEquals(6, cache.get(a).getSize());
+            assertEquals(3, cache.getMisses());
+            assertEquals(0, cache.getHits());
+            //dropped by the lookup, or by the watch thread if its event came first
+            assertTrue(cache.getInvalidations() >= 2);
+
+            assertNull(cache.get(big));
+            assertEquals(50, cache.getMaxEntry());
+        } finally {
+            cache.close();
+            Files.delete(a);
+            Files.delete(big);
+            Files.delete(root);
+        }
+    }
+
+    @Test
+    public void testLargeFilesSkipped() throws Exception {
+        Path root = Files.createTempDirectory("docroot");
+        Path small = Files.write(root.resolve("small.txt"), "small".getBytes(StandardCharsets.US_ASCII));
+        Path large = Files.write(root.resolve("large.txt"), new byte[100]);
+        try {
+            ResponseGenerator generator = new ResponseGenerator(ServerConfig.fromArgs(new String[] {root.toString(),
+                "0", "--cache-max-file=16", "--mmap-bytes=0", "--compress=off"}));
+            ContentCache cache = generator.getCache();
+            for (int i = 0; i < 2; i++) {
+                get(generator, "/large.txt").closeBody();
+            }
+            //too big to cache, so never looked up and not counted against the hit ratio
+            assertEquals(0, cache.getMisses());
+            for (int i = 0; i < 2; i++) {
+                get(generator, "/small.txt").closeBody();
+            }
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            generator.close();
+        } finally {
+            Files.delete(small);
+            Files.delete(large);
+            Files.delete(root);
+        }
+    }
+
+    private static HTTPResponse get(ResponseGenerator generator, String path) throws Exception {
+        HTTPRequest request = new HTTPRequestParser(8192, 16384).parse(ByteBuffer.wrap(
+                ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+        return generator.generateResponse(request, true);
+    }
+}
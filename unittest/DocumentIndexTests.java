@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentIndexTests {
+
+    @Test
+    public void testIndexAndTraversal() throws IOException {
+        Path root = Files.createTempDirectory("docroot").toAbsolutePath().normalize();
+        Path sub = Files.createDirectory(root.resolve("sub"));
+        Path page = Files.write(sub.resolve("page.html"), new byte[42]);
+        try {
+            DocumentIndex index = new DocumentIndex(root);
+            assertEquals(1, index.getFileCount());
+            assertEquals(42, index.get(page).getSize());
+            assertTrue(index.covers(sub.resolve("missing.html")));
+            assertNull(index.get(sub.resolve("missing.html")));
+            assertFalse(index.covers(root.getParent().resolve("elsewhere.html")));
+
+            ServerConfig config = ServerConfig.fromArgs(new String[] {root.toString(), "0", "--index=off"});
+            ResponseGenerator generator = new ResponseGenerator(config);
+            assertEquals(page, generator.getRequestedFilePath("/sub/page.html"));
+            assertEquals(page, generator.getRequestedFilePath("/sub/../sub/page.html"));
+            assertNull(generator.getRequestedFilePath("/../elsewhere.html"));
+            assertNull(generator.getRequestedFilePath("/sub/../../etc/passwd"));
+        } finally {
+            Files.delete(page);
+            Files.delete(sub);
+            Files.delete(root);
+        }
+    }
+}
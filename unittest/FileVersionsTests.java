@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class FileVersionsTests {
+
+    @Test
+    public void testValidators() {
+        FileVersions.Version v = new FileVersions.Version(1234, 784111777123L);
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", v.getLastModified());
+        assertEquals(784111777L, v.getModifiedSeconds());
+        assertEquals(784111777L, FileVersions.parseDate(v.getLastModified()));
+        assertEquals(-1, FileVersions.parseDate("yesterday"));
+        assertNotEquals(v.getEtag(null), v.getEtag(Compressor.GZIP));
+        assertNotEquals(v.getEtag(null), new FileVersions.Version(1235, 784111777123L).getEtag(null));
+    }
+
+    @Test
+    public void testSameSizeRewrite() throws Exception {
+        Path root = Files.createTempDirectory("docroot");
+        Path page = Files.write(root.resolve("page.txt"), "first".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(page, FileTime.fromMillis(784111777000L));
+        try {
+            ServerConfig config = ServerConfig.fromArgs(new String[] {root.toString(), "0", "--index=off",
+                "--cache-bytes=0", "--mmap-bytes=0", "--compress=off", "--cache-revalidate=60000"});
+            ResponseGenerator generator = new ResponseGenerator(config);
+            HTTPResponse response = get(generator);
+            String etag = new String(response.getCachedFields(), StandardCharsets.US_ASCII);
+            response.closeBody();
+
+            //rewritten at the same size within the revalidation interval: sent without the old validators
+            Files.write(page, "other".getBytes(StandardCharsets.US_ASCII));
+            Files.setLastModifiedTime(page, FileTime.fromMillis(784111999000L));
+            response = get(generator);
+            assertEquals(0, response.getCachedFields().length);
+            response.closeBody();
+            //and the next response carries the new version's
+            response = get(generator);
+            assertNotEquals(etag, new String(response.getCachedFields(), StandardCharsets.US_ASCII));
+            response.closeBody();
+            generator.close();
+        } finally {
+            Files.delete(page);
+            Files.delete(root);
+        }
+    }
+
+    private static HTTPResponse get(ResponseGenerator generator) throws Exception {
+        HTTPRequest request = new HTTPRequestParser(8192, 16384).parse(ByteBuffer.wrap(
+                "GET /page.txt HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        return generator.generateResponse(request, true);
+    }
+}
@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HTTPLoggerTests {
+
+    @Test
+    public void testQuotedFieldsEscaped() throws Exception {
+        Path log = Files.createTempFile("access", ".log");
+        try {
+            HTTPLogger logger = new HTTPLogger(config(log, "--log-format=combined"));
+            HTTPRequest request = request("GET /a HTTP/1.1\r\nReferer: http://x/\"q\"\r\n"
+                    + "User-Agent: say \"hi\" \\o/ caf\u00e9");
+            logger.logRequest("127.0.0.1", request, new HTTPResponse("HTTP/1.1", 200, "OK"));
+            logger.close();
+            List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+            assertEquals(1, lines.size());
+            assertTrue(lines.get(0), lines.get(0).endsWith(
+                    "\"GET /a HTTP/1.1\" 200 - \"http://x/\\\"q\\\"\" \"say \\\"hi\\\" \\\\o/ caf\\xe9\""));
+        } finally {
+            Files.delete(log);
+        }
+        StringBuilder escaped = new StringBuilder();
+        HTTPLogger.escape(escaped, "a\u0001\tb\u007f");
+        assertEquals("a\\x01\\x09b\\x7f", escaped.toString());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        Path log = Files.createTempFile("access", ".log");
+        try {
+            //the writer sleeps for the whole flush interval, so a small ring fills up
+            HTTPLogger logger = new HTTPLogger(config(log, "--log-buffer=4", "--log-flush=60000"));
+            HTTPRequest request = request("GET /a HTTP/1.1");
+            for (int i = 0; i < 100; i++) {
+                logger.logRequest("127.0.0.1", request, new HTTPResponse("HTTP/1.1", 200, "OK"));
+            }
+            logger.close();
+            assertTrue(logger.getDropped() > 0);
+            assertEquals(100, logger.getLogged() + logger.getDropped());
+            assertEquals(logger.getLogged(), Files.readAllLines(log, StandardCharsets.UTF_8).size());
+        } finally {
+            Files.delete(log);
+        }
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        Path log = Files.createTempFile("access", ".log");
+        try {
+            HTTPLogger logger = new HTTPLogger(config(log, "--log-buffer=4", "--log-flush=60000",
+                    "--log-when-full=block"));
+            HTTPRequest request = request("GET /a HTTP/1.1");
+            for (int i = 0; i < 100; i++) {
+                logger.logRequest("127.0.0.1", request, new HTTPResponse("HTTP/1.1", 200, "OK"));
+            }
+            logger.close();
+            //callers waited for the writer rather than losing entries
+            assertEquals(0, logger.getDropped());
+            assertEquals(100, logger.getLogged());
+            assertEquals(100, Files.readAllLines(log, StandardCharsets.UTF_8).size());
+        } finally {
+            Files.delete(log);
+        }
+    }
+
+    private static ServerConfig config(Path log, String... options) {
+        String[] args = new String[3 + options.length];
+        args[0] = log.getParent().toString();
+        args[1] = "0";
+        args[2] = "--log-file=" + log;
+        System.arraycopy(options, 0, args, 3, options.length);
+        return ServerConfig.fromArgs(args);
+    }
+
+    private static HTTPRequest request(String head) throws HTTPParseException {
+        return new HTTPRequestParser(8192, 16384).parse(ByteBuffer.wrap(
+                (head + "\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+    }
+}
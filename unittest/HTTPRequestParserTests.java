@@ -0,0 +1,115 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HTTPRequestParserTests {
+
+    private static final String REQUEST = "GET /jonl/index.html HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: Safari …\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Language: en-gb,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip,deflate\r\n" +
+            "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7\r\n" +
+            "Keep-Alive: 300\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Cache-Control: max-age=0\r\n\r\n";
+
+    private HTTPRequestParser parser;
+
+    @Before
+    public void setup() {
+        this.parser = new HTTPRequestParser(8192, 16384);
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testParseRequest() throws HTTPParseException {
+        HTTPRequest request = parser.parse(bytes(REQUEST));
+
+        assertEquals("GET", request.getMethod());
+        assertEquals("/jonl/index.html", request.getPath());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("text/html", request.getAcceptedType());
+        assertEquals("localhost:8080", request.getHeader("host"));
+        assertEquals("max-age=0", request.getHeader("cache-control"));
+        assertTrue(request.wantsKeepAlive());
+    }
+
+    @Test
+    public void testParseByteAtATime() throws HTTPParseException {
+        ByteBuffer all = bytes(REQUEST);
+        HTTPRequest request = null;
+
+        while (all.hasRemaining()) {
+            assertNull(request);
+            ByteBuffer one = ByteBuffer.wrap(new byte[] {all.get()});
+            request = parser.parse(one);
+        }
+
+        assertEquals("/jonl/index.html", request.getPath());
+        assertEquals("gzip,deflate", request.getHeader("accept-encoding"));
+    }
+
+    @Test
+    public void testPipelinedRequests() throws HTTPParseException {
+        ByteBuffer buf = bytes("GET /a.html HTTP/1.1\r\n\r\n\r\nHEAD /b%20c.html?x=1 HTTP/1.0\n\n");
+
+        HTTPRequest first = parser.parse(buf);
+        HTTPRequest second = parser.parse(buf);
+
+        assertEquals("/a.html", first.getPath());
+        assertEquals("HEAD", second.getMethod());
+        assertEquals("/b c.html", second.getPath());
+        assertFalse(second.wantsKeepAlive());
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void testRejectsMalformedRequests() {
+        assertStatus(400, "1232144\r\n\r\n");
+        assertStatus(400, "GET /index.html HTTP/1.1\r\n folded: header\r\n\r\n");
+        assertStatus(505, "GET /index.html HTTP/2.0\r\n\r\n");
+    }
+
+    @Test
+    public void testEnforcesLimits() {
+        HTTPRequestParser small = new HTTPRequestParser(32, 64);
+
+        try {
+            small.parse(bytes("GET /" + "a".repeat(40) + " HTTP/1.1\r\n\r\n"));
+            fail("expected 414");
+        } catch (HTTPParseException hpe) {
+            assertEquals(414, hpe.getStatusCode());
+        }
+
+        small.reset();
+        try {
+            small.parse(bytes("GET / HTTP/1.1\r\nCookie: " + "b".repeat(80) + "\r\n\r\n"));
+            fail("expected 431");
+        } catch (HTTPParseException hpe) {
+            assertEquals(431, hpe.getStatusCode());
+        }
+    }
+
+    private void assertStatus(int status, String request) {
+        parser.reset();
+        try {
+            parser.parse(bytes(request));
+            fail("expected " + status);
+        } catch (HTTPParseException hpe) {
+            assertEquals(status, hpe.getStatusCode());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTests {
+
+    @Test
+    public void testExpiryAndCancel() throws InterruptedException {
+        //a wheel of 4 ticks of 10ms, so the 100ms timeout waits out several turns
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, 4);
+        try {
+            long start = System.nanoTime();
+            AtomicLong firedAt = new AtomicLong();
+            CountDownLatch fired = new CountDownLatch(1);
+            HashedWheelTimer.Timeout late = timer.schedule(() -> {
+                firedAt.set(System.nanoTime());
+                fired.countDown();
+            }, 100);
+            AtomicBoolean cancelledRan = new AtomicBoolean();
+            HashedWheelTimer.Timeout cancelled = timer.schedule(() -> cancelledRan.set(true), 50);
+            assertEquals(2, timer.getPending());
+
+            assertTrue(cancelled.cancel());
+            assertFalse(cancelled.cancel());
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(firedAt.get() - start) >= 100);
+            assertTrue(late.isExpired());
+            assertFalse(late.cancel());
+            Thread.sleep(100);
+            assertFalse(cancelledRan.get());
+            assertEquals(0, timer.getPending());
+            assertEquals(1, timer.getExpired());
+        } finally {
+            timer.stop();
+        }
+    }
+}
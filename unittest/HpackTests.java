@@ -0,0 +1,134 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HpackTests {
+
+    private static ByteBuffer hex(String s) {
+        ByteBuffer buf = ByteBuffer.allocate(s.length() / 2);
+        for (int i = 0; i < s.length(); i += 2) {
+            buf.put((byte) Integer.parseInt(s.substring(i, i + 2), 16));
+        }
+        return buf.flip();
+    }
+
+    private static String huffman(String s) {
+        ByteBuffer buf = ByteBuffer.allocate(Huffman.encodedLength(s));
+        Huffman.encode(s, buf);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : buf.array()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testHuffmanCodeIsComplete() {
+        //a prefix code which wastes no bit patterns has a Kraft sum of exactly one
+        double sum = 0;
+        for (byte length : Huffman.LENGTHS) {
+            sum += Math.pow(2, -length);
+        }
+        assertEquals(1.0, sum, 0);
+    }
+
+    @Test
+    public void testHuffmanVectors() throws Http2Exception {
+        //RFC 7541 C.4 and C.6
+        assertEquals("f1e3c2e5f23a6ba0ab90f4ff", huffman("www.example.com"));
+        assertEquals("a8eb10649cbf", huffman("no-cache"));
+        assertEquals("25a849e95ba97d7f", huffman("custom-key"));
+        assertEquals("25a849e95bb8e8b4bf", huffman("custom-value"));
+        assertEquals("6402", huffman("302"));
+
+        StringBuilder all = new StringBuilder();
+        for (char c = 0; c < 256; c++) {
+            all.append(c);
+        }
+        ByteBuffer coded = ByteBuffer.allocate(Huffman.encodedLength(all.toString()));
+        Huffman.encode(all.toString(), coded);
+        StringBuilder decoded = new StringBuilder();
+        Huffman.decode(coded.flip(), coded.remaining(), decoded);
+        assertEquals(all.toString(), decoded.toString());
+    }
+
+    @Test
+    public void testHuffmanRejectsBadPadding() {
+        //"0" is 00000 and must be padded with ones, not zeros
+        try {
+            Huffman.decode(hex("00"), 1, new StringBuilder());
+            fail("zero padding accepted");
+        } catch (Http2Exception e) {
+            assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testDecodeRequestsSharingTable() throws Http2Exception {
+        //RFC 7541 C.4: three requests on one connection, Huffman coded, the later ones using the dynamic table
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        decoder.decode(hex("828684418cf1e3c2e5f23a6ba0ab90f4ff"), names, values, 16384);
+        assertEquals(Arrays.asList(":method", ":scheme", ":path", ":authority"), names);
+        assertEquals(Arrays.asList("GET", "http", "/", "www.example.com"), values);
+
+        names.clear();
+        values.clear();
+        decoder.decode(hex("828684be5886a8eb10649cbf"), names, values, 16384);
+        assertEquals("www.example.com", values.get(3));
+        assertEquals("cache-control", names.get(4));
+        assertEquals("no-cache", values.get(4));
+
+        names.clear();
+        values.clear();
+        decoder.decode(hex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"), names, values, 16384);
+        assertEquals(Arrays.asList("GET", "https", "/index.html", "www.example.com", "custom-value"), values);
+        assertEquals(164, decoder.getTable().getSize());
+        //fields past the limit are decoded but not kept
+        names.clear();
+        values.clear();
+        assertEquals(241, decoder.decode(hex("828785bfbe"), names, values, 100));
+        assertEquals(2, names.size());
+    }
+
+    @Test
+    public void testEncoderRoundTrip() throws Http2Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        String[][] fields = {{":status", "200"}, {"server", "HTTPServer"}, {"content-type", "text/html"},
+            {"content-length", "1234"}, {"x-custom", "vérité"}};
+        for (int round = 0; round < 3; round++) {
+            if (round == 2) {
+                //the peer shrinks its table, which the next block must signal before any field
+                encoder.setMaxTableSize(0);
+            }
+            ByteBuffer block = ByteBuffer.allocate(512);
+            encoder.beginBlock(block);
+            for (String[] f : fields) {
+                encoder.encode(f[0], f[1], !f[0].equals("content-length"), block);
+            }
+            block.flip();
+            int length = block.remaining();
+            List<String> names = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            decoder.decode(block, names, values, 16384);
+            for (int i = 0; i < fields.length; i++) {
+                assertEquals(fields[i][0], names.get(i));
+                assertEquals(fields[i][1], values.get(i));
+            }
+            if (round == 1) {
+                //all but content-length now come from the tables, one byte each; its name index 28 takes two
+                assertEquals(4 + 2 + 1 + Huffman.encodedLength("1234"), length);
+            }
+            assertEquals(encoder.getTable().getSize(), decoder.getTable().getSize());
+        }
+        assertEquals(0, decoder.getTable().getSize());
+    }
+}
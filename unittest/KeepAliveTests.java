@@ -0,0 +1,150 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAliveTests {
+
+    private Path root;
+    private Path first;
+    private Path second;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("docroot");
+        first = Files.write(root.resolve("first.txt"), "first body".getBytes(StandardCharsets.US_ASCII));
+        second = Files.write(root.resolve("second.txt"), "second body".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(first);
+        Files.delete(second);
+        Files.delete(root);
+    }
+
+    @Test
+    public void testBlockingPipelining() throws Exception {
+        this.pipelining("blocking");
+    }
+
+    @Test
+    public void testNioPipelining() throws Exception {
+        this.pipelining("nio");
+    }
+
+    @Test
+    public void testBlockingConnectionEnds() throws Exception {
+        this.connectionEnds("blocking");
+    }
+
+    @Test
+    public void testNioConnectionEnds() throws Exception {
+        this.connectionEnds("nio");
+    }
+
+    private void pipelining(String engine) throws Exception {
+        ServerEngine server = this.start(engine);
+        try (Socket s = new Socket("localhost", server.getLocalPort())) {
+            s.setSoTimeout(5000);
+            //both requests in one write, the second asking for the connection to close after it
+            send(s, "GET /first.txt HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /second.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            String replies = readToClose(s);
+            assertEquals(2, count(replies, "HTTP/1.1 200 OK"));
+            int a = replies.indexOf("first body");
+            int b = replies.indexOf("second body");
+            assertTrue(replies, a > 0 && b > a);
+            assertTrue(replies.indexOf("HTTP/1.1 200 OK", a) < b);
+        } finally {
+            stop(server);
+        }
+    }
+
+    private void connectionEnds(String engine) throws Exception {
+        ServerEngine server = this.start(engine);
+        try {
+            //Connection: close ends the connection once the response is sent
+            try (Socket s = new Socket("localhost", server.getLocalPort())) {
+                s.setSoTimeout(5000);
+                send(s, "GET /first.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                String reply = readToClose(s);
+                assertEquals(1, count(reply, "HTTP/1.1 200 OK"));
+                assertTrue(reply.toLowerCase().contains("connection: close"));
+            }
+
+            //the request limit closes the connection after the second of three pipelined requests
+            try (Socket s = new Socket("localhost", server.getLocalPort())) {
+                s.setSoTimeout(5000);
+                String request = "GET /first.txt HTTP/1.1\r\nHost: localhost\r\n\r\n";
+                send(s, request + request + request);
+                assertEquals(2, count(readToClose(s), "HTTP/1.1 200 OK"));
+            }
+
+            //an idle keep-alive connection is closed once the timeout passes
+            try (Socket s = new Socket("localhost", server.getLocalPort())) {
+                s.setSoTimeout(5000);
+                send(s, "GET /first.txt HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                long start = System.nanoTime();
+                String reply = readToClose(s);
+                long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertEquals(1, count(reply, "HTTP/1.1 200 OK"));
+                assertTrue(reply.toLowerCase().contains("connection: keep-alive"));
+                assertTrue("closed after " + waited + " ms", waited >= 150 && waited < 4000);
+            }
+        } finally {
+            stop(server);
+        }
+    }
+
+    private ServerEngine start(String engine) throws IOException {
+        ServerConfig config = ServerConfig.fromArgs(new String[] {root.toString(), "0", "--engine=" + engine,
+            "--max-requests=2", "--keepalive-timeout=300", "--log-file=" + root.resolve("access.log"),
+            "--metrics-path="});
+        ServerEngine server = engine.equals("nio") ? new NIOServerHub(config) : new HTTPServerHub(config);
+        server.start();
+        return server;
+    }
+
+    private void stop(ServerEngine server) throws Exception {
+        server.stop(1000);
+        server.awaitTermination(1, TimeUnit.SECONDS);
+        Files.deleteIfExists(root.resolve("access.log"));
+    }
+
+    private static void send(Socket s, String requests) throws IOException {
+        OutputStream os = s.getOutputStream();
+        os.write(requests.getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+    }
+
+    private static String readToClose(Socket s) throws IOException {
+        InputStream is = s.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = is.read(buf)) >= 0; ) {
+            received.write(buf, 0, n);
+        }
+        return received.toString("US-ASCII");
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,34 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = {0, 1, 127, 128, 129, 1000, 123456789L, (1L << 40) - 1};
+        for (long v : values) {
+            int bucket = LatencyHistogram.bucketOf(v);
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            assertTrue(v <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || v > LatencyHistogram.upperBound(bucket - 1));
+            //relative error of the bucket bound stays under 1/64
+            assertTrue(LatencyHistogram.upperBound(bucket) - v <= v / 64);
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        long[] counts = h.snapshot();
+        long p50 = LatencyHistogram.valueAt(counts, 1000, 0.5);
+        long p99 = LatencyHistogram.valueAt(counts, 1000, 0.99);
+        assertTrue(Math.abs(p50 - 500000) <= 500000 / 64);
+        assertTrue(Math.abs(p99 - 990000) <= 990000 / 64);
+        assertEquals(500500000L, h.getSum());
+    }
+}
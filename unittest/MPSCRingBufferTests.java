@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MPSCRingBufferTests {
+
+    @Test
+    public void testOrderAndCapacity() {
+        MPSCRingBuffer<Integer> ring = new MPSCRingBuffer<>(3);
+        assertEquals(4, ring.capacity());
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        //the freed slot is reused as the ring wraps
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void testManyProducers() throws InterruptedException {
+        MPSCRingBuffer<Integer> ring = new MPSCRingBuffer<>(64);
+        int producers = 4;
+        int each = 10000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * each;
+            Thread t = new Thread(() -> {
+                for (int i = first; i < first + each; i++) {
+                    while (!ring.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        //every element arrives once, and each producer's elements arrive in the order it offered them
+        int[] next = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            next[p] = p * each;
+        }
+        for (int received = 0; received < producers * each; ) {
+            Integer e = ring.poll();
+            if (e == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[e / each]++, e.intValue());
+            received++;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(ring.poll());
+    }
+}
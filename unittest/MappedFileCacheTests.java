@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MappedFileCacheTests {
+
+    @Test
+    public void testMappingsAreSharedAndReleased() throws IOException {
+        Path a = Files.createTempFile("mapped", ".bin");
+        Path b = Files.createTempFile("mapped", ".bin");
+        try {
+            Files.write(a, new byte[3000]);
+            Files.write(b, new byte[3000]);
+            FileVersions.Version va = new FileVersions.Version(3000, Files.getLastModifiedTime(a).toMillis());
+            FileVersions.Version vb = new FileVersions.Version(3000, Files.getLastModifiedTime(b).toMillis());
+            MappedFileCache cache = new MappedFileCache(4000, 1000, new FileVersions(60000));
+
+            assertNull(cache.acquire(a, new FileVersions.Version(500, va.getModified())));
+            MappedFileCache.Mapping first = cache.acquire(a, va);
+            MappedFileCache.Mapping second = cache.acquire(a, va);
+            assertSame(first, second);
+            assertEquals(3000, first.getBody().remaining());
+            assertEquals(1, cache.getHits());
+
+            //b does not fit beside a, so a leaves the cache but stays mapped while responses hold it
+            MappedFileCache.Mapping other = cache.acquire(b, vb);
+            assertNotSame(first, other);
+            assertEquals(3000, cache.getUsedBytes());
+            first.release();
+            assertEquals(0, cache.getUnmapped());
+            second.release();
+            assertEquals(1, cache.getUnmapped());
+            other.release();
+            assertEquals(1, cache.getUnmapped());
+
+            //rewritten at the same size: not mapped under the old version's validators
+            Files.write(a, new byte[3000]);
+            Files.setLastModifiedTime(a, FileTime.fromMillis(va.getModified() - 60000));
+            assertNull(cache.acquire(a, va));
+            assertEquals(2, cache.getMapped());
+        } finally {
+            Files.delete(a);
+            Files.delete(b);
+        }
+    }
+}
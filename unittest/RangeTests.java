@@ -0,0 +1,30 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class RangeTests {
+
+    @Test
+    public void testParseRanges() {
+        assertArrayEquals(new long[] {0, 99}, ResponseGenerator.parseRanges("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {500, 999}, ResponseGenerator.parseRanges("bytes=500-", 1000));
+        assertArrayEquals(new long[] {900, 999}, ResponseGenerator.parseRanges("bytes=-100", 1000));
+        assertArrayEquals(new long[] {0, 999}, ResponseGenerator.parseRanges("bytes=-5000", 1000));
+        assertArrayEquals(new long[] {990, 999}, ResponseGenerator.parseRanges("bytes=990-2000", 1000));
+        //overlapping and adjacent ranges are merged and sorted
+        assertArrayEquals(new long[] {0, 20, 100, 199},
+                ResponseGenerator.parseRanges("bytes=100-199, 0-10,5-20", 1000));
+        assertArrayEquals(new long[] {0, 19}, ResponseGenerator.parseRanges("bytes=0-9,10-19", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableAndMalformed() {
+        assertArrayEquals(new long[0], ResponseGenerator.parseRanges("bytes=1000-", 1000));
+        assertArrayEquals(new long[0], ResponseGenerator.parseRanges("bytes=-0", 1000));
+        assertNull(ResponseGenerator.parseRanges("items=0-1", 1000));
+        assertNull(ResponseGenerator.parseRanges("bytes=5-1", 1000));
+        assertNull(ResponseGenerator.parseRanges("bytes=a-b", 1000));
+        assertNull(ResponseGenerator.parseRanges("bytes=10", 1000));
+    }
+}
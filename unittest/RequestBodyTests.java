@@ -0,0 +1,109 @@
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestBodyTests {
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static HTTPRequest head(String headers) throws HTTPParseException {
+        return new HTTPRequestParser(8192, 16384).parse(bytes("PUT /a.txt HTTP/1.1\r\nHost: x\r\n" + headers + "\r\n"));
+    }
+
+    private static void assertRefused(String headers, int status) {
+        try {
+            RequestBody.of(head(headers), 1000);
+            fail("accepted " + headers);
+        } catch (HTTPParseException e) {
+            assertEquals(status, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testChunkedAcrossBuffers() throws IOException, HTTPParseException {
+        RequestBody body = RequestBody.of(head("Transfer-Encoding: chunked\r\n"), 1000);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        WritableByteChannel sink = Channels.newChannel(content);
+        String wire = "5;name=value\r\nhello\r\nB\r\n, world, hi\r\n0\r\nX-Checksum: 1\r\n\r\nGET / HTTP/1.1\r\n";
+        //one byte at a time, so every state is entered at a buffer boundary
+        ByteBuffer in = bytes(wire);
+        boolean done = false;
+        while (!done) {
+            ByteBuffer one = in.duplicate();
+            one.limit(one.position() + 1);
+            done = body.decode(one, sink);
+            in.position(one.position());
+        }
+        assertEquals("hello, world, hi", content.toString("US-ASCII"));
+        assertEquals(16, body.getReceived());
+        assertTrue(body.isChunked());
+        //the pipelined request is left unread
+        assertEquals("GET / HTTP/1.1\r\n", StandardCharsets.US_ASCII.decode(in).toString());
+    }
+
+    @Test
+    public void testContentLength() throws IOException, HTTPParseException {
+        RequestBody body = RequestBody.of(head("Content-Length: 5, 5\r\n"), 1000);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ByteBuffer in = bytes("helloGET");
+        assertTrue(body.decode(in, Channels.newChannel(content)));
+        assertEquals("hello", content.toString("US-ASCII"));
+        assertEquals(3, in.remaining());
+        assertNull(RequestBody.of(head(""), 1000));
+    }
+
+    @Test
+    public void testAmbiguousFramingRefused() {
+        assertRefused("Transfer-Encoding: chunked\r\nContent-Length: 5\r\n", 400);
+        assertRefused("Transfer-Encoding: chunked, gzip\r\n", 501);
+        assertRefused("Transfer-Encoding: gzip, chunked\r\n", 501);
+        assertRefused("Transfer-Encoding: gzip\r\n", 501);
+        assertRefused("Transfer-Encoding: chunked, chunked\r\n", 400);
+        assertRefused("Content-Length: 5\r\nContent-Length: 6\r\n", 400);
+        assertRefused("Content-Length: +5\r\n", 400);
+        assertRefused("Content-Length: 1001\r\n", 413);
+    }
+
+    @Test
+    public void testChunkOverLimit() throws IOException, HTTPParseException {
+        RequestBody body = RequestBody.of(head("Transfer-Encoding: chunked\r\n"), 1000);
+        try {
+            body.decode(bytes("3e9\r\n"), Channels.newChannel(new ByteArrayOutputStream()));
+            fail("chunk over the limit accepted");
+        } catch (HTTPParseException e) {
+            assertEquals(413, e.getStatusCode());
+        }
+        body = RequestBody.of(head("Transfer-Encoding: chunked\r\n"), 1000);
+        try {
+            body.decode(bytes("3\r\nabcd\r\n"), Channels.newChannel(new ByteArrayOutputStream()));
+            fail("chunk longer than its size accepted");
+        } catch (HTTPParseException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testStreamLengthChecked() throws IOException, HTTPParseException {
+        RequestBody body = RequestBody.ofStream(head("Content-Length: 5\r\n"), 1000);
+        assertFalse(body.decode(bytes("hel"), Channels.newChannel(new ByteArrayOutputStream())));
+        try {
+            body.endOfStream();
+            fail("short body accepted");
+        } catch (HTTPParseException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+}
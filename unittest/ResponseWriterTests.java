@@ -0,0 +1,70 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ResponseWriterTests {
+
+    private static String render(ByteBuffer buf) {
+        byte[] block = new byte[buf.remaining()];
+        buf.get(block);
+        return new String(block, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testEncodeHeader() {
+        HTTPResponse response = new HTTPResponse("HTTP/1.1", 200, "OK");
+        response.addHeader("Content-Type", "text/html");
+        response.setContentLength(1234567890123L);
+        response.setKeepAlive(true);
+
+        assertEquals("HTTP/1.1 200 OK\r\n" +
+                "Server: HTTPServer\r\n" +
+                "Content-Type: text/html\r\n" +
+                "Content-Length: 1234567890123\r\n" +
+                "Connection: keep-alive\r\n\r\n", render(ResponseWriter.encodeHeader(response, ResponseWriter.acquire())));
+    }
+
+    @Test
+    public void testUnknownStatusAndOverflow() {
+        HTTPResponse response = ResponseGenerator.errorResponse(599, "Odd", false);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            value.append('x');
+        }
+        response.addHeader("X-Long", value.toString());
+
+        String header = render(ResponseWriter.encodeHeader(response, ByteBuffer.allocate(64)));
+        assertEquals("HTTP/1.1 599 Odd\r\nServer: HTTPServer\r\nX-Long: " + value +
+                "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n", header);
+    }
+
+    @Test
+    public void testReadChunk() throws IOException {
+        byte[] data = new byte[ResponseWriter.CHUNK_BUFFER + 100];
+        ReadableByteChannel stream = Channels.newChannel(new ByteArrayInputStream(data));
+        ByteBuffer buf = ByteBuffer.allocate(ResponseWriter.CHUNK_BUFFER);
+        StringBuilder wire = new StringBuilder();
+        while (ResponseWriter.readChunk(stream, true, buf)) {
+            wire.append(render(buf));
+        }
+        wire.append(render(buf));
+        //a full buffer's chunk, the 100 bytes left over, then the last chunk
+        int first = ResponseWriter.CHUNK_BUFFER - 6 - 2 - 5;
+        String zeros = new String(new byte[first], StandardCharsets.US_ASCII);
+        String rest = new String(new byte[data.length - first], StandardCharsets.US_ASCII);
+        assertEquals(Integer.toHexString(first) + "\r\n" + zeros + "\r\n"
+                + Integer.toHexString(rest.length()) + "\r\n" + rest + "\r\n0\r\n\r\n", wire.toString());
+
+        stream = Channels.newChannel(new ByteArrayInputStream(new byte[10]));
+        assertFalse(ResponseWriter.readChunk(stream, false, buf));
+        assertEquals(10, buf.remaining());
+    }
+}
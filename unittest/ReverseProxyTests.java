@@ -0,0 +1,226 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReverseProxyTests {
+
+    private HttpServer backend;
+    private AtomicInteger calls = new AtomicInteger();
+    private Path root;
+    private Path page;
+
+    @Before
+    public void setUp() throws IOException {
+        backend = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        backend.createContext("/api/", exchange -> {
+            calls.incrementAndGet();
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                for (int n; (n = in.read(buf)) > 0; ) {
+                    received.write(buf, 0, n);
+                }
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/api/slow")) {
+                    Thread.sleep(300);
+                }
+                String echoed = path.endsWith("/proto") ? exchange.getRequestHeaders().getFirst("X-Forwarded-Proto")
+                        : received.toString("US-ASCII");
+                body = (exchange.getRequestMethod() + " " + path + " " + echoed).getBytes(StandardCharsets.US_ASCII);
+            } catch (InterruptedException ie) {
+                throw new IOException(ie);
+            }
+            if (!exchange.getRequestURI().getPath().endsWith("/private")) {
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        backend.start();
+        root = Files.createTempDirectory("docroot");
+        page = Files.write(root.resolve("index.html"), "<p>hi</p>".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        backend.stop(0);
+        Files.delete(page);
+        Files.delete(root);
+    }
+
+    private ResponseGenerator generator(String... options) {
+        List<String> args = new ArrayList<>();
+        args.add(root.toString());
+        args.add("0");
+        args.add("--proxy=/api/=127.0.0.1:" + backend.getAddress().getPort() + ",/api/docs/=static");
+        for (String option : options) {
+            args.add(option);
+        }
+        return new ResponseGenerator(ServerConfig.fromArgs(args.toArray(new String[0])));
+    }
+
+    private static HTTPRequest request(String head) throws HTTPParseException {
+        return new HTTPRequestParser(8192, 16384).parse(ByteBuffer.wrap(
+                (head + "\r\nHost: example.org\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String body(HTTPResponse response) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] held = new byte[response.getBody().remaining()];
+        response.getBody().duplicate().get(held);
+        content.write(held);
+        ReadableByteChannel stream = response.getStreamBody();
+        if (stream != null) {
+            ByteBuffer buf = ByteBuffer.allocate(7);
+            while (stream.read(buf) >= 0) {
+                content.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+        response.closeBody();
+        return content.toString("US-ASCII");
+    }
+
+    @Test
+    public void testRoutesAndPooledConnection() throws IOException, HTTPParseException {
+        ResponseGenerator generator = this.generator("--proxy-cache-bytes=0");
+        ReverseProxy proxy = generator.getProxy();
+        for (int i = 0; i < 3; i++) {
+            HTTPResponse response = generator.generateResponse(request("GET /api/a?x=" + i + " HTTP/1.1"), true);
+            assertEquals(200, response.getStatusCode());
+            assertTrue(response.isKeepAlive());
+            assertEquals("GET /api/a ", body(response));
+        }
+        //one connection, reused for the later requests once each body was read
+        assertEquals(1, proxy.getOpened());
+        assertEquals(2, proxy.getReused());
+        assertTrue(proxy.routes("/api/b"));
+        assertTrue(!proxy.routes("/api/docs/b") && !proxy.routes("/index.html"));
+        HTTPResponse file = generator.generateResponse(request("GET /index.html HTTP/1.1"), true);
+        assertEquals(200, file.getStatusCode());
+        assertNull(file.getStreamBody());
+        file.closeBody();
+        assertNull(proxy.getCache());
+    }
+
+    @Test
+    public void testCacheAndCoalescing() throws Exception {
+        ResponseGenerator generator = this.generator();
+        ProxyCache cache = generator.getProxy().getCache();
+        assertEquals("GET /api/a ", body(generator.generateResponse(request("GET /api/a HTTP/1.1"), true)));
+        HTTPResponse hit = generator.generateResponse(request("GET /api/a HTTP/1.1"), true);
+        assertEquals("GET /api/a ", body(hit));
+        assertTrue(hit.getHeaderNames().contains("Age"));
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.getHits());
+        //not storable, and a client asking past the cache
+        body(generator.generateResponse(request("GET /api/private HTTP/1.1"), true));
+        body(generator.generateResponse(request("GET /api/private HTTP/1.1"), true));
+        body(generator.generateResponse(request("GET /api/a HTTP/1.1\r\nCache-Control: no-cache"), true));
+        assertEquals(4, calls.get());
+        //a range is answered by the backend rather than with the whole cached body
+        body(generator.generateResponse(request("GET /api/a HTTP/1.1\r\nRange: bytes=0-2"), true));
+        assertEquals(5, calls.get());
+        assertEquals(1, cache.getHits());
+
+        //concurrent misses for a slow target make one backend call between them
+        int clients = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    String b = body(generator.generateResponse(request("GET /api/slow HTTP/1.1"), true));
+                    synchronized (bodies) {
+                        bodies.add(b);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(clients, bodies.size());
+        assertTrue(bodies.stream().allMatch("GET /api/slow "::equals));
+        assertEquals(6, calls.get());
+        assertEquals(clients - 1, cache.getCoalesced());
+    }
+
+    @Test
+    public void testRequestBodyForwarded() throws IOException, HTTPParseException {
+        ResponseGenerator generator = this.generator();
+        HTTPRequest request = request("POST /api/form HTTP/1.1\r\nTransfer-Encoding: chunked");
+        assertTrue(generator.isUpload(request));
+        Upload exchange = generator.startUpload(request, true);
+        assertNull(exchange.getRejection());
+        assertTrue(exchange.receive(ByteBuffer.wrap("5\r\nhello\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII))));
+        HTTPResponse response = exchange.finish();
+        exchange.abort();
+        assertEquals(200, response.getStatusCode());
+        assertEquals("POST /api/form hello", body(response));
+    }
+
+    @Test
+    public void testForwardedProto() throws IOException, HTTPParseException {
+        ResponseGenerator generator = this.generator("--proxy-cache-bytes=0");
+        assertEquals("GET /api/proto http", body(generator.generateResponse(request("GET /api/proto HTTP/1.1"), true)));
+        HTTPRequestParser parser = new HTTPRequestParser(8192, 16384);
+        parser.setSecure(true);
+        HTTPRequest secure = parser.parse(ByteBuffer.wrap(
+                "GET /api/proto HTTP/1.1\r\nHost: example.org\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("GET /api/proto https", body(generator.generateResponse(secure, true)));
+    }
+
+    @Test
+    public void testRefusedOnEventLoops() {
+        try {
+            ServerConfig.fromArgs(new String[] {root.toString(), "0", "--engine=nio", "--proxy=/api/=127.0.0.1:1"});
+            fail("backend routes accepted with the nio engine");
+        } catch (IllegalArgumentException iae) {
+            assertEquals("--proxy needs --engine=blocking", iae.getMessage());
+        }
+        //routes which only serve from the document root do not block
+        ServerConfig.fromArgs(new String[] {root.toString(), "0", "--engine=nio", "--proxy=/api/=static"});
+    }
+
+    @Test
+    public void testBackendDown() throws IOException, HTTPParseException {
+        ResponseGenerator generator = this.generator();
+        backend.stop(0);
+        HTTPResponse response = generator.generateResponse(request("GET /api/a HTTP/1.1"), true);
+        assertEquals(502, response.getStatusCode());
+        assertEquals(1, generator.getProxy().getFailures());
+    }
+}
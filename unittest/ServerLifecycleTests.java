@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServerLifecycleTests {
+
+    @Test
+    public void testBlockingDrainAndHandOff() throws Exception {
+        this.drainAndHandOff("blocking");
+    }
+
+    @Test
+    public void testNioDrainAndHandOff() throws Exception {
+        this.drainAndHandOff("nio");
+    }
+
+    private void drainAndHandOff(String engine) throws Exception {
+        Path root = Files.createTempDirectory("docroot");
+        Path page = Files.write(root.resolve("index.html"), "<p>hi</p>".getBytes(StandardCharsets.US_ASCII));
+        Path log = root.resolve("access.log");
+        ServerConfig config = ServerConfig.fromArgs(new String[] {root.toString(), "0", "--engine=" + engine,
+            "--log-file=" + log, "--metrics-path="});
+        int watchers = watchThreads();
+        try {
+            ServerEngine first = engine.equals("nio") ? new NIOServerHub(config) : new HTTPServerHub(config);
+            first.start();
+            int port = first.getLocalPort();
+            try (Socket idle = new Socket("localhost", port)) {
+                assertTrue(get(idle).startsWith("HTTP/1.1 200"));
+
+                List<ServerSocketChannel> listeners = first.handOff(5000);
+                assertTrue(first.awaitTermination(1, TimeUnit.SECONDS));
+                //the idle keep-alive connection was closed rather than left waiting for the deadline
+                assertEquals(-1, idle.getInputStream().read());
+
+                ServerEngine second = engine.equals("nio") ? new NIOServerHub(config, listeners)
+                        : new HTTPServerHub(config, listeners);
+                second.start();
+                assertEquals(port, second.getLocalPort());
+                try (Socket fresh = new Socket("localhost", port)) {
+                    assertTrue(get(fresh).startsWith("HTTP/1.1 200"));
+                }
+                second.stop(5000);
+                assertTrue(second.awaitTermination(1, TimeUnit.SECONDS));
+            }
+            //neither server left its file watch threads behind
+            for (int i = 0; i < 50 && watchThreads() > watchers; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(watchers, watchThreads());
+        } finally {
+            Files.deleteIfExists(log);
+            Files.delete(page);
+            Files.delete(root);
+        }
+    }
+
+    private static int watchThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().endsWith("-watch") && t.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String get(Socket s) throws IOException {
+        OutputStream os = s.getOutputStream();
+        os.write("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+        InputStream is = s.getInputStream();
+        byte[] buf = new byte[4096];
+        int n = is.read(buf);
+        return new String(buf, 0, Math.max(n, 0), StandardCharsets.US_ASCII);
+    }
+}
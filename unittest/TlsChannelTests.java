@@ -0,0 +1,138 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TlsChannelTests {
+
+    @Test
+    public void testBlockingTls() throws Exception {
+        this.serveOverTls("blocking");
+    }
+
+    @Test
+    public void testNioTls() throws Exception {
+        this.serveOverTls("nio");
+    }
+
+    private void serveOverTls(String engine) throws Exception {
+        Path root = Files.createTempDirectory("docroot");
+        Path page = Files.write(root.resolve("index.html"), "<p>hi</p>".getBytes(StandardCharsets.US_ASCII));
+        Path log = root.resolve("access.log");
+        ServerConfig config = ServerConfig.fromArgs(new String[] {root.toString(), "0", "--engine=" + engine,
+            "--log-file=" + log, "--tls=on"});
+        ServerEngine server = engine.equals("nio") ? new NIOServerHub(config) : new HTTPServerHub(config);
+        try {
+            server.start();
+            int port = server.getLocalPort();
+            TlsContext tls = engine.equals("nio") ? ((NIOServerHub) server).getTls()
+                    : ((HTTPServerHub) server).getTls();
+            SSLContext client = trustAll();
+
+            //pipelined requests arrive in one record, the second is answered from input the engine already holds
+            try (SSLSocket s = connect(client, port, "http/1.1")) {
+                String responses = exchange(s, "GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        + "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertEquals("http/1.1", s.getApplicationProtocol());
+                assertEquals("TLSv1.3", s.getSession().getProtocol());
+                assertEquals(2, responses.split("HTTP/1.1 200", -1).length - 1);
+            }
+            //the same client context comes back with its session ticket
+            try (SSLSocket s = connect(client, port, "http/1.1")) {
+                assertTrue(exchange(s, "GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                        .startsWith("HTTP/1.1 200"));
+            }
+            assertEquals(2, tls.getHandshakes());
+            assertEquals(1, tls.getResumed());
+
+            //ALPN picks h2, and the server answers the preface with its SETTINGS frame
+            try (SSLSocket s = connect(client, port, "h2", "http/1.1")) {
+                OutputStream os = s.getOutputStream();
+                os.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                os.write(new byte[] {0, 0, 0, 4, 0, 0, 0, 0, 0});
+                os.flush();
+                byte[] frame = new byte[9];
+                assertEquals(9, s.getInputStream().read(frame));
+                assertEquals("h2", s.getApplicationProtocol());
+                assertEquals(4, frame[3]);
+            }
+
+            //plain HTTP on the TLS port fails the handshake
+            try (Socket plain = new Socket("localhost", port)) {
+                plain.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                plain.getInputStream().read(new byte[256]);
+            } catch (IOException ioe) {
+                //reset by the server
+            }
+            for (int i = 0; i < 50 && tls.getFailures() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, tls.getFailures());
+        } finally {
+            server.stop(1000);
+            assertTrue(server.awaitTermination(1, TimeUnit.SECONDS));
+            Files.deleteIfExists(log);
+            Files.delete(page);
+            Files.delete(root);
+        }
+    }
+
+    private static SSLSocket connect(SSLContext client, int port, String... protocols) throws IOException {
+        SSLSocket s = (SSLSocket) client.getSocketFactory().createSocket("localhost", port);
+        SSLParameters params = s.getSSLParameters();
+        params.setApplicationProtocols(protocols);
+        s.setSSLParameters(params);
+        s.startHandshake();
+        return s;
+    }
+
+    private static String exchange(SSLSocket s, String requests) throws IOException {
+        OutputStream os = s.getOutputStream();
+        os.write(requests.getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+        InputStream is = s.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = is.read(buf)) > 0; ) {
+            received.write(buf, 0, n);
+        }
+        return received.toString("US-ASCII");
+    }
+
+    private static SSLContext trustAll() throws Exception {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] {trustAll}, null);
+        return context;
+    }
+}